@@ -36,7 +36,8 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
   private final long myCompilationStartStamp;
   private final TimestampStorage myTsStorage;
   private final BuildCanceledStatus myCancelStatus;
-  private float myDone = -1.0f;
+  private volatile float myDone = -1.0f;
+  @Nullable private final CompileContext myParent;
 
   public CompileContext(String projectName, CompileScope scope,
                         boolean isMake,
@@ -58,6 +59,37 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
     final Project project = scope.getProject();
     myProjectPaths = new ProjectPaths(project);
     myRootsIndex = rootsIndex;
+    myParent = null;
+  }
+
+  private CompileContext(@NotNull CompileContext parent) {
+    myTsStorage = parent.myTsStorage;
+    myCancelStatus = parent.myCancelStatus;
+    myCompilationStartStamp = parent.myCompilationStartStamp;
+    myScope = parent.myScope;
+    myIsProjectRebuild = parent.myIsProjectRebuild;
+    myIsMake = parent.myIsMake;
+    myProductionChunks = parent.myProductionChunks;
+    myTestChunks = parent.myTestChunks;
+    myFsState = parent.myFsState;
+    myDelegateMessageHandler = parent.myDelegateMessageHandler;
+    myDataManager = parent.myDataManager;
+    myProjectPaths = parent.myProjectPaths;
+    myRootsIndex = parent.myRootsIndex;
+    myCompilingTests = parent.myCompilingTests;
+    myParent = parent;
+  }
+
+  /**
+   * Creates a context for building a single chunk concurrently with other chunks: storages, errors and progress are shared
+   * with this context, user data is not.
+   */
+  CompileContext createChunkContext() {
+    return new CompileContext(getRootContext());
+  }
+
+  private CompileContext getRootContext() {
+    return myParent != null ? myParent : this;
   }
 
   public Project getProject() {
@@ -123,6 +155,7 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
   }
 
   void setCompilingTests(boolean compilingTests) {
+    assert myParent == null;
     myCompilingTests = compilingTests;
   }
 
@@ -131,14 +164,17 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
   }
 
   void beforeNextCompileRound(@NotNull ModuleChunk chunk) {
-    myFsState.beforeNextRoundStart();
+    myFsState.beforeNextRoundStart(chunk);
   }
 
   void onChunkBuildComplete(@NotNull ModuleChunk chunk) throws Exception {
-    myDataManager.getMappings().clearMemoryCaches();
+    final Mappings mappings = myDataManager.getMappings();
+    synchronized (mappings) {
+      mappings.clearMemoryCaches();
+    }
 
     try {
-      if (!myErrorsFound && !myCancelStatus.isCanceled()) {
+      if (!getRootContext().myErrorsFound && !myCancelStatus.isCanceled()) {
         final boolean compilingTests = isCompilingTests();
         for (Module module : chunk.getModules()) {
           if (isProjectRebuild()) {
@@ -154,7 +190,7 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
       }
     }
     finally {
-      myFsState.clearContextRoundData();
+      myFsState.clearContextRoundData(chunk);
     }
   }
 
@@ -167,11 +203,12 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
   }
 
   public void processMessage(BuildMessage msg) {
+    final CompileContext root = getRootContext();
     if (msg.getKind() == BuildMessage.Kind.ERROR) {
-      myErrorsFound = true;
+      root.myErrorsFound = true;
     }
     if (msg instanceof ProgressMessage) {
-      ((ProgressMessage)msg).setDone(myDone);
+      ((ProgressMessage)msg).setDone(root.myDone);
     }
     myDelegateMessageHandler.processMessage(msg);
   }
@@ -229,7 +266,7 @@ public class CompileContext extends UserDataHolderBase implements MessageHandler
   }
 
   public void setDone(float done) {
-    myDone = done;
+    getRootContext().myDone = done;
     processMessage(new ProgressMessage("", done));
   }
 
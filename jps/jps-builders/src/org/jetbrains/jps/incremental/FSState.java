@@ -20,15 +20,14 @@ public class FSState {
   private final Set<Module> myInitialTestsScanPerformed = Collections.synchronizedSet(new HashSet<Module>());
   private final Set<Module> myInitialProductionScanPerformed = Collections.synchronizedSet(new HashSet<Module>());
 
-  private final Set<Module> myContextModules = new HashSet<Module>();
-  private volatile FilesDelta myCurrentRoundDelta;
-  private volatile FilesDelta myLastRoundDelta;
+  // round deltas of the chunks being compiled, several chunks may be compiled concurrently
+  private final Map<Module, RoundData> myContextRoundData = Collections.synchronizedMap(new HashMap<Module, RoundData>());
 
   public FSState() {
   }
 
   public void onRebuild() {
-    clearContextRoundData();
+    myContextRoundData.clear();
     myInitialProductionScanPerformed.clear();
     myInitialTestsScanPerformed.clear();
     myDeltas.clear();
@@ -40,18 +39,30 @@ public class FSState {
   }
 
   public void setContextChunk(ModuleChunk chunk) {
-    myContextModules.addAll(chunk.getModules());
+    final RoundData data = new RoundData();
+    for (Module module : chunk.getModules()) {
+      myContextRoundData.put(module, data);
+    }
+  }
+
+  public void beforeNextRoundStart(ModuleChunk chunk) {
+    final RoundData data = getRoundData(chunk);
+    if (data != null) {
+      data.myLastRoundDelta = data.myCurrentRoundDelta;
+      data.myCurrentRoundDelta = new FilesDelta();
+    }
   }
 
-  public void beforeNextRoundStart() {
-    myLastRoundDelta = myCurrentRoundDelta;
-    myCurrentRoundDelta = new FilesDelta();
+  public void clearContextRoundData(ModuleChunk chunk) {
+    for (Module module : chunk.getModules()) {
+      myContextRoundData.remove(module);
+    }
   }
 
-  public void clearContextRoundData() {
-    myCurrentRoundDelta = null;
-    myLastRoundDelta = null;
-    myContextModules.clear();
+  @Nullable
+  private RoundData getRoundData(ModuleChunk chunk) {
+    final Iterator<Module> modules = chunk.getModules().iterator();
+    return modules.hasNext() ? myContextRoundData.get(modules.next()) : null;
   }
 
   public void clearRecompile(RootDescriptor rd) {
@@ -59,11 +70,10 @@ public class FSState {
   }
 
   public void markDirty(final File file, final RootDescriptor rd, final @Nullable TimestampStorage tsStorage) throws Exception {
-    final FilesDelta roundDelta = myCurrentRoundDelta;
+    final RoundData roundData = myContextRoundData.get(rd.module);
+    final FilesDelta roundDelta = roundData != null ? roundData.myCurrentRoundDelta : null;
     if (roundDelta != null) {
-      if (myContextModules.contains(rd.module)) {
-        roundDelta.markRecompile(rd.root, rd.isTestRoot, file);
-      }
+      roundDelta.markRecompile(rd.root, rd.isTestRoot, file);
     }
     final FilesDelta mainDelta = getDelta(rd.module);
     final boolean marked = mainDelta.markRecompile(rd.root, rd.isTestRoot, file);
@@ -98,7 +108,8 @@ public class FSState {
 
 
   public boolean processFilesToRecompile(final Module module, final boolean forTests, final FileProcessor processor) throws Exception {
-    final FilesDelta lastRoundDelta = myLastRoundDelta;
+    final RoundData roundData = myContextRoundData.get(module);
+    final FilesDelta lastRoundDelta = roundData != null ? roundData.myLastRoundDelta : null;
     final FilesDelta delta = lastRoundDelta != null? lastRoundDelta : getDelta(module);
     final Map<File, Set<File>> data = delta.getSourcesToRecompile(forTests);
     final CompilerExcludes excludes = module.getProject().getCompilerConfiguration().getExcludes();
@@ -152,6 +163,11 @@ public class FSState {
     }
   }
 
+  private static final class RoundData {
+    private volatile FilesDelta myCurrentRoundDelta;
+    private volatile FilesDelta myLastRoundDelta;
+  }
+
   private static final class FilesDelta {
     private final Set<String> myDeletedProduction = Collections.synchronizedSet(new HashSet<String>());
     private final Set<String> myDeletedTests = Collections.synchronizedSet(new HashSet<String>());
@@ -160,15 +176,14 @@ public class FSState {
 
     public boolean markRecompile(File root, boolean isTestRoot, File file) {
       final Map<File, Set<File>> toRecompile = isTestRoot ? myTestsToRecompile : mySourcesToRecompile;
-      Set<File> files;
       synchronized (toRecompile) {
-        files = toRecompile.get(root);
+        Set<File> files = toRecompile.get(root);
         if (files == null) {
           files = new HashSet<File>();
           toRecompile.put(root, files);
         }
+        return files.add(file);
       }
-      return files.add(file);
     }
 
     public void addDeleted(File file, boolean isTest) {
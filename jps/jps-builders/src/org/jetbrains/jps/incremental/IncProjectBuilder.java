@@ -1,11 +1,13 @@
 package org.jetbrains.jps.incremental;
 
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.io.PersistentEnumerator;
 import org.jetbrains.jps.*;
 import org.jetbrains.jps.incremental.messages.BuildMessage;
 import org.jetbrains.jps.incremental.messages.CompilerMessage;
 import org.jetbrains.jps.incremental.messages.ProgressMessage;
+import org.jetbrains.jps.incremental.storage.AbstractStateStorage;
 import org.jetbrains.jps.incremental.storage.SourceToFormMapping;
 import org.jetbrains.jps.incremental.storage.SourceToOutputMapping;
 import org.jetbrains.jps.incremental.storage.TimestampStorage;
@@ -16,14 +18,21 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Eugene Zhuravlev
  *         Date: 9/17/11
  */
 public class IncProjectBuilder {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.IncProjectBuilder");
   public static final String JPS_SERVER_NAME = "JPS BUILD";
   private static final String CANCELED_MESSAGE = "The build has been canceled";
+  /**
+   * Number of threads building independent chunks concurrently, chunks are built one by one if it is 1
+   */
+  private static final int CHUNK_BUILD_THREADS = Math.max(1, Integer.getInteger("jps.chunk.build.threads", 1));
 
   private final ProjectDescriptor myProjectDescriptor;
   private final BuilderRegistry myBuilderRegistry;
@@ -32,7 +41,8 @@ public class IncProjectBuilder {
   private ProjectChunks myTestChunks;
   private final List<MessageHandler> myMessageHandlers = new ArrayList<MessageHandler>();
   private final MessageHandler myMessageDispatcher = new MessageHandler() {
-    public void processMessage(BuildMessage msg) {
+    // chunks built concurrently report through the same dispatcher, handlers receive messages one at a time
+    public synchronized void processMessage(BuildMessage msg) {
       for (MessageHandler h : myMessageHandlers) {
         h.processMessage(msg);
       }
@@ -107,7 +117,7 @@ public class IncProjectBuilder {
     }
   }
 
-  private float updateFractionBuilderFinished(final float delta) {
+  private synchronized float updateFractionBuilderFinished(final float delta) {
     myModulesProcessed += delta;
     return myModulesProcessed / myTotalModulesWork;
   }
@@ -220,6 +230,10 @@ public class IncProjectBuilder {
   }
 
   private void buildChunks(CompileContext context, ProjectChunks chunks) throws ProjectBuildException {
+    if (CHUNK_BUILD_THREADS > 1) {
+      buildChunksInParallel(context, chunks);
+      return;
+    }
     final CompileScope scope = context.getScope();
     for (ModuleChunk chunk : chunks.getChunkList()) {
       if (scope.isAffected(chunk)) {
@@ -232,7 +246,182 @@ public class IncProjectBuilder {
     }
   }
 
+  /**
+   * Builds a chunk as soon as all chunks it depends on are built, so independent chunks are compiled concurrently.
+   * No new chunks are started after a failure or cancellation; the first exception is rethrown when running chunks finish.
+   */
+  private void buildChunksInParallel(final CompileContext context, ProjectChunks chunks) throws ProjectBuildException {
+    final CompileScope scope = context.getScope();
+    final List<ModuleChunk> chunkList = chunks.getChunkList();
+    final ClasspathKind classpathKind = ClasspathKind.compile(context.isCompilingTests());
+
+    final Map<ModuleChunk, AtomicInteger> unbuiltDependencies = new HashMap<ModuleChunk, AtomicInteger>();
+    final Map<ModuleChunk, List<ModuleChunk>> dependents = new HashMap<ModuleChunk, List<ModuleChunk>>();
+    for (ModuleChunk chunk : chunkList) {
+      final Set<ModuleChunk> dependencies = new HashSet<ModuleChunk>();
+      for (Module module : chunk.getModules()) {
+        for (ClasspathItem item : module.getClasspath(classpathKind)) {
+          if (item instanceof Module) {
+            final ModuleChunk dependency = chunks.findChunk((Module)item);
+            if (dependency != null && dependency != chunk) {
+              dependencies.add(dependency);
+            }
+          }
+        }
+      }
+      for (ModuleChunk dependency : dependencies) {
+        List<ModuleChunk> list = dependents.get(dependency);
+        if (list == null) {
+          list = new ArrayList<ModuleChunk>();
+          dependents.put(dependency, list);
+        }
+        list.add(chunk);
+      }
+      unbuiltDependencies.put(chunk, new AtomicInteger(dependencies.size()));
+    }
+
+    final Deque<ModuleChunk> ready = new ArrayDeque<ModuleChunk>();
+    for (ModuleChunk chunk : chunkList) {
+      if (unbuiltDependencies.get(chunk).get() == 0) {
+        ready.add(chunk);
+      }
+    }
+
+    final long start = System.currentTimeMillis();
+    final ExecutorService executor = Executors.newFixedThreadPool(CHUNK_BUILD_THREADS);
+    final CompletionService<ModuleChunk> completionService = new ExecutorCompletionService<ModuleChunk>(executor);
+    ProjectBuildException failure = null;
+    int running = 0;
+    int processed = 0;
+    try {
+      while (true) {
+        while (failure == null && !ready.isEmpty()) {
+          final ModuleChunk chunk = ready.removeFirst();
+          if (scope.isAffected(chunk)) {
+            completionService.submit(new Callable<ModuleChunk>() {
+              public ModuleChunk call() throws Exception {
+                buildChunk(context.createChunkContext(), chunk);
+                return chunk;
+              }
+            });
+            running++;
+          }
+          else {
+            context.setDone(updateFractionBuilderFinished(chunk.getModules().size()));
+            processed++;
+            releaseDependents(chunk, dependents, unbuiltDependencies, ready);
+          }
+        }
+        if (running == 0) {
+          break;
+        }
+
+        final Future<ModuleChunk> future;
+        try {
+          future = completionService.take();
+        }
+        catch (InterruptedException e) {
+          throw new ProjectBuildException(CANCELED_MESSAGE);
+        }
+        running--;
+        try {
+          final ModuleChunk chunk = future.get();
+          processed++;
+          releaseDependents(chunk, dependents, unbuiltDependencies, ready);
+        }
+        catch (ExecutionException e) {
+          if (failure == null) {
+            final Throwable cause = e.getCause();
+            failure = cause instanceof ProjectBuildException ? (ProjectBuildException)cause : new ProjectBuildException(cause);
+          }
+        }
+        catch (InterruptedException e) {
+          throw new ProjectBuildException(CANCELED_MESSAGE);
+        }
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+    if (processed != chunkList.size()) {
+      throw new ProjectBuildException("Cyclic dependencies between module chunks: " + (chunkList.size() - processed) + " chunks were not built");
+    }
+    LOG.info(chunkList.size() + " chunks processed by " + CHUNK_BUILD_THREADS + " threads in " + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  private static void releaseDependents(ModuleChunk chunk, Map<ModuleChunk, List<ModuleChunk>> dependents,
+                                        Map<ModuleChunk, AtomicInteger> unbuiltDependencies, Deque<ModuleChunk> ready) {
+    final List<ModuleChunk> list = dependents.get(chunk);
+    if (list != null) {
+      for (ModuleChunk dependent : list) {
+        if (unbuiltDependencies.get(dependent).decrementAndGet() == 0) {
+          ready.add(dependent);
+        }
+      }
+    }
+  }
+
   private void buildChunk(CompileContext context, ModuleChunk chunk) throws ProjectBuildException{
+    final long start = System.currentTimeMillis();
+    final List<AbstractStateStorage<?, ?>> storages = getChunkStorages(context, chunk);
+    for (AbstractStateStorage<?, ?> storage : storages) {
+      storage.beginBatch();
+    }
+    boolean built = false;
+    try {
+      doBuildChunk(context, chunk);
+      built = true;
+    }
+    finally {
+      // every storage has to leave batch mode, a commit failure must not hide the error the build failed with
+      IOException commitError = null;
+      for (AbstractStateStorage<?, ?> storage : storages) {
+        try {
+          storage.commitBatch();
+        }
+        catch (IOException e) {
+          if (commitError == null) {
+            commitError = e;
+          }
+          else {
+            LOG.info(e);
+          }
+        }
+      }
+      LOG.info("Chunk " + chunk.getName() + (context.isCompilingTests() ? " tests" : "") + " built in " + (System.currentTimeMillis() - start) + " ms");
+      if (commitError != null) {
+        if (built) {
+          throw new ProjectBuildException(commitError);
+        }
+        LOG.info(commitError);
+      }
+    }
+  }
+
+  /**
+   * Storages updated for every file of the chunk, their updates are written once when the chunk is built
+   */
+  private List<AbstractStateStorage<?, ?>> getChunkStorages(CompileContext context, ModuleChunk chunk) throws ProjectBuildException {
+    final List<AbstractStateStorage<?, ?>> storages = new ArrayList<AbstractStateStorage<?, ?>>();
+    storages.add(myProjectDescriptor.timestamps.getStorage());
+    storages.add(context.getDataManager().getSourceToFormMap());
+    try {
+      for (Module module : chunk.getModules()) {
+        final String moduleName = module.getName().toLowerCase(Locale.US);
+        storages.add(context.getDataManager().getSourceToOutputMap(moduleName, context.isCompilingTests()));
+      }
+    }
+    catch (Exception e) {
+      throw new ProjectBuildException(e);
+    }
+    return storages;
+  }
+
+  private void doBuildChunk(CompileContext context, ModuleChunk chunk) throws ProjectBuildException{
     try {
       context.ensureFSStateInitialized(chunk);
       if (context.isMake()) {
@@ -333,9 +522,11 @@ public class IncProjectBuilder {
         if (buildResult == Builder.ExitCode.ADDITIONAL_PASS_REQUIRED) {
           if (!nextPassRequired) {
             // recalculate basis
-            myModulesProcessed -= (stagesPassed * modulesInChunk) / stageCount;
-            stageCount += myTotalBuilderCount;
-            myModulesProcessed += (stagesPassed * modulesInChunk) / stageCount;
+            synchronized (this) {
+              myModulesProcessed -= (stagesPassed * modulesInChunk) / stageCount;
+              stageCount += myTotalBuilderCount;
+              myModulesProcessed += (stagesPassed * modulesInChunk) / stageCount;
+            }
           }
           nextPassRequired = true;
         }
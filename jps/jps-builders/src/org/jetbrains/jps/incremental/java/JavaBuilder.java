@@ -84,12 +84,8 @@ public class JavaBuilder extends Builder{
               }
             }
             final ClassReader reader = new ClassReader(content.getBuffer(), content.getOffset(), content.getLength());
-            // todo: the callback is not thread-safe?
-            //noinspection SynchronizationOnLocalVariableOrMethodParameter
-            synchronized (dataManager.getMappings()) {
-              // todo: parse class data out of synchronized block (move it from the 'associate' implementation)
-              callback.associate(outputPath, Callbacks.getDefaultLookup(sourcePath), reader);
-            }
+            // classes are analyzed concurrently in the compiler output threads and stored into the delta when compilation ends
+            callback.associateLater(outputPath, Callbacks.getDefaultLookup(sourcePath), reader);
           }
         }
       }
@@ -224,7 +220,8 @@ public class JavaBuilder extends Builder{
     final DiagnosticSink diagnosticSink = new DiagnosticSink(context);
     final OutputFilesSink outputSink = new OutputFilesSink(context);
     final Mappings delta = context.createDelta();
-    DELTA_MAPPINGS_CALLBACK_KEY.set(context, delta.getCallback());
+    final Callbacks.Backend deltaCallback = delta.getCallback();
+    DELTA_MAPPINGS_CALLBACK_KEY.set(context, deltaCallback);
     try {
       if (hasSourcesToCompile) {
         final Set<File> sourcePath = TEMPORARY_SOURCE_ROOTS_KEY.get(context,Collections.<File>emptySet());
@@ -269,6 +266,7 @@ public class JavaBuilder extends Builder{
 
       final Set<File> successfullyCompiled = outputSink.getSuccessfullyCompiled();
       DELTA_MAPPINGS_CALLBACK_KEY.set(context, null);
+      deltaCallback.flush();
 
       if (updateMappings(context, delta, chunk, files, successfullyCompiled)) {
         exitCode = ExitCode.ADDITIONAL_PASS_REQUIRED;
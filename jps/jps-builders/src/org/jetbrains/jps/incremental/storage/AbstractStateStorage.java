@@ -1,51 +1,131 @@
 package org.jetbrains.jps.incremental.storage;
 
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.FileUtil;
-import com.intellij.util.io.DataExternalizer;
-import com.intellij.util.io.KeyDescriptor;
-import com.intellij.util.io.PersistentHashMap;
+import com.intellij.util.io.*;
 import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.DataOutput;
-import java.io.File;
-import java.io.IOException;
-import java.util.Collection;
-import java.util.Iterator;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public abstract class AbstractStateStorage<Key, T> {
-  private PersistentHashMap<Key, T> myMap;
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.storage.AbstractStateStorage");
+  /**
+   * Use {@link SegmentedPersistentHashMap} so that builder threads working with different keys don't wait for each other
+   */
+  private static final boolean SEGMENTED = Boolean.getBoolean("jps.storage.segmented");
+  /**
+   * Collect updates made between {@link #beginBatch()} and {@link #commitBatch()} in memory and write them to the map in one pass
+   */
+  private static final boolean BATCHED = Boolean.parseBoolean(System.getProperty("jps.storage.batched", "true"));
+
+  private static final byte PUT = 0;
+  private static final byte APPEND = 1;
+  private static final byte REMOVE = 2;
+
+  private PersistentMap<Key, T> myMap;
   private final File myBaseFile;
   private final KeyDescriptor<Key> myKeyDescriptor;
   private final DataExternalizer<T> myStateExternalizer;
-  protected final Object myDataLock = new Object();
+  // the map is thread-safe by itself, the write lock guards replacing and closing it
+  private final ReentrantReadWriteLock myMapLock = new ReentrantReadWriteLock();
+
+  // guards the fields below; taken after myMapLock
+  private final Object myBatchLock = new Object();
+  private int myBatchDepth;
+  private final Map<Key, PendingUpdate<T>> myPending = new HashMap<Key, PendingUpdate<T>>();
+  // write-ahead log of the pending updates, opened on the first update of a batch
+  private DataOutputStream myLog;
 
   public AbstractStateStorage(@NonNls File storePath, KeyDescriptor<Key> keyDescriptor, DataExternalizer<T> stateExternalizer) throws Exception {
     myBaseFile = storePath;
     myKeyDescriptor = keyDescriptor;
     myStateExternalizer = stateExternalizer;
     myMap = createMap(storePath);
+    replayLog();
+  }
+
+  /**
+   * Starts collecting updates in memory. Batches may overlap, e.g. when module chunks are built concurrently:
+   * updates are collected while any batch is active, and each commit writes all updates collected so far.
+   */
+  public void beginBatch() {
+    if (!BATCHED) return;
+    synchronized (myBatchLock) {
+      myBatchDepth++;
+    }
+  }
+
+  /**
+   * Writes the updates collected so far to the map, in key order. The updates are first written to the write-ahead log as
+   * plain puts and removals and the log is synced, so if the process dies while the map is being updated the same updates
+   * are applied again when the storage is opened next time.
+   */
+  public void commitBatch() throws IOException {
+    if (!BATCHED) return;
+    final Lock lock = myMapLock.readLock();
+    lock.lock();
+    try {
+      synchronized (myBatchLock) {
+        if (myBatchDepth > 0) {
+          myBatchDepth--;
+        }
+        applyPending();
+      }
+    }
+    finally {
+      lock.unlock();
+    }
   }
 
   public void force() {
-    synchronized (myDataLock) {
+    final Lock lock = myMapLock.writeLock();
+    lock.lock();
+    try {
       myMap.force();
     }
+    finally {
+      lock.unlock();
+    }
   }
 
   public void close() throws IOException {
-    synchronized (myDataLock) {
+    final Lock lock = myMapLock.writeLock();
+    lock.lock();
+    try {
+      synchronized (myBatchLock) {
+        myBatchDepth = 0;
+        applyPending();
+      }
       myMap.close();
     }
+    finally {
+      lock.unlock();
+    }
   }
 
   public boolean wipe() {
-    synchronized (myDataLock) {
+    final Lock lock = myMapLock.writeLock();
+    lock.lock();
+    try {
+      synchronized (myBatchLock) {
+        myPending.clear();
+        try {
+          closeLog();
+        }
+        catch (IOException ignored) {
+        }
+      }
       try {
         myMap.close();
       }
       catch (IOException ignored) {
       }
-      PersistentHashMap.deleteFilesStartingWith(myBaseFile);
+      deleteFiles();
       try {
         myMap = createMap(myBaseFile);
       }
@@ -54,12 +134,22 @@ public abstract class AbstractStateStorage<Key, T> {
       }
       return true;
     }
+    finally {
+      lock.unlock();
+    }
   }
 
   public void update(Key key, T state) throws Exception {
     if (state != null) {
-      synchronized (myDataLock) {
-        myMap.put(key, state);
+      final Lock lock = myMapLock.readLock();
+      lock.lock();
+      try {
+        if (!addPending(key, PUT, state)) {
+          myMap.put(key, state);
+        }
+      }
+      finally {
+        lock.unlock();
       }
     }
     else {
@@ -68,41 +158,359 @@ public abstract class AbstractStateStorage<Key, T> {
   }
 
   public void appendData(final Key key, final T data) throws Exception {
-    synchronized (myDataLock) {
+    final Lock lock = myMapLock.readLock();
+    lock.lock();
+    try {
+      if (addPending(key, APPEND, data)) {
+        return;
+      }
       myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
         public void append(DataOutput out) throws IOException {
           myStateExternalizer.save(out, data);
         }
       });
     }
+    finally {
+      lock.unlock();
+    }
   }
 
   public void remove(Key key) throws Exception {
-    synchronized (myDataLock) {
-      myMap.remove(key);
+    final Lock lock = myMapLock.readLock();
+    lock.lock();
+    try {
+      if (!addPending(key, REMOVE, null)) {
+        myMap.remove(key);
+      }
+    }
+    finally {
+      lock.unlock();
     }
   }
 
   public T getState(Key key) throws Exception {
-    synchronized (myDataLock) {
+    final Lock lock = myMapLock.readLock();
+    lock.lock();
+    try {
+      synchronized (myBatchLock) {
+        final PendingUpdate<T> pending = myPending.get(key);
+        if (pending != null) {
+          if (pending.myReplaced) {
+            return pending.myValue;
+          }
+          return merge(myMap.get(key), pending.myAppended);
+        }
+      }
       return myMap.get(key);
     }
+    finally {
+      lock.unlock();
+    }
   }
 
   public Collection<Key> getKeys() throws Exception {
-    synchronized (myDataLock) {
+    final Lock lock = myMapLock.readLock();
+    lock.lock();
+    try {
+      synchronized (myBatchLock) {
+        applyPending();
+      }
       return myMap.getAllKeysWithExistingMapping();
     }
+    finally {
+      lock.unlock();
+    }
   }
 
   public Iterator<Key> getKeysIterator() throws Exception {
-    synchronized (myDataLock) {
+    final Lock lock = myMapLock.readLock();
+    lock.lock();
+    try {
+      synchronized (myBatchLock) {
+        applyPending();
+      }
       return myMap.getAllKeysWithExistingMapping().iterator();
     }
+    finally {
+      lock.unlock();
+    }
   }
 
+  /**
+   * Called under the read lock of the map.
+   *
+   * @return false if no batch is active and the update should be written to the map directly
+   */
+  private boolean addPending(Key key, byte op, @Nullable T data) throws IOException {
+    synchronized (myBatchLock) {
+      if (myBatchDepth == 0) {
+        return false;
+      }
+      final byte[] bytes = data != null ? toBytes(data) : null;
+      writeLogRecord(op, key, bytes);
+
+      PendingUpdate<T> pending = myPending.get(key);
+      if (pending == null) {
+        pending = new PendingUpdate<T>();
+        myPending.put(key, pending);
+      }
+      if (op == APPEND) {
+        if (pending.myReplaced) {
+          pending.myValue = merge(pending.myValue, bytes);
+        }
+        else {
+          pending.myAppended = concat(pending.myAppended, bytes);
+        }
+      }
+      else {
+        pending.myReplaced = true;
+        pending.myValue = data;
+        pending.myAppended = null;
+      }
+      return true;
+    }
+  }
 
-  private PersistentHashMap<Key, T> createMap(final File file) throws Exception {
+  /**
+   * Called under the read lock of the map and myBatchLock.
+   */
+  private void applyPending() throws IOException {
+    if (myPending.isEmpty()) {
+      closeLog();
+      return;
+    }
+    final List<Map.Entry<Key, PendingUpdate<T>>> entries = new ArrayList<Map.Entry<Key, PendingUpdate<T>>>(myPending.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<Key, PendingUpdate<T>>>() {
+      public int compare(Map.Entry<Key, PendingUpdate<T>> o1, Map.Entry<Key, PendingUpdate<T>> o2) {
+        return compareKeys(o1.getKey(), o2.getKey());
+      }
+    });
+
+    // appends are turned into puts so that applying the log twice gives the same result
+    final List<T> values = new ArrayList<T>(entries.size());
+    for (Map.Entry<Key, PendingUpdate<T>> entry : entries) {
+      final PendingUpdate<T> pending = entry.getValue();
+      values.add(pending.myReplaced ? pending.myValue : merge(myMap.get(entry.getKey()), pending.myAppended));
+    }
+
+    closeLog();
+    final File logFile = getLogFile();
+    final File commitFile = getCommitFile();
+    final FileOutputStream commitStream = new FileOutputStream(commitFile);
+    try {
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(commitStream));
+      for (int i = 0; i < entries.size(); i++) {
+        final T value = values.get(i);
+        writeRecord(out, value != null ? PUT : REMOVE, entries.get(i).getKey(), value != null ? toBytes(value) : null);
+      }
+      out.flush();
+      commitStream.getFD().sync();
+    }
+    finally {
+      commitStream.close();
+    }
+    // there is no atomic replace; if the process dies before the rename, replayLog() takes the synced commit file
+    FileUtil.delete(logFile);
+    if (!commitFile.renameTo(logFile)) {
+      throw new IOException("Cannot rename " + commitFile + " to " + logFile);
+    }
+
+    for (int i = 0; i < entries.size(); i++) {
+      final Key key = entries.get(i).getKey();
+      final T value = values.get(i);
+      if (value != null) {
+        myMap.put(key, value);
+      }
+      else {
+        myMap.remove(key);
+      }
+    }
+    myPending.clear();
+    myMap.force();
+    FileUtil.delete(logFile);
+  }
+
+  /**
+   * Applies the updates left in the log by a process that didn't commit or finish committing them. The commit file is
+   * complete only when the log is gone: the log is deleted after the commit file is synced, and before that
+   * the commit file may be partially written while the log has all the updates.
+   */
+  private void replayLog() throws IOException {
+    final File logFile = getLogFile();
+    final File commitFile = getCommitFile();
+    if (logFile.exists()) {
+      FileUtil.delete(commitFile);
+      replayLog(logFile);
+    }
+    else if (commitFile.exists()) {
+      replayLog(commitFile);
+    }
+  }
+
+  private void replayLog(File logFile) throws IOException {
+    int count = 0;
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+    try {
+      while (true) {
+        final byte op;
+        final Key key;
+        final byte[] bytes;
+        try {
+          op = in.readByte();
+          key = myKeyDescriptor.read(new DataInputStream(new ByteArrayInputStream(readBytes(in))));
+          bytes = op == REMOVE ? null : readBytes(in);
+        }
+        catch (EOFException e) {
+          // the record being written when the process died
+          break;
+        }
+        if (op == PUT) {
+          myMap.put(key, fromBytes(bytes));
+        }
+        else if (op == APPEND) {
+          myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
+            public void append(DataOutput out) throws IOException {
+              out.write(bytes);
+            }
+          });
+        }
+        else {
+          myMap.remove(key);
+        }
+        count++;
+      }
+    }
+    finally {
+      in.close();
+    }
+    myMap.force();
+    FileUtil.delete(logFile);
+    LOG.info(count + " updates restored from " + logFile.getPath());
+  }
+
+  private void writeLogRecord(byte op, Key key, @Nullable byte[] bytes) throws IOException {
+    if (myLog == null) {
+      myLog = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getLogFile(), true)));
+    }
+    writeRecord(myLog, op, key, bytes);
+    // no sync: the record survives the death of the process, and the map is not touched until the commit anyway
+    myLog.flush();
+  }
+
+  private void writeRecord(DataOutputStream out, byte op, Key key, @Nullable byte[] bytes) throws IOException {
+    final BufferExposingByteArrayOutputStream keyBytes = new BufferExposingByteArrayOutputStream();
+    final DataOutputStream keyOut = new DataOutputStream(keyBytes);
+    myKeyDescriptor.save(keyOut, key);
+    keyOut.close();
+
+    out.writeByte(op);
+    out.writeInt(keyBytes.size());
+    out.write(keyBytes.getInternalBuffer(), 0, keyBytes.size());
+    if (bytes != null) {
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    final int length = in.readInt();
+    if (length < 0) {
+      throw new EOFException();
+    }
+    final byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private void closeLog() throws IOException {
+    if (myLog != null) {
+      try {
+        myLog.close();
+      }
+      finally {
+        myLog = null;
+      }
+    }
+  }
+
+  private File getLogFile() {
+    return new File(myBaseFile.getPath() + ".wal");
+  }
+
+  private File getCommitFile() {
+    return new File(myBaseFile.getPath() + ".wal.tmp");
+  }
+
+  private byte[] toBytes(T value) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    myStateExternalizer.save(out, value);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private T fromBytes(byte[] bytes) throws IOException {
+    return myStateExternalizer.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+  }
+
+  /**
+   * The value stored in the map after appending the data to the existing value, see {@link PersistentHashMap#appendData}
+   */
+  @Nullable
+  private T merge(@Nullable T value, @Nullable byte[] appended) throws IOException {
+    if (appended == null) {
+      return value;
+    }
+    return fromBytes(value != null ? concat(toBytes(value), appended) : appended);
+  }
+
+  private static byte[] concat(@Nullable byte[] first, byte[] second) {
+    if (first == null) {
+      return second;
+    }
+    final byte[] result = new byte[first.length + second.length];
+    System.arraycopy(first, 0, result, 0, first.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+
+  @SuppressWarnings("unchecked")
+  private int compareKeys(Key key1, Key key2) {
+    if (key1 instanceof Comparable) {
+      return ((Comparable<Key>)key1).compareTo(key2);
+    }
+    final int hash1 = myKeyDescriptor.getHashCode(key1);
+    final int hash2 = myKeyDescriptor.getHashCode(key2);
+    return hash1 < hash2 ? -1 : hash1 == hash2 ? 0 : 1;
+  }
+
+  private static class PendingUpdate<T> {
+    // the value was put or removed, myValue is the current value then
+    boolean myReplaced;
+    @Nullable T myValue;
+    // data appended to the value stored in the map
+    @Nullable byte[] myAppended;
+  }
+
+  private void deleteFiles() {
+    // also matches files of segments
+    PersistentHashMap.deleteFilesStartingWith(myBaseFile);
+  }
+
+  private PersistentMap<Key, T> createMap(final File file) throws Exception {
+    if (SEGMENTED) {
+      try {
+        return new SegmentedPersistentHashMap<Key, T>(file, myKeyDescriptor, myStateExternalizer);
+      }
+      catch (PersistentEnumerator.CorruptedException e) {
+        // storage of the other layout, its data cannot be reused
+        deleteFiles();
+        return new SegmentedPersistentHashMap<Key, T>(file, myKeyDescriptor, myStateExternalizer);
+      }
+    }
+    if (SegmentedPersistentHashMap.exists(file)) {
+      deleteFiles();
+    }
     FileUtil.createIfDoesntExist(file);
     return new PersistentHashMap<Key,T>(file, myKeyDescriptor, myStateExternalizer);
   }
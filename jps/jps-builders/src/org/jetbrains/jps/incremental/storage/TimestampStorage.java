@@ -37,14 +37,12 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampValidi
   }
 
   private static class FileKeyDescriptor implements KeyDescriptor<File> {
-    private final byte[] buffer = IOUtil.allocReadWriteUTFBuffer();
-
     public void save(DataOutput out, File value) throws IOException {
-      IOUtil.writeUTFFast(buffer, out, value.getPath());
+      IOUtil.writeUTFFast(out, value.getPath());
     }
 
     public File read(DataInput in) throws IOException {
-      return new File(IOUtil.readUTFFast(buffer, in));
+      return new File(IOUtil.readUTFFast(in));
     }
 
     public int getHashCode(File value) {
@@ -26,5 +26,16 @@ public class Callbacks {
   public interface Backend {
     Collection<String> getClassFiles();
     void associate(String classFileName, SourceFileNameLookup sourceLookup, ClassReader cr);
+
+    /**
+     * Analyzes the class file in the calling thread and queues the result, the storages are updated on {@link #flush()}.
+     * May be called from several threads at once.
+     */
+    void associateLater(String classFileName, SourceFileNameLookup sourceLookup, ClassReader cr);
+
+    /**
+     * Stores the classes queued with {@link #associateLater}, grouped by source file.
+     */
+    void flush();
   }
 }
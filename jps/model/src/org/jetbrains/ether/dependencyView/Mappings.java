@@ -64,11 +64,10 @@ public class Mappings {
   private Mappings(final Mappings base) throws IOException {
     myIsTansient = true;
 
-    myRootDir = new File(FileUtil.toSystemIndependentName(base.myRootDir.getAbsolutePath()) + File.separatorChar + "delta");
+    // deltas of chunks compiled concurrently must not share storage files
+    myRootDir = FileUtil.createTempDirectory(base.myRootDir.getAbsoluteFile(), "delta", null);
     myContext = base.myContext;
 
-    myRootDir.mkdirs();
-
     createImplementation(myRootDir, true);
 
     //myClassToSubclasses = new TransientMultiMaplet<DependencyContext.S, DependencyContext.S>(ourStringSetConstructor);
@@ -1348,6 +1347,8 @@ public class Mappings {
     }
     else {
       c.updateCluster(usages);
+      // the cluster is a copy read from the storage
+      mySourceFileToUsages.put(source, c);
     }
   }
 
@@ -1355,8 +1356,153 @@ public class Mappings {
     mySourceFileToAnnotationUsages.put(source, usages);
   }
 
+  /**
+   * Result of a class file analysis, doesn't refer to the storages.
+   */
+  private static class AnalyzedClass {
+    final DependencyContext.S classFileName;
+    final DependencyContext.S sourceFileName;
+    @Nullable final ClassRepr repr;
+    final UsageRepr.Cluster usages;
+    final Set<UsageRepr.Usage> annotationUsages;
+
+    AnalyzedClass(final DependencyContext.S classFileName,
+                  final DependencyContext.S sourceFileName,
+                  @Nullable final ClassRepr repr,
+                  final UsageRepr.Cluster usages,
+                  final Set<UsageRepr.Usage> annotationUsages) {
+      this.classFileName = classFileName;
+      this.sourceFileName = sourceFileName;
+      this.repr = repr;
+      this.usages = usages;
+      this.annotationUsages = annotationUsages;
+    }
+  }
+
+  private static final Comparator<AnalyzedClass> ourAnalyzedClassComparator = new Comparator<AnalyzedClass>() {
+    public int compare(final AnalyzedClass o1, final AnalyzedClass o2) {
+      final int bySource = o1.sourceFileName.compareTo(o2.sourceFileName);
+      return bySource != 0 ? bySource : o1.classFileName.compareTo(o2.classFileName);
+    }
+  };
+
+  private AnalyzedClass analyze(final String classFileName, final Callbacks.SourceFileNameLookup sourceFileName, final ClassReader cr) {
+    final DependencyContext.S classFileNameS = myContext.get(classFileName);
+    final Pair<ClassRepr, Pair<UsageRepr.Cluster, Set<UsageRepr.Usage>>> result =
+      new ClassfileAnalyzer(myContext).analyze(classFileNameS, cr);
+    final ClassRepr repr = result.first;
+
+    final String srcFileName = sourceFileName.get(repr == null ? null : myContext.getValue(repr.getSourceFileName()));
+
+    return new AnalyzedClass(classFileNameS, myContext.get(srcFileName), repr, result.second.first, result.second.second);
+  }
+
+  private void storeClass(final AnalyzedClass analyzed) {
+    final ClassRepr repr = analyzed.repr;
+    if (repr == null) {
+      return;
+    }
+
+    final DependencyContext.S className = repr.name;
+
+    myClassToSourceFile.put(repr.name, analyzed.sourceFileName);
+
+    for (DependencyContext.S s : repr.getSupers()) {
+      myClassToSubclasses.put(s, repr.name);
+    }
+
+    for (UsageRepr.Usage u : analyzed.usages.getUsages()) {
+      final DependencyContext.S owner = u.getOwner();
+
+      if (!owner.equals(className)) {
+        final DependencyContext.S sourceFile = repr.getSourceFileName();
+        final DependencyContext.S ownerSourceFile = myClassToSourceFile.get(owner);
+
+        if (ownerSourceFile != null) {
+          if (!ownerSourceFile.equals(sourceFile)) {
+            myClassToClassDependency.put(owner, className);
+          }
+        }
+        else {
+          myClassToClassDependency.put(owner, className);
+        }
+      }
+    }
+  }
+
+  private void store(final AnalyzedClass analyzed) {
+    storeClass(analyzed);
+
+    if (analyzed.repr != null) {
+      mySourceFileToClasses.put(analyzed.sourceFileName, analyzed.repr);
+    }
+
+    if (!analyzed.usages.isEmpty()) {
+      updateSourceToUsages(analyzed.sourceFileName, analyzed.usages);
+    }
+
+    if (!analyzed.annotationUsages.isEmpty()) {
+      updateSourceToAnnotationUsages(analyzed.sourceFileName, analyzed.annotationUsages);
+    }
+  }
+
+  /**
+   * Stores classes sorted by source file, so that the per-source storages are written once for all classes of a source.
+   */
+  private void store(final List<AnalyzedClass> batch) {
+    Collections.sort(batch, ourAnalyzedClassComparator);
+
+    int start = 0;
+    while (start < batch.size()) {
+      final DependencyContext.S source = batch.get(start).sourceFileName;
+      int end = start;
+      while (end < batch.size() && batch.get(end).sourceFileName.equals(source)) {
+        end++;
+      }
+
+      final Set<ClassRepr> classes = new HashSet<ClassRepr>();
+      UsageRepr.Cluster usages = null;
+      final Set<UsageRepr.Usage> annotationUsages = new HashSet<UsageRepr.Usage>();
+
+      for (AnalyzedClass analyzed : batch.subList(start, end)) {
+        storeClass(analyzed);
+
+        if (analyzed.repr != null) {
+          classes.add(analyzed.repr);
+        }
+
+        if (!analyzed.usages.isEmpty()) {
+          if (usages == null) {
+            usages = analyzed.usages;
+          }
+          else {
+            usages.updateCluster(analyzed.usages);
+          }
+        }
+
+        annotationUsages.addAll(analyzed.annotationUsages);
+      }
+
+      if (!classes.isEmpty()) {
+        mySourceFileToClasses.put(source, classes);
+      }
+
+      if (usages != null) {
+        updateSourceToUsages(source, usages);
+      }
+
+      if (!annotationUsages.isEmpty()) {
+        updateSourceToAnnotationUsages(source, annotationUsages);
+      }
+
+      start = end;
+    }
+  }
+
   public Callbacks.Backend getCallback() {
     return new Callbacks.Backend() {
+      private final List<AnalyzedClass> myQueue = new ArrayList<AnalyzedClass>();
+
       public Collection<String> getClassFiles() {
         final HashSet<String> result = new HashSet<String>();
 
@@ -1368,52 +1514,26 @@ public class Mappings {
       }
 
       public void associate(final String classFileName, final Callbacks.SourceFileNameLookup sourceFileName, final ClassReader cr) {
-        final DependencyContext.S classFileNameS = myContext.get(classFileName);
-        final Pair<ClassRepr, Pair<UsageRepr.Cluster, Set<UsageRepr.Usage>>> result =
-          new ClassfileAnalyzer(myContext).analyze(classFileNameS, cr);
-        final ClassRepr repr = result.first;
-        final UsageRepr.Cluster localUsages = result.second.first;
-        final Set<UsageRepr.Usage> localAnnotationUsages = result.second.second;
-
-        final String srcFileName = sourceFileName.get(repr == null ? null : myContext.getValue(repr.getSourceFileName()));
-        final DependencyContext.S sourceFileNameS = myContext.get(srcFileName);
-
-        if (repr != null) {
-          final DependencyContext.S className = repr.name;
-
-          myClassToSourceFile.put(repr.name, sourceFileNameS);
-          mySourceFileToClasses.put(sourceFileNameS, repr);
-
-          for (DependencyContext.S s : repr.getSupers()) {
-            myClassToSubclasses.put(s, repr.name);
-          }
-
-          for (UsageRepr.Usage u : localUsages.getUsages()) {
-            final DependencyContext.S owner = u.getOwner();
+        store(analyze(classFileName, sourceFileName, cr));
+      }
 
-            if (!owner.equals(className)) {
-              final DependencyContext.S sourceFile = repr.getSourceFileName();
-              final DependencyContext.S ownerSourceFile = myClassToSourceFile.get(owner);
+      public void associateLater(final String classFileName, final Callbacks.SourceFileNameLookup sourceFileName, final ClassReader cr) {
+        final AnalyzedClass analyzed = analyze(classFileName, sourceFileName, cr);
 
-              if (ownerSourceFile != null) {
-                if (!ownerSourceFile.equals(sourceFile)) {
-                  myClassToClassDependency.put(owner, className);
-                }
-              }
-              else {
-                myClassToClassDependency.put(owner, className);
-              }
-            }
-          }
+        synchronized (myQueue) {
+          myQueue.add(analyzed);
         }
+      }
 
-        if (!localUsages.isEmpty()) {
-          updateSourceToUsages(sourceFileNameS, localUsages);
-        }
+      public void flush() {
+        final List<AnalyzedClass> batch;
 
-        if (!localAnnotationUsages.isEmpty()) {
-          updateSourceToAnnotationUsages(sourceFileNameS, localAnnotationUsages);
+        synchronized (myQueue) {
+          batch = new ArrayList<AnalyzedClass>(myQueue);
+          myQueue.clear();
         }
+
+        store(batch);
       }
     };
   }
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.ether.dependencyView;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+import org.objectweb.asm.ClassReader;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Compares classes analyzed concurrently and stored in a batch with classes associated one by one,
+ * using the classes of the JUnit jar as the corpus. Run {@link #main(String[])} to measure both ways.
+ */
+public class MappingsBatchTest extends TestCase {
+  private static final int THREADS = 4;
+
+  private File myDir;
+  private Map<String, byte[]> myCorpus;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("mappings", null);
+    myCorpus = loadCorpus();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testBatchedAssociationStoresSameData() throws Exception {
+    final Mappings mappings = new Mappings(new File(myDir, "base"));
+    final Mappings delta = mappings.createDelta();
+    try {
+      associate(mappings.getCallback(), false);
+      associate(delta.getCallback(), true);
+
+      final Collection<String> classFiles = mappings.getCallback().getClassFiles();
+      assertFalse(classFiles.isEmpty());
+      assertEquals(new HashSet<String>(classFiles), new HashSet<String>(delta.getCallback().getClassFiles()));
+      for (String classFile : myCorpus.keySet()) {
+        final String source = getSourceFileName(classFile);
+        assertEquals(source, mappings.getClasses(source), delta.getClasses(source));
+      }
+    }
+    finally {
+      delta.close();
+      mappings.close();
+    }
+  }
+
+  private void associate(final Callbacks.Backend callback, boolean batched) throws Exception {
+    if (!batched) {
+      for (Map.Entry<String, byte[]> entry : myCorpus.entrySet()) {
+        callback.associate(entry.getKey(), Callbacks.getDefaultLookup(getSourceFileName(entry.getKey())), new ClassReader(entry.getValue()));
+      }
+      return;
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      final List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (final Map.Entry<String, byte[]> entry : myCorpus.entrySet()) {
+        futures.add(executor.submit(new Runnable() {
+          public void run() {
+            callback.associateLater(entry.getKey(), Callbacks.getDefaultLookup(getSourceFileName(entry.getKey())),
+                                    new ClassReader(entry.getValue()));
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    }
+    finally {
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+    callback.flush();
+  }
+
+  private static String getSourceFileName(String classFile) {
+    final int inner = classFile.indexOf('$');
+    return "src/" + (inner == -1 ? classFile.substring(0, classFile.length() - ".class".length()) : classFile.substring(0, inner)) + ".java";
+  }
+
+  private static Map<String, byte[]> loadCorpus() throws Exception {
+    final File jar = new File(TestCase.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    final Map<String, byte[]> result = new TreeMap<String, byte[]>();
+    final ZipFile zip = new ZipFile(jar);
+    try {
+      final Enumeration<? extends ZipEntry> entries = zip.entries();
+      while (entries.hasMoreElements()) {
+        final ZipEntry entry = entries.nextElement();
+        if (!entry.getName().endsWith(".class")) continue;
+        final InputStream stream = zip.getInputStream(entry);
+        try {
+          result.put(entry.getName(), FileUtil.loadBytes(stream));
+        }
+        finally {
+          stream.close();
+        }
+      }
+    }
+    finally {
+      zip.close();
+    }
+    return result;
+  }
+
+  /**
+   * Reports the average time of associating the corpus one by one and of concurrent analysis with a batched store,
+   * after warm-up iterations.
+   */
+  public static void main(String[] args) throws Exception {
+    final MappingsBatchTest test = new MappingsBatchTest();
+    test.setUp();
+    try {
+      for (boolean batched : new boolean[]{false, true}) {
+        final int warmUp = 5;
+        final int iterations = 10;
+        long total = 0;
+        for (int i = 0; i < warmUp + iterations; i++) {
+          final Mappings mappings = new Mappings(new File(test.myDir, "bench" + batched + i));
+          final long start = System.nanoTime();
+          try {
+            test.associate(mappings.getCallback(), batched);
+          }
+          finally {
+            mappings.close();
+          }
+          if (i >= warmUp) total += System.nanoTime() - start;
+        }
+        System.out.println((batched ? "batched: " : "one by one: ") + total / iterations / 1000000 + " ms per " +
+                           test.myCorpus.size() + " classes");
+      }
+    }
+    finally {
+      test.tearDown();
+    }
+  }
+}
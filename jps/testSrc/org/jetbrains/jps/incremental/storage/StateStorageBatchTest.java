@@ -0,0 +1,135 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.storage;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+
+public class StateStorageBatchTest extends TestCase {
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("stateStorage", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testUpdatesVisibleBeforeCommit() throws Exception {
+    final SourceToOutputMapping mapping = new SourceToOutputMapping(new File(myDir, "src-out/data"));
+    try {
+      mapping.update("a.java", "a.class");
+      mapping.beginBatch();
+      mapping.appendData("a.java", "a$1.class");
+      mapping.update("b.java", "b.class");
+      mapping.appendData("b.java", "b$1.class");
+      mapping.update("c.java", "c.class");
+      mapping.remove("c.java");
+
+      assertOutputs(mapping.getState("a.java"), "a.class", "a$1.class");
+      assertOutputs(mapping.getState("b.java"), "b.class", "b$1.class");
+      assertNull(mapping.getState("c.java"));
+
+      mapping.commitBatch();
+      assertOutputs(mapping.getState("a.java"), "a.class", "a$1.class");
+      assertOutputs(mapping.getState("b.java"), "b.class", "b$1.class");
+      assertNull(mapping.getState("c.java"));
+    }
+    finally {
+      mapping.close();
+    }
+  }
+
+  public void testUncommittedUpdatesRestoredFromLog() throws Exception {
+    final File root = new File(myDir, "timestamps");
+    final TimestampStorage storage = new TimestampStorage(new File(root, "data"));
+    final File copy = new File(myDir, "copy");
+    try {
+      storage.saveStamp(new File("a.java"), 1);
+      storage.saveStamp(new File("b.java"), 2);
+      storage.force();
+
+      storage.beginBatch();
+      storage.saveStamp(new File("a.java"), 10);
+      storage.markDirty(new File("b.java"));
+      storage.saveStamp(new File("c.java"), 30);
+
+      // the process dies before the batch is committed
+      FileUtil.copyDir(root, copy);
+    }
+    finally {
+      storage.close();
+    }
+
+    final TimestampStorage restored = new TimestampStorage(new File(copy, "data"));
+    try {
+      assertEquals(10, restored.getStamp(new File("a.java")));
+      assertEquals(-1, restored.getStamp(new File("b.java")));
+      assertEquals(30, restored.getStamp(new File("c.java")));
+      assertFalse(new File(copy, "data.wal").exists());
+    }
+    finally {
+      restored.close();
+    }
+  }
+
+  public void testCommitInterruptedBetweenLogRemovalAndRename() throws Exception {
+    final File root = new File(myDir, "timestamps");
+    final TimestampStorage storage = new TimestampStorage(new File(root, "data"));
+    final File copy = new File(myDir, "copy");
+    try {
+      storage.saveStamp(new File("a.java"), 1);
+      storage.saveStamp(new File("b.java"), 2);
+      storage.force();
+
+      storage.beginBatch();
+      storage.saveStamp(new File("a.java"), 10);
+      storage.markDirty(new File("b.java"));
+
+      // the process dies after the synced commit file is written and the log is deleted, but before the rename:
+      // the commit file holds the same updates as the log
+      FileUtil.copyDir(root, copy);
+      assertTrue(new File(copy, "data.wal").renameTo(new File(copy, "data.wal.tmp")));
+    }
+    finally {
+      storage.close();
+    }
+
+    final TimestampStorage restored = new TimestampStorage(new File(copy, "data"));
+    try {
+      assertEquals(10, restored.getStamp(new File("a.java")));
+      assertEquals(-1, restored.getStamp(new File("b.java")));
+      assertFalse(new File(copy, "data.wal.tmp").exists());
+    }
+    finally {
+      restored.close();
+    }
+  }
+
+  private static void assertOutputs(Collection<String> outputs, String... expected) {
+    assertNotNull(outputs);
+    assertEquals(Arrays.asList(expected), outputs);
+  }
+}
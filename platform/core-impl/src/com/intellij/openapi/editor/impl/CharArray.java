@@ -22,6 +22,7 @@ import com.intellij.util.LocalTimeCounter;
 import com.intellij.util.text.CharArrayCharSequence;
 import com.intellij.util.text.CharArrayUtil;
 import com.intellij.util.text.CharSequenceBackedByArray;
+import com.intellij.util.text.ImmutableText;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -40,6 +41,8 @@ abstract class CharArray implements CharSequenceBackedByArray {
   private static final boolean DISABLE_DEFERRED_PROCESSING = Boolean.getBoolean("idea.document.deny.deferred.changes");
   @SuppressWarnings("UseOfArchaicSystemPropertyAccessors")
   private static final boolean DEBUG_DEFERRED_PROCESSING = Boolean.getBoolean("idea.document.debug.bulk.processing");
+  @SuppressWarnings("UseOfArchaicSystemPropertyAccessors")
+  static final boolean USE_ROPE = Boolean.getBoolean("idea.document.use.rope");
   
   private static final Logger LOG = Logger.getInstance("#" + CharArray.class.getName());
 
@@ -63,6 +66,12 @@ abstract class CharArray implements CharSequenceBackedByArray {
 
   private CharSequence          myOriginalSequence;
   private char[]                myArray;
+  /**
+   * Text storage at the rope mode, edits replace it with a new version of the text, so there're no tail shifts, and
+   * {@link #getCharArray()} snapshots stay valid. Changes made at {@link #setDeferredChangeMode(boolean) defer changes} mode
+   * are applied immediately, hence, the deferred changes storage is always empty.
+   */
+  private ImmutableText         myRope;
   private SoftReference<String> myStringRef; // buffers String value - for not to generate it every time
   private int                   myBufferSize;
   private int                   myDeferredShift;
@@ -90,7 +99,15 @@ abstract class CharArray implements CharSequenceBackedByArray {
 
   // max chars to hold, bufferSize == 0 means unbounded
   CharArray(int bufferSize) {
-    this(bufferSize, new TextChangesStorage(), null, -1, -1);
+    this(bufferSize, USE_ROPE);
+  }
+
+  CharArray(int bufferSize, boolean useRope) {
+    this(bufferSize, new TextChangesStorage(), null, -1, -1, DEBUG_DEFERRED_PROCESSING && !useRope);
+    if (useRope) {
+      myRope = ImmutableText.EMPTY;
+      myOriginalSequence = null;
+    }
   }
 
   private CharArray(final int bufferSize, @NotNull TextChangesStorage deferredChangesStorage, @Nullable char[] data, int start, int end) {
@@ -151,10 +168,17 @@ abstract class CharArray implements CharSequenceBackedByArray {
   protected abstract void afterChangedUpdate(@NotNull DocumentEvent event, long newModificationStamp);
 
   public void setText(@Nullable final DocumentImpl subj, final CharSequence chars) {
-    myOriginalSequence = chars;
-    myArray = null;
     myCount = chars.length();
     myStringRef = null;
+    if (isRope()) {
+      myRope = ImmutableText.valueOf(chars);
+      if (subj != null) {
+        trimToSize(subj);
+      }
+      return;
+    }
+    myOriginalSequence = chars;
+    myArray = null;
     TextChangesStorage storage = myDeferredChangesStorage.get();
     storage.getLock().lock();
     try {
@@ -192,6 +216,10 @@ abstract class CharArray implements CharSequenceBackedByArray {
   }
 
   private void doReplace(int startOffset, int endOffset, CharSequence newString) {
+    if (isRope()) {
+      setRope(myRope.replace(startOffset, endOffset, newString));
+      return;
+    }
     prepareForModification();
 
     if (isDeferredChangeMode()) {
@@ -227,6 +255,10 @@ abstract class CharArray implements CharSequenceBackedByArray {
     if (startIndex == endIndex) {
       return;
     }
+    if (isRope()) {
+      setRope(myRope.delete(startIndex, endIndex));
+      return;
+    }
     prepareForModification();
 
     if (isDeferredChangeMode()) {
@@ -253,6 +285,10 @@ abstract class CharArray implements CharSequenceBackedByArray {
   }
 
   private void doInsert(final CharSequence s, final int startIndex) {
+    if (isRope()) {
+      setRope(myRope.insert(startIndex, s));
+      return;
+    }
     prepareForModification();
 
     if (isDeferredChangeMode()) {
@@ -310,6 +346,16 @@ abstract class CharArray implements CharSequenceBackedByArray {
     }
   }
   
+  private boolean isRope() {
+    return myRope != null;
+  }
+
+  private void setRope(@NotNull ImmutableText rope) {
+    myRope = rope;
+    myCount = rope.length();
+    myStringRef = null;
+  }
+
   private void prepareForModification() {
     if (myOriginalSequence != null) {
       myArray = new char[myOriginalSequence.length()];
@@ -321,15 +367,28 @@ abstract class CharArray implements CharSequenceBackedByArray {
 
   public CharSequence getCharArray() {
     if (myOriginalSequence != null) return myOriginalSequence;
+    if (isRope()) return myRope;
     return this;
   }
 
+  /**
+   * @return current text which isn't affected by subsequent modifications, at the rope mode it's taken in constant time
+   */
+  @NotNull
+  public CharSequence getImmutableText() {
+    if (isRope()) return myRope;
+    return toString();
+  }
+
   public String toString() {
     String str = myStringRef != null ? myStringRef.get() : null;
     if (str == null) {
       if (myOriginalSequence != null) {
         str = myOriginalSequence.toString();
       }
+      else if (isRope()) {
+        str = myRope.toString();
+      }
       else if (!hasDeferredChanges()) {
         str = new String(myArray, myStart, myCount);
       }
@@ -364,6 +423,7 @@ abstract class CharArray implements CharSequenceBackedByArray {
     }
     i += myStart;
     if (myOriginalSequence != null) return myOriginalSequence.charAt(i);
+    if (isRope()) return myRope.charAt(i);
     final char result;
     if (hasDeferredChanges()) {
       TextChangesStorage storage = myDeferredChangesStorage.get();
@@ -396,6 +456,9 @@ abstract class CharArray implements CharSequenceBackedByArray {
     if (myOriginalSequence != null) {
       return myOriginalSequence.subSequence(start, end);
     }
+    if (isRope()) {
+      return myRope.subSequence(start, end);
+    }
     if (hasDeferredChanges()) {
       return new CharArray(myBufferSize, myDeferredChangesStorage.get(), myArray, myStart + start, myStart + end) {
         @NotNull
@@ -434,6 +497,9 @@ abstract class CharArray implements CharSequenceBackedByArray {
   
   @Override
   public char[] getChars() {
+    if (isRope()) {
+      return myRope.getChars();
+    }
     if (myOriginalSequence != null) {
       if (myArray == null) {
         myArray = CharArrayUtil.fromSequence(myOriginalSequence);
@@ -454,6 +520,10 @@ abstract class CharArray implements CharSequenceBackedByArray {
 
   @Override
   public void getChars(final char[] dst, final int dstOffset) {
+    if (isRope()) {
+      myRope.getChars(dst, dstOffset);
+      return;
+    }
     flushDeferredChanged(myDeferredChangesStorage.get());
     if (myOriginalSequence != null) {
       CharArrayUtil.getChars(myOriginalSequence,dst, dstOffset);
@@ -478,7 +548,10 @@ abstract class CharArray implements CharSequenceBackedByArray {
   public CharSequence substring(final int start, final int end) {
     if (start == end) return "";
     final CharSequence result;
-    if (myOriginalSequence == null) {
+    if (isRope()) {
+      result = myRope.subSequence(start, end);
+    }
+    else if (myOriginalSequence == null) {
       TextChangesStorage storage = myDeferredChangesStorage.get();
       storage.getLock().lock();
       try {
@@ -635,8 +708,9 @@ abstract class CharArray implements CharSequenceBackedByArray {
   @NotNull
   public String dumpState() {
     return String.format(
-      "deferred changes mode: %b, length: %d (data array length: %d, deferred shift: %d); view offsets: [%d; %d]; deferred changes: %s",
-      isDeferredChangeMode(), length(), myCount, myDeferredShift, myStart, myEnd, myDeferredChangesStorage
+      "deferred changes mode: %b, rope: %b, length: %d (data array length: %d, deferred shift: %d); view offsets: [%d; %d]; " +
+      "deferred changes: %s",
+      isDeferredChangeMode(), isRope(), length(), myCount, myDeferredShift, myStart, myEnd, myDeferredChangesStorage
     );
   }
   
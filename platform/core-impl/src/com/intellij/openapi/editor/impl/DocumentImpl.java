@@ -627,6 +627,17 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     return myText.getCharArray();
   }
 
+  /**
+   * @return document text which is not affected by subsequent changes, e.g. for processing at background threads.
+   * It's taken in constant time if the document is stored as a rope (<code>idea.document.use.rope</code>),
+   * otherwise the text is copied
+   */
+  @NotNull
+  public CharSequence getImmutableCharSequence() {
+    assertReadAccessToDocumentsAllowed();
+    return myText.getImmutableText();
+  }
+
 
   @Override
   public void addDocumentListener(@NotNull DocumentListener listener) {
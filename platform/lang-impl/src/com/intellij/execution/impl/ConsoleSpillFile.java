@@ -0,0 +1,202 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.execution.impl;
+
+import com.intellij.execution.ui.ConsoleViewContentType;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.LzBlockCodec;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongArrayList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.intellij.execution.impl.ConsoleViewImpl.TokenInfo;
+
+/**
+ * Keeps console text removed from the head of the console document by its cyclic buffer, so that it may be shown again.
+ * <p/>
+ * Text is collected into chunks of {@link #CHUNK_SIZE} symbols which are compressed and appended to a temporary file.
+ * Chunks are taken back in the reverse order, the latest first. Content types of the text are kept, hyperlinks are not.
+ * <p/>
+ * Not thread-safe, is expected to be used from EDT.
+ */
+class ConsoleSpillFile {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.execution.impl.ConsoleSpillFile");
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  private final List<ConsoleViewContentType> myContentTypes = new ArrayList<ConsoleViewContentType>();
+  // positions of the chunks written to the file
+  private final TLongArrayList myChunkOffsets = new TLongArrayList();
+  private final TIntArrayList myChunkLengths = new TIntArrayList();
+  // the chunk being collected, token offsets are relative to its text
+  private final StringBuilder myText = new StringBuilder();
+  private final List<TokenInfo> myTokens = new ArrayList<TokenInfo>();
+
+  @Nullable private File myPath;
+  @Nullable private RandomAccessFile myFile;
+  private long myFileEnd;
+  private boolean myBroken;
+
+  /**
+   * @param tokens tokens of the text, offsets are relative to the text start
+   */
+  public void spill(@NotNull CharSequence text, @NotNull List<TokenInfo> tokens) {
+    for (TokenInfo token : tokens) {
+      ConsoleUtil.addToken(token.getLength(), null, token.contentType, myTokens);
+    }
+    myText.append(text);
+    if (myText.length() >= CHUNK_SIZE) {
+      writeChunk();
+    }
+  }
+
+  public boolean isEmpty() {
+    return myText.length() == 0 && myChunkOffsets.isEmpty();
+  }
+
+  /**
+   * Removes the latest chunk of the text.
+   *
+   * @return the text and its tokens, token offsets are relative to the text start
+   */
+  @Nullable
+  public Chunk removeLast() {
+    if (myText.length() > 0) {
+      final Chunk chunk = new Chunk(myText.toString(), new ArrayList<TokenInfo>(myTokens));
+      myText.setLength(0);
+      myTokens.clear();
+      return chunk;
+    }
+    if (myChunkOffsets.isEmpty() || myFile == null) {
+      return null;
+    }
+    final int index = myChunkOffsets.size() - 1;
+    final long offset = myChunkOffsets.remove(index);
+    final int length = myChunkLengths.remove(index);
+    myFileEnd = offset;
+    try {
+      final byte[] compressed = new byte[length];
+      myFile.seek(offset);
+      myFile.readFully(compressed);
+      return readChunk(LzBlockCodec.decompress(compressed));
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      return null;
+    }
+  }
+
+  public void dispose() {
+    myText.setLength(0);
+    myTokens.clear();
+    myChunkOffsets.clear();
+    myChunkLengths.clear();
+    if (myFile != null) {
+      try {
+        myFile.close();
+      }
+      catch (IOException e) {
+        LOG.info(e);
+      }
+      myFile = null;
+    }
+    if (myPath != null) {
+      FileUtil.delete(myPath);
+      myPath = null;
+    }
+    myFileEnd = 0;
+  }
+
+  private void writeChunk() {
+    if (myBroken) {
+      // the oldest text is dropped as without spilling
+      myText.setLength(0);
+      myTokens.clear();
+      return;
+    }
+    try {
+      final byte[] compressed = LzBlockCodec.compress(writeChunk(myText, myTokens));
+      if (myFile == null) {
+        myPath = createFile();
+        myFile = new RandomAccessFile(myPath, "rw");
+      }
+      myFile.seek(myFileEnd);
+      myFile.write(compressed);
+      myChunkOffsets.add(myFileEnd);
+      myChunkLengths.add(compressed.length);
+      myFileEnd += compressed.length;
+    }
+    catch (IOException e) {
+      LOG.info("Cannot spill console text, it's dropped from now on", e);
+      myBroken = true;
+    }
+    myText.setLength(0);
+    myTokens.clear();
+  }
+
+  @NotNull
+  File createFile() throws IOException {
+    return FileUtil.createTempFile("console", ".spill", true);
+  }
+
+  private byte[] writeChunk(CharSequence text, List<TokenInfo> tokens) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length() + tokens.size() * 8 + 8);
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(tokens.size());
+    for (TokenInfo token : tokens) {
+      int typeIndex = myContentTypes.indexOf(token.contentType);
+      if (typeIndex < 0) {
+        typeIndex = myContentTypes.size();
+        myContentTypes.add(token.contentType);
+      }
+      out.writeInt(token.getLength());
+      out.writeInt(typeIndex);
+    }
+    final byte[] textBytes = text.toString().getBytes("UTF-8");
+    out.writeInt(textBytes.length);
+    out.write(textBytes);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private Chunk readChunk(byte[] bytes) throws IOException {
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    final int tokenCount = in.readInt();
+    final List<TokenInfo> tokens = new ArrayList<TokenInfo>(tokenCount);
+    for (int i = 0; i < tokenCount; i++) {
+      final int length = in.readInt();
+      ConsoleUtil.addToken(length, null, myContentTypes.get(in.readInt()), tokens);
+    }
+    final byte[] textBytes = new byte[in.readInt()];
+    in.readFully(textBytes);
+    return new Chunk(new String(textBytes, "UTF-8"), tokens);
+  }
+
+  static class Chunk {
+    final String text;
+    final List<TokenInfo> tokens;
+
+    Chunk(String text, List<TokenInfo> tokens) {
+      this.text = text;
+      this.tokens = tokens;
+    }
+  }
+}
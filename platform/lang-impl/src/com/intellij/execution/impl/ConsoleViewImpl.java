@@ -61,6 +61,7 @@ import com.intellij.openapi.project.DumbAware;
 import com.intellij.openapi.project.DumbAwareAction;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.*;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.util.text.LineTokenizer;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.PsiDocumentManager;
@@ -94,6 +95,7 @@ public class ConsoleViewImpl extends JPanel implements ConsoleView, ObservableCo
   private static final Logger LOG = Logger.getInstance("#com.intellij.execution.impl.ConsoleViewImpl");
 
   private static final int FLUSH_DELAY = 200; //TODO : make it an option
+  private static final int FILTER_BATCH_LINES = 200;
 
   public static final Key<ConsoleViewImpl> CONSOLE_VIEW_IN_EDITOR_VIEW = Key.create("CONSOLE_VIEW_IN_EDITOR_VIEW");
 
@@ -128,6 +130,22 @@ public class ConsoleViewImpl extends JPanel implements ConsoleView, ObservableCo
   private final Runnable myFinishProgress;
   private boolean myAllowHeavyFilters = false;
 
+  /**
+   * Keeps the text removed from the document head by its cyclic buffer, null unless "console.spill.to.disk" is set.
+   * Hyperlinks are also found in background in that mode.
+   */
+  @Nullable
+  private final ConsoleSpillFile mySpillFile = Registry.is("console.spill.to.disk") ? new ConsoleSpillFile() : null;
+  // the cyclic buffer trims the document while the flushed text is inserted
+  private boolean myTrimmingDocument;
+  // symbols paged back from the spill file, the document may exceed the cyclic buffer size by that number
+  private int myPagedBackLength;
+  // symbols removed from the document head minus symbols inserted there, relocates hyperlinks found in background
+  private long myHeadShift;
+  private final Alarm myFilterAlarm = new Alarm(Alarm.ThreadToUse.SHARED_THREAD, this);
+  // hyperlinks found in background before the last clear() are dropped
+  private int myFilterTicket;
+
   @TestOnly
   public Editor getEditor() {
     return myEditor;
@@ -323,6 +341,8 @@ public class ConsoleViewImpl extends JPanel implements ConsoleView, ObservableCo
       myBuffer.clear();
     }
     myFlushAlarm.cancelAllRequests();
+    myFilterAlarm.cancelAllRequests();
+    ++myFilterTicket;
     myFlushAlarm.addRequest(myClearRequest, 0, getStateForUpdate());
     if (myHeavyAlarm != null) {
       myHeavyAlarm.cancelAllRequests();
@@ -429,6 +449,14 @@ public class ConsoleViewImpl extends JPanel implements ConsoleView, ObservableCo
               && myEditor.getCaretModel().getOffset() == myEditor.getDocument().getTextLength()) {
             EditorUtil.scrollToTheEnd(myEditor);
           } 
+          else if (mySpillFile != null && !mySpillFile.isEmpty() && newRectangle.y == 0 && oldRectangle.y > 0) {
+            // scrolled to the top, show the text removed from there earlier
+            SwingUtilities.invokeLater(new Runnable() {
+              public void run() {
+                pageBackSpilledText();
+              }
+            });
+          }
         }
       });
     }
@@ -453,6 +481,9 @@ public class ConsoleViewImpl extends JPanel implements ConsoleView, ObservableCo
       synchronized (LOCK) {
         myBuffer.clear();
       }
+      if (mySpillFile != null) {
+        mySpillFile.dispose();
+      }
       myEditor = null;
       myHyperlinks = null;
     }
@@ -540,6 +571,11 @@ public class ConsoleViewImpl extends JPanel implements ConsoleView, ObservableCo
         document = myEditor.getDocument();
         myFoldingAlarm.cancelAllRequests();
       }
+      if (mySpillFile != null) {
+        mySpillFile.dispose();
+      }
+      myPagedBackLength = 0;
+      document.setCyclicBufferSize(getDocumentBufferSize());
       CommandProcessor.getInstance().executeCommand(myProject, new Runnable() {
         public void run() {
           document.deleteString(0, document.getTextLength());
@@ -569,7 +605,13 @@ public class ConsoleViewImpl extends JPanel implements ConsoleView, ObservableCo
     final Document document = myEditor.getDocument();
     final int oldLineCount = document.getLineCount();
     final boolean isAtEndOfDocument = myEditor.getCaretModel().getOffset() == document.getTextLength();
-    boolean cycleUsed = myBuffer.isUseCyclicBuffer() && document.getTextLength() + text.length() > myBuffer.getCyclicBufferSize();
+    if (myPagedBackLength > 0 && isAtEndOfDocument) {
+      // the paged back text is not looked at anymore
+      myPagedBackLength = 0;
+      document.setCyclicBufferSize(getDocumentBufferSize());
+    }
+    final int bufferSize = getDocumentBufferSize();
+    boolean cycleUsed = bufferSize > 0 && document.getTextLength() + text.length() > bufferSize + myPagedBackLength;
     CommandProcessor.getInstance().executeCommand(myProject, new Runnable() {
       public void run() {
         int offset = myEditor.getCaretModel().getOffset();
@@ -580,7 +622,7 @@ public class ConsoleViewImpl extends JPanel implements ConsoleView, ObservableCo
         try {
           String[] strings = text.split("\\r");
           for (int i = 0; i < strings.length - 1; i++) {
-            document.insertString(document.getTextLength(), strings[i]);
+            insertAtEnd(document, strings[i]);
             int lastLine = document.getLineCount() - 1;
             if (lastLine >= 0) {
               ConsoleUtil.updateTokensOnTextRemoval(myTokens, document.getTextLength(), document.getTextLength() + 1);
@@ -588,7 +630,7 @@ public class ConsoleViewImpl extends JPanel implements ConsoleView, ObservableCo
             }
           }
           if (strings.length > 0) {
-            document.insertString(document.getTextLength(), strings[strings.length - 1]);
+            insertAtEnd(document, strings[strings.length - 1]);
           }
         }
         finally {
@@ -632,6 +674,77 @@ public class ConsoleViewImpl extends JPanel implements ConsoleView, ObservableCo
     }
   }
 
+  private void insertAtEnd(Document document, String text) {
+    myTrimmingDocument = true;
+    try {
+      document.insertString(document.getTextLength(), text);
+    }
+    finally {
+      myTrimmingDocument = false;
+    }
+  }
+
+  /**
+   * The document keeps a window of the latest text of that size, 0 if the whole text is kept
+   */
+  private int getDocumentBufferSize() {
+    return myBuffer.isUseCyclicBuffer() || mySpillFile != null ? myBuffer.getCyclicBufferSize() : 0;
+  }
+
+  private void spillRemovedText(CharSequence text) {
+    assert mySpillFile != null;
+    final int length = text.length();
+    final List<TokenInfo> tokens = new ArrayList<TokenInfo>();
+    int covered = 0;
+    for (TokenInfo token : myTokens) {
+      if (token.startOffset >= length) break;
+      if (token.startOffset > covered) {
+        ConsoleUtil.addToken(token.startOffset - covered, null, ConsoleViewContentType.NORMAL_OUTPUT, tokens);
+      }
+      final int end = Math.min(token.endOffset, length);
+      ConsoleUtil.addToken(end - Math.max(token.startOffset, covered), null, token.contentType, tokens);
+      covered = end;
+    }
+    if (covered < length) {
+      ConsoleUtil.addToken(length - covered, null, ConsoleViewContentType.NORMAL_OUTPUT, tokens);
+    }
+    mySpillFile.spill(text, tokens);
+  }
+
+  /**
+   * Inserts the latest spilled chunk at the document start, the document is allowed to grow beyond its cyclic buffer size
+   * until the caret is moved to the end.
+   */
+  private void pageBackSpilledText() {
+    if (mySpillFile == null || myEditor == null || myProject.isDisposed()) return;
+    final ConsoleSpillFile.Chunk chunk = mySpillFile.removeLast();
+    if (chunk == null) return;
+
+    final Document document = myEditor.getDocument();
+    final int length = chunk.text.length();
+    final int oldLineCount = document.getLineCount();
+    myPagedBackLength += length;
+    document.setCyclicBufferSize(getDocumentBufferSize() + myPagedBackLength);
+    synchronized (LOCK) {
+      for (TokenInfo token : myTokens) {
+        token.startOffset += length;
+        token.endOffset += length;
+      }
+      myTokens.addAll(0, chunk.tokens);
+      myContentSize += length;
+      myHeadShift -= length;
+    }
+    CommandProcessor.getInstance().executeCommand(myProject, new Runnable() {
+      public void run() {
+        document.insertString(0, chunk.text);
+      }
+    }, null, DocCommandGroupId.noneGroupId(document));
+
+    // keep the text that was at the top in view
+    myEditor.getScrollingModel().scrollVertically(myEditor.visualPositionToXY(myEditor.offsetToVisualPosition(length)).y);
+    highlightHyperlinksAndFoldings(0, document.getLineCount() - oldLineCount);
+  }
+
   private void flushDeferredUserInput() {
     final String textToSend = myBuffer.cutFirstUserInputLine();
     if (textToSend == null) {
@@ -712,8 +825,7 @@ public class ConsoleViewImpl extends JPanel implements ConsoleView, ObservableCo
     });
 
 
-    final int bufferSize = myBuffer.isUseCyclicBuffer() ? myBuffer.getCyclicBufferSize() : 0;
-    editor.getDocument().setCyclicBufferSize(bufferSize);
+    editor.getDocument().setCyclicBufferSize(getDocumentBufferSize());
 
     editor.putUserData(CONSOLE_VIEW_IN_EDITOR_VIEW, this);
 
@@ -731,6 +843,12 @@ public class ConsoleViewImpl extends JPanel implements ConsoleView, ObservableCo
         if (event.getNewLength() == 0) {
           // string has been removed, adjust token ranges
           synchronized (LOCK) {
+            if (event.getOffset() == 0) {
+              myHeadShift += event.getOldLength();
+              if (myTrimmingDocument && mySpillFile != null) {
+                spillRemovedText(event.getOldFragment());
+              }
+            }
             ConsoleUtil.updateTokensOnTextRemoval(myTokens, event.getOffset(), event.getOffset() + event.getOldLength());
             int toRemoveLen = event.getOldLength();
             myContentSize -= Math.min(myContentSize, toRemoveLen);
@@ -824,7 +942,12 @@ public class ConsoleViewImpl extends JPanel implements ConsoleView, ObservableCo
     ApplicationManager.getApplication().assertIsDispatchThread();
     PsiDocumentManager.getInstance(myProject).commitAllDocuments();
     if (canHighlightHyperlinks) {
-      myHyperlinks.highlightHyperlinks(myCustomFilter, myPredefinedMessageFilter, line1, endLine);
+      if (mySpillFile != null) {
+        highlightHyperlinksInBackground(line1, endLine);
+      }
+      else {
+        myHyperlinks.highlightHyperlinks(myCustomFilter, myPredefinedMessageFilter, line1, endLine);
+      }
     }
     
     if (myAllowHeavyFilters && myPredefinedMessageFilter.isAnyHeavy() && myPredefinedMessageFilter.shouldRunHeavy()) {
@@ -835,6 +958,58 @@ public class ConsoleViewImpl extends JPanel implements ConsoleView, ObservableCo
     }
   }
 
+  /**
+   * Runs filters over the given lines in background, a batch of lines per read action. Found hyperlinks are moved
+   * along with the text if the document head is trimmed meanwhile.
+   */
+  private void highlightHyperlinksInBackground(int line1, int endLine) {
+    final Document document = myEditor.getDocument();
+    final int startLine = Math.max(0, line1);
+    for (int batchStart = startLine; batchStart <= endLine; batchStart += FILTER_BATCH_LINES) {
+      final int lineCount = Math.min(FILTER_BATCH_LINES, endLine - batchStart + 1);
+      final String[] lines = new String[lineCount];
+      final int[] endOffsets = new int[lineCount];
+      for (int i = 0; i < lineCount; i++) {
+        int endOffset = document.getLineEndOffset(batchStart + i);
+        if (endOffset < document.getTextLength()) {
+          endOffset++; // add '\n'
+        }
+        lines[i] = EditorHyperlinkSupport.getLineText(document, batchStart + i, true);
+        endOffsets[i] = endOffset;
+      }
+      final long headShift = myHeadShift;
+      final int ticket = myFilterTicket;
+      myFilterAlarm.addRequest(new Runnable() {
+        @Override
+        public void run() {
+          final List<Filter.Result> results = new ArrayList<Filter.Result>();
+          ApplicationManager.getApplication().runReadAction(new Runnable() {
+            @Override
+            public void run() {
+              for (int i = 0; i < lines.length; i++) {
+                Filter.Result result = myCustomFilter.applyFilter(lines[i], endOffsets[i]);
+                if (result == null) {
+                  result = myPredefinedMessageFilter.applyFilter(lines[i], endOffsets[i]);
+                }
+                if (result != null) {
+                  results.add(result);
+                }
+              }
+            }
+          });
+          if (results.isEmpty()) return;
+          SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+              if (myEditor == null || myHyperlinks == null || myFilterAlarm.isDisposed() || myFilterTicket != ticket) return;
+              myHyperlinks.addFilterResults(results, (int)(headShift - myHeadShift));
+            }
+          });
+        }
+      }, 0);
+    }
+  }
+
   private void runHeavyFilters(int line1, int endLine) {
     final int startLine = Math.max(0, line1);
 
@@ -18,6 +18,7 @@ package com.intellij.find.impl;
 
 import com.intellij.find.*;
 import com.intellij.find.ngrams.TrigramIndex;
+import com.intellij.find.ngrams.TrigramQueryPlanner;
 import com.intellij.navigation.ItemPresentation;
 import com.intellij.openapi.actionSystem.DataContext;
 import com.intellij.openapi.actionSystem.LangDataKeys;
@@ -47,7 +48,6 @@ import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.util.text.StringUtil;
-import com.intellij.openapi.util.text.TrigramBuilder;
 import com.intellij.openapi.vfs.JarFileSystem;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -458,37 +458,42 @@ public class FindInProjectUtil {
                                            ? (GlobalSearchScope)customScope
                                            : GlobalSearchScope.projectScope(project);
 
-    Set<Integer> keys = new THashSet<Integer>(30);
     Set<PsiFile> resultFiles = new THashSet<PsiFile>();
-    boolean fast = false;
 
     if (TrigramIndex.ENABLED) {
-      TIntHashSet trigrams = TrigramBuilder.buildTrigram(findModel.getStringToFind());
-      TIntIterator it = trigrams.iterator();
-      while (it.hasNext()) {
-        keys.add(it.next());
-      }
-
-      if (!keys.isEmpty()) {
-        fast = true;
-        List<VirtualFile> hits = new ArrayList<VirtualFile>();
-        FileBasedIndex.getInstance()
-          .getFilesWithKey(TrigramIndex.INDEX_ID, keys, new CommonProcessors.CollectProcessor<VirtualFile>(hits), scope);
+      final String stringToFind = findModel.getStringToFind();
+      final List<TIntHashSet> query = findModel.isRegularExpressions()
+                                      ? TrigramQueryPlanner.planRegExp(stringToFind)
+                                      : TrigramQueryPlanner.planLiteral(stringToFind);
+      if (query != null) {
+        // every file containing a match has all trigrams of one of the alternatives
+        final List<VirtualFile> hits = new ArrayList<VirtualFile>();
+        for (TIntHashSet trigrams : query) {
+          final Set<Integer> keys = new THashSet<Integer>(trigrams.size());
+          for (TIntIterator it = trigrams.iterator(); it.hasNext();) {
+            keys.add(it.next());
+          }
+          FileBasedIndex.getInstance()
+            .getFilesWithKey(TrigramIndex.INDEX_ID, keys, new CommonProcessors.CollectProcessor<VirtualFile>(hits), scope);
+        }
 
         for (VirtualFile hit : hits) {
-          resultFiles.add(pm.findFile(hit));
+          ContainerUtil.addIfNotNull(pm.findFile(hit), resultFiles);
         }
 
         filterMaskedFiles(resultFiles, fileMaskRegExp);
-        if (resultFiles.isEmpty()) return new Pair<Boolean, Collection<PsiFile>>(true, resultFiles);
+        return new Pair<Boolean, Collection<PsiFile>>(true, resultFiles);
       }
     }
 
+    if (findModel.isRegularExpressions()) {
+      return new Pair<Boolean, Collection<PsiFile>>(false, Collections.<PsiFile>emptyList());
+    }
 
     // $ is used to separate words when indexing plain-text files but not when indexing
     // Java identifiers, so we can't consistently break a string containing $ characters into words
 
-    fast |= findModel.isWholeWordsOnly() && findModel.getStringToFind().indexOf('$') < 0;
+    boolean fast = findModel.isWholeWordsOnly() && findModel.getStringToFind().indexOf('$') < 0;
 
     List<String> words = StringUtil.getWordsIn(findModel.getStringToFind());
 
@@ -511,7 +516,7 @@ public class FindInProjectUtil {
 
       final List<PsiFile> psiFiles = Arrays.asList(files);
 
-      if (i == 0 && keys.isEmpty()) {
+      if (i == 0) {
         resultFiles.addAll(psiFiles);
       }
       else {
@@ -561,8 +566,7 @@ public class FindInProjectUtil {
   }
 
   private static boolean canOptimizeForFastWordSearch(final FindModel findModel) {
-    return !findModel.isRegularExpressions()
-           && (findModel.getCustomScope() == null || findModel.getCustomScope() instanceof GlobalSearchScope);
+    return findModel.getCustomScope() == null || findModel.getCustomScope() instanceof GlobalSearchScope;
   }
 
   private static int addToUsages(@NotNull Document document, @NotNull Processor<UsageInfo> consumer, @NotNull FindModel findModel,
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.ngrams;
+
+import com.intellij.openapi.util.text.TrigramBuilder;
+import gnu.trove.THashSet;
+import gnu.trove.TIntHashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Turns a search pattern into a {@link TrigramIndex} query: a list of alternatives, a file may contain a match only if
+ * it contains all trigrams of at least one alternative. The plan is conservative, everything the planner doesn't
+ * understand is treated as "any text", so files rejected by the plan never contain a match.
+ */
+public class TrigramQueryPlanner {
+  private static final int MAX_ALTERNATIVES = 16;
+
+  private TrigramQueryPlanner() {
+  }
+
+  /**
+   * @return trigram alternatives or null if the text is too short to narrow the search
+   */
+  @Nullable
+  public static List<TIntHashSet> planLiteral(@NotNull String text) {
+    return toTrigrams(Collections.singletonList(Collections.singleton(text)));
+  }
+
+  /**
+   * @return trigram alternatives or null if the pattern doesn't require any trigram (or can't be parsed)
+   */
+  @Nullable
+  public static List<TIntHashSet> planRegExp(@NotNull String regexp) {
+    final RegExpParser parser = new RegExpParser(regexp);
+    final Info info;
+    try {
+      info = parser.parseAlternation();
+      if (parser.myPos != regexp.length()) return null;
+    }
+    catch (UnsupportedOperationException e) {
+      return null;
+    }
+    return toTrigrams(info.getRequirements());
+  }
+
+  @Nullable
+  private static List<TIntHashSet> toTrigrams(List<Set<String>> requirements) {
+    final List<TIntHashSet> result = new ArrayList<TIntHashSet>(requirements.size());
+    for (Set<String> conjunct : requirements) {
+      final TIntHashSet trigrams = new TIntHashSet();
+      for (String s : conjunct) {
+        trigrams.addAll(TrigramBuilder.buildTrigram(s).toArray());
+      }
+      if (trigrams.isEmpty()) return null;
+      result.add(trigrams);
+    }
+    return result.isEmpty() ? null : result;
+  }
+
+  /**
+   * What is known about the text matched by a part of the pattern: either the exact set of strings it matches,
+   * or the strings (in disjunctive normal form) any match must contain.
+   */
+  private static class Info {
+    private static final Info ANY = new Info(null, Collections.singletonList(Collections.<String>emptySet()));
+    private static final Info EMPTY = exact(Collections.singleton(""));
+
+    @Nullable private final Set<String> myExact;
+    @NotNull private final List<Set<String>> myMatch;
+
+    private Info(@Nullable Set<String> exact, @NotNull List<Set<String>> match) {
+      myExact = exact;
+      myMatch = match;
+    }
+
+    private static Info exact(Set<String> strings) {
+      return new Info(strings, Collections.<Set<String>>emptyList());
+    }
+
+    private List<Set<String>> getRequirements() {
+      if (myExact == null) return myMatch;
+      final List<Set<String>> result = new ArrayList<Set<String>>(myExact.size());
+      for (String s : myExact) {
+        result.add(Collections.singleton(s));
+      }
+      return result;
+    }
+
+    @Nullable
+    private Info concatExact(Info next) {
+      if (myExact == null || next.myExact == null || myExact.size() * next.myExact.size() > MAX_ALTERNATIVES) return null;
+      final Set<String> product = new THashSet<String>();
+      for (String s : myExact) {
+        for (String t : next.myExact) {
+          product.add(s + t);
+        }
+      }
+      return exact(product);
+    }
+
+    private Info or(Info other) {
+      if (myExact != null && other.myExact != null && myExact.size() + other.myExact.size() <= MAX_ALTERNATIVES) {
+        final Set<String> union = new THashSet<String>(myExact);
+        union.addAll(other.myExact);
+        return exact(union);
+      }
+      final List<Set<String>> left = getRequirements();
+      final List<Set<String>> right = other.getRequirements();
+      if (left.size() + right.size() > MAX_ALTERNATIVES) return ANY;
+      final List<Set<String>> union = new ArrayList<Set<String>>(left);
+      union.addAll(right);
+      return new Info(null, union);
+    }
+
+    /**
+     * @return requirements of a part repeated at least once
+     */
+    private Info repeated() {
+      return new Info(null, getRequirements());
+    }
+
+    private static List<Set<String>> and(List<Set<String>> left, List<Set<String>> right) {
+      if (left.size() * right.size() > MAX_ALTERNATIVES) {
+        // keeping one side only is weaker but still correct
+        return left.size() <= right.size() ? left : right;
+      }
+      final List<Set<String>> result = new ArrayList<Set<String>>(left.size() * right.size());
+      for (Set<String> l : left) {
+        for (Set<String> r : right) {
+          final Set<String> conjunct = new THashSet<String>(l);
+          conjunct.addAll(r);
+          conjunct.remove("");
+          result.add(conjunct);
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Recursive descent over the {@link java.util.regex.Pattern} syntax, throws {@link UnsupportedOperationException}
+   * on constructs which change the meaning of the rest of the pattern (e.g. the COMMENTS flag) or on syntax errors.
+   */
+  private static class RegExpParser {
+    private final String myText;
+    private int myPos;
+
+    private RegExpParser(String text) {
+      myText = text;
+    }
+
+    private Info parseAlternation() {
+      Info result = parseSequence();
+      while (myPos < myText.length() && myText.charAt(myPos) == '|') {
+        myPos++;
+        result = result.or(parseSequence());
+      }
+      return result;
+    }
+
+    private Info parseSequence() {
+      // requirements of the parsed prefix except for the trailing run of text known exactly
+      List<Set<String>> done = null;
+      Info run = Info.EMPTY;
+      while (myPos < myText.length()) {
+        final char c = myText.charAt(myPos);
+        if (c == '|' || c == ')') break;
+        final Info atom = parseQuantifier(parseAtom());
+        final Info joined = run.concatExact(atom);
+        if (joined != null) {
+          run = joined;
+          continue;
+        }
+        done = Info.and(done == null ? Info.ANY.myMatch : done, run.getRequirements());
+        if (atom.myExact != null) {
+          run = atom;
+        }
+        else {
+          done = Info.and(done, atom.myMatch);
+          run = Info.EMPTY;
+        }
+      }
+      return done == null ? run : new Info(null, Info.and(done, run.getRequirements()));
+    }
+
+    private Info parseQuantifier(Info atom) {
+      if (myPos >= myText.length()) return atom;
+      final char c = myText.charAt(myPos);
+      final Info result;
+      if (c == '?') {
+        myPos++;
+        result = atom.or(Info.EMPTY);
+      }
+      else if (c == '*') {
+        myPos++;
+        result = Info.ANY;
+      }
+      else if (c == '+') {
+        myPos++;
+        result = atom.repeated();
+      }
+      else if (c == '{' && myPos + 1 < myText.length() && Character.isDigit(myText.charAt(myPos + 1))) {
+        final int end = myText.indexOf('}', myPos);
+        if (end < 0) throw new UnsupportedOperationException();
+        final String bounds = myText.substring(myPos + 1, end);
+        myPos = end + 1;
+        final int comma = bounds.indexOf(',');
+        final int min;
+        try {
+          min = Integer.parseInt(comma < 0 ? bounds : bounds.substring(0, comma));
+        }
+        catch (NumberFormatException e) {
+          throw new UnsupportedOperationException();
+        }
+        result = min == 0 ? Info.ANY : atom.repeated();
+      }
+      else {
+        return atom;
+      }
+      // reluctant and possessive forms
+      if (myPos < myText.length() && (myText.charAt(myPos) == '?' || myText.charAt(myPos) == '+')) myPos++;
+      return parseQuantifier(result);
+    }
+
+    private Info parseAtom() {
+      final char c = myText.charAt(myPos++);
+      switch (c) {
+        case '.':
+          return Info.ANY;
+        case '^':
+        case '$':
+          return Info.EMPTY;
+        case '[':
+          skipCharClass();
+          return Info.ANY;
+        case '(':
+          return parseGroup();
+        case '\\':
+          return parseEscape();
+        case '*':
+        case '+':
+        case '?':
+          throw new UnsupportedOperationException();
+        default:
+          return literal(c);
+      }
+    }
+
+    private Info parseGroup() {
+      boolean lookaround = false;
+      if (myText.startsWith("?", myPos)) {
+        myPos++;
+        if (myText.startsWith("=", myPos) || myText.startsWith("!", myPos)) {
+          myPos++;
+          lookaround = true;
+        }
+        else if (myText.startsWith("<=", myPos) || myText.startsWith("<!", myPos)) {
+          myPos += 2;
+          lookaround = true;
+        }
+        else if (myText.startsWith("<", myPos)) {
+          final int end = myText.indexOf('>', myPos);
+          if (end < 0) throw new UnsupportedOperationException();
+          myPos = end + 1;
+        }
+        else if (myText.startsWith(">", myPos)) {
+          myPos++;
+        }
+        else {
+          // inline flags: (?idmsux-idmsux) or (?idmsux-idmsux:X)
+          final int start = myPos;
+          while (myPos < myText.length() && myText.charAt(myPos) != ')' && myText.charAt(myPos) != ':') myPos++;
+          if (myPos >= myText.length()) throw new UnsupportedOperationException();
+          final String flags = myText.substring(start, myPos);
+          final int minus = flags.indexOf('-');
+          if ((minus < 0 ? flags : flags.substring(0, minus)).indexOf('x') >= 0) throw new UnsupportedOperationException();
+          if (myText.charAt(myPos++) == ')') return Info.EMPTY;
+        }
+      }
+      final Info inner = parseAlternation();
+      if (myPos >= myText.length() || myText.charAt(myPos) != ')') throw new UnsupportedOperationException();
+      myPos++;
+      return lookaround ? Info.EMPTY : inner;
+    }
+
+    private Info parseEscape() {
+      if (myPos >= myText.length()) throw new UnsupportedOperationException();
+      final char c = myText.charAt(myPos++);
+      switch (c) {
+        case 't': return literal('\t');
+        case 'n': return literal('\n');
+        case 'r': return literal('\r');
+        case 'f': return literal('\f');
+        case 'a': return literal('\u0007');
+        case 'e': return literal('\u001B');
+        case 'b':
+        case 'B':
+        case 'A':
+        case 'G':
+        case 'z':
+        case 'Z':
+          return Info.EMPTY;
+        case 'Q': {
+          int end = myText.indexOf("\\E", myPos);
+          if (end < 0) end = myText.length();
+          final String quoted = myText.substring(myPos, end);
+          myPos = Math.min(end + 2, myText.length());
+          return Info.exact(Collections.singleton(quoted));
+        }
+        case 'x':
+          if (myText.startsWith("{", myPos)) {
+            skipTo('}');
+          }
+          else {
+            myPos += 2;
+          }
+          return Info.ANY;
+        case 'u':
+          myPos += 4;
+          return Info.ANY;
+        case 'c':
+          myPos++;
+          return Info.ANY;
+        case 'p':
+        case 'P':
+          if (myText.startsWith("{", myPos)) {
+            skipTo('}');
+          }
+          else {
+            myPos++;
+          }
+          return Info.ANY;
+        case 'k':
+          skipTo('>');
+          return Info.ANY;
+        case '0':
+          for (int i = 0; i < 3 && myPos < myText.length() && myText.charAt(myPos) >= '0' && myText.charAt(myPos) <= '7'; i++) myPos++;
+          return Info.ANY;
+        default:
+          // \d, \w, back references and so on match unknown text, escaped punctuation matches itself
+          return Character.isLetterOrDigit(c) ? Info.ANY : literal(c);
+      }
+    }
+
+    private void skipTo(char c) {
+      final int end = myText.indexOf(c, myPos);
+      if (end < 0) throw new UnsupportedOperationException();
+      myPos = end + 1;
+    }
+
+    private void skipCharClass() {
+      if (myText.startsWith("^", myPos)) myPos++;
+      // a leading ']' is a literal
+      if (myText.startsWith("]", myPos)) myPos++;
+      while (myPos < myText.length()) {
+        final char c = myText.charAt(myPos++);
+        if (c == '\\') {
+          myPos++;
+        }
+        else if (c == '[') {
+          skipCharClass();
+        }
+        else if (c == ']') {
+          return;
+        }
+      }
+      throw new UnsupportedOperationException();
+    }
+
+    private static Info literal(char c) {
+      return Info.exact(Collections.singleton(String.valueOf(c)));
+    }
+  }
+}
@@ -170,6 +170,13 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
     return myAdded.size() > 0 || myRemoved.size() > 0 || myInvalidated.size() > 0 || needsCompacting();
   }
 
+  /**
+   * @return number of changes not yet written to disk
+   */
+  public int getDeltaSize() {
+    return myAdded.size() + myRemoved.size() + myInvalidated.size();
+  }
+
   public ValueContainer<Value> getAddedDelta() {
     return myAdded;
   }
@@ -71,8 +71,6 @@ import com.intellij.util.io.*;
 import com.intellij.util.io.storage.HeavyProcessLatch;
 import com.intellij.util.messages.MessageBus;
 import com.intellij.util.messages.MessageBusConnection;
-import gnu.trove.TIntHashSet;
-import gnu.trove.TIntIterator;
 import gnu.trove.TObjectIntHashMap;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
@@ -946,36 +944,38 @@ public class FileBasedIndex implements ApplicationComponent {
 
       try {
         index.getReadLock().lock();
-        final List<TIntHashSet> locals = new ArrayList<TIntHashSet>();
+        final List<int[]> locals = new ArrayList<int[]>();
         for (K dataKey : dataKeys) {
-          TIntHashSet local = new TIntHashSet();
-          locals.add(local);
           final ValueContainer<V> container = index.getData(dataKey);
 
+          int[] local = new int[16];
+          int size = 0;
           for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext();) {
             final V value = valueIt.next();
             for (final ValueContainer.IntIterator inputIdsIterator = container.getInputIdsIterator(value); inputIdsIterator.hasNext();) {
               final int id = inputIdsIterator.next();
-              local.add(id);
+              if (size == local.length) {
+                local = Arrays.copyOf(local, size * 2);
+              }
+              local[size++] = id;
             }
           }
+          locals.add(SortedIdSet.distinct(local, size));
         }
 
         if (locals.isEmpty()) {
           return true;
         }
 
-        Collections.sort(locals, new Comparator<TIntHashSet>() {
+        Collections.sort(locals, new Comparator<int[]>() {
           @Override
-          public int compare(TIntHashSet o1, TIntHashSet o2) {
-            return o1.size() - o2.size();
+          public int compare(int[] o1, int[] o2) {
+            return o1.length - o2.length;
           }
         });
 
         final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
-        TIntIterator ids = join(locals).iterator();
-        while (ids.hasNext()) {
-          int id = ids.next();
+        for (int id : join(locals)) {
           //VirtualFile file = IndexInfrastructure.findFileById(fs, id);
           VirtualFile file = IndexInfrastructure.findFileByIdIfCached(fs, id);
           if (file != null && filter.accept(file)) {
@@ -1004,20 +1004,10 @@ public class FileBasedIndex implements ApplicationComponent {
     return true;
   }
 
-  private static TIntHashSet join(List<TIntHashSet> locals) {
-    TIntHashSet result = locals.get(0);
-    if (locals.size() > 1) {
-      TIntIterator it = result.iterator();
-
-      while (it.hasNext()) {
-        int id = it.next();
-        for (int i = 1; i < locals.size(); i++) {
-          if (!locals.get(i).contains(id)) {
-            it.remove();
-            break;
-          }
-        }
-      }
+  private static int[] join(List<int[]> locals) {
+    int[] result = locals.get(0);
+    for (int i = 1; i < locals.size() && result.length > 0; i++) {
+      result = SortedIdSet.intersect(result, locals.get(i));
     }
     return result;
   }
@@ -1295,6 +1285,7 @@ public class FileBasedIndex implements ApplicationComponent {
   }
 
   private final StorageGuard myStorageLock = new StorageGuard();
+  private final IndexingStatistics myStatistics = new IndexingStatistics();
 
   private StorageGuard.Holder setDataBufferingEnabled(final boolean enabled) {
     final StorageGuard.Holder holder = myStorageLock.enter(enabled);
@@ -1395,49 +1386,106 @@ public class FileBasedIndex implements ApplicationComponent {
 
     PsiFile psiFile = null;
 
-    for (final ID<?, ?> indexId : myIndices.keySet()) {
-      if (shouldIndexFile(file, indexId)) {
-        if (fc == null) {
-          byte[] currentBytes;
-          try {
-            currentBytes = content.getBytes();
+    // map the content with all indices first, outside of any storage locks, then write all results in one go
+    final List<Pair<ID<?, ?>, Computable<Boolean>>> updates = new ArrayList<Pair<ID<?, ?>, Computable<Boolean>>>();
+    try {
+      for (final ID<?, ?> indexId : myIndices.keySet()) {
+        if (shouldIndexFile(file, indexId)) {
+          if (fc == null) {
+            byte[] currentBytes;
+            try {
+              currentBytes = content.getBytes();
+            }
+            catch (IOException e) {
+              currentBytes = ArrayUtil.EMPTY_BYTE_ARRAY;
+            }
+            fc = new FileContentImpl(file, currentBytes);
+
+            psiFile = content.getUserData(IndexingDataKeys.PSI_FILE);
+            if (psiFile != null) {
+              psiFile.putUserData(PsiFileImpl.BUILDING_STUB, true);
+              fc.putUserData(IndexingDataKeys.PSI_FILE, psiFile);
+            }
+            if (project == null) {
+              project = ProjectUtil.guessProjectForFile(file);
+            }
+            fc.putUserData(IndexingDataKeys.PROJECT, project);
           }
-          catch (IOException e) {
-            currentBytes = ArrayUtil.EMPTY_BYTE_ARRAY;
+
+          if (ourRebuildStatus.get(indexId).get() == REQUIRES_REBUILD) {
+            continue; // the index is scheduled for rebuild, no need to update
           }
-          fc = new FileContentImpl(file, currentBytes);
 
-          psiFile = content.getUserData(IndexingDataKeys.PSI_FILE);
-          if (psiFile != null) {
-            psiFile.putUserData(PsiFileImpl.BUILDING_STUB, true);
-            fc.putUserData(IndexingDataKeys.PSI_FILE, psiFile);
+          try {
+            ProgressManager.checkCanceled();
+            final UpdatableIndex<?, ?, FileContent> index = getIndex(indexId);
+            assert index != null;
+            final long started = System.nanoTime();
+            updates.add(new Pair<ID<?, ?>, Computable<Boolean>>(indexId, index.prepareUpdate(Math.abs(getFileId(file)), fc)));
+            myStatistics.mapped(indexId, System.nanoTime() - started);
           }
-          if (project == null) {
-            project = ProjectUtil.guessProjectForFile(file);
+          catch (ProcessCanceledException e) {
+            myChangedFilesCollector.scheduleForUpdate(file);
+            throw e;
           }
-          fc.putUserData(IndexingDataKeys.PROJECT, project);
         }
+      }
+    }
+    finally {
+      if (psiFile != null) {
+        psiFile.putUserData(PsiFileImpl.BUILDING_STUB, null);
+      }
+    }
 
-        try {
-          ProgressManager.checkCanceled();
-          updateSingleIndex(indexId, file, fc);
-        }
-        catch (ProcessCanceledException e) {
-          myChangedFilesCollector.scheduleForUpdate(file);
-          throw e;
+    if (!updates.isEmpty()) {
+      applyUpdates(file, updates);
+      myStatistics.fileIndexed();
+    }
+  }
+
+  private void applyUpdates(final VirtualFile file, final List<Pair<ID<?, ?>, Computable<Boolean>>> updates) {
+    myLocalModCount++;
+
+    final StorageGuard.Holder lock = setDataBufferingEnabled(false);
+    try {
+      final List<ID<?, ?>> updated = new ArrayList<ID<?, ?>>(updates.size());
+      ProgressManager.getInstance().executeNonCancelableSection(new Runnable() {
+        @Override
+        public void run() {
+          for (Pair<ID<?, ?>, Computable<Boolean>> update : updates) {
+            final long started = System.nanoTime();
+            final boolean success = update.second.compute();
+            myStatistics.updated(update.first, System.nanoTime() - started);
+            if (success) {
+              updated.add(update.first);
+            }
+            else {
+              requestRebuild(update.first);
+            }
+          }
         }
-        catch (StorageException e) {
-          requestRebuild(indexId);
-          LOG.info(e);
+      });
+      ApplicationManager.getApplication().runReadAction(new Runnable() {
+        @Override
+        public void run() {
+          if (file.isValid()) {
+            for (ID<?, ?> indexId : updated) {
+              IndexingStamp.update(file, indexId, IndexInfrastructure.getIndexCreationStamp(indexId));
+            }
+          }
         }
-      }
+      });
     }
-
-    if (psiFile != null) {
-      psiFile.putUserData(PsiFileImpl.BUILDING_STUB, null);
+    finally {
+      lock.leave();
     }
   }
 
+  @NotNull
+  IndexingStatistics getIndexingStatistics() {
+    return myStatistics;
+  }
+
   private void updateSingleIndex(final ID<?, ?> indexId, final VirtualFile file, final FileContent currentFC)
     throws StorageException {
     if (ourRebuildStatus.get(indexId).get() == REQUIRES_REBUILD) {
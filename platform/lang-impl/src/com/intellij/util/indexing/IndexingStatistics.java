@@ -0,0 +1,108 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects indexing throughput and time spent by every index in mapping file contents and writing the results,
+ * so the slowest extension can be spotted in the log after a bulk update.
+ */
+final class IndexingStatistics {
+  private final ConcurrentMap<ID<?, ?>, IndexTimes> myTimes = new ConcurrentHashMap<ID<?, ?>, IndexTimes>();
+  private final AtomicInteger myFilesCount = new AtomicInteger();
+  private volatile long myStarted = System.currentTimeMillis();
+
+  void reset() {
+    myTimes.clear();
+    myFilesCount.set(0);
+    myStarted = System.currentTimeMillis();
+  }
+
+  void fileIndexed() {
+    myFilesCount.incrementAndGet();
+  }
+
+  void mapped(ID<?, ?> indexId, long nanos) {
+    getTimes(indexId).addMapTime(nanos);
+  }
+
+  void updated(ID<?, ?> indexId, long nanos) {
+    getTimes(indexId).myUpdateNanos.addAndGet(nanos);
+  }
+
+  private IndexTimes getTimes(ID<?, ?> indexId) {
+    IndexTimes times = myTimes.get(indexId);
+    if (times == null) {
+      final IndexTimes newTimes = new IndexTimes(indexId);
+      times = myTimes.putIfAbsent(indexId, newTimes);
+      if (times == null) times = newTimes;
+    }
+    return times;
+  }
+
+  String dump() {
+    final long elapsed = Math.max(1, System.currentTimeMillis() - myStarted);
+    final int files = myFilesCount.get();
+
+    final StringBuilder builder = new StringBuilder();
+    builder.append(files).append(" files indexed in ").append(elapsed).append(" ms, ")
+      .append(files * 1000L / elapsed).append(" files/sec");
+
+    final List<IndexTimes> times = new ArrayList<IndexTimes>(myTimes.values());
+    Collections.sort(times, new Comparator<IndexTimes>() {
+      @Override
+      public int compare(IndexTimes o1, IndexTimes o2) {
+        final long t1 = o1.getTotalNanos();
+        final long t2 = o2.getTotalNanos();
+        return t1 < t2 ? 1 : t1 == t2 ? 0 : -1;
+      }
+    });
+    for (IndexTimes t : times) {
+      builder.append("\n  ").append(t.myIndexId.toString())
+        .append(": ").append(t.myFilesCount.get()).append(" files, map ").append(t.myMapNanos.get() / 1000000)
+        .append(" ms, update ").append(t.myUpdateNanos.get() / 1000000).append(" ms");
+    }
+    return builder.toString();
+  }
+
+  private static class IndexTimes {
+    private final ID<?, ?> myIndexId;
+    private final AtomicInteger myFilesCount = new AtomicInteger();
+    private final AtomicLong myMapNanos = new AtomicLong();
+    private final AtomicLong myUpdateNanos = new AtomicLong();
+
+    private IndexTimes(ID<?, ?> indexId) {
+      myIndexId = indexId;
+    }
+
+    private void addMapTime(long nanos) {
+      myFilesCount.incrementAndGet();
+      myMapNanos.addAndGet(nanos);
+    }
+
+    private long getTotalNanos() {
+      return myMapNanos.get() + myUpdateNanos.get();
+    }
+  }
+}
@@ -17,20 +17,19 @@
 package com.intellij.util.indexing;
 
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.LowMemoryWatcher;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.newvfs.persistent.FlushingDaemon;
 import com.intellij.util.CommonProcessors;
 import com.intellij.util.Processor;
 import com.intellij.util.containers.SLRUCache;
-import com.intellij.util.io.DataExternalizer;
-import com.intellij.util.io.KeyDescriptor;
-import com.intellij.util.io.PersistentMap;
+import com.intellij.util.io.*;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -40,6 +39,16 @@ import java.util.concurrent.locks.ReentrantLock;
 */
 public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Value>{
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.MapIndexStorage");
+  /**
+   * Default number of buffered value changes (added, removed and invalidated input ids) kept in memory for keys evicted
+   * from the cache before they are written to disk, 0 disables write-behind
+   */
+  private static final int WRITE_BEHIND_BUDGET = Integer.getInteger("idea.index.write.behind.budget", 0);
+  /**
+   * Shard index data over {@link SegmentedPersistentHashMap} segments, so lookups of different keys don't contend for one storage lock
+   */
+  private static final boolean SEGMENTED_STORAGE = Boolean.getBoolean("idea.index.segmented.storage");
+
   private PersistentMap<Key, ValueContainer<Value>> myMap;
   private SLRUCache<Key, ChangeTrackingValueContainer<Value>> myCache;
   private final File myStorageFile;
@@ -49,27 +58,83 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
   private final Lock l = new ReentrantLock();
   private final DataExternalizer<Value> myDataExternalizer;
 
+  private final int myWriteBehindBudget;
+  // dirty containers dropped from the cache but not written yet, guarded by l
+  private final Map<Key, ChangeTrackingValueContainer<Value>> myPendingWrites = new HashMap<Key, ChangeTrackingValueContainer<Value>>();
+  private int myPendingSize;
+  private LowMemoryWatcher myLowMemoryFlusher;
+  private ScheduledFuture<?> myFlushingFuture;
+
   public MapIndexStorage(File storageFile, final KeyDescriptor<Key> keyDescriptor,
                          final DataExternalizer<Value> valueExternalizer,
                          final int cacheSize) throws IOException {
+    this(storageFile, keyDescriptor, valueExternalizer, cacheSize, WRITE_BEHIND_BUDGET);
+  }
+
+  public MapIndexStorage(File storageFile, final KeyDescriptor<Key> keyDescriptor,
+                         final DataExternalizer<Value> valueExternalizer,
+                         final int cacheSize,
+                         final int writeBehindBudget) throws IOException {
 
     myStorageFile = storageFile;
     myKeyDescriptor = keyDescriptor;
     myCacheSize = cacheSize;
     myDataExternalizer = valueExternalizer;
+    myWriteBehindBudget = writeBehindBudget;
     initMapAndCache();
+
+    if (writeBehindBudget > 0) {
+      myLowMemoryFlusher = LowMemoryWatcher.register(new LowMemoryWatcher.ForceableAdapter() {
+        @Override
+        public void force() {
+          flushPendingWrites(true);
+        }
+      });
+      myFlushingFuture = FlushingDaemon.everyFiveSeconds(new Runnable() {
+        @Override
+        public void run() {
+          flushPendingWrites(false);
+        }
+      });
+    }
   }
 
   private void initMapAndCache() throws IOException {
-    final ValueContainerMap<Key, Value> map = new ValueContainerMap<Key, Value>(myStorageFile, myKeyDescriptor, myDataExternalizer);
+    final PersistentMap<Key, ValueContainer<Value>> map;
+    if (SEGMENTED_STORAGE) {
+      final DataExternalizer<Value> dataExternalizer = SegmentedPersistentHashMap.synchronizedExternalizer(myDataExternalizer);
+      map = new SegmentedPersistentHashMap<Key, ValueContainer<Value>>(myStorageFile, myKeyDescriptor, null) {
+        @Override
+        protected PersistentHashMap<Key, ValueContainer<Value>> createSegment(File file,
+                                                                              KeyDescriptor<Key> keyDescriptor,
+                                                                              DataExternalizer<ValueContainer<Value>> valueExternalizer,
+                                                                              PagedFileStorage.StorageLock lock) throws IOException {
+          // segments use their own value container externalizer, the index externalizer is shared by them:
+          // calls to it are serialized unless it is known to have no state
+          return new ValueContainerMap<Key, Value>(file, keyDescriptor, dataExternalizer, lock);
+        }
+      };
+    }
+    else {
+      if (SegmentedPersistentHashMap.exists(myStorageFile)) {
+        throw new PersistentEnumerator.CorruptedException(myStorageFile);
+      }
+      map = new ValueContainerMap<Key, Value>(myStorageFile, myKeyDescriptor, myDataExternalizer);
+    }
     myCache = new SLRUCache<Key, ChangeTrackingValueContainer<Value>>(myCacheSize, (int)(Math.ceil(myCacheSize * 0.25)) /* 25% from the main cache size*/) {
       @Override
       @NotNull
       public ChangeTrackingValueContainer<Value> createValue(final Key key) {
+        final ChangeTrackingValueContainer<Value> pending = myPendingWrites.remove(key);
+        if (pending != null) {
+          // the key has unwritten changes, keep accumulating them in the same container
+          myPendingSize -= pending.getDeltaSize();
+          return pending;
+        }
         return new ChangeTrackingValueContainer<Value>(new ChangeTrackingValueContainer.Initializer<Value>() {
           @Override
           public Object getLock() {
-            return map.getDataAccessLock();
+            return getDataAccessLock(map, key);
           }
 
           @Override
@@ -92,17 +157,94 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
       @Override
       protected void onDropFromCache(final Key key, final ChangeTrackingValueContainer<Value> valueContainer) {
         if (valueContainer.isDirty()) {
-          try {
-            map.put(key, valueContainer);
+          if (myWriteBehindBudget > 0) {
+            valueContainer.dropMergedData();
+            myPendingWrites.put(key, valueContainer);
+            myPendingSize += valueContainer.getDeltaSize();
+            if (myPendingSize > myWriteBehindBudget) {
+              writePendingData();
+            }
           }
-          catch (IOException e) {
-            throw new RuntimeException(e);
+          else {
+            try {
+              map.put(key, valueContainer);
+            }
+            catch (IOException e) {
+              throw new RuntimeException(e);
+            }
           }
         }
       }
     };
 
     myMap = map;
+    myPendingWrites.clear();
+    myPendingSize = 0;
+  }
+
+  private static <Key, Value> Object getDataAccessLock(PersistentMap<Key, ValueContainer<Value>> map, Key key) {
+    final PersistentMap<Key, ValueContainer<Value>> segment =
+      map instanceof SegmentedPersistentHashMap ? ((SegmentedPersistentHashMap<Key, ValueContainer<Value>>)map).getSegment(key) : map;
+    return ((ValueContainerMap)segment).getDataAccessLock();
+  }
+
+  /**
+   * Writes buffered changes in the order of key hashes, which is roughly the order of their location in the key storage.
+   * Called under l.
+   */
+  private void writePendingData() {
+    if (myPendingWrites.isEmpty()) return;
+
+    final List<Map.Entry<Key, ChangeTrackingValueContainer<Value>>> entries =
+      new ArrayList<Map.Entry<Key, ChangeTrackingValueContainer<Value>>>(myPendingWrites.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<Key, ChangeTrackingValueContainer<Value>>>() {
+      @Override
+      public int compare(Map.Entry<Key, ChangeTrackingValueContainer<Value>> o1, Map.Entry<Key, ChangeTrackingValueContainer<Value>> o2) {
+        final int h1 = myKeyDescriptor.getHashCode(o1.getKey());
+        final int h2 = myKeyDescriptor.getHashCode(o2.getKey());
+        return h1 < h2 ? -1 : h1 == h2 ? 0 : 1;
+      }
+    });
+    try {
+      for (Map.Entry<Key, ChangeTrackingValueContainer<Value>> entry : entries) {
+        myMap.put(entry.getKey(), entry.getValue());
+        myPendingWrites.remove(entry.getKey());
+      }
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    finally {
+      myPendingSize = 0;
+      for (ChangeTrackingValueContainer<Value> container : myPendingWrites.values()) {
+        myPendingSize += container.getDeltaSize();
+      }
+    }
+  }
+
+  private void flushPendingWrites(boolean wait) {
+    if (wait) {
+      l.lock();
+    }
+    else if (!l.tryLock()) {
+      return;
+    }
+    try {
+      if (!myMap.isClosed()) {
+        writePendingData();
+      }
+    }
+    catch (RuntimeException e) {
+      LOG.info(e);
+    }
+    finally {
+      l.unlock();
+    }
+  }
+
+  private void writeCachedData() {
+    myCache.clear();
+    writePendingData();
   }
 
   @Override
@@ -110,7 +252,7 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
     l.lock();
     try {
       if (!myMap.isClosed() && myMap.isDirty()) {
-        myCache.clear();
+        writeCachedData();
         myMap.force();
       }
     }
@@ -121,6 +263,10 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
 
   @Override
   public void close() throws StorageException {
+    if (myFlushingFuture != null) {
+      myFlushingFuture.cancel(false);
+      myLowMemoryFlusher.stop();
+    }
     try {
       flush();
       myMap.close();
@@ -149,7 +295,12 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
       LOG.error(e);
     }
     try {
-      FileUtil.delete(myStorageFile);
+      if (SEGMENTED_STORAGE) {
+        SegmentedPersistentHashMap.deleteFiles(myStorageFile);
+      }
+      else {
+        FileUtil.delete(myStorageFile);
+      }
       initMapAndCache();
     }
     catch (IOException e) {
@@ -171,7 +322,7 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
   public boolean processKeys(final Processor<Key> processor) throws StorageException {
     l.lock();
     try {
-      myCache.clear(); // this will ensure that all new keys are made into the map
+      writeCachedData(); // this will ensure that all new keys are made into the map
       return myMap.processKeys(processor);
     }
     catch (IOException e) {
@@ -17,6 +17,7 @@
 package com.intellij.util.indexing;
 
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.util.Factory;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.CommonProcessors;
@@ -208,13 +209,39 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
 
     final Map<Key, Value> data = content != null ? myIndexer.map(content) : Collections.<Key, Value>emptyMap();
 
-    updateWithMap(inputId, data, new Callable<Collection<Key>>() {
+    updateWithMap(inputId, data, createOldKeysGetter(inputId));
+  }
+
+  @NotNull
+  @Override
+  public final Computable<Boolean> prepareUpdate(final int inputId, @Nullable Input content) {
+    assert myInputsIndex != null;
+
+    final Map<Key, Value> data = content != null ? myIndexer.map(content) : Collections.<Key, Value>emptyMap();
+
+    return new Computable<Boolean>() {
+      @Override
+      public Boolean compute() {
+        try {
+          updateWithMap(inputId, data, createOldKeysGetter(inputId));
+        }
+        catch (StorageException e) {
+          LOG.info(e);
+          return Boolean.FALSE;
+        }
+        return Boolean.TRUE;
+      }
+    };
+  }
+
+  private Callable<Collection<Key>> createOldKeysGetter(final int inputId) {
+    return new Callable<Collection<Key>>() {
       @Override
       public Collection<Key> call() throws Exception {
         final Collection<Key> oldKeys = myInputsIndex.get(inputId);
         return oldKeys == null? Collections.<Key>emptyList() : oldKeys;
       }
-    });
+    };
   }
 
   protected void updateWithMap(final int inputId, final Map<Key, Value> newData, Callable<Collection<Key>> oldKeysGetter) throws StorageException {
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import java.util.Arrays;
+
+/**
+ * Set of input ids kept as a sorted int array: about 4 bytes per id instead of a hash table with its state array,
+ * ordered iteration and cheap merging of id sets coming from different keys.
+ * Input ids mostly grow during indexing, so additions are appends in the common case. Other ids are appended unsorted
+ * and merged into the sorted part at once before the set is read, so adding many ids costs a sort rather than a shift per id.
+ * <p/>
+ * Additions and removals need exclusive access, reads may run in parallel.
+ */
+final class SortedIdSet implements Cloneable {
+  private static final int[] EMPTY = new int[0];
+
+  private int[] myIds;
+  private int mySize;
+  // the ids before it are sorted and distinct, the rest were added out of order
+  private int mySortedSize;
+  // false while there are ids added out of order; readers check it first and sort() sets it last,
+  // so readers which see it set also see the merged ids
+  private volatile boolean mySorted = true;
+
+  SortedIdSet(int initialCapacity) {
+    myIds = initialCapacity == 0 ? EMPTY : new int[initialCapacity];
+  }
+
+  private SortedIdSet(int[] ids, int size) {
+    myIds = ids;
+    mySize = size;
+    mySortedSize = size;
+  }
+
+  int size() {
+    ensureSorted();
+    return mySize;
+  }
+
+  boolean isEmpty() {
+    return mySize == 0;
+  }
+
+  boolean contains(int id) {
+    ensureSorted();
+    return Arrays.binarySearch(myIds, 0, mySize, id) >= 0;
+  }
+
+  void add(int id) {
+    final int size = mySize;
+    if (size > 0 && myIds[size - 1] == id) return;
+    if (size == myIds.length) {
+      myIds = Arrays.copyOf(myIds, size + (size >> 1) + 2);
+    }
+    myIds[size] = id;
+    mySize = size + 1;
+    if (mySortedSize == size && (size == 0 || id > myIds[size - 1])) {
+      mySortedSize = size + 1;
+    }
+    else if (mySorted) {
+      mySorted = false;
+    }
+  }
+
+  boolean remove(int id) {
+    ensureSorted();
+    final int index = Arrays.binarySearch(myIds, 0, mySize, id);
+    if (index < 0) return false;
+    System.arraycopy(myIds, index + 1, myIds, index, mySize - index - 1);
+    mySortedSize = --mySize;
+    return true;
+  }
+
+  /**
+   * Trims the storage if more than half of it is unused
+   */
+  void compact() {
+    ensureSorted();
+    if (myIds.length > 2 * mySize + 2) {
+      myIds = mySize == 0 ? EMPTY : Arrays.copyOf(myIds, mySize);
+    }
+  }
+
+  int[] toArray() {
+    ensureSorted();
+    return Arrays.copyOf(myIds, mySize);
+  }
+
+  ValueContainer.IntIterator iterator() {
+    ensureSorted();
+    return new ValueContainer.IntIterator() {
+      private final int[] myArray = myIds;
+      private final int myCount = mySize;
+      private int myIndex;
+
+      @Override
+      public boolean hasNext() {
+        return myIndex < myCount;
+      }
+
+      @Override
+      public int next() {
+        return myArray[myIndex++];
+      }
+
+      @Override
+      public int size() {
+        return myCount;
+      }
+    };
+  }
+
+  @Override
+  public SortedIdSet clone() {
+    final int[] ids = toArray();
+    return new SortedIdSet(ids, ids.length);
+  }
+
+  private void ensureSorted() {
+    if (!mySorted) {
+      sort();
+    }
+  }
+
+  /**
+   * Sorts the ids added out of order and merges them into the sorted ones. Readers may get here at once.
+   */
+  private synchronized void sort() {
+    if (mySorted) return;
+    final int sortedSize = mySortedSize;
+    final int size = mySize;
+
+    final int[] ids = myIds;
+    Arrays.sort(ids, sortedSize, size);
+    final int[] merged = new int[ids.length];
+    int count = 0;
+    for (int i = 0, j = sortedSize; i < sortedSize || j < size;) {
+      final int id = j == size || i < sortedSize && ids[i] <= ids[j] ? ids[i++] : ids[j++];
+      if (count == 0 || merged[count - 1] != id) {
+        merged[count++] = id;
+      }
+    }
+    myIds = merged;
+    mySize = count;
+    mySortedSize = count;
+    mySorted = true;
+  }
+
+  /**
+   * @return sorted array of distinct ids from the given ones, the array is sorted in place
+   */
+  static int[] distinct(int[] ids, int size) {
+    if (size == 0) return EMPTY;
+    Arrays.sort(ids, 0, size);
+    int count = 1;
+    for (int i = 1; i < size; i++) {
+      if (ids[i] != ids[count - 1]) {
+        ids[count++] = ids[i];
+      }
+    }
+    return count == ids.length ? ids : Arrays.copyOf(ids, count);
+  }
+
+  /**
+   * @return sorted array of ids present in both sorted arrays
+   */
+  static int[] intersect(int[] a, int[] b) {
+    if (a.length > b.length) {
+      final int[] t = a;
+      a = b;
+      b = t;
+    }
+    final int[] result = new int[a.length];
+    int count = 0;
+    if (a.length * 16 < b.length) {
+      // much smaller set, look its ids up in the bigger one
+      int from = 0;
+      for (int id : a) {
+        final int index = Arrays.binarySearch(b, from, b.length, id);
+        if (index >= 0) {
+          result[count++] = id;
+          from = index + 1;
+        }
+        else {
+          from = -index - 1;
+        }
+      }
+    }
+    else {
+      for (int i = 0, j = 0; i < a.length && j < b.length;) {
+        if (a[i] < b[j]) {
+          i++;
+        }
+        else if (a[i] > b[j]) {
+          j++;
+        }
+        else {
+          result[count++] = a[i];
+          i++;
+          j++;
+        }
+      }
+    }
+    return count == result.length ? result : Arrays.copyOf(result, count);
+  }
+}
@@ -24,6 +24,7 @@ import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.CollectingContentIterator;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.io.IOStatistics;
 
 import java.util.List;
 
@@ -56,6 +57,7 @@ public class UnindexedFilesUpdater implements CacheUpdater {
     List<VirtualFile> files = finder.getFiles();
     LOG.info("Unindexed files update started: " + files.size() + " files to update");
     myStarted = System.currentTimeMillis();
+    myIndex.getIndexingStatistics().reset();
     return VfsUtil.toVirtualFileArray(files);
   }
 
@@ -68,6 +70,8 @@ public class UnindexedFilesUpdater implements CacheUpdater {
   @Override
   public void updatingDone() {
     LOG.info("Unindexed files update done in " + (System.currentTimeMillis() - myStarted) + " ms");
+    LOG.info(myIndex.getIndexingStatistics().dump());
+    LOG.info(IOStatistics.getPageCacheStatistics());
   }
 
   @Override
@@ -16,6 +16,8 @@
 
 package com.intellij.util.indexing;
 
+import com.intellij.openapi.util.Computable;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.concurrent.locks.Lock;
@@ -31,6 +33,13 @@ public interface UpdatableIndex<Key, Value, Input> extends AbstractIndex<Key,Val
   void flush() throws StorageException;
 
   void update(int inputId, @Nullable Input content) throws StorageException;
+
+  /**
+   * Computes index data for the input without touching the storage, so it can be called without any index locks held.
+   * The returned computation writes the data and returns false if the storage failed.
+   */
+  @NotNull
+  Computable<Boolean> prepareUpdate(int inputId, @Nullable Input content);
   
   Lock getReadLock();
   
@@ -17,8 +17,6 @@
 package com.intellij.util.indexing;
 
 import com.intellij.openapi.diagnostic.Logger;
-import gnu.trove.TIntHashSet;
-import gnu.trove.TIntIterator;
 
 import java.util.*;
 
@@ -43,14 +41,14 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
       myInputIdMapping.put(value, inputId);
     }
     else {
-      final TIntHashSet idSet;
+      final SortedIdSet idSet;
       if (input instanceof Integer) {
-        idSet = new IdSet(3, 0.98f);
+        idSet = new SortedIdSet(3);
         idSet.add(((Integer)input).intValue());
         myInputIdMapping.put(value, idSet);
       }
       else {
-        idSet = (TIntHashSet)input;
+        idSet = (SortedIdSet)input;
       }
       idSet.add(inputId);
     }
@@ -85,8 +83,8 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     if (input == null) {
       return false;
     }
-    if (input instanceof TIntHashSet) {
-      final TIntHashSet idSet = (TIntHashSet)input;
+    if (input instanceof SortedIdSet) {
+      final SortedIdSet idSet = (SortedIdSet)input;
       final boolean reallyRemoved = idSet.remove(inputId);
       if (reallyRemoved) {
         idSet.compact();
@@ -120,8 +118,8 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
   @Override
   public boolean isAssociated(final Value value, final int inputId) {
     final Object input = myInputIdMapping.get(value);
-    if (input instanceof TIntHashSet) {
-      return ((TIntHashSet)input).contains(inputId);
+    if (input instanceof SortedIdSet) {
+      return ((SortedIdSet)input).contains(inputId);
     }
     if (input instanceof Integer ){
       return inputId == ((Integer)input).intValue();
@@ -133,8 +131,8 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
   public IntIterator getInputIdsIterator(final Value value) {
     final Object input = myInputIdMapping.get(value);
     final IntIterator it;
-    if (input instanceof TIntHashSet) {
-      it = new IntSetIterator((TIntHashSet)input);
+    if (input instanceof SortedIdSet) {
+      it = ((SortedIdSet)input).iterator();
     }
     else if (input instanceof Integer ){
       it = new SingleValueIterator(((Integer)input).intValue());
@@ -203,31 +201,6 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     }
   }
 
-  private static class IntSetIterator implements IntIterator {
-    private final TIntIterator mySetIterator;
-    private final int mySize;
-
-    public IntSetIterator(final TIntHashSet set) {
-      mySetIterator = set.iterator();
-      mySize = set.size();
-    }
-
-    @Override
-    public boolean hasNext() {
-      return mySetIterator.hasNext();
-    }
-
-    @Override
-    public int next() {
-      return mySetIterator.next();
-    }
-
-    @Override
-    public int size() {
-      return mySize;
-    }
-  }
-
   private HashMap<Value, Object> mapCopy(final HashMap<Value, Object> map) {
     if (map == null) {
       return null;
@@ -235,25 +208,10 @@ class ValueContainerImpl<Value> extends UpdatableValueContainer<Value> implement
     final HashMap<Value, Object> cloned = (HashMap<Value, Object>)map.clone();
     for (Value key : cloned.keySet()) {
       final Object val = cloned.get(key);
-      if (val instanceof TIntHashSet) {
-        cloned.put(key, ((TIntHashSet)val).clone());
+      if (val instanceof SortedIdSet) {
+        cloned.put(key, ((SortedIdSet)val).clone());
       }
     }
     return cloned;
   }
-
-  private static class IdSet extends TIntHashSet {
-
-    private IdSet(final int initialCapacity, final float loadFactor) {
-      super(initialCapacity, loadFactor);
-    }
-
-    @Override
-    public void compact() {
-      if (((int)(capacity() * _loadFactor)/ Math.max(1, size())) >= 3) {
-        super.compact();
-      }
-    }
-  }
-
 }
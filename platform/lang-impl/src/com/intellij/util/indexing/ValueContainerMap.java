@@ -4,6 +4,7 @@ import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.DataInputOutputUtil;
 import com.intellij.util.io.KeyDescriptor;
+import com.intellij.util.io.PagedFileStorage;
 import com.intellij.util.io.PersistentHashMap;
 import gnu.trove.TIntHashSet;
 
@@ -26,6 +27,15 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
     myValueContainerExternalizer = (ValueContainerExternalizer<Value>)myValueExternalizer;
   }
 
+  ValueContainerMap(final File file,
+                    KeyDescriptor<Key> keyKeyDescriptor,
+                    DataExternalizer<Value> valueExternalizer,
+                    PagedFileStorage.StorageLock lock) throws IOException {
+
+    super(file, keyKeyDescriptor, new ValueContainerExternalizer<Value>(valueExternalizer), lock);
+    myValueContainerExternalizer = (ValueContainerExternalizer<Value>)myValueExternalizer;
+  }
+
   Object getDataAccessLock() {
     return myEnumerator;
   }
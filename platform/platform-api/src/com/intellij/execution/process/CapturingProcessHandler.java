@@ -79,6 +79,12 @@ public class CapturingProcessHandler extends OSProcessHandler {
     return myOutput;
   }
 
+  @Override
+  protected boolean splitOutputToLines() {
+    // the output is only accumulated
+    return false;
+  }
+
   @Override
   public Charset getCharset() {
     if (myCharset != null) {
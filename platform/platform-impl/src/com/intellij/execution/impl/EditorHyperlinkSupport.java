@@ -271,15 +271,37 @@ public class EditorHyperlinkSupport {
         result = predefinedMessageFilter.applyFilter(text, endOffset);
       }
       if (result != null) {
-        if (result.hyperlinkInfo != null) {
-          addHyperlink(result.highlightStartOffset, result.highlightEndOffset, result.highlightAttributes, result.hyperlinkInfo);
-        } else if (result.highlightAttributes != null) {
-          addHighlighter(result.highlightStartOffset, result.highlightEndOffset, result.highlightAttributes);
-        }
+        addFilterResult(result, 0);
+      }
+    }
+  }
+
+  /**
+   * Adds hyperlinks for filter results computed when the text was at other offsets.
+   *
+   * @param offsetShift how far the text has moved since, results for the text that is not in the document anymore are skipped
+   */
+  public void addFilterResults(final List<Filter.Result> results, final int offsetShift) {
+    final int textLength = myEditor.getDocument().getTextLength();
+    for (Filter.Result result : results) {
+      final int start = result.highlightStartOffset + offsetShift;
+      final int end = result.highlightEndOffset + offsetShift;
+      if (start >= 0 && end <= textLength && start <= end) {
+        addFilterResult(result, offsetShift);
       }
     }
   }
 
+  private void addFilterResult(final Filter.Result result, final int offsetShift) {
+    final int start = result.highlightStartOffset + offsetShift;
+    final int end = result.highlightEndOffset + offsetShift;
+    if (result.hyperlinkInfo != null) {
+      addHyperlink(start, end, result.highlightAttributes, result.hyperlinkInfo);
+    } else if (result.highlightAttributes != null) {
+      addHighlighter(start, end, result.highlightAttributes);
+    }
+  }
+
   private void addHighlighter(int highlightStartOffset, int highlightEndOffset, TextAttributes highlightAttributes) {
     final RangeHighlighter highlighter = myEditor.getMarkupModel().addRangeHighlighter(highlightStartOffset,
                                                                                        highlightEndOffset,
@@ -42,6 +42,18 @@ public class PluginClassLoader extends UrlClassLoader {
   private final String myPluginVersion;
   private final File myLibDirectory;
 
+  static {
+    try {
+      final Method method = getRegisterAsParallelCapableMethod();
+      if (method != null && Boolean.TRUE.equals(method.invoke(null))) {
+        markParallelCapable(PluginClassLoader.class);
+      }
+    }
+    catch (Exception ignored) {
+      // classes are loaded one at a time
+    }
+  }
+
   public PluginClassLoader(final List<URL> urls,
                            final ClassLoader[] parents,
                            final PluginId pluginId,
@@ -92,23 +104,25 @@ public class PluginClassLoader extends UrlClassLoader {
   }
 
   @Nullable
-  private synchronized Class loadClassInsideSelf(final String name) {
-    Class c = findLoadedClass(name);
-    if (c != null) {
-      return c;
-    }
+  private Class loadClassInsideSelf(final String name) {
+    synchronized (getClassLoadingLock(name)) {
+      Class c = findLoadedClass(name);
+      if (c != null) {
+        return c;
+      }
 
-    try {
-      c = _findClass(name);
-    }
-    catch (IncompatibleClassChangeError e) {
-      throw new PluginException(e, myPluginId);
-    }
-    if (c != null) {
-      PluginManager.addPluginClass(c.getName(), myPluginId);
-    }
+      try {
+        c = _findClass(name);
+      }
+      catch (IncompatibleClassChangeError e) {
+        throw new PluginException(e, myPluginId);
+      }
+      if (c != null) {
+        PluginManager.addPluginClass(c.getName(), myPluginId);
+      }
 
-    return c;
+      return c;
+    }
   }
 
   public URL findResource(final String name) {
@@ -60,7 +60,7 @@ import com.intellij.util.Consumer;
 import com.intellij.util.EventDispatcher;
 import com.intellij.util.ReflectionCache;
 import com.intellij.util.Restarter;
-import com.intellij.util.concurrency.ReentrantWriterPreferenceReadWriteLock;
+import com.intellij.util.concurrency.ReadMostlyReadWriteLock;
 import com.intellij.util.containers.Stack;
 import com.intellij.util.io.storage.HeavyProcessLatch;
 import com.intellij.util.ui.UIUtil;
@@ -96,7 +96,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
   private final boolean myIsInternal;
   private final String myName;
 
-  private final ReentrantWriterPreferenceReadWriteLock myActionsLock = new ReentrantWriterPreferenceReadWriteLock();
+  private final ReadMostlyReadWriteLock myActionsLock = new ReadMostlyReadWriteLock();
   private final Stack<Class> myWriteActionsStack = new Stack<Class>(); // accessed from EDT only, no need to sync
 
   private volatile Runnable myExceptionalThreadWithReadAccessRunnable;
@@ -562,6 +562,9 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
 
     disposeComponents();
 
+    LOG.info("Read/write action lock statistics: " + myActionsLock.getWriteWaits() + "; " + myActionsLock.getWriteHoldTimes() + "; " +
+             myActionsLock.getReadWaits());
+
     ourThreadExecutorsService.shutdownNow();
     myComponentStore = null;
     super.dispose();
@@ -1026,7 +1029,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
 
   public boolean tryRunReadAction(@NotNull Runnable action) {
     /** if we are inside read action, do not try to acquire read lock again since it will deadlock if there is a pending writeAction
-     * see {@link com.intellij.util.concurrency.ReentrantWriterPreferenceReadWriteLock#allowReader()} */
+     * see {@link com.intellij.util.concurrency.ReadMostlyReadWriteLock} */
     boolean mustAcquire = !isReadAccessAllowed();
 
     if (mustAcquire) {
@@ -1090,7 +1093,7 @@ public class ApplicationImpl extends ComponentManagerImpl implements Application
 
   private AccessToken acquireReadActionLockImpl(boolean explicit) {
     /** if we are inside read action, do not try to acquire read lock again since it will deadlock if there is a pending writeAction
-     * see {@link com.intellij.util.concurrency.ReentrantWriterPreferenceReadWriteLock#allowReader()} */
+     * see {@link com.intellij.util.concurrency.ReadMostlyReadWriteLock} */
     if (isReadAccessAllowed()) return AccessToken.EMPTY_ACCESS_TOKEN;
 
     return new ReadAccessToken(explicit);
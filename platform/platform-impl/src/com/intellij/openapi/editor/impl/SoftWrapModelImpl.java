@@ -98,6 +98,12 @@ public class SoftWrapModelImpl implements SoftWrapModelEx, PrioritizedDocumentLi
   private boolean myUseSoftWraps;
   private int myTabWidth = -1;
 
+  /**
+   * Cached result of {@link #getSoftWrapsIntroducedLinesNumber()} which is asked on every editor size calculation, <code>'-1'</code>
+   * means that it should be recalculated. It's dropped on soft wraps, fold regions or document change.
+   */
+  private int mySoftWrapsIntroducedLinesNumber = -1;
+
   /**
    * Soft wraps need to be kept up-to-date on all editor modification (changing text, adding/removing/expanding/collapsing fold
    * regions etc). Hence, we need to react to all types of target changes. However, soft wraps processing uses various information
@@ -155,6 +161,17 @@ public class SoftWrapModelImpl implements SoftWrapModelEx, PrioritizedDocumentLi
 
     myDocumentListeners.add(myApplianceManager);
     myFoldListeners.add(myApplianceManager);
+    storage.addSoftWrapChangeListener(new SoftWrapChangeListenerAdapter() {
+      @Override
+      public void softWrapAdded(@NotNull SoftWrap softWrap) {
+        mySoftWrapsIntroducedLinesNumber = -1;
+      }
+
+      @Override
+      public void softWrapsRemoved() {
+        mySoftWrapsIntroducedLinesNumber = -1;
+      }
+    });
     applianceManager.addListener(myVisualSizeManager);
     applianceManager.addListener(new SoftWrapAwareDocumentParsingListenerAdapter() {
       @Override
@@ -309,13 +326,20 @@ public class SoftWrapModelImpl implements SoftWrapModelEx, PrioritizedDocumentLi
     if (!isSoftWrappingEnabled()) {
       return 0;
     }
+    FoldingModelEx foldingModel = myEditor.getFoldingModel();
+    if (mySoftWrapsIntroducedLinesNumber >= 0 && foldingModel.isFoldingEnabled()) {
+      return mySoftWrapsIntroducedLinesNumber;
+    }
     int result = 0;
-    FoldingModel foldingModel = myEditor.getFoldingModel();
     for (SoftWrap softWrap : myStorage.getSoftWraps()) {
       if (!foldingModel.isOffsetCollapsed(softWrap.getStart())) {
         result++; // Assuming that soft wrap has single line feed all the time
       }
     }
+    // Folding is temporarily disabled during some processing, don't cache the result then.
+    if (foldingModel.isFoldingEnabled()) {
+      mySoftWrapsIntroducedLinesNumber = result;
+    }
     return result;
   }
 
@@ -573,6 +597,7 @@ public class SoftWrapModelImpl implements SoftWrapModelEx, PrioritizedDocumentLi
   @Override
   public void beforeDocumentChange(DocumentEvent event) {
     myUpdateInProgress = true;
+    mySoftWrapsIntroducedLinesNumber = -1;
     if (!isSoftWrappingEnabled()) {
       myDirty = true;
       return;
@@ -585,6 +610,7 @@ public class SoftWrapModelImpl implements SoftWrapModelEx, PrioritizedDocumentLi
   @Override
   public void documentChanged(DocumentEvent event) {
     myUpdateInProgress = false;
+    mySoftWrapsIntroducedLinesNumber = -1;
     if (!isSoftWrappingEnabled()) {
       return;
     }
@@ -596,6 +622,7 @@ public class SoftWrapModelImpl implements SoftWrapModelEx, PrioritizedDocumentLi
   @Override
   public void onFoldRegionStateChange(@NotNull FoldRegion region) {
     myUpdateInProgress = true;
+    mySoftWrapsIntroducedLinesNumber = -1;
     if (!isSoftWrappingEnabled() || !region.isValid()) {
       myDirty = true;
       return;
@@ -607,6 +634,7 @@ public class SoftWrapModelImpl implements SoftWrapModelEx, PrioritizedDocumentLi
   @Override
   public void onFoldProcessingEnd() {
     myUpdateInProgress = false;
+    mySoftWrapsIntroducedLinesNumber = -1;
     if (!isSoftWrappingEnabled()) {
       return;
     }
@@ -106,19 +106,12 @@ public class SoftWrapsStorage {
       startIndex = -startIndex - 1;
     }
 
-    if (startIndex >= myWraps.size()) {
+    if (startIndex >= myWraps.size() || endOffset < startOffset) {
       return 0;
     }
-    int result = 0;
-    int endIndex = startIndex;
-    for (; endIndex < myWraps.size(); endIndex++) {
-      SoftWrap softWrap = myWraps.get(endIndex);
-      if (softWrap.getStart() > endOffset) {
-        break;
-      }
-      result++;
-    }
-    return result;
+    int endIndex = getSoftWrapIndex(endOffset);
+    endIndex = endIndex >= 0 ? endIndex + 1 : -endIndex - 1;
+    return Math.max(0, endIndex - startIndex);
   }
   
   /**
@@ -164,12 +157,9 @@ public class SoftWrapsStorage {
       return;
     }
 
-    int endIndex = startIndex;
-    for (; endIndex < myWraps.size(); endIndex++) {
-      SoftWrap softWrap = myWraps.get(endIndex);
-      if (softWrap.getStart() >= endOffset) {
-        break;
-      }
+    int endIndex = getSoftWrapIndex(endOffset);
+    if (endIndex < 0) {
+      endIndex = -endIndex - 1;
     }
 
     if (endIndex > startIndex) {
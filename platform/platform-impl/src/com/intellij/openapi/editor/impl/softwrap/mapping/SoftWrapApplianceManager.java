@@ -32,6 +32,7 @@ import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.openapi.util.text.StringUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import javax.swing.*;
 import java.awt.*;
@@ -55,6 +56,15 @@ import java.util.List;
 public class SoftWrapApplianceManager implements SoftWrapFoldingListener, DocumentListener {
   
   private static final Logger LOG = Logger.getInstance("#" + SoftWrapApplianceManager.class.getName());
+
+  /** Soft wraps of documents longer than this number of symbols are calculated lazily, see {@link #myDeferredStartOffset}. */
+  private static final int LAZY_PROCESSING_THRESHOLD = Integer.getInteger("idea.soft.wrap.lazy.threshold", 512 * 1024);
+
+  /** Number of symbols processed at once during lazy soft wraps calculation. */
+  private static final int DEFERRED_SLICE_SIZE = 64 * 1024;
+
+  /** Max number of symbols to process synchronously in order to calculate soft wraps up to the viewport. */
+  private static final int MAX_SYNC_PROCESSING_SIZE = 4 * DEFERRED_SLICE_SIZE;
   
   /** Enumerates possible type of soft wrap indents to use. */
   enum IndentType {
@@ -101,6 +111,17 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
   private boolean                     myInProgress;
   private boolean                     myHasLinesWithFailedWrap;
 
+  /**
+   * Huge documents are soft-wrapped only up to the viewport bottom (plus a screen below it) on recalculation, the rest of the
+   * document is processed later by {@link #DEFERRED_SLICE_SIZE slices} from the EDT queue.
+   * <p/>
+   * This field holds start offset of the document tail which soft wraps are not calculated yet (it always starts a logical line
+   * and no soft wraps or cached data are registered for it); <code>'-1'</code> means that the whole document is processed.
+   */
+  private int     myDeferredStartOffset = -1;
+  private int     myLazyProcessingThreshold = LAZY_PROCESSING_THRESHOLD;
+  private boolean myDeferredProcessingScheduled;
+
   public SoftWrapApplianceManager(@NotNull SoftWrapsStorage storage,
                                   @NotNull EditorEx editor,
                                   @NotNull SoftWrapPainter painter,
@@ -128,6 +149,7 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
   }
 
   public void reset() {
+    myDeferredStartOffset = -1;
     myEventsStorage.release();
     myEventsStorage.add(myEditor.getDocument(), new IncrementalCacheUpdateEvent(myEditor.getDocument()));
     for (SoftWrapAwareDocumentParsingListener listener : myListeners) {
@@ -136,6 +158,7 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
   }
   
   public void release() {
+    myDeferredStartOffset = -1;
     myEventsStorage.release();
     myLineWrapPositionStrategy = null;
   }
@@ -189,7 +212,7 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
     try {
       for (IncrementalCacheUpdateEvent event : events) {
         myEventBeingProcessed = event;
-        recalculateSoftWraps(event);
+        processEvent(event);
       }
     }
     finally {
@@ -198,11 +221,144 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
       myEventBeingProcessed = null;
     }
     updateLastTopLeftCornerOffset();
+    scheduleDeferredProcessing();
     return true;
   }
 
-  private void recalculateSoftWraps(IncrementalCacheUpdateEvent event) {
-    event.updateNewOffsetsIfNecessary(myEditor.getDocument(), myEditor.getFoldingModel());
+  /**
+   * Recalculates soft wraps for the given event keeping {@link #myDeferredStartOffset not processed document tail} consistent,
+   * i.e. changes inside the tail are skipped and processing of the events that touch document end may stop at the viewport bottom.
+   */
+  private void processEvent(IncrementalCacheUpdateEvent event) {
+    Document document = myEditor.getDocument();
+    event.updateNewOffsetsIfNecessary(document, myEditor.getFoldingModel());
+    int deferredStart = myDeferredStartOffset;
+    if (deferredStart >= 0 && event.getOldStartOffset() >= deferredStart) {
+      // Nothing is calculated for the document tail yet.
+      return;
+    }
+
+    int processingEndOffset = event.getNewEndOffset();
+    if (processingEndOffset >= document.getTextLength() - 1 && document.getTextLength() >= myLazyProcessingThreshold) {
+      processingEndOffset = getLazyProcessingEndOffset(event.getNewStartOffset());
+    }
+    recalculateSoftWraps(event, processingEndOffset);
+
+    if (processingEndOffset < event.getNewEndOffset()) {
+      // Cached data is dropped up to the document end on processing start, so, everything after the processed region is not calculated.
+      myDeferredStartOffset = processingEndOffset + 1;
+    }
+    else if (deferredStart >= 0) {
+      // The tail either follows the changed region or starts inside it, everything up to the processed region end is calculated then.
+      myDeferredStartOffset = event.getOldEndOffset() < deferredStart ? deferredStart + event.getExactOffsetsDiff()
+                                                                       : event.getNewEndOffset() + 1;
+    }
+    if (myDeferredStartOffset >= document.getTextLength()) {
+      myDeferredStartOffset = -1;
+    }
+  }
+
+  /**
+   * @param startOffset   start offset of the region to process
+   * @return              end offset (inclusive, at logical line end) of the region to process synchronously, i.e. the viewport
+   *                      bottom plus one screen if it's not too far from the given start offset
+   */
+  private int getLazyProcessingEndOffset(int startOffset) {
+    Rectangle visibleArea = myEditor.getScrollingModel().getVisibleArea();
+    int lineHeight = myEditor.getLineHeight();
+    int visualLine = (visibleArea.y + 2 * visibleArea.height) / lineHeight + 1;
+    int visibleEndOffset = myEditor.logicalPositionToOffset(myEditor.visualToLogicalPosition(new VisualPosition(visualLine, 0)));
+    int endOffset = startOffset + DEFERRED_SLICE_SIZE;
+    if (visibleEndOffset > endOffset && visibleEndOffset - startOffset <= MAX_SYNC_PROCESSING_SIZE) {
+      endOffset = visibleEndOffset;
+    }
+
+    Document document = myEditor.getDocument();
+    if (endOffset >= document.getTextLength() - 1) {
+      return document.getTextLength() - 1;
+    }
+    endOffset = document.getLineEndOffset(document.getLineNumber(endOffset));
+    FoldingModel foldingModel = myEditor.getFoldingModel();
+    for (FoldRegion region = foldingModel.getCollapsedRegionAtOffset(endOffset);
+         region != null;
+         region = foldingModel.getCollapsedRegionAtOffset(endOffset))
+    {
+      endOffset = document.getLineEndOffset(document.getLineNumber(region.getEndOffset()));
+    }
+    return Math.min(endOffset, document.getTextLength() - 1);
+  }
+
+  private void scheduleDeferredProcessing() {
+    if (myDeferredStartOffset < 0 || myDeferredProcessingScheduled || ApplicationManagerEx.getApplicationEx().isUnitTestMode()) {
+      return;
+    }
+    myDeferredProcessingScheduled = true;
+    SwingUtilities.invokeLater(new Runnable() {
+      @Override
+      public void run() {
+        myDeferredProcessingScheduled = false;
+        if (!myEditor.isDisposed() && processDeferredSlice()) {
+          myEditor.getContentComponent().repaint();
+        }
+      }
+    });
+  }
+
+  /**
+   * Calculates soft wraps for the next {@link #DEFERRED_SLICE_SIZE slice} of the not processed document tail if any. Viewport
+   * is scrolled in order to show the same text if new soft wraps are introduced before it.
+   *
+   * @return    <code>true</code> if soft wraps were calculated; <code>false</code> otherwise
+   */
+  private boolean processDeferredSlice() {
+    if (myDeferredStartOffset < 0 || myInProgress || myVisibleAreaWidth <= 0) {
+      return false;
+    }
+    // Process pending changes first.
+    if (!recalculateSoftWraps() || myDeferredStartOffset < 0) {
+      return false;
+    }
+
+    Document document = myEditor.getDocument();
+    int anchorOffset = myLastTopLeftCornerOffset;
+    int softWrapsBefore = anchorOffset >= 0 ? getNumberOfSoftWrapsBefore(anchorOffset) : -1;
+    int yScrollOffset = myEditor.getScrollingModel().getVerticalScrollOffset();
+
+    myEventsStorage.add(document, new IncrementalCacheUpdateEvent(document, myDeferredStartOffset, document.getTextLength() - 1));
+    myDeferredStartOffset = -1;
+    if (!recalculateSoftWraps()) {
+      return false;
+    }
+    adjustVerticalScrollOffset(anchorOffset, softWrapsBefore, yScrollOffset);
+    return true;
+  }
+
+  /**
+   * Calculates soft wraps for the whole document.
+   */
+  @TestOnly
+  public void processDeferredRegions() {
+    while (processDeferredSlice()) {
+      if (myDeferredStartOffset < 0) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return    start offset of the document tail which soft wraps are not calculated yet if any; <code>'-1'</code> otherwise
+   */
+  @TestOnly
+  public int getDeferredStartOffset() {
+    return myDeferredStartOffset;
+  }
+
+  @TestOnly
+  public void setLazyProcessingThreshold(int threshold) {
+    myLazyProcessingThreshold = threshold;
+  }
+
+  private void recalculateSoftWraps(IncrementalCacheUpdateEvent event, int processingEndOffset) {
     
     //CachingSoftWrapDataMapper.log("xxxxxxxxxxxxxx Processing soft wraps for " + event + ". Document length: " + myEditor.getDocument().getTextLength() 
     //                              + ", document: " + System.identityHashCode(myEditor.getDocument()));
@@ -214,7 +370,7 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
     boolean normalCompletion = true;
     try {
       //start = System.currentTimeMillis();
-      normalCompletion = doRecalculateSoftWraps(event);
+      normalCompletion = doRecalculateSoftWraps(event, processingEndOffset);
       //CachingSoftWrapDataMapper.log("xxxxxxxxxxxxxxxxx Processing is complete in " + (System.currentTimeMillis() - start) + " ms");
     }
     finally {
@@ -227,7 +383,7 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
     }
   }
 
-  private boolean doRecalculateSoftWraps(IncrementalCacheUpdateEvent event) {
+  private boolean doRecalculateSoftWraps(IncrementalCacheUpdateEvent event, int endOffset) {
     // Preparation.
     myContext.reset();
     myOffset2fontType.clear();
@@ -245,7 +401,7 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
     try {
       TextAttributes attributes = iterationState.getMergedAttributes();
       myContext.fontType = attributes.getFontType();
-      myContext.rangeEndOffset = event.getNewEndOffset();
+      myContext.rangeEndOffset = endOffset;
 
       EditorPosition position = new EditorPosition(logical, start, myEditor, myRepresentationHelper);
       Point point = myEditor.visualPositionToXY(visual);
@@ -263,7 +419,7 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
       myContext.reservedWidthInPixels = myPainter.getMinDrawingWidth(SoftWrapDrawingType.BEFORE_SOFT_WRAP_LINE_FEED);
 
       // Perform soft wraps calculation.
-      while (!iterationState.atEnd() && myContext.currentPosition.offset <= event.getNewEndOffset()) {
+      while (!iterationState.atEnd() && myContext.currentPosition.offset <= endOffset) {
         FoldRegion currentFold = iterationState.getCurrentFold();
         if (currentFold == null) {
           myContext.tokenEndOffset = iterationState.getEndOffset();
@@ -751,10 +907,22 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
       return false;
     }
 
-    // Adjust viewport's 'y' coordinate if necessary.
+    adjustVerticalScrollOffset(anchorOffset, softWrapsBefore, yScrollOffset);
+    return result;
+  }
+
+  /**
+   * Adjusts viewport's <code>'y'</code> coordinate in order to keep the same text at its top after soft wraps recalculation.
+   *
+   * @param anchorOffset      offset of the text shown at the viewport top before recalculation
+   * @param softWrapsBefore   number of soft wraps before the anchor offset before recalculation; negative value means 'undefined'
+   * @param yScrollOffset     vertical scroll offset before recalculation
+   */
+  private void adjustVerticalScrollOffset(int anchorOffset, int softWrapsBefore, int yScrollOffset) {
     if (softWrapsBefore >= 0) {
       int softWrapsNow = getNumberOfSoftWrapsBefore(anchorOffset);
       if (softWrapsNow != softWrapsBefore) {
+        ScrollingModelEx scrollingModel = myEditor.getScrollingModel();
         scrollingModel.disableAnimation();
         try {
           scrollingModel.scrollVertically(yScrollOffset + (softWrapsNow - softWrapsBefore) * myEditor.getLineHeight());
@@ -765,7 +933,6 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
       }
     }
     updateLastTopLeftCornerOffset();
-    return result;
   }
 
   private void updateLastTopLeftCornerOffset() {
@@ -910,8 +1077,9 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
   @Override
   public String toString() {
     return String.format(
-      "recalculation in progress: %b; stored update events: %s; active update events: %s, event being processed: %s",
-      myInProgress, myEventsStorage, myActiveEvents, myEventBeingProcessed
+      "recalculation in progress: %b; stored update events: %s; active update events: %s, event being processed: %s, "
+      + "deferred start offset: %d",
+      myInProgress, myEventsStorage, myActiveEvents, myEventBeingProcessed, myDeferredStartOffset
     );
   }
 
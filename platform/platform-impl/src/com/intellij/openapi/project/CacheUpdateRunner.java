@@ -142,7 +142,8 @@ class CacheUpdateRunner {
     try {
       int threadsCount = Registry.intValue("caches.indexerThreadsCount");
       if (threadsCount <= 0) {
-        threadsCount = Math.min(PROC_COUNT, 4);
+        // indexers map file contents without holding index locks, so workers scale up to the number of cores
+        threadsCount = Math.min(PROC_COUNT, 8);
       }
       if (threadsCount == 1) {
         Runnable process = new MyRunnable(innerIndicator, queue, isFinished, progressUpdater, processInReadAction, application);
@@ -30,6 +30,7 @@ import com.intellij.openapi.util.io.ByteSequence;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.containers.IntArrayList;
+import com.intellij.util.io.ByteBufferWrapper;
 import com.intellij.util.io.PagedFileStorage;
 import com.intellij.util.io.PersistentStringEnumerator;
 import com.intellij.util.io.ResizeableMappedFile;
@@ -46,6 +47,7 @@ import javax.swing.*;
 import java.awt.*;
 import java.io.*;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.Lock;
 
 @SuppressWarnings({"PointlessArithmeticExpression", "HardCodedStringLiteral"})
 public class FSRecords implements Forceable {
@@ -88,6 +90,14 @@ public class FSRecords implements Forceable {
   private static final String CHILDREN_ATT = "FsRecords.DIRECTORY_CHILDREN";
   private static final Object lock = new Object();
 
+  /**
+   * In concurrent mode fixed-size record fields (parent, name id, flags, timestamp, length, mod count) are read without
+   * taking {@link #lock}: through a read-only mapping of the records file under a read lock striped by record id.
+   * Writers still serialize on {@link #lock} and additionally take the write lock of the stripe of the changed record.
+   * Requires memory mapped storages, since direct buffers are not shared between the two views of the file.
+   */
+  static final boolean ourConcurrentAccess = Boolean.getBoolean("idea.vfs.concurrent.records") && !ByteBufferWrapper.NO_MMAP;
+
   private static volatile int ourLocalModificationCount = 0;
   private static volatile boolean ourIsDisposed;
 
@@ -107,6 +117,9 @@ public class FSRecords implements Forceable {
     private static Storage myAttributes;
     private static RefCountingStorage myContents;
     private static ResizeableMappedFile myRecords;
+    // read without the lock, null when the connection is closed
+    private static volatile MappedRecordsView myRecordsView;
+    private static final StripedRecordLock myRecordLocks = new StripedRecordLock();
     private static final TIntArrayList myFreeRecords = new TIntArrayList();
 
     private static boolean myDirty = false;
@@ -188,6 +201,8 @@ public class FSRecords implements Forceable {
         }
 
         myNames = new PersistentStringEnumerator(namesFile);
+        // names are looked up on every VFS access, don't let index storages evict them
+        myNames.setPagesPinned(true);
         myAttributes = new Storage(attributesFile.getCanonicalPath());
         myContents = new RefCountingStorage(contentsFile.getCanonicalPath());
         boolean aligned = PagedFileStorage.BUFFER_SIZE % RECORD_SIZE == 0;
@@ -209,6 +224,10 @@ public class FSRecords implements Forceable {
           throw new IOException("FS repository wasn't safely shut down");
         }
         markDirty();
+
+        if (ourConcurrentAccess) {
+          myRecordsView = new MappedRecordsView(recordsFile, PagedFileStorage.BUFFER_SIZE);
+        }
       }
       catch (IOException e) {
         LOG.info("Filesystem storage is corrupted or does not exist. [Re]Building. Reason: " + e.getMessage());
@@ -378,7 +397,13 @@ public class FSRecords implements Forceable {
     }
 
     public static void cleanRecord(final int id) {
-      myRecords.put(id * RECORD_SIZE, ZEROES, 0, RECORD_SIZE);
+      if (ourConcurrentAccess) myRecordLocks.beginWrite(id);
+      try {
+        myRecords.put(id * RECORD_SIZE, ZEROES, 0, RECORD_SIZE);
+      }
+      finally {
+        if (ourConcurrentAccess) myRecordLocks.endWrite(id);
+      }
     }
 
     public static PersistentStringEnumerator getNames() {
@@ -410,6 +435,11 @@ public class FSRecords implements Forceable {
         myContents = null;
       }
 
+      if (myRecordsView != null) {
+        myRecordsView.dispose();
+        myRecordsView = null;
+      }
+
       if (myRecords != null) {
         markClean();
         myRecords.close();
@@ -770,7 +800,7 @@ public class FSRecords implements Forceable {
     DbConnection.markDirty();
     ourLocalModificationCount++;
     final int count = getModCount() + 1;
-    getRecords().putInt(HEADER_GLOBAL_MODCOUNT_OFFSET, count);
+    putRecordInt(0, HEADER_GLOBAL_MODCOUNT_OFFSET, count);
 
     int parent = id;
     while (parent != 0) {
@@ -784,25 +814,32 @@ public class FSRecords implements Forceable {
   }
 
   public static int getModCount() {
+    if (ourConcurrentAccess) return readRecordInt(0, HEADER_GLOBAL_MODCOUNT_OFFSET);
     synchronized (lock) {
-      return getRecords().getInt(HEADER_GLOBAL_MODCOUNT_OFFSET);
+      return getRecordInt(0, HEADER_GLOBAL_MODCOUNT_OFFSET);
     }
   }
 
   public static int getParent(int id) {
-    synchronized (lock) {
-      try {
-        final int parentId = getRecordInt(id, PARENT_OFFSET);
-        if (parentId == id) {
-          LOG.error("Cyclic parent child relations in the database. id = " + id);
-          return 0;
+    try {
+      final int parentId;
+      if (ourConcurrentAccess) {
+        parentId = readRecordInt(id, PARENT_OFFSET);
+      }
+      else {
+        synchronized (lock) {
+          parentId = getRecordInt(id, PARENT_OFFSET);
         }
-
-        return parentId;
       }
-      catch (Throwable e) {
-        throw DbConnection.handleError(e);
+      if (parentId == id) {
+        LOG.error("Cyclic parent child relations in the database. id = " + id);
+        return 0;
       }
+
+      return parentId;
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
     }
   }
 
@@ -824,6 +861,17 @@ public class FSRecords implements Forceable {
   }
 
   public static String getName(int id) {
+    if (ourConcurrentAccess) {
+      try {
+        // the enumerator synchronizes on its own
+        final int nameId = readRecordInt(id, NAME_OFFSET);
+        return nameId != 0 ? getNames().valueOf(nameId) : "";
+      }
+      catch (Throwable e) {
+        throw DbConnection.handleError(e);
+      }
+    }
+
     synchronized (lock) {
       try {
         final int nameId = getRecordInt(id, NAME_OFFSET);
@@ -848,6 +896,7 @@ public class FSRecords implements Forceable {
   }
 
   public static int getFlags(int id) {
+    if (ourConcurrentAccess) return readRecordInt(id, FLAGS_OFFSET);
     synchronized (lock) {
       return getRecordInt(id, FLAGS_OFFSET);
     }
@@ -868,6 +917,7 @@ public class FSRecords implements Forceable {
   }
 
   public static long getLength(int id) {
+    if (ourConcurrentAccess) return readRecordLong(id, LENGTH_OFFSET);
     synchronized (lock) {
       return getRecords().getLong(getOffset(id, LENGTH_OFFSET));
     }
@@ -877,7 +927,7 @@ public class FSRecords implements Forceable {
     synchronized (lock) {
       try {
         incModCount(id);
-        getRecords().putLong(getOffset(id, LENGTH_OFFSET), len);
+        putRecordLong(id, LENGTH_OFFSET, len);
       }
       catch (Throwable e) {
         throw DbConnection.handleError(e);
@@ -886,6 +936,7 @@ public class FSRecords implements Forceable {
   }
 
   public static long getTimestamp(int id) {
+    if (ourConcurrentAccess) return readRecordLong(id, TIMESTAMP_OFFSET);
     synchronized (lock) {
       return getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET));
     }
@@ -895,7 +946,7 @@ public class FSRecords implements Forceable {
     synchronized (lock) {
       try {
         incModCount(id);
-        getRecords().putLong(getOffset(id, TIMESTAMP_OFFSET), value);
+        putRecordLong(id, TIMESTAMP_OFFSET, value);
       }
       catch (Throwable e) {
         throw DbConnection.handleError(e);
@@ -904,6 +955,7 @@ public class FSRecords implements Forceable {
   }
 
   public static int getModCount(int id) {
+    if (ourConcurrentAccess) return readRecordInt(id, MODCOUNT_OFFSET);
     synchronized (lock) {
       return getRecordInt(id, MODCOUNT_OFFSET);
     }
@@ -934,11 +986,63 @@ public class FSRecords implements Forceable {
   }
 
   private static void putRecordInt(int id, int offset, int value) {
-    getRecords().putInt(getOffset(id, offset), value);
+    if (ourConcurrentAccess) DbConnection.myRecordLocks.beginWrite(id);
+    try {
+      getRecords().putInt(getOffset(id, offset), value);
+    }
+    finally {
+      if (ourConcurrentAccess) DbConnection.myRecordLocks.endWrite(id);
+    }
+  }
+
+  private static void putRecordLong(int id, int offset, long value) {
+    if (ourConcurrentAccess) DbConnection.myRecordLocks.beginWrite(id);
+    try {
+      getRecords().putLong(getOffset(id, offset), value);
+    }
+    finally {
+      if (ourConcurrentAccess) DbConnection.myRecordLocks.endWrite(id);
+    }
+  }
+
+  private static int readRecordInt(int id, int offset) {
+    final MappedRecordsView view = DbConnection.myRecordsView;
+    if (view == null) {
+      synchronized (lock) {
+        return getRecordInt(id, offset);
+      }
+    }
+
+    final Lock readLock = DbConnection.myRecordLocks.readLock(id);
+    readLock.lock();
+    try {
+      return view.getInt(getOffset(id, offset));
+    }
+    finally {
+      readLock.unlock();
+    }
+  }
+
+  private static long readRecordLong(int id, int offset) {
+    final MappedRecordsView view = DbConnection.myRecordsView;
+    if (view == null) {
+      synchronized (lock) {
+        return getRecords().getLong(getOffset(id, offset));
+      }
+    }
+
+    final Lock readLock = DbConnection.myRecordLocks.readLock(id);
+    readLock.lock();
+    try {
+      return view.getLong(getOffset(id, offset));
+    }
+    finally {
+      readLock.unlock();
+    }
   }
 
-  private static int getOffset(int id, int offset) {
-    return id * RECORD_SIZE + offset;
+  private static long getOffset(int id, int offset) {
+    return (long)id * RECORD_SIZE + offset;
   }
 
   @Nullable
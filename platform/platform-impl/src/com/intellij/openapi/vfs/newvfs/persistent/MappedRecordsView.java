@@ -0,0 +1,104 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.util.io.MappingFailedException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only memory mapped view of the records file. Unlike {@link com.intellij.util.io.PagedFileStorage} it keeps
+ * no mutable state on the read path, so fixed-size record fields can be read from any thread without holding a lock.
+ * Writes still go through the records {@link com.intellij.util.io.ResizeableMappedFile} and become visible here
+ * because both mappings share the same OS page cache.
+ * <p/>
+ * Pages are never unmapped explicitly since a concurrent reader may still use them; stale (shorter) mappings
+ * are replaced when the file grows and released by GC.
+ */
+final class MappedRecordsView {
+  private final File myFile;
+  private final int myPageSize;
+  private volatile ByteBuffer[] myPages = new ByteBuffer[0];
+
+  MappedRecordsView(File file, int pageSize) {
+    myFile = file;
+    myPageSize = pageSize;
+  }
+
+  int getInt(long offset) {
+    return getPage(offset, 4).getInt((int)(offset % myPageSize));
+  }
+
+  long getLong(long offset) {
+    return getPage(offset, 8).getLong((int)(offset % myPageSize));
+  }
+
+  private ByteBuffer getPage(long offset, int size) {
+    final int index = (int)(offset / myPageSize);
+    final int end = (int)(offset % myPageSize) + size;
+    final ByteBuffer[] pages = myPages;
+    if (index < pages.length) {
+      final ByteBuffer page = pages[index];
+      if (page != null && page.limit() >= end) return page;
+    }
+    return mapPage(index, end);
+  }
+
+  private synchronized ByteBuffer mapPage(int index, int end) {
+    ByteBuffer[] pages = myPages;
+    if (index < pages.length && pages[index] != null && pages[index].limit() >= end) return pages[index];
+
+    try {
+      final RandomAccessFile raf = new RandomAccessFile(myFile, "r");
+      try {
+        final long pageStart = (long)index * myPageSize;
+        final long length = Math.min(raf.length() - pageStart, myPageSize);
+        if (length < end) {
+          throw new IndexOutOfBoundsException("Record at " + (pageStart + end) + " is out of " + myFile + " bounds, length=" + raf.length());
+        }
+
+        final FileChannel channel = raf.getChannel();
+        final ByteBuffer page;
+        try {
+          page = channel.map(FileChannel.MapMode.READ_ONLY, pageStart, length);
+        }
+        finally {
+          channel.close();
+        }
+
+        final ByteBuffer[] newPages = new ByteBuffer[Math.max(pages.length, index + 1)];
+        System.arraycopy(pages, 0, newPages, 0, pages.length);
+        newPages[index] = page;
+        myPages = newPages;
+        return page;
+      }
+      finally {
+        raf.close();
+      }
+    }
+    catch (IOException e) {
+      throw new MappingFailedException("Cannot map " + myFile, e);
+    }
+  }
+
+  void dispose() {
+    myPages = new ByteBuffer[0];
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read/write locks striped by file record id. Reads of a record are ordered with its writes by the lock of its stripe,
+ * reads of records in different stripes don't contend.
+ */
+final class StripedRecordLock {
+  private static final int STRIPES_COUNT = 64; // power of two
+  private static final int STRIPE_MASK = STRIPES_COUNT - 1;
+
+  private final ReentrantReadWriteLock[] myLocks = new ReentrantReadWriteLock[STRIPES_COUNT];
+
+  StripedRecordLock() {
+    for (int i = 0; i < myLocks.length; i++) {
+      myLocks[i] = new ReentrantReadWriteLock();
+    }
+  }
+
+  private static int stripe(int id) {
+    // sibling records have sequential ids, so the lowest bits spread them over different stripes
+    return id & STRIPE_MASK;
+  }
+
+  Lock readLock(int id) {
+    return myLocks[stripe(id)].readLock();
+  }
+
+  void beginWrite(int id) {
+    myLocks[stripe(id)].writeLock().lock();
+  }
+
+  void endWrite(int id) {
+    myLocks[stripe(id)].writeLock().unlock();
+  }
+}
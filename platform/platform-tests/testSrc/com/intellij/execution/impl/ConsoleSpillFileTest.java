@@ -0,0 +1,137 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.execution.impl;
+
+import com.intellij.execution.ui.ConsoleViewContentType;
+import com.intellij.openapi.editor.markup.TextAttributes;
+import com.intellij.openapi.util.text.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.intellij.execution.impl.ConsoleViewImpl.TokenInfo;
+import static org.junit.Assert.*;
+
+public class ConsoleSpillFileTest {
+  private static final ConsoleViewContentType NORMAL_OUTPUT = new ConsoleViewContentType("NORMAL_OUTPUT", (TextAttributes)null);
+  private static final ConsoleViewContentType ERROR_OUTPUT = new ConsoleViewContentType("ERROR_OUTPUT", (TextAttributes)null);
+
+  private ConsoleSpillFile mySpillFile;
+
+  @Before
+  public void setUp() {
+    mySpillFile = new ConsoleSpillFile();
+  }
+
+  @After
+  public void tearDown() {
+    mySpillFile.dispose();
+  }
+
+  @Test
+  public void pendingTextIsReturnedAsIs() {
+    assertTrue(mySpillFile.isEmpty());
+    mySpillFile.spill("abc", t(new TokenInfo(NORMAL_OUTPUT, 0, 3)));
+    mySpillFile.spill("de", t(new TokenInfo(ERROR_OUTPUT, 0, 1), new TokenInfo(NORMAL_OUTPUT, 1, 2)));
+    assertFalse(mySpillFile.isEmpty());
+
+    checkChunk(mySpillFile.removeLast(), "abcde",
+               new TokenInfo(NORMAL_OUTPUT, 0, 3), new TokenInfo(ERROR_OUTPUT, 3, 4), new TokenInfo(NORMAL_OUTPUT, 4, 5));
+    assertTrue(mySpillFile.isEmpty());
+    assertNull(mySpillFile.removeLast());
+  }
+
+  @Test
+  public void chunksAreReadBackLatestFirst() {
+    final int size = ConsoleSpillFile.CHUNK_SIZE;
+    final String first = StringUtil.repeatSymbol('a', size - 1) + "ф";
+    final String second = StringUtil.repeatSymbol('b', size / 2) + StringUtil.repeatSymbol('c', size / 2);
+    final String tail = "tail";
+
+    mySpillFile.spill(first, t(new TokenInfo(NORMAL_OUTPUT, 0, size - 1), new TokenInfo(ERROR_OUTPUT, size - 1, size)));
+    mySpillFile.spill(second, t(new TokenInfo(ERROR_OUTPUT, 0, size / 2), new TokenInfo(NORMAL_OUTPUT, size / 2, size)));
+    mySpillFile.spill(tail, t(new TokenInfo(ERROR_OUTPUT, 0, tail.length())));
+
+    checkChunk(mySpillFile.removeLast(), tail, new TokenInfo(ERROR_OUTPUT, 0, tail.length()));
+    checkChunk(mySpillFile.removeLast(), second, new TokenInfo(ERROR_OUTPUT, 0, size / 2), new TokenInfo(NORMAL_OUTPUT, size / 2, size));
+    checkChunk(mySpillFile.removeLast(), first, new TokenInfo(NORMAL_OUTPUT, 0, size - 1), new TokenInfo(ERROR_OUTPUT, size - 1, size));
+    assertTrue(mySpillFile.isEmpty());
+    assertNull(mySpillFile.removeLast());
+  }
+
+  @Test
+  public void textCrossingChunkBoundaryIsKeptWhole() {
+    final int size = ConsoleSpillFile.CHUNK_SIZE;
+    final String head = StringUtil.repeatSymbol('a', size - 2);
+    final String crossing = "bcde";
+
+    mySpillFile.spill(head, t(new TokenInfo(NORMAL_OUTPUT, 0, head.length())));
+    mySpillFile.spill(crossing, t(new TokenInfo(ERROR_OUTPUT, 0, crossing.length())));
+    mySpillFile.spill("f", t(new TokenInfo(NORMAL_OUTPUT, 0, 1)));
+
+    checkChunk(mySpillFile.removeLast(), "f", new TokenInfo(NORMAL_OUTPUT, 0, 1));
+    checkChunk(mySpillFile.removeLast(), head + crossing,
+               new TokenInfo(NORMAL_OUTPUT, 0, head.length()),
+               new TokenInfo(ERROR_OUTPUT, head.length(), head.length() + crossing.length()));
+
+    // the space freed by the removed chunk is reused
+    mySpillFile.spill(head + crossing, t(new TokenInfo(ERROR_OUTPUT, 0, head.length() + crossing.length())));
+    checkChunk(mySpillFile.removeLast(), head + crossing, new TokenInfo(ERROR_OUTPUT, 0, head.length() + crossing.length()));
+    assertTrue(mySpillFile.isEmpty());
+  }
+
+  @Test
+  public void textIsDroppedIfFileCannotBeWritten() {
+    mySpillFile = new ConsoleSpillFile() {
+      @NotNull
+      @Override
+      File createFile() throws IOException {
+        throw new IOException("no space left");
+      }
+    };
+    final int size = ConsoleSpillFile.CHUNK_SIZE;
+    mySpillFile.spill(StringUtil.repeatSymbol('a', size), t(new TokenInfo(NORMAL_OUTPUT, 0, size)));
+    assertTrue(mySpillFile.isEmpty());
+
+    mySpillFile.spill(StringUtil.repeatSymbol('b', size), t(new TokenInfo(NORMAL_OUTPUT, 0, size)));
+    mySpillFile.spill("c", t(new TokenInfo(ERROR_OUTPUT, 0, 1)));
+    checkChunk(mySpillFile.removeLast(), "c", new TokenInfo(ERROR_OUTPUT, 0, 1));
+    assertNull(mySpillFile.removeLast());
+  }
+
+  private static List<TokenInfo> t(TokenInfo... tokens) {
+    return Arrays.asList(tokens);
+  }
+
+  private static void checkChunk(ConsoleSpillFile.Chunk chunk, @NotNull String expectedText, @NotNull TokenInfo... expectedTokens) {
+    assertNotNull(chunk);
+    assertEquals(expectedText, chunk.text);
+    assertEquals(expectedTokens.length, chunk.tokens.size());
+    for (int i = 0; i < expectedTokens.length; i++) {
+      TokenInfo expected = expectedTokens[i];
+      TokenInfo actual = chunk.tokens.get(i);
+      assertSame(expected.contentType, actual.contentType);
+      assertEquals(expected.startOffset, actual.startOffset);
+      assertEquals(expected.endOffset, actual.endOffset);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.find.ngrams;
+
+import com.intellij.openapi.util.text.TrigramBuilder;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class TrigramQueryPlannerTest extends TestCase {
+  public void testLiteral() {
+    assertNull(TrigramQueryPlanner.planLiteral("ab"));
+    final List<TIntHashSet> query = TrigramQueryPlanner.planLiteral("createFile");
+    assertNotNull(query);
+    assertEquals(1, query.size());
+    assertEquals(TrigramBuilder.buildTrigram("createFile"), query.get(0));
+  }
+
+  public void testUnconstrainedRegExps() {
+    assertNull(TrigramQueryPlanner.planRegExp(".*"));
+    assertNull(TrigramQueryPlanner.planRegExp("\\w+\\s*=\\d"));
+    assertNull(TrigramQueryPlanner.planRegExp("foo|.."));
+    assertNull(TrigramQueryPlanner.planRegExp("(?x)foo bar"));
+    assertNull(TrigramQueryPlanner.planRegExp("(unbalanced"));
+    assertNull(TrigramQueryPlanner.planRegExp("(?:createFile)*"));
+  }
+
+  public void testRequiredLiterals() {
+    assertQuery("createFile\\(.*\\)", "createFile(");
+    assertQuery("foo.bar", "foo", "bar");
+    assertQuery("xyz[A-Z]\\w*Quux", "xyz", "quux");
+    assertQuery("(?i)psiFile+", "psifil");
+    assertQuery("foo(?=bar)baz", "foobaz");
+    assertQuery("\\QList<String>\\E", "List<String>");
+  }
+
+  public void testAlternatives() {
+    final List<TIntHashSet> query = TrigramQueryPlanner.planRegExp("(get|set)Zork");
+    assertNotNull(query);
+    assertEquals(2, query.size());
+    assertTrue(query.contains(TrigramBuilder.buildTrigram("getZork")));
+    assertTrue(query.contains(TrigramBuilder.buildTrigram("setZork")));
+
+    assertEquals(2, TrigramQueryPlanner.planRegExp("zebu?ra").size());
+    assertEquals(2, TrigramQueryPlanner.planRegExp("quux\\d+|xyzzy").size());
+  }
+
+  public void testPlanAcceptsAllMatchingTexts() {
+    final String text = "public class Quux {\n  private Zebra getZork() { return \"createFile(x)\"; }\n  int colour = 0x1F;\n}";
+    final TIntHashSet textTrigrams = TrigramBuilder.buildTrigram(text);
+    final String[] patterns = {"getZork\\(\\)", "colou?r", "(?i)CLASS\\s+quux", "\"create\\w+\\(", "(get|set)Zork", "priv.te Zebra",
+      "Zebra|Zorro", "int\\s+\\w+ = 0x1F", "\\{\\n  private Zeb"};
+    for (String pattern : patterns) {
+      final Matcher matcher = Pattern.compile(pattern).matcher(text);
+      assertTrue(pattern, matcher.find());
+      final List<TIntHashSet> query = TrigramQueryPlanner.planRegExp(pattern);
+      // no plan means no narrowing
+      if (query == null) continue;
+      boolean accepted = false;
+      for (TIntHashSet alternative : query) {
+        accepted |= containsAll(textTrigrams, alternative);
+      }
+      assertTrue(pattern, accepted);
+    }
+  }
+
+  private static void assertQuery(String regexp, String... requiredLiterals) {
+    final List<TIntHashSet> query = TrigramQueryPlanner.planRegExp(regexp);
+    assertNotNull(regexp, query);
+    assertEquals(regexp, 1, query.size());
+    final TIntHashSet expected = new TIntHashSet();
+    for (String literal : requiredLiterals) {
+      expected.addAll(TrigramBuilder.buildTrigram(literal).toArray());
+    }
+    assertEquals(regexp, expected, query.get(0));
+  }
+
+  private static boolean containsAll(TIntHashSet set, TIntHashSet subset) {
+    for (int trigram : subset.toArray()) {
+      if (!set.contains(trigram)) return false;
+    }
+    return true;
+  }
+}
@@ -79,7 +79,7 @@ public class CharArrayTest {
       });
     }});
     
-    init(10);
+    init(10, myConfig != null && myConfig.rope());
     if (myConfig != null) {
       myArray.insert(myDocument, myConfig.text(), 0);
       myArray.setDeferredChangeMode(myConfig.deferred());
@@ -143,8 +143,33 @@ public class CharArrayTest {
     assertArrayEquals("1".toCharArray(), subsSequence.getChars());
   }
   
-  private void init(int size) {
-    myArray = new CharArray(size) {
+  @Config(text = "1234", deferred = true, rope = true)
+  @Test
+  public void ropeReplace() {
+    CharSequence snapshot = myArray.getImmutableText();
+    replace(1, 3, "abc");
+    checkText("1abc4");
+    assertFalse(myArray.hasDeferredChanges());
+
+    replace(2, 3, "XY");
+    checkText("1aXYc4");
+    assertEquals("1234", snapshot.toString());
+
+    myArray.setDeferredChangeMode(false);
+    replace(3, 6, "ABC");
+    checkText("1aXABC");
+    assertArrayEquals("1aXABC".toCharArray(), myArray.getChars());
+  }
+
+  @Config(text = "0123456789", rope = true)
+  @Test
+  public void ropeCyclicBuffer() {
+    myArray.insert(myDocument, "abc", 10);
+    checkText("3456789abc");
+  }
+
+  private void init(int size, boolean rope) {
+    myArray = new CharArray(size, rope) {
       @NotNull
       @Override
       protected DocumentEvent beforeChangedUpdate(DocumentImpl subj, int offset, CharSequence oldString, CharSequence newString,
@@ -235,5 +260,6 @@ public class CharArrayTest {
   private @interface Config {
     String text() default "";
     boolean deferred() default false;
+    boolean rope() default false;
   }
 }
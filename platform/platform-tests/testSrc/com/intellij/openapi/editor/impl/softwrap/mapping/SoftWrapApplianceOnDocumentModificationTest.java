@@ -21,8 +21,11 @@ import com.intellij.openapi.editor.impl.AbstractEditorProcessingOnDocumentModifi
 import com.intellij.openapi.editor.impl.EditorImpl;
 import com.intellij.openapi.editor.impl.SoftWrapModelImpl;
 import com.intellij.openapi.editor.markup.TextAttributes;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.codeStyle.CommonCodeStyleSettings;
+import com.intellij.testFramework.PlatformTestUtil;
 import com.intellij.testFramework.TestFileType;
+import com.intellij.util.ThrowableRunnable;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntProcedure;
 import org.jetbrains.annotations.NotNull;
@@ -871,7 +874,51 @@ public class SoftWrapApplianceOnDocumentModificationTest extends AbstractEditorP
       getEditor().getCaretModel().getVisualPosition()
     );
   }
-  
+
+  public void testLazySoftWrapsCalculationOfHugeDocument() throws IOException {
+    String line = "a line which is long enough to be soft-wrapped several times at the narrow viewport\n";
+    init(100, StringUtil.repeat(line, 10000));
+    final SoftWrapApplianceManager applianceManager = getSoftWrapModel().getApplianceManager();
+    assertTrue(applianceManager.getDeferredStartOffset() > 0);
+
+    PlatformTestUtil.startPerformanceTest("Soft wraps calculation for the viewport of a huge document", 300, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        applianceManager.reset();
+        applianceManager.registerSoftWrapIfNecessary();
+      }
+    }).cpuBound().assertTiming();
+
+    applianceManager.processDeferredRegions();
+    assertEquals(-1, applianceManager.getDeferredStartOffset());
+    List<Integer> lazySoftWraps = getSoftWrapOffsets();
+    List<VisualPosition> lazyPositions = getVisualPositions();
+
+    applianceManager.setLazyProcessingThreshold(Integer.MAX_VALUE);
+    applianceManager.reset();
+    applianceManager.registerSoftWrapIfNecessary();
+    assertEquals(-1, applianceManager.getDeferredStartOffset());
+    assertEquals(getSoftWrapOffsets(), lazySoftWraps);
+    assertEquals(getVisualPositions(), lazyPositions);
+  }
+
+  private static List<Integer> getSoftWrapOffsets() {
+    List<Integer> result = new ArrayList<Integer>();
+    for (SoftWrap softWrap : getSoftWrapModel().getRegisteredSoftWraps()) {
+      result.add(softWrap.getStart());
+    }
+    return result;
+  }
+
+  private static List<VisualPosition> getVisualPositions() {
+    List<VisualPosition> result = new ArrayList<VisualPosition>();
+    int textLength = myEditor.getDocument().getTextLength();
+    for (int offset = 0; offset < textLength; offset += 997) {
+      result.add(myEditor.offsetToVisualPosition(offset));
+    }
+    return result;
+  }
+
   private void init(final int visibleWidth, @NotNull String fileText) throws IOException {
     init(visibleWidth, fileText, TestFileType.TEXT);
   }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
+import com.intellij.openapi.vfs.newvfs.persistent.FSRecords;
+import com.intellij.testFramework.LightPlatformLangTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads fixed-size record fields from several threads while they are being changed.
+ * Run with -Didea.vfs.concurrent.records=true to check the reads without the global lock.
+ */
+public class FSRecordsConcurrentLookupTest extends LightPlatformLangTestCase {
+  private static final int FILES_COUNT = 100;
+  private static final int READERS_COUNT = 4;
+  private static final int LOOKUPS_PER_THREAD = 200000;
+
+  public void testLookupsDuringWrites() throws Exception {
+    final int[] ids = createFiles();
+    final int parent = FSRecords.getParent(ids[0]);
+    final long[] timestamps = new long[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      timestamps[i] = FSRecords.getTimestamp(ids[i]);
+    }
+
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicBoolean readersDone = new AtomicBoolean();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final Thread writer = new Thread("FSRecords writer") {
+      @Override
+      public void run() {
+        try {
+          start.await();
+          for (long i = 1; !readersDone.get(); i++) {
+            // both halves of the value are the same, so a torn read is detected
+            FSRecords.setTimestamp(ids[(int)(i % ids.length)], (i << 32) | i);
+          }
+        }
+        catch (Throwable e) {
+          error.compareAndSet(null, e);
+        }
+      }
+    };
+    final Thread[] readers = new Thread[READERS_COUNT];
+    for (int t = 0; t < readers.length; t++) {
+      final int seed = t;
+      readers[t] = new Thread("FSRecords reader " + t) {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+              final int id = ids[(i + seed) % ids.length];
+              assertEquals(parent, FSRecords.getParent(id));
+              final long timestamp = FSRecords.getTimestamp(id);
+              assertEquals(timestamp >>> 32, timestamp & 0xFFFFFFFFL);
+            }
+          }
+          catch (Throwable e) {
+            error.compareAndSet(null, e);
+          }
+        }
+      };
+      readers[t].start();
+    }
+    writer.start();
+
+    start.countDown();
+    try {
+      for (Thread reader : readers) {
+        reader.join();
+      }
+    }
+    finally {
+      readersDone.set(true);
+      writer.join();
+      for (int i = 0; i < ids.length; i++) {
+        FSRecords.setTimestamp(ids[i], timestamps[i]);
+      }
+    }
+    if (error.get() != null) throw new RuntimeException(error.get());
+  }
+
+  private int[] createFiles() throws IOException {
+    final File dir = FileUtil.createTempDirectory("FSRecordsLookup", "");
+    disposeOnTearDown(new Disposable() {
+      @Override
+      public void dispose() {
+        FileUtil.delete(dir);
+      }
+    });
+
+    for (int i = 0; i < FILES_COUNT; i++) {
+      assertTrue(new File(dir, "file" + i + ".txt").createNewFile());
+    }
+
+    VirtualFile vDir = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(dir);
+    assertNotNull(vDir);
+    VirtualFile[] children = vDir.getChildren();
+    assertEquals(FILES_COUNT, children.length);
+
+    int[] ids = new int[children.length];
+    for (int i = 0; i < children.length; i++) {
+      ids[i] = ((NewVirtualFile)children[i]).getId();
+    }
+    return ids;
+  }
+}
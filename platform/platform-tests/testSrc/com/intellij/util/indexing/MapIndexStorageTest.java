@@ -0,0 +1,102 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class MapIndexStorageTest extends TestCase {
+  private static final int KEYS_COUNT = 1000;
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("MapIndexStorageTest", "");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testWriteBehindReadsOwnWrites() throws Exception {
+    doTest(20);
+  }
+
+  public void testWriteThrough() throws Exception {
+    doTest(0);
+  }
+
+  private void doTest(int writeBehindBudget) throws Exception {
+    final File file = new File(myDir, "index");
+    MapIndexStorage<Integer, String> storage = createStorage(file, writeBehindBudget);
+    try {
+      for (int inputId = 1; inputId <= 3; inputId++) {
+        for (int key = 0; key < KEYS_COUNT; key++) {
+          storage.addValue(key, inputId, "v" + key);
+        }
+      }
+      for (int key = 0; key < KEYS_COUNT; key += 2) {
+        storage.removeAllValues(key, 2);
+      }
+
+      // keys have been evicted from the small cache, changes must be visible nevertheless
+      for (int key = 0; key < KEYS_COUNT; key++) {
+        assertEquals(key % 2 == 0 ? Arrays.asList(1, 3) : Arrays.asList(1, 2, 3), getInputIds(storage, key));
+      }
+      assertEquals(KEYS_COUNT, storage.getKeys().size());
+    }
+    finally {
+      storage.close();
+    }
+
+    storage = createStorage(file, writeBehindBudget);
+    try {
+      for (int key = 0; key < KEYS_COUNT; key++) {
+        assertEquals(key % 2 == 0 ? Arrays.asList(1, 3) : Arrays.asList(1, 2, 3), getInputIds(storage, key));
+      }
+    }
+    finally {
+      storage.close();
+    }
+  }
+
+  private static MapIndexStorage<Integer, String> createStorage(File file, int writeBehindBudget) throws Exception {
+    return new MapIndexStorage<Integer, String>(file, new EnumeratorIntegerDescriptor(), new EnumeratorStringDescriptor(), 16,
+                                                writeBehindBudget);
+  }
+
+  private static List<Integer> getInputIds(MapIndexStorage<Integer, String> storage, int key) throws Exception {
+    final ValueContainer<String> container = storage.read(key);
+    assertEquals(1, container.size());
+    final ValueContainer.IntIterator iterator = container.getInputIdsIterator("v" + key);
+    final Integer[] ids = new Integer[iterator.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = iterator.next();
+    }
+    Arrays.sort(ids);
+    return Collections.unmodifiableList(Arrays.asList(ids));
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntIterator;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class SortedIdSetTest extends TestCase {
+  private static final int SETS_COUNT = 100000;
+
+  public void testAgainstHashSet() {
+    final Random random = new Random(42);
+    final SortedIdSet set = new SortedIdSet(0);
+    final TIntHashSet expected = new TIntHashSet();
+    for (int i = 0; i < 100000; i++) {
+      final int id = random.nextInt(5000);
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(id), set.remove(id));
+        set.compact();
+      }
+      else {
+        expected.add(id);
+        set.add(id);
+      }
+      assertEquals(expected.size(), set.size());
+    }
+
+    final int[] expectedIds = expected.toArray();
+    Arrays.sort(expectedIds);
+    assertTrue(Arrays.equals(expectedIds, set.toArray()));
+    for (int id = 0; id < 5000; id++) {
+      assertEquals(expected.contains(id), set.contains(id));
+    }
+
+    final ValueContainer.IntIterator iterator = set.clone().iterator();
+    assertEquals(expectedIds.length, iterator.size());
+    for (int id : expectedIds) {
+      assertTrue(iterator.hasNext());
+      assertEquals(id, iterator.next());
+    }
+    assertFalse(iterator.hasNext());
+  }
+
+  public void testDistinctAndIntersect() {
+    assertTrue(Arrays.equals(new int[]{1, 3, 7}, SortedIdSet.distinct(new int[]{7, 3, 1, 3, 7, 0}, 5)));
+    assertEquals(0, SortedIdSet.distinct(new int[10], 0).length);
+
+    assertTrue(Arrays.equals(new int[]{3, 7}, SortedIdSet.intersect(new int[]{1, 3, 7}, new int[]{2, 3, 7, 9})));
+    assertEquals(0, SortedIdSet.intersect(new int[]{1, 3}, new int[0]).length);
+
+    final int[] big = new int[1000];
+    for (int i = 0; i < big.length; i++) big[i] = i * 2;
+    assertTrue(Arrays.equals(new int[]{4, 1998}, SortedIdSet.intersect(new int[]{3, 4, 1998, 2001}, big)));
+  }
+
+  public void testOutOfOrderAdditions() {
+    final SortedIdSet set = new SortedIdSet(0);
+    for (int id = 10000; id > 0; id--) {
+      set.add(id);
+      set.add(id);
+    }
+    set.add(20000);
+    set.add(5000);
+    assertEquals(10001, set.size());
+    assertTrue(set.contains(20000));
+    assertFalse(set.contains(15000));
+    final int[] ids = set.toArray();
+    for (int i = 0; i < 10000; i++) {
+      assertEquals(i + 1, ids[i]);
+    }
+
+    set.add(15000);
+    final ValueContainer.IntIterator iterator = set.iterator();
+    assertEquals(10002, iterator.size());
+    int last = 0;
+    while (iterator.hasNext()) {
+      final int id = iterator.next();
+      assertTrue(id > last);
+      last = id;
+    }
+    assertEquals(20000, last);
+  }
+
+  /**
+   * Compares memory use and iteration time with {@link TIntHashSet}
+   */
+  public static void main(String[] args) {
+    for (int setSize : new int[]{2, 10, 100}) {
+      final Object[] hashSets = new Object[SETS_COUNT];
+      final long hashMemory = measureMemory(hashSets, setSize, true);
+      final long hashIteration = measureIteration(hashSets, true);
+
+      final Object[] sortedSets = new Object[SETS_COUNT];
+      final long sortedMemory = measureMemory(sortedSets, setSize, false);
+      final long sortedIteration = measureIteration(sortedSets, false);
+
+      System.out.println("ids per value=" + setSize + ": TIntHashSet " + hashMemory / SETS_COUNT + " bytes, iterated in " + hashIteration +
+                         " ms; SortedIdSet " + sortedMemory / SETS_COUNT + " bytes, iterated in " + sortedIteration + " ms");
+    }
+  }
+
+  private static long measureMemory(Object[] sets, int setSize, boolean hash) {
+    final long before = usedMemory();
+    final Random random = new Random(setSize);
+    for (int i = 0; i < sets.length; i++) {
+      if (hash) {
+        final TIntHashSet set = new TIntHashSet(3, 0.98f);
+        while (set.size() < setSize) set.add(random.nextInt(200000));
+        set.compact();
+        sets[i] = set;
+      }
+      else {
+        final SortedIdSet set = new SortedIdSet(3);
+        while (set.size() < setSize) set.add(random.nextInt(200000));
+        set.compact();
+        sets[i] = set;
+      }
+    }
+    return usedMemory() - before;
+  }
+
+  private static long measureIteration(Object[] sets, boolean hash) {
+    final long started = System.currentTimeMillis();
+    long sum = 0;
+    for (int round = 0; round < 10; round++) {
+      for (Object o : sets) {
+        if (hash) {
+          for (TIntIterator it = ((TIntHashSet)o).iterator(); it.hasNext();) sum += it.next();
+        }
+        else {
+          for (ValueContainer.IntIterator it = ((SortedIdSet)o).iterator(); it.hasNext();) sum += it.next();
+        }
+      }
+    }
+    assertTrue(sum > 0);
+    return System.currentTimeMillis() - started;
+  }
+
+  private static long usedMemory() {
+    final Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
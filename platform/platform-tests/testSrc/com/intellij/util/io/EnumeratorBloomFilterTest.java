@@ -0,0 +1,190 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+public class EnumeratorBloomFilterTest extends TestCase {
+  private static final int KEYS_COUNT = 100000;
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("bloom", "enumerator");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testLookups() throws IOException {
+    final File file = new File(myDir, "names");
+    final File bloomFile = new File(file.getPath() + ".bloom");
+    PersistentStringEnumerator enumerator = createEnumerator(file, true);
+    try {
+      for (int i = 0; i < KEYS_COUNT; i++) {
+        assertTrue(enumerator.enumerate("name" + i) != PersistentEnumerator.NULL_ID);
+      }
+      assertEquals(PersistentEnumerator.NULL_ID, enumerator.tryEnumerate("missing"));
+      // keys added after the filter has been built
+      enumerator.enumerate("missing");
+      assertTrue(enumerator.tryEnumerate("missing") != PersistentEnumerator.NULL_ID);
+      for (int i = 0; i < 5000; i++) {
+        enumerator.enumerate("late" + i);
+      }
+      checkLookups(enumerator);
+    }
+    finally {
+      enumerator.close();
+    }
+    assertTrue(bloomFile.exists());
+
+    enumerator = createEnumerator(file, true);
+    try {
+      checkLookups(enumerator);
+      enumerator.enumerate("after reopen");
+      assertFalse(bloomFile.exists());
+      assertTrue(enumerator.tryEnumerate("after reopen") != PersistentEnumerator.NULL_ID);
+    }
+    finally {
+      enumerator.close();
+    }
+  }
+
+  public void testMissesSkipStorage() throws IOException {
+    final File file = new File(myDir, "counting");
+    CountingEnumerator enumerator = new CountingEnumerator(file);
+    try {
+      for (int i = 0; i < KEYS_COUNT; i++) {
+        enumerator.enumerate("name" + i);
+      }
+      assertEquals(PersistentEnumerator.NULL_ID, enumerator.tryEnumerate("absent"));
+      assertEquals(1, enumerator.myTraversals);
+
+      enumerator.myLookups = 0;
+      checkMisses(enumerator);
+      assertEquals(1, enumerator.myTraversals);
+    }
+    finally {
+      enumerator.close();
+    }
+
+    enumerator = new CountingEnumerator(file);
+    try {
+      checkMisses(enumerator);
+      // the saved filter is loaded, records are not traversed
+      assertEquals(0, enumerator.myTraversals);
+      for (int i = 0; i < KEYS_COUNT; i++) {
+        assertEquals("name" + i, enumerator.valueOf(enumerator.tryEnumerate("name" + i)));
+      }
+    }
+    finally {
+      enumerator.close();
+    }
+  }
+
+  private static void checkMisses(CountingEnumerator enumerator) throws IOException {
+    final int missesCount = 10 * KEYS_COUNT;
+    for (int i = 0; i < missesCount; i++) {
+      assertEquals(PersistentEnumerator.NULL_ID, enumerator.tryEnumerate("absent" + i));
+    }
+    // only false positives of the filter get to the storage
+    assertTrue(enumerator.myLookups + " lookups", enumerator.myLookups < missesCount / 20);
+  }
+
+  /**
+   * Compares lookups of missing keys with and without the filter
+   */
+  public static void main(String[] args) throws IOException {
+    final File dir = FileUtil.createTempDirectory("bloom", "enumerator");
+    final PersistentStringEnumerator plain = createEnumerator(new File(dir, "plain"), false);
+    final PersistentStringEnumerator filtered = createEnumerator(new File(dir, "filtered"), true);
+    try {
+      for (int i = 0; i < KEYS_COUNT; i++) {
+        plain.enumerate("name" + i);
+        filtered.enumerate("name" + i);
+      }
+      filtered.tryEnumerate("warm up");
+
+      for (int round = 0; round < 2; round++) {
+        final long plainTime = measureMisses(plain);
+        final long filteredTime = measureMisses(filtered);
+        System.out.println(KEYS_COUNT + " keys, " + 10 * KEYS_COUNT + " missing key lookups: without filter " + plainTime +
+                           " ms, with filter " + filteredTime + " ms");
+      }
+    }
+    finally {
+      plain.close();
+      filtered.close();
+      FileUtil.delete(dir);
+    }
+  }
+
+  private static long measureMisses(PersistentStringEnumerator enumerator) throws IOException {
+    final long started = System.currentTimeMillis();
+    for (int i = 0; i < 10 * KEYS_COUNT; i++) {
+      assertEquals(PersistentEnumerator.NULL_ID, enumerator.tryEnumerate("absent" + i));
+    }
+    return System.currentTimeMillis() - started;
+  }
+
+  private static void checkLookups(PersistentStringEnumerator enumerator) throws IOException {
+    for (int i = 0; i < KEYS_COUNT; i++) {
+      assertEquals("name" + i, enumerator.valueOf(enumerator.tryEnumerate("name" + i)));
+    }
+    for (int i = 0; i < 5000; i++) {
+      assertEquals("late" + i, enumerator.valueOf(enumerator.tryEnumerate("late" + i)));
+    }
+    for (int i = 0; i < KEYS_COUNT; i++) {
+      assertEquals(PersistentEnumerator.NULL_ID, enumerator.tryEnumerate("absent" + i));
+    }
+  }
+
+  private static PersistentStringEnumerator createEnumerator(File file, boolean bloomFilter) throws IOException {
+    final PersistentStringEnumerator enumerator = new PersistentStringEnumerator(file);
+    enumerator.setBloomFilterEnabled(bloomFilter);
+    return enumerator;
+  }
+
+  private static class CountingEnumerator extends PersistentEnumerator<String> {
+    private int myLookups;
+    private int myTraversals;
+
+    private CountingEnumerator(File file) throws IOException {
+      super(file, new EnumeratorStringDescriptor(), 1024);
+      setBloomFilterEnabled(true);
+    }
+
+    @Override
+    protected synchronized int enumerateImpl(String value, boolean onlyCheckForExisting, boolean saveNewValue) throws IOException {
+      myLookups++;
+      return super.enumerateImpl(value, onlyCheckForExisting, saveNewValue);
+    }
+
+    @Override
+    public synchronized boolean traverseAllRecords(RecordsProcessor p) throws IOException {
+      myTraversals++;
+      return super.traverseAllRecords(p);
+    }
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+
+public class PersistentHashMapCompactionTest extends TestCase {
+  private static final int KEYS_COUNT = 2000;
+  private long mySavedSegmentSize;
+  private File myDir;
+  private File myFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mySavedSegmentSize = PersistentHashMap.ourValuesSegmentSize;
+    PersistentHashMap.ourValuesSegmentSize = 32 * 1024;
+    myDir = FileUtil.createTempDirectory("compaction", "map");
+    myFile = new File(myDir, "map");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    PersistentHashMap.ourValuesSegmentSize = mySavedSegmentSize;
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testIncrementalCompaction() throws IOException {
+    PersistentHashMap<String, String> map = createMap();
+    try {
+      for (int round = 0; round < 5; round++) {
+        for (int i = 0; i < KEYS_COUNT; i++) {
+          map.put("key" + i, value(i, round));
+        }
+      }
+      for (int i = 0; i < KEYS_COUNT; i += 10) {
+        map.remove("key" + i);
+      }
+      // chains of chunks spanning several segments
+      for (int i = 1; i < KEYS_COUNT; i += 10) {
+        map.appendData("appended" + i, new StringAppender("a"));
+        map.put("filler" + i, value(i, 0));
+        map.appendData("appended" + i, new StringAppender("b"));
+      }
+      map.force();
+
+      final long sizeBefore = map.getValueStorageSize();
+      assertTrue(map.getGarbageRatio() > 0.5);
+      assertEquals(-1.0, map.getCompactionProgress());
+
+      int steps = 0;
+      while (map.compactIncrementally(1)) {
+        final double progress = map.getCompactionProgress();
+        assertTrue(String.valueOf(progress), progress >= 0 && progress <= 1);
+        // the map stays usable between the steps
+        map.put("key1", value(1, 5));
+        assertEquals(value(7, 4), map.get("key7"));
+        steps++;
+      }
+      assertTrue(steps > 1);
+      assertEquals(-1.0, map.getCompactionProgress());
+      assertTrue(map.getCompactedBytes() > 0);
+      assertTrue(map.getValueStorageSize() < sizeBefore / 2);
+      assertTrue(map.getGarbageRatio() < 0.5);
+
+      checkValues(map);
+    }
+    finally {
+      map.close();
+    }
+
+    map = createMap();
+    try {
+      checkValues(map);
+    }
+    finally {
+      map.close();
+    }
+  }
+
+  public void testSeveralPassesAfterMiddleSegmentRemoved() throws IOException {
+    PersistentHashMap<String, String> map = createMap();
+    try {
+      // segments of the changing keys are surrounded by segments of the stable ones
+      for (int i = 0; i < KEYS_COUNT; i++) {
+        map.put("stable" + i, value(i, 0));
+      }
+      for (int round = 0; round < 4; round++) {
+        for (int i = 0; i < KEYS_COUNT; i++) {
+          map.put("key" + i, value(i, round));
+        }
+        for (int i = 0; i < KEYS_COUNT / 4; i++) {
+          map.put("stable" + (KEYS_COUNT + round * KEYS_COUNT / 4 + i), value(i, round));
+        }
+        map.force();
+
+        final long sizeBefore = map.getValueStorageSize();
+        final long compactedBefore = map.getCompactedBytes();
+        while (map.compactIncrementally(1000)) ;
+
+        // segments are only deleted and live values are appended, so the size shrinks exactly by the reclaimed bytes
+        assertEquals(getValueFilesLength(), map.getValueStorageSize());
+        assertEquals(sizeBefore - map.getValueStorageSize(), map.getCompactedBytes() - compactedBefore);
+        for (int i = 0; i < KEYS_COUNT; i++) {
+          assertEquals(value(i, round), map.get("key" + i));
+          assertEquals(value(i, 0), map.get("stable" + i));
+        }
+      }
+      assertTrue(map.getCompactedBytes() > 0);
+    }
+    finally {
+      map.close();
+    }
+
+    map = createMap();
+    try {
+      assertEquals(getValueFilesLength(), map.getValueStorageSize());
+      for (int i = 0; i < KEYS_COUNT; i++) {
+        assertEquals(value(i, 3), map.get("key" + i));
+        assertEquals(value(i, 0), map.get("stable" + i));
+      }
+    }
+    finally {
+      map.close();
+    }
+  }
+
+  private long getValueFilesLength() {
+    final String prefix = myFile.getName() + PersistentHashMap.DATA_FILE_EXTENSION;
+    long length = 0;
+    for (File file : myDir.listFiles()) {
+      final String name = file.getName();
+      if (name.equals(prefix) || name.startsWith(prefix + ".") && Character.isDigit(name.charAt(prefix.length() + 1))) {
+        length += file.length();
+      }
+    }
+    return length;
+  }
+
+  private static void checkValues(PersistentHashMap<String, String> map) throws IOException {
+    for (int i = 0; i < KEYS_COUNT; i++) {
+      assertEquals(i % 10 == 0 ? null : value(i, i == 1 ? 5 : 4), map.get("key" + i));
+    }
+    for (int i = 1; i < KEYS_COUNT; i += 10) {
+      assertEquals("ab", map.get("appended" + i));
+      assertEquals(value(i, 0), map.get("filler" + i));
+    }
+  }
+
+  private static String value(int i, int round) {
+    return "value " + i + " of round " + round + " padded to make the storage grow faster";
+  }
+
+  private PersistentHashMap<String, String> createMap() throws IOException {
+    return new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new ConcatenatingDescriptor());
+  }
+
+  private static class StringAppender implements PersistentHashMap.ValueDataAppender {
+    private final String myData;
+
+    private StringAppender(String data) {
+      myData = data;
+    }
+
+    @Override
+    public void append(DataOutput out) throws IOException {
+      out.writeUTF(myData);
+    }
+  }
+
+  /**
+   * Reads all appended strings as one value
+   */
+  private static class ConcatenatingDescriptor implements DataExternalizer<String> {
+    @Override
+    public void save(DataOutput out, String value) throws IOException {
+      out.writeUTF(value);
+    }
+
+    @Override
+    public String read(DataInput in) throws IOException {
+      final StringBuilder builder = new StringBuilder();
+      while (((DataInputStream)in).available() > 0) {
+        builder.append(in.readUTF());
+      }
+      return builder.toString();
+    }
+  }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.Factory;
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SegmentedPersistentHashMapTest extends TestCase {
+  private static final int KEYS_COUNT = 20000;
+  private File myDir;
+  private File myFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("segmented", "map");
+    myFile = new File(myDir, "map");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testMap() throws IOException {
+    SegmentedPersistentHashMap<String, String> map = createMap();
+    try {
+      for (int i = 0; i < KEYS_COUNT; i++) {
+        map.put("key" + i, "value" + i);
+      }
+      map.appendData("appended", new PersistentHashMap.ValueDataAppender() {
+        @Override
+        public void append(DataOutput out) throws IOException {
+          new EnumeratorStringDescriptor().save(out, "data");
+        }
+      });
+      map.remove("key2");
+
+      assertEquals("data", map.get("appended"));
+      assertNull(map.get("key2"));
+      assertFalse(map.containsMapping("key2"));
+      assertTrue(map.containsMapping("key3"));
+      assertEquals(KEYS_COUNT, new HashSet<String>(map.getAllKeysWithExistingMapping()).size());
+    }
+    finally {
+      map.close();
+    }
+
+    map = createMap();
+    try {
+      assertEquals("data", map.get("appended"));
+      assertNull(map.get("key2"));
+      assertEquals("value" + (KEYS_COUNT - 1), map.get("key" + (KEYS_COUNT - 1)));
+    }
+    finally {
+      map.close();
+    }
+  }
+
+  public void testLayoutMismatch() throws IOException {
+    createMap().close();
+    try {
+      new SegmentedPersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor(), 4);
+      fail("segments count must not change");
+    }
+    catch (PersistentEnumerator.CorruptedException ignored) {
+    }
+
+    SegmentedPersistentHashMap.deleteFiles(myFile);
+    assertFalse(SegmentedPersistentHashMap.exists(myFile));
+    new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor()).close();
+    try {
+      createMap();
+      fail("files of a plain map must not be opened as segmented");
+    }
+    catch (PersistentEnumerator.CorruptedException ignored) {
+    }
+  }
+
+  public void testDescriptorsWithBuffers() throws Exception {
+    final SegmentedPersistentHashMap<String, String> map =
+      new SegmentedPersistentHashMap<String, String>(myFile, new BufferingStringDescriptor(), new BufferingStringDescriptor());
+    try {
+      for (int i = 0; i < KEYS_COUNT; i++) {
+        map.put("key" + i, "value" + i);
+      }
+      // descriptors are shared by the segments read in parallel
+      measureLookups(map, 4);
+    }
+    finally {
+      map.close();
+    }
+  }
+
+  public void testSegmentsRunInParallel() throws Exception {
+    final CyclicBarrier barrier = new CyclicBarrier(2);
+    final SegmentedPersistentHashMap<String, String> map =
+      new SegmentedPersistentHashMap<String, String>(myFile, new Factory<KeyDescriptor<String>>() {
+        @Override
+        public KeyDescriptor<String> create() {
+          return new BufferingStringDescriptor();
+        }
+      }, new Factory<DataExternalizer<String>>() {
+        @Override
+        public DataExternalizer<String> create() {
+          return new BufferingStringDescriptor() {
+            @Override
+            public void save(DataOutput out, String value) throws IOException {
+              try {
+                // both puts have to be in their segments at once
+                barrier.await(10, TimeUnit.SECONDS);
+              }
+              catch (Exception e) {
+                throw new RuntimeException(e);
+              }
+              super.save(out, value);
+            }
+          };
+        }
+      }, SegmentedPersistentHashMap.DEFAULT_SEGMENTS_COUNT);
+    try {
+      final String key1 = "key0";
+      String key = null;
+      for (int i = 1; key == null; i++) {
+        if (map.getSegment("key" + i) != map.getSegment(key1)) key = "key" + i;
+      }
+      final String key2 = key;
+
+      final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+      final Thread thread = new Thread("put") {
+        @Override
+        public void run() {
+          try {
+            map.put(key2, "value2");
+          }
+          catch (Throwable e) {
+            error.set(e);
+          }
+        }
+      };
+      thread.start();
+      map.put(key1, "value1");
+      thread.join();
+      if (error.get() != null) throw new RuntimeException(error.get());
+
+      assertEquals("value1", map.get(key1));
+      assertEquals("value2", map.get(key2));
+    }
+    finally {
+      map.close();
+    }
+  }
+
+  public void testStatelessDescriptorsAreNotSynchronized() {
+    final EnumeratorStringDescriptor stringDescriptor = new EnumeratorStringDescriptor();
+    assertSame(stringDescriptor, SegmentedPersistentHashMap.synchronizedKeyDescriptor(stringDescriptor));
+    assertSame(stringDescriptor, SegmentedPersistentHashMap.synchronizedExternalizer(stringDescriptor));
+    assertSame(EnumeratorIntegerDescriptor.INSTANCE,
+               SegmentedPersistentHashMap.synchronizedKeyDescriptor(EnumeratorIntegerDescriptor.INSTANCE));
+
+    final BufferingStringDescriptor bufferingDescriptor = new BufferingStringDescriptor();
+    assertNotSame(bufferingDescriptor, SegmentedPersistentHashMap.synchronizedKeyDescriptor(bufferingDescriptor));
+  }
+
+  private static long measureLookups(final PersistentMap<String, String> map, int threadsCount) throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final Thread[] threads = new Thread[threadsCount];
+    for (int t = 0; t < threadsCount; t++) {
+      final int seed = t * 7919;
+      threads[t] = new Thread("lookup " + t) {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < KEYS_COUNT; i++) {
+              final int key = (i + seed) % KEYS_COUNT;
+              assertEquals("value" + key, map.get("key" + key));
+            }
+          }
+          catch (Throwable e) {
+            error.compareAndSet(null, e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    final long started = System.currentTimeMillis();
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (error.get() != null) throw new RuntimeException(error.get());
+    return System.currentTimeMillis() - started;
+  }
+
+  /**
+   * Compares lookup times of a plain and a segmented map read by as many threads as there are processors
+   */
+  public static void main(String[] args) throws Exception {
+    final File dir = FileUtil.createTempDirectory("segmented", "map");
+    final SegmentedPersistentHashMap<String, String> segmented =
+      new SegmentedPersistentHashMap<String, String>(new File(dir, "map"), new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    final PersistentHashMap<String, String> plain =
+      new PersistentHashMap<String, String>(new File(dir, "plain"), new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    try {
+      for (int i = 0; i < KEYS_COUNT; i++) {
+        segmented.put("key" + i, "value" + i);
+        plain.put("key" + i, "value" + i);
+      }
+      final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+      final long plainTime = measureLookups(plain, threads);
+      final long segmentedTime = measureLookups(segmented, threads);
+      System.out.println(threads + " threads, " + KEYS_COUNT + " lookups each: PersistentHashMap " + plainTime +
+                         " ms, SegmentedPersistentHashMap " + segmentedTime + " ms");
+    }
+    finally {
+      segmented.close();
+      plain.close();
+      FileUtil.delete(dir);
+    }
+  }
+
+  private SegmentedPersistentHashMap<String, String> createMap() throws IOException {
+    return new SegmentedPersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+  }
+
+  /**
+   * Reuses one buffer for all strings, as many index descriptors do
+   */
+  private static class BufferingStringDescriptor implements KeyDescriptor<String> {
+    private final byte[] myBuffer = IOUtil.allocReadWriteUTFBuffer();
+
+    @Override
+    public void save(DataOutput out, String value) throws IOException {
+      IOUtil.writeUTFFast(myBuffer, out, value);
+    }
+
+    @Override
+    public String read(DataInput in) throws IOException {
+      return IOUtil.readUTFFast(myBuffer, in);
+    }
+
+    @Override
+    public int getHashCode(String value) {
+      return value.hashCode();
+    }
+
+    @Override
+    public boolean isEqual(String val1, String val2) {
+      return val1.equals(val2);
+    }
+  }
+}
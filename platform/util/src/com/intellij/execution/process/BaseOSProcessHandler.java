@@ -17,7 +17,7 @@ package com.intellij.execution.process;
 
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.util.Consumer;
-import com.intellij.util.io.OutputReader;
+import com.intellij.util.io.BlockingOutputReader;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -63,7 +63,7 @@ public class BaseOSProcessHandler extends ProcessHandler {
     addProcessListener(new ProcessAdapter() {
       public void startNotified(final ProcessEvent event) {
         try {
-          final OutputReader stdoutReader = new OutputReader(createProcessOutReader()) {
+          final BlockingOutputReader stdoutReader = new BlockingOutputReader(createProcessOutReader(), splitOutputToLines()) {
             protected void onTextAvailable(@NotNull String text) {
               notifyTextAvailable(text, ProcessOutputTypes.STDOUT);
             }
@@ -74,7 +74,7 @@ public class BaseOSProcessHandler extends ProcessHandler {
             }
           };
 
-          final OutputReader stderrReader = new OutputReader(createProcessErrReader()) {
+          final BlockingOutputReader stderrReader = new BlockingOutputReader(createProcessErrReader(), splitOutputToLines()) {
             protected void onTextAvailable(@NotNull String text) {
               notifyTextAvailable(text, ProcessOutputTypes.STDERR);
             }
@@ -114,6 +114,14 @@ public class BaseOSProcessHandler extends ProcessHandler {
 
     super.startNotify();
   }
+  /**
+   * By default every line of the output is reported in its own event. Handlers whose listeners don't care about line boundaries
+   * may return false to get the text read from the process at once in one event, which is much cheaper for large outputs.
+   */
+  protected boolean splitOutputToLines() {
+    return true;
+  }
+
   protected void onOSProcessTerminated(final int exitCode) {
     notifyProcessTerminated(exitCode);
   }
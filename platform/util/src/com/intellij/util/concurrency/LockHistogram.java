@@ -0,0 +1,70 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.concurrency;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations of lock waits or holds in buckets of milliseconds growing by powers of two:
+ * {@code <1, <2, <4, ..., <1024, >=1024}.
+ */
+public class LockHistogram {
+  private static final int BUCKETS = 12;
+
+  private final String myName;
+  private final AtomicLongArray myCounts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong myMaxNanos = new AtomicLong();
+
+  public LockHistogram(String name) {
+    myName = name;
+  }
+
+  public void record(long nanos) {
+    final long ms = nanos / 1000000;
+    final int bucket = ms == 0 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(ms), BUCKETS - 1);
+    myCounts.incrementAndGet(bucket);
+    long max;
+    while ((max = myMaxNanos.get()) < nanos && !myMaxNanos.compareAndSet(max, nanos)) ;
+  }
+
+  public long getCount(int bucket) {
+    return myCounts.get(bucket);
+  }
+
+  public long getTotalCount() {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += myCounts.get(i);
+    }
+    return total;
+  }
+
+  public long getMaxNanos() {
+    return myMaxNanos.get();
+  }
+
+  public String toString() {
+    final StringBuilder builder = new StringBuilder(myName).append(": ").append(getTotalCount()).append(" times");
+    for (int i = 0; i < BUCKETS; i++) {
+      final long count = myCounts.get(i);
+      if (count == 0) continue;
+      builder.append(", ");
+      builder.append(i == BUCKETS - 1 ? ">=" + (1 << (i - 1)) : "<" + (1 << i)).append(" ms: ").append(count);
+    }
+    return builder.append(", max ").append(getMaxNanos() / 1000000).append(" ms").toString();
+  }
+}
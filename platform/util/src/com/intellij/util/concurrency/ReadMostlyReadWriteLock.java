@@ -0,0 +1,261 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.concurrency;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A writer-preference read-write lock with the same reentrancy rules as {@link ReentrantWriterPreferenceReadWriteLock}
+ * for locks taken very often for reading and rarely for writing.
+ * <p/>
+ * Each thread has its own reader slot. A reader sets the flag in its slot and checks whether a writer is there, the writer
+ * announces itself and waits until the flags of all other threads are cleared. So a read lock costs two volatile accesses
+ * to a thread-local slot and a field that only changes when writing, without any CAS or monitor on shared state.
+ * <p/>
+ * As with {@link ReentrantWriterPreferenceReadWriteLock}, new readers wait while a writer is waiting or writing, a thread already
+ * holding the read lock may take it again, the writer may take both locks again, and a thread being the only reader may take
+ * the write lock. Time readers wait for the writer, and time the writer waits and holds the lock, are counted in histograms.
+ */
+public class ReadMostlyReadWriteLock implements ReadWriteLock {
+  private static final long WRITER_PARK_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final List<ReaderSlot> mySlots = new CopyOnWriteArrayList<ReaderSlot>();
+  private final ThreadLocal<ReaderSlot> mySlot = new ThreadLocal<ReaderSlot>() {
+    @Override
+    protected ReaderSlot initialValue() {
+      final ReaderSlot slot = new ReaderSlot(Thread.currentThread());
+      mySlots.add(slot);
+      return slot;
+    }
+  };
+
+  // set while a writer waits for readers or holds the lock, new readers wait until it is cleared
+  private volatile boolean myWriteRequested;
+  private volatile Thread myWriter;
+  private int myWriteHolds; // accessed by the writer only
+  private long myWriteStarted;
+  // orders writers, readers waiting for the writer wait on it too
+  private final Object myWriterLock = new Object();
+  private Thread myWriterLockOwner; // guarded by myWriterLock
+
+  private final LockHistogram myReadWaits = new LockHistogram("read lock waits");
+  private final LockHistogram myWriteWaits = new LockHistogram("write lock waits");
+  private final LockHistogram myWriteHoldTimes = new LockHistogram("write lock holds");
+
+  private final Sync myReadLock = new Sync() {
+    public void acquire() throws InterruptedException {
+      final ReaderSlot slot = mySlot.get();
+      if (slot.holds > 0 || tryStartRead(slot)) {
+        slot.holds++;
+        return;
+      }
+
+      final long started = System.nanoTime();
+      while (!tryStartRead(slot)) {
+        synchronized (myWriterLock) {
+          while (myWriteRequested) {
+            myWriterLock.wait();
+          }
+        }
+      }
+      slot.holds++;
+      myReadWaits.record(System.nanoTime() - started);
+    }
+
+    public boolean attempt(long msecs) throws InterruptedException {
+      final ReaderSlot slot = mySlot.get();
+      if (slot.holds > 0 || tryStartRead(slot)) {
+        slot.holds++;
+        return true;
+      }
+      if (msecs <= 0) return false;
+
+      final long started = System.nanoTime();
+      final long deadline = started + TimeUnit.MILLISECONDS.toNanos(msecs);
+      while (!tryStartRead(slot)) {
+        synchronized (myWriterLock) {
+          while (myWriteRequested) {
+            final long left = deadline - System.nanoTime();
+            if (left <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(myWriterLock, left);
+          }
+        }
+      }
+      slot.holds++;
+      myReadWaits.record(System.nanoTime() - started);
+      return true;
+    }
+
+    public void release() {
+      final ReaderSlot slot = mySlot.get();
+      if (slot.holds <= 0) throw new IllegalStateException("Read lock is not held by " + Thread.currentThread());
+      if (--slot.holds == 0) {
+        slot.reading = false;
+        final Thread writer = myWriter;
+        if (writer != null) {
+          LockSupport.unpark(writer);
+        }
+      }
+    }
+  };
+
+  private final Sync myWriteLock = new Sync() {
+    public void acquire() throws InterruptedException {
+      startWrite(-1);
+    }
+
+    public boolean attempt(long msecs) throws InterruptedException {
+      return startWrite(Math.max(msecs, 0));
+    }
+
+    public void release() {
+      if (myWriter != Thread.currentThread()) throw new IllegalStateException("Write lock is not held by " + Thread.currentThread());
+      if (--myWriteHolds > 0) return;
+
+      myWriteHoldTimes.record(System.nanoTime() - myWriteStarted);
+      myWriter = null;
+      synchronized (myWriterLock) {
+        myWriterLockOwner = null;
+        myWriteRequested = false;
+        myWriterLock.notifyAll();
+      }
+    }
+  };
+
+  /**
+   * Sets the reading flag unless a writer is there; the writer sets its flag before looking at the slots,
+   * so either the reader sees the writer or the writer sees the reader.
+   */
+  private boolean tryStartRead(ReaderSlot slot) {
+    slot.reading = true;
+    if (!myWriteRequested || myWriter == slot.thread) return true;
+    slot.reading = false;
+    final Thread writer = myWriter;
+    if (writer != null) {
+      LockSupport.unpark(writer);
+    }
+    return false;
+  }
+
+  /**
+   * @param msecs how long to wait, -1 to wait until the lock is acquired
+   */
+  private boolean startWrite(long msecs) throws InterruptedException {
+    final Thread current = Thread.currentThread();
+    if (myWriter == current) {
+      myWriteHolds++;
+      return true;
+    }
+
+    final long started = System.nanoTime();
+    final long deadline = msecs < 0 ? Long.MAX_VALUE : started + TimeUnit.MILLISECONDS.toNanos(msecs);
+    synchronized (myWriterLock) {
+      while (myWriterLockOwner != null) {
+        if (msecs < 0) {
+          myWriterLock.wait();
+        }
+        else {
+          final long left = deadline - System.nanoTime();
+          if (left <= 0) return false;
+          TimeUnit.NANOSECONDS.timedWait(myWriterLock, left);
+        }
+      }
+      myWriterLockOwner = current;
+      myWriteRequested = true;
+    }
+    myWriter = current;
+
+    boolean acquired = false;
+    try {
+      for (ReaderSlot slot : mySlots) {
+        if (slot.thread == current) continue;
+        while (slot.reading) {
+          if (Thread.interrupted()) throw new InterruptedException();
+          final long left = deadline - System.nanoTime();
+          if (left <= 0) return false;
+          LockSupport.parkNanos(this, Math.min(left, WRITER_PARK_NS));
+        }
+        if (!slot.thread.isAlive()) {
+          mySlots.remove(slot);
+        }
+      }
+      acquired = true;
+    }
+    finally {
+      if (!acquired) {
+        myWriter = null;
+        synchronized (myWriterLock) {
+          myWriterLockOwner = null;
+          myWriteRequested = false;
+          myWriterLock.notifyAll();
+        }
+      }
+    }
+
+    myWriteHolds = 1;
+    myWriteStarted = System.nanoTime();
+    myWriteWaits.record(myWriteStarted - started);
+    return true;
+  }
+
+  public Sync readLock() {
+    return myReadLock;
+  }
+
+  public Sync writeLock() {
+    return myWriteLock;
+  }
+
+  public boolean isReadLockAcquired() {
+    return mySlot.get().holds > 0;
+  }
+
+  public boolean isWriteLockAcquired() {
+    return myWriter == Thread.currentThread();
+  }
+
+  public boolean isWriteLockAcquired(Thread thread) {
+    return myWriter == thread;
+  }
+
+  /**
+   * @return time readers waited for the writer, only reads that had to wait are counted
+   */
+  public LockHistogram getReadWaits() {
+    return myReadWaits;
+  }
+
+  public LockHistogram getWriteWaits() {
+    return myWriteWaits;
+  }
+
+  public LockHistogram getWriteHoldTimes() {
+    return myWriteHoldTimes;
+  }
+
+  private static class ReaderSlot {
+    private final Thread thread;
+    private volatile boolean reading;
+    private int holds; // accessed by the owner thread only
+
+    private ReaderSlot(Thread thread) {
+      this.thread = thread;
+    }
+  }
+}
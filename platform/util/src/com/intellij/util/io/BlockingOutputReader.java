@@ -0,0 +1,180 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reads process output with blocking reads instead of polling {@link Reader#ready()} and sleeping like {@link OutputReader}:
+ * the thread sleeps in the read until the process writes something, and wakes up at once when it does.
+ * <p/>
+ * All text decoded by one read is passed to {@link #onTextAvailable(String)} at once ("\r\n" is turned into "\n" as in
+ * {@link OutputReader}), or line by line when created with {@code splitToLines}. A line is never held back waiting
+ * for its end, so prompts without a line break are shown as soon as they are written.
+ */
+public abstract class BlockingOutputReader {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.io.BlockingOutputReader");
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // how long a read may block after stop() before the output is considered to be held open by another process
+  private static final long STOP_TIMEOUT_MS = 1000;
+
+  private final Reader myReader;
+  private final boolean mySplitToLines;
+  private final char[] myBuffer = new char[BUFFER_SIZE];
+  private final StringBuilder myText = new StringBuilder();
+  private boolean mySkipLF = false;
+
+  private volatile boolean myStopped = false;
+  private volatile long myStopTime = 0;
+  // no text is reported after waitFor() gave up waiting
+  private volatile boolean myAbandoned = false;
+  // when the current read started, 0 if the thread is not in a read
+  private volatile long myReadStart = 0;
+
+  private final Future<?> myFinishedFuture;
+
+  public BlockingOutputReader(@NotNull Reader reader) {
+    this(reader, false);
+  }
+
+  public BlockingOutputReader(@NotNull Reader reader, boolean splitToLines) {
+    myReader = reader;
+    mySplitToLines = splitToLines;
+    myFinishedFuture = executeOnPooledThread(new Runnable() {
+      public void run() {
+        doRun();
+      }
+    });
+  }
+
+  protected abstract Future<?> executeOnPooledThread(Runnable runnable);
+
+  protected abstract void onTextAvailable(@NotNull String text);
+
+  private void doRun() {
+    try {
+      try {
+        while (true) {
+          myReadStart = System.currentTimeMillis();
+          final int n = myReader.read(myBuffer);
+          myReadStart = 0;
+          if (n < 0 || myAbandoned) {
+            break;
+          }
+          processChars(myBuffer, n);
+          if (myStopped && !myReader.ready()) {
+            break;
+          }
+        }
+        if (mySkipLF) {
+          mySkipLF = false;
+          myText.append('\r');
+          flush();
+        }
+      }
+      finally {
+        myReadStart = 0;
+        myReader.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+    catch (Exception e) {
+      LOG.error(e);
+    }
+  }
+
+  private void processChars(char[] buffer, int n) {
+    // characters between line breaks are copied at once
+    int runStart = 0;
+    for (int i = 0; i < n; i++) {
+      final char c = buffer[i];
+      if (c == '\r') {
+        myText.append(buffer, runStart, i - runStart);
+        if (mySkipLF) {
+          myText.append('\r');
+        }
+        mySkipLF = true;
+        runStart = i + 1;
+        continue;
+      }
+      if (mySkipLF) {
+        mySkipLF = false;
+        if (c != '\n') {
+          myText.append('\r');
+        }
+      }
+      if (c == '\n' && mySplitToLines) {
+        myText.append(buffer, runStart, i + 1 - runStart);
+        runStart = i + 1;
+        flush();
+      }
+    }
+    myText.append(buffer, runStart, n - runStart);
+    flush();
+  }
+
+  private void flush() {
+    if (myText.length() != 0) {
+      if (!myAbandoned) {
+        onTextAvailable(myText.toString());
+      }
+      myText.setLength(0);
+    }
+  }
+
+  /**
+   * Tells the reader that the process has terminated: the output is read till its end or until nothing is left in it.
+   */
+  public void stop() {
+    myStopTime = System.currentTimeMillis();
+    myStopped = true;
+  }
+
+  /**
+   * Waits until the output is read. The output of a process may be held open by the processes it has started; if a read
+   * blocks for a while after {@link #stop()}, the reader stops reporting text and the method returns without waiting more.
+   */
+  public void waitFor() throws InterruptedException {
+    while (true) {
+      try {
+        myFinishedFuture.get(STOP_TIMEOUT_MS / 10, TimeUnit.MILLISECONDS);
+        return;
+      }
+      catch (ExecutionException e) {
+        LOG.error(e);
+        return;
+      }
+      catch (TimeoutException ignored) {
+      }
+      final long readStart = myReadStart;
+      if (myStopped && readStart != 0 && System.currentTimeMillis() - Math.max(readStart, myStopTime) > STOP_TIMEOUT_MS) {
+        myAbandoned = true;
+        LOG.info("Output is not closed " + STOP_TIMEOUT_MS + " ms after the process has terminated");
+        return;
+      }
+    }
+  }
+}
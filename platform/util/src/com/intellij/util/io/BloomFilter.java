@@ -0,0 +1,130 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+
+/**
+ * Bloom filter over key hash codes: answers "definitely absent" for most keys which were never added.
+ * Sized for about 1% false positives while no more than capacity keys are added.
+ */
+final class BloomFilter {
+  private static final int VERSION = 1;
+  private static final int BITS_PER_KEY = 10;
+  private static final int HASH_FUNCTIONS = 7;
+
+  private final long[] myBits;
+  private final int myBitsCount;
+  private final int myCapacity;
+  private int myCount;
+
+  BloomFilter(int capacity) {
+    this(capacity, new long[(int)(((long)capacity * BITS_PER_KEY + 63) / 64)], 0);
+  }
+
+  private BloomFilter(int capacity, long[] bits, int count) {
+    myCapacity = capacity;
+    myBits = bits;
+    myBitsCount = bits.length * 64;
+    myCount = count;
+  }
+
+  void add(int hashCode) {
+    final int h1 = mix(hashCode);
+    final int h2 = mix(hashCode ^ 0x9E3779B9) | 1;
+    for (int i = 0; i < HASH_FUNCTIONS; i++) {
+      final int bit = index(h1 + i * h2);
+      myBits[bit >>> 6] |= 1L << bit;
+    }
+    myCount++;
+  }
+
+  boolean mightContain(int hashCode) {
+    final int h1 = mix(hashCode);
+    final int h2 = mix(hashCode ^ 0x9E3779B9) | 1;
+    for (int i = 0; i < HASH_FUNCTIONS; i++) {
+      final int bit = index(h1 + i * h2);
+      if ((myBits[bit >>> 6] & (1L << bit)) == 0) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return true if more keys than the filter was sized for have been added, so it should be rebuilt bigger
+   */
+  boolean isOverfilled() {
+    return myCount > myCapacity;
+  }
+
+  private int index(int combinedHash) {
+    return (combinedHash & Integer.MAX_VALUE) % myBitsCount;
+  }
+
+  private static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  void save(File file, long stamp) throws IOException {
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(VERSION);
+      out.writeLong(stamp);
+      out.writeInt(myCapacity);
+      out.writeInt(myCount);
+      out.writeInt(myBits.length);
+      for (long word : myBits) {
+        out.writeLong(word);
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @return filter saved with the same stamp or null
+   */
+  @Nullable
+  static BloomFilter load(File file, long stamp) {
+    if (!file.exists()) return null;
+    try {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != VERSION || in.readLong() != stamp) return null;
+        final int capacity = in.readInt();
+        final int count = in.readInt();
+        final long[] bits = new long[in.readInt()];
+        for (int i = 0; i < bits.length; i++) {
+          bits[i] = in.readLong();
+        }
+        return new BloomFilter(capacity, bits, count);
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      return null;
+    }
+  }
+}
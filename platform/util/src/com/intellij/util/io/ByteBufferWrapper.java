@@ -47,9 +47,13 @@ public abstract class ByteBufferWrapper {
     unmap();
   }
 
-  public static ByteBufferWrapper readWrite(final File file, final int offset, final int length) {
-    return NO_MMAP ? new ReadWriteDirectBufferWrapper(file, offset, length)
-                   : new ReadWriteMappedBufferWrapper(file, offset, length);
+  public static ByteBufferWrapper readWrite(final File file, final long offset, final int length) {
+    return readWrite(file, offset, length, NO_MMAP);
+  }
+
+  public static ByteBufferWrapper readWrite(final File file, final long offset, final int length, boolean direct) {
+    return direct ? new ReadWriteDirectBufferWrapper(file, offset, length)
+                  : new ReadWriteMappedBufferWrapper(file, offset, length);
   }
 
   public static ByteBufferWrapper readOnly(final File file, final int offset) {
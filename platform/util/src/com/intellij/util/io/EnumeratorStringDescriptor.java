@@ -26,8 +26,6 @@ import java.io.IOException;
 *         Date: Dec 18, 2007
 */
 public class EnumeratorStringDescriptor implements KeyDescriptor<String> {
-  private final byte[] buffer = IOUtil.allocReadWriteUTFBuffer();
-
   public int getHashCode(final String value) {
     return value.hashCode();
   }
@@ -37,10 +35,10 @@ public class EnumeratorStringDescriptor implements KeyDescriptor<String> {
   }
 
   public void save(final DataOutput storage, @NotNull final String value) throws IOException {
-    IOUtil.writeUTFFast(buffer, storage, value);
+    IOUtil.writeUTFFast(storage, value);
   }
 
   public String read(final DataInput storage) throws IOException {
-    return IOUtil.readUTFFast(buffer, storage);
+    return IOUtil.readUTFFast(storage);
   }
 }
@@ -2,13 +2,71 @@ package com.intellij.util.io;
 
 import com.intellij.openapi.diagnostic.Logger;
 
-class IOStatistics {
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+public class IOStatistics {
   static final boolean DEBUG = System.getProperty("io.access.debug") != null;
   static final int MIN_IO_TIME_TO_REPORT = 100;
   static final Logger LOG = Logger.getInstance("#com.intellij.io.IOStatistics");
   static final int KEYS_FACTOR = 50000;
 
+  private static final Map<PagedFileStorage.StorageLock, Boolean> ourStorageLocks = new WeakHashMap<PagedFileStorage.StorageLock, Boolean>();
+
   static void dump(String msg) {
     LOG.info(msg);
   }
+
+  static void registerStorageLock(PagedFileStorage.StorageLock lock) {
+    synchronized (ourStorageLocks) {
+      ourStorageLocks.put(lock, Boolean.TRUE);
+    }
+  }
+
+  private static List<PagedFileStorage.StorageLock> getStorageLocks() {
+    synchronized (ourStorageLocks) {
+      return new ArrayList<PagedFileStorage.StorageLock>(ourStorageLocks.keySet());
+    }
+  }
+
+  public static long getPageCacheHits() {
+    long result = 0;
+    for (PagedFileStorage.StorageLock lock : getStorageLocks()) {
+      result += lock.getCacheHits();
+    }
+    return result;
+  }
+
+  public static long getPageCacheMisses() {
+    long result = 0;
+    for (PagedFileStorage.StorageLock lock : getStorageLocks()) {
+      result += lock.getCacheMisses();
+    }
+    return result;
+  }
+
+  public static long getPageCacheEvictions() {
+    long result = 0;
+    for (PagedFileStorage.StorageLock lock : getStorageLocks()) {
+      result += lock.getCacheEvictions();
+    }
+    return result;
+  }
+
+  /**
+   * @return page cache state and counters of every storage lock which has been used
+   */
+  public static String getPageCacheStatistics() {
+    final StringBuilder builder = new StringBuilder("Page cache: hits=").append(getPageCacheHits())
+      .append(" misses=").append(getPageCacheMisses())
+      .append(" evictions=").append(getPageCacheEvictions());
+    for (PagedFileStorage.StorageLock lock : getStorageLocks()) {
+      if (lock.getCacheHits() + lock.getCacheMisses() > 0) {
+        builder.append("\n  ").append(lock);
+      }
+    }
+    return builder.toString();
+  }
 }
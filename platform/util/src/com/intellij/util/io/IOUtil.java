@@ -84,6 +84,24 @@ public class IOUtil {
     return new byte[STRING_LENGTH_THRESHOLD + STRING_HEADER_SIZE];
   }
 
+  private static final ThreadLocal<byte[]> ourReadWriteBuffers = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return allocReadWriteUTFBuffer();
+    }
+  };
+
+  /**
+   * Same as {@link #writeUTFFast(byte[], DataOutput, String)} with a per-thread buffer, for descriptors used concurrently
+   */
+  public static void writeUTFFast(final DataOutput storage, @NotNull final String value) throws IOException {
+    writeUTFFast(ourReadWriteBuffers.get(), storage, value);
+  }
+
+  public static String readUTFFast(final DataInput storage) throws IOException {
+    return readUTFFast(ourReadWriteBuffers.get(), storage);
+  }
+
   public static void writeUTFFast(final byte[] buffer, final DataOutput storage, @NotNull final String value) throws IOException {
     int len = value.length();
     if (len < STRING_LENGTH_THRESHOLD && isAscii(value)) {
@@ -46,13 +46,17 @@ class IntToIntBtree {
   private final int myCachedMappingsSize;
 
   public IntToIntBtree(int _pageSize, File file, boolean initial) throws IOException {
+    this(_pageSize, file, PersistentEnumeratorBase.ourLock, initial);
+  }
+
+  public IntToIntBtree(int _pageSize, File file, PagedFileStorage.StorageLock lock, boolean initial) throws IOException {
     pageSize = _pageSize;
 
     if (initial) {
       FileUtil.delete(file);
     }
 
-    storage = new ResizeableMappedFile(file, pageSize, PersistentEnumeratorBase.ourLock, 1024 * 1024, true);
+    storage = new ResizeableMappedFile(file, pageSize, lock, 1024 * 1024, true);
     root = new BtreeIndexNodeView(this);
 
     if (initial) {
@@ -206,6 +210,10 @@ class IntToIntBtree {
     storage.force();
   }
 
+  void setPagesPinned(boolean pinned) {
+    storage.getPagedFileStorage().setPinned(pinned);
+  }
+
   static void myAssert(boolean b) {
     if (!b) {
       myAssert("breakpoint place" != "do not remove");
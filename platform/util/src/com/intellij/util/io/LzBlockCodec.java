@@ -0,0 +1,229 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LZ77 block codec in the spirit of LZ4: greedy matching over a 4-byte hash table and byte-aligned sequences,
+ * so decompression is little more than array copying. Trades compression ratio for speed compared to deflate.
+ * <p/>
+ * Block layout: original length as var-int, then sequences of
+ * [token: literal length (4 bits) | match length - 4 (4 bits)] [extra literal length] [literals] [offset: 2 bytes LE] [extra match length],
+ * the last sequence consisting of literals only. Length nibbles equal to 15 are continued by bytes until one is less than 255.
+ * <p/>
+ * Thread-safe, no state is shared between calls.
+ */
+public class LzBlockCodec {
+  private static final int MIN_MATCH = 4;
+  private static final int HASH_LOG = 12;
+  private static final int MAX_OFFSET = 0xFFFF;
+  private static final int LAST_LITERALS = 5;
+  private static final int MATCH_FIND_LIMIT = 12;
+  private static final int ML_BITS = 4;
+  private static final int ML_MASK = (1 << ML_BITS) - 1;
+  private static final int RUN_MASK = (1 << (8 - ML_BITS)) - 1;
+
+  private LzBlockCodec() {
+  }
+
+  public static byte[] compress(byte[] source) {
+    return compress(source, 0, source.length);
+  }
+
+  public static byte[] compress(byte[] source, int off, int len) {
+    final byte[] dst = new byte[maxCompressedLength(len)];
+    int dOff = writeVarInt(dst, 0, len);
+
+    final int end = off + len;
+    final int matchLimit = end - LAST_LITERALS;
+    final int findLimit = end - MATCH_FIND_LIMIT;
+    int anchor = off;
+
+    if (len >= MATCH_FIND_LIMIT) {
+      // positions relative to off, shifted by one so that zero means an empty slot
+      final int[] table = new int[1 << HASH_LOG];
+      int i = off;
+      while (i < findLimit) {
+        final int sequence = readInt(source, i);
+        final int hash = hash(sequence);
+        final int candidate = table[hash];
+        table[hash] = i - off + 1;
+
+        if (candidate == 0) {
+          i++;
+          continue;
+        }
+
+        int ref = off + candidate - 1;
+        if (i - ref > MAX_OFFSET || readInt(source, ref) != sequence) {
+          i++;
+          continue;
+        }
+
+        while (i > anchor && ref > off && source[i - 1] == source[ref - 1]) {
+          i--;
+          ref--;
+        }
+
+        int matchLength = MIN_MATCH;
+        while (i + matchLength < matchLimit && source[i + matchLength] == source[ref + matchLength]) {
+          matchLength++;
+        }
+
+        dOff = writeSequence(dst, dOff, source, anchor, i - anchor, i - ref, matchLength);
+        i += matchLength;
+        anchor = i;
+      }
+    }
+
+    dOff = writeLastLiterals(dst, dOff, source, anchor, end - anchor);
+    return Arrays.copyOf(dst, dOff);
+  }
+
+  public static byte[] decompress(byte[] compressed) throws IOException {
+    return decompress(compressed, 0, compressed.length);
+  }
+
+  public static byte[] decompress(byte[] compressed, int off, int len) throws IOException {
+    final int end = off + len;
+    int i = off;
+
+    int length = 0;
+    int shift = 0;
+    int b;
+    do {
+      if (i >= end || shift > 28) throw corrupted();
+      b = compressed[i++];
+      length |= (b & 0x7F) << shift;
+      shift += 7;
+    }
+    while ((b & 0x80) != 0);
+    if (length < 0) throw corrupted();
+
+    final byte[] result = new byte[length];
+    int o = 0;
+
+    while (i < end) {
+      final int token = compressed[i++] & 0xFF;
+
+      int literalLength = token >>> ML_BITS;
+      if (literalLength == RUN_MASK) {
+        int l;
+        do {
+          if (i >= end) throw corrupted();
+          l = compressed[i++] & 0xFF;
+          literalLength += l;
+        }
+        while (l == 255);
+      }
+      if (literalLength < 0 || literalLength > end - i || literalLength > length - o) throw corrupted();
+      System.arraycopy(compressed, i, result, o, literalLength);
+      i += literalLength;
+      o += literalLength;
+
+      if (i == end) break;
+
+      if (end - i < 2) throw corrupted();
+      final int offset = (compressed[i] & 0xFF) | ((compressed[i + 1] & 0xFF) << 8);
+      i += 2;
+
+      int matchLength = token & ML_MASK;
+      if (matchLength == ML_MASK) {
+        int l;
+        do {
+          if (i >= end) throw corrupted();
+          l = compressed[i++] & 0xFF;
+          matchLength += l;
+        }
+        while (l == 255);
+      }
+      matchLength += MIN_MATCH;
+
+      final int ref = o - offset;
+      if (offset == 0 || ref < 0 || matchLength < 0 || matchLength > length - o) throw corrupted();
+      if (offset >= matchLength) {
+        System.arraycopy(result, ref, result, o, matchLength);
+      }
+      else {
+        // overlapping match repeats the last offset bytes
+        for (int k = 0; k < matchLength; k++) {
+          result[o + k] = result[ref + k];
+        }
+      }
+      o += matchLength;
+    }
+
+    if (o != length) throw corrupted();
+    return result;
+  }
+
+  public static int maxCompressedLength(int len) {
+    return 5 + len + len / 255 + 16;
+  }
+
+  private static IOException corrupted() {
+    return new IOException("Corrupted LZ block");
+  }
+
+  private static int hash(int sequence) {
+    return (sequence * -1640531535) >>> (32 - HASH_LOG);
+  }
+
+  private static int readInt(byte[] buf, int off) {
+    return (buf[off] & 0xFF) | ((buf[off + 1] & 0xFF) << 8) | ((buf[off + 2] & 0xFF) << 16) | ((buf[off + 3] & 0xFF) << 24);
+  }
+
+  private static int writeVarInt(byte[] dst, int dOff, int value) {
+    while ((value & ~0x7F) != 0) {
+      dst[dOff++] = (byte)((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    dst[dOff++] = (byte)value;
+    return dOff;
+  }
+
+  private static int writeLength(byte[] dst, int dOff, int length) {
+    while (length >= 255) {
+      dst[dOff++] = (byte)255;
+      length -= 255;
+    }
+    dst[dOff++] = (byte)length;
+    return dOff;
+  }
+
+  private static int writeSequence(byte[] dst, int dOff, byte[] src, int literalsOff, int literalLength, int offset, int matchLength) {
+    final int extraMatchLength = matchLength - MIN_MATCH;
+    dst[dOff++] = (byte)((Math.min(literalLength, RUN_MASK) << ML_BITS) | Math.min(extraMatchLength, ML_MASK));
+    if (literalLength >= RUN_MASK) dOff = writeLength(dst, dOff, literalLength - RUN_MASK);
+
+    System.arraycopy(src, literalsOff, dst, dOff, literalLength);
+    dOff += literalLength;
+
+    dst[dOff++] = (byte)offset;
+    dst[dOff++] = (byte)(offset >>> 8);
+    if (extraMatchLength >= ML_MASK) dOff = writeLength(dst, dOff, extraMatchLength - ML_MASK);
+    return dOff;
+  }
+
+  private static int writeLastLiterals(byte[] dst, int dOff, byte[] src, int literalsOff, int literalLength) {
+    dst[dOff++] = (byte)(Math.min(literalLength, RUN_MASK) << ML_BITS);
+    if (literalLength >= RUN_MASK) dOff = writeLength(dst, dOff, literalLength - RUN_MASK);
+    System.arraycopy(src, literalsOff, dst, dOff, literalLength);
+    return dOff + literalLength;
+  }
+}
@@ -30,6 +30,8 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
@@ -76,6 +78,7 @@ public class PagedFileStorage implements Forceable {
   private int myLastChangeCount;
   private int myLastChangeCount2;
   private int myStorageIndex;
+  private volatile boolean myPinned;
 
   private static final int MAX_PAGES_COUNT = 0xFFFF;
   private static final int MAX_LIVE_STORAGES_COUNT = 0xFFFF;
@@ -90,10 +93,77 @@ public class PagedFileStorage implements Forceable {
     }
 
     public StorageLock(boolean checkThreadAccess) {
+      this(checkThreadAccess, UPPER_LIMIT);
+    }
+
+    /**
+     * @param cacheSizeLimit max total size of buffers mapped by storages guarded with this lock
+     */
+    public StorageLock(boolean checkThreadAccess, long cacheSizeLimit) {
+      this(checkThreadAccess, cacheSizeLimit, ByteBufferWrapper.NO_MMAP);
+    }
+
+    /**
+     * @param useDirectBuffers read pages into direct buffers instead of mapping them, see {@link ByteBufferWrapper#NO_MMAP}
+     */
+    public StorageLock(boolean checkThreadAccess, long cacheSizeLimit, boolean useDirectBuffers) {
       this.checkThreadAccess = checkThreadAccess;
+      myUseDirectBuffers = useDirectBuffers;
+      myBuffersCache = new BuffersCache(Math.max(cacheSizeLimit, BUFFER_SIZE));
+      IOStatistics.registerStorageLock(this);
+    }
+
+    public static long getDefaultCacheSizeLimit() {
+      return UPPER_LIMIT;
+    }
+
+    private final boolean myUseDirectBuffers;
+    private final BuffersCache myBuffersCache;
+
+    public boolean isUsingDirectBuffers() {
+      return myUseDirectBuffers;
+    }
+
+    // counters are updated under the lock and read without it, so values reported from other threads may be slightly stale
+
+    public long getCacheHits() {
+      return myBuffersCache.myHits;
+    }
+
+    public long getCacheMisses() {
+      return myBuffersCache.myMisses;
+    }
+
+    public long getCacheEvictions() {
+      return myBuffersCache.myEvictions;
+    }
+
+    /**
+     * @return total size of currently cached pages, pinned ones included
+     */
+    public long getCacheSize() {
+      return myBuffersCache.mySize + myBuffersCache.myPinnedSize;
+    }
+
+    public long getPinnedCacheSize() {
+      return myBuffersCache.myPinnedSize;
     }
 
-    private final BuffersCache myBuffersCache = new BuffersCache();
+    public long getCacheSizeLimit() {
+      return myBuffersCache.mySizeLimit;
+    }
+
+    @Override
+    public String toString() {
+      final long requests = getCacheHits() + getCacheMisses();
+      return (myUseDirectBuffers ? "direct" : "mmap") +
+             " cache=" + getCacheSize() / MB + "MB/" + getCacheSizeLimit() / MB + "MB" +
+             " pinned=" + getPinnedCacheSize() / MB + "MB" +
+             " hits=" + getCacheHits() +
+             " misses=" + getCacheMisses() +
+             " evictions=" + getCacheEvictions() +
+             (requests > 0 ? " hit rate=" + getCacheHits() * 100 / requests + "%" : "");
+    }
     private final ConcurrentHashMap<Integer, PagedFileStorage> myIndex2Storage = new ConcurrentHashMap<Integer, PagedFileStorage>();
     
     private int registerPagedFileStorage(PagedFileStorage storage) {
@@ -112,18 +182,31 @@ public class PagedFileStorage implements Forceable {
       return myIndex2Storage.get(index);
     }
 
+    /**
+     * LRU of the pages of all storages guarded by the lock. Pages of pinned storages are kept aside and are not evicted
+     * while they fit into half of the budget, the LRU part gets what is left of the budget.
+     */
     private class BuffersCache {
       private int changeCount;
       private final LinkedHashMap<Integer, ByteBufferWrapper> myMap;
+      private final Map<Integer, ByteBufferWrapper> myPinnedMap = new HashMap<Integer, ByteBufferWrapper>();
       private long mySizeLimit;
       private long mySize;
+      private long myPinnedSize;
+      private long myHits;
+      private long myMisses;
+      private long myEvictions;
 
-      private BuffersCache() {
-        mySizeLimit = UPPER_LIMIT;
+      private BuffersCache(long sizeLimit) {
+        mySizeLimit = sizeLimit;
         myMap = new LinkedHashMap<Integer, ByteBufferWrapper>(10) {
           @Override
           protected boolean removeEldestEntry(Map.Entry<Integer, ByteBufferWrapper> eldest) {
-            return mySize > mySizeLimit;
+            if (mySize + myPinnedSize > mySizeLimit) {
+              ++myEvictions;
+              return true;
+            }
+            return false;
           }
 
           @Nullable
@@ -142,14 +225,15 @@ public class PagedFileStorage implements Forceable {
 
       private ByteBufferWrapper get(Integer key) {
         ByteBufferWrapper wrapper = myMap.get(key);
+        if (wrapper == null) wrapper = myPinnedMap.get(key);
         if (wrapper != null) {
+          ++myHits;
           return wrapper;
         }
 
+        ++myMisses;
         long started = IOStatistics.DEBUG ? System.currentTimeMillis() : 0;
         wrapper = createValue(key);
-        mySize += wrapper.myLength;
-
         if (IOStatistics.DEBUG) {
           long finished = System.currentTimeMillis();
           if (finished - started > IOStatistics.MIN_IO_TIME_TO_REPORT) {
@@ -157,15 +241,27 @@ public class PagedFileStorage implements Forceable {
               "Mapping " + wrapper.myLength + " from " + wrapper.myPosition + " file:" + wrapper.myFile + " for " + (finished - started));
           }
         }
+
+        final PagedFileStorage owner = getRegisteredPagedFileStorageByIndex(key & FILE_INDEX_MASK);
+        if (owner != null && owner.myPinned && myPinnedSize + wrapper.myLength <= mySizeLimit / 2) {
+          myPinnedSize += wrapper.myLength;
+          myPinnedMap.put(key, wrapper);
+          ensureSize(mySizeLimit - myPinnedSize);
+          return wrapper;
+        }
+
+        mySize += wrapper.myLength;
+
         myMap.put(key, wrapper);
 
-        ensureSize(mySizeLimit);
+        ensureSize(mySizeLimit - myPinnedSize);
         return wrapper;
       }
 
       private void ensureSize(long sizeLimit) {
-        while (mySize > sizeLimit) {
+        while (mySize > sizeLimit && !myMap.isEmpty()) {
           // we still have to drop something
+          ++myEvictions;
           myMap.doRemoveEldestEntry();
         }
       }
@@ -176,12 +272,13 @@ public class PagedFileStorage implements Forceable {
         final int storageIndex = key & FILE_INDEX_MASK;
         PagedFileStorage owner = getRegisteredPagedFileStorageByIndex(storageIndex);
         assert owner != null: "No storage for index " + storageIndex;
-        int off = (key & MAX_PAGES_COUNT) * owner.myPageSize;
+        long off = (long)(key & MAX_PAGES_COUNT) * owner.myPageSize;
         if (off > owner.length()) {
           throw new IndexOutOfBoundsException("off=" + off + " key.owner.length()=" + owner.length());
         }
         ++changeCount;
-        ByteBufferWrapper wrapper = ByteBufferWrapper.readWrite(owner.myFile, off, Math.min((int)(owner.length() - off), owner.myPageSize));
+        ByteBufferWrapper wrapper = ByteBufferWrapper.readWrite(owner.myFile, off, (int)Math.min(owner.length() - off, owner.myPageSize),
+                                                                myUseDirectBuffers);
         IOException oome = null;
         while (true) {
           try {
@@ -201,6 +298,11 @@ public class PagedFileStorage implements Forceable {
                 mySizeLimit -= owner.myPageSize;
               }
               long newSize = mySize - owner.myPageSize;
+              if (newSize < 0 && !myPinnedMap.isEmpty()) {
+                // pinned pages go first when nothing else is left to drop
+                unpinBuffers(0, true);
+                newSize = mySize - owner.myPageSize;
+              }
               if (newSize >= 0) {
                 ensureSize(newSize);
                 continue; // next try
@@ -225,8 +327,14 @@ public class PagedFileStorage implements Forceable {
 
       private @Nullable Map<Integer, ByteBufferWrapper> getBuffersOrderedForOwner(int index) {
         checkThreadAccess();
-        Map<Integer, ByteBufferWrapper> mineBuffers = null;
-        for (Map.Entry<Integer, ByteBufferWrapper> entry : myMap.entrySet()) {
+        Map<Integer, ByteBufferWrapper> mineBuffers = collectBuffersForOwner(myMap, index, null);
+        return collectBuffersForOwner(myPinnedMap, index, mineBuffers);
+      }
+
+      @Nullable
+      private Map<Integer, ByteBufferWrapper> collectBuffersForOwner(Map<Integer, ByteBufferWrapper> map, int index,
+                                                                     @Nullable Map<Integer, ByteBufferWrapper> mineBuffers) {
+        for (Map.Entry<Integer, ByteBufferWrapper> entry : map.entrySet()) {
           if ((entry.getKey() & FILE_INDEX_MASK) == index) {
             if (mineBuffers == null) {
               mineBuffers = new TreeMap<Integer, ByteBufferWrapper>(new Comparator<Integer>() {
@@ -247,11 +355,35 @@ public class PagedFileStorage implements Forceable {
 
         if (buffers != null) {
           for (Integer key : buffers.keySet()) {
-            myMap.remove(key);
+            final ByteBufferWrapper pinned = myPinnedMap.remove(key);
+            if (pinned != null) {
+              myPinnedSize -= pinned.myLength;
+              pinned.dispose();
+            }
+            else {
+              myMap.remove(key);
+            }
           }
         }
       }
 
+      /**
+       * Moves pinned pages of the given storage (of all storages if allOwners is set) to the LRU part of the cache
+       */
+      private void unpinBuffers(int index, boolean allOwners) {
+        checkThreadAccess();
+        for (Iterator<Map.Entry<Integer, ByteBufferWrapper>> iterator = myPinnedMap.entrySet().iterator(); iterator.hasNext(); ) {
+          final Map.Entry<Integer, ByteBufferWrapper> entry = iterator.next();
+          if (allOwners || (entry.getKey() & FILE_INDEX_MASK) == index) {
+            iterator.remove();
+            myPinnedSize -= entry.getValue().myLength;
+            mySize += entry.getValue().myLength;
+            myMap.put(entry.getKey(), entry.getValue());
+          }
+        }
+        ensureSize(mySizeLimit - myPinnedSize);
+      }
+
       private void flushBuffersForOwner(int index) {
         Map<Integer, ByteBufferWrapper> buffers = getBuffersOrderedForOwner(index);
 
@@ -285,15 +417,35 @@ public class PagedFileStorage implements Forceable {
     this(file, lock, BUFFER_SIZE, false);
   }
 
+  public StorageLock getStorageLock() {
+    return myLock;
+  }
+
   public File getFile() {
     return myFile;
   }
 
-  public void putInt(int addr, int value) {
+  /**
+   * Keeps pages of the storage in the cache while they take no more than half of its budget, for small hot storages
+   * which would otherwise be evicted by bulk reads of others. Must be called under the storage lock.
+   */
+  public void setPinned(boolean pinned) {
+    if (myPinned == pinned) return;
+    myPinned = pinned;
+    if (!pinned && myStorageIndex != -1) {
+      myLock.myBuffersCache.unpinBuffers(myStorageIndex, false);
+    }
+  }
+
+  public boolean isPinned() {
+    return myPinned;
+  }
+
+  public void putInt(long addr, int value) {
     if (myValuesAreBufferAligned) {
       isDirty = true;
-      int page = addr / myPageSize;
-      int page_offset = addr % myPageSize;
+      int page = (int)(addr / myPageSize);
+      int page_offset = (int)(addr % myPageSize);
       getBuffer(page).putInt(page_offset, value);
     } else {
       Bits.putInt(myTypedIOBuffer, 0, value);
@@ -301,10 +453,10 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
-  public int getInt(int addr) {
+  public int getInt(long addr) {
     if (myValuesAreBufferAligned) {
-      int page = addr / myPageSize;
-      int page_offset = addr % myPageSize;
+      int page = (int)(addr / myPageSize);
+      int page_offset = (int)(addr % myPageSize);
       return getBuffer(page).getInt(page_offset);
     } else {
       get(addr, myTypedIOBuffer, 0, 4);
@@ -312,11 +464,11 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
-  public final void putShort(int addr, short value) {
+  public final void putShort(long addr, short value) {
     if (myValuesAreBufferAligned) {
       isDirty = true;
-      int page = addr / myPageSize;
-      int page_offset = addr % myPageSize;
+      int page = (int)(addr / myPageSize);
+      int page_offset = (int)(addr % myPageSize);
       getBuffer(page).putShort(page_offset, value);
     } else {
       Bits.putShort(myTypedIOBuffer, 0, value);
@@ -324,18 +476,18 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
-  int getOffsetInPage(int addr) {
-    return addr % myPageSize;
+  int getOffsetInPage(long addr) {
+    return (int)(addr % myPageSize);
   }
   
-  ByteBuffer getByteBuffer(int address) {
-    return getBuffer(address / myPageSize);
+  ByteBuffer getByteBuffer(long address) {
+    return getBuffer((int)(address / myPageSize));
   }
 
-  public final short getShort(int addr) {
+  public final short getShort(long addr) {
     if (myValuesAreBufferAligned) {
-      int page = addr / myPageSize;
-      int page_offset = addr % myPageSize;
+      int page = (int)(addr / myPageSize);
+      int page_offset = (int)(addr % myPageSize);
       return getBuffer(page).getShort(page_offset);
     } else {
       get(addr, myTypedIOBuffer, 0, 2);
@@ -343,11 +495,11 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
-  public void putLong(int addr, long value) {
+  public void putLong(long addr, long value) {
     if (myValuesAreBufferAligned) {
       isDirty = true;
-      int page = addr / myPageSize;
-      int page_offset = addr % myPageSize;
+      int page = (int)(addr / myPageSize);
+      int page_offset = (int)(addr % myPageSize);
       getBuffer(page).putLong(page_offset, value);
     } else {
       Bits.putLong(myTypedIOBuffer, 0, value);
@@ -356,18 +508,18 @@ public class PagedFileStorage implements Forceable {
   }
 
   @SuppressWarnings({"UnusedDeclaration"})
-  public void putByte(final int addr, final byte b) {
+  public void putByte(final long addr, final byte b) {
     put(addr, b);
   }
 
-  public byte getByte(int addr) {
+  public byte getByte(long addr) {
     return get(addr);
   }
 
-  public long getLong(int addr) {
+  public long getLong(long addr) {
     if (myValuesAreBufferAligned) {
-      int page = addr / myPageSize;
-      int page_offset = addr % myPageSize;
+      int page = (int)(addr / myPageSize);
+      int page_offset = (int)(addr % myPageSize);
       return getBuffer(page).getLong(page_offset);
     } else {
       get(addr, myTypedIOBuffer, 0, 8);
@@ -375,29 +527,29 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
-  public byte get(int index) {
-    int page = index / myPageSize;
-    int offset = index % myPageSize;
+  public byte get(long index) {
+    int page = (int)(index / myPageSize);
+    int offset = (int)(index % myPageSize);
 
     return getBuffer(page).get(offset);
   }
 
-  public void put(int index, byte value) {
+  public void put(long index, byte value) {
     isDirty = true;
-    int page = index / myPageSize;
-    int offset = index % myPageSize;
+    int page = (int)(index / myPageSize);
+    int offset = (int)(index % myPageSize);
 
     getBuffer(page).put(offset, value);
   }
 
-  public void get(int index, byte[] dst, int offset, int length) {
-    int i = index;
+  public void get(long index, byte[] dst, int offset, int length) {
+    long i = index;
     int o = offset;
     int l = length;
 
     while (l > 0) {
-      int page = i / myPageSize;
-      int page_offset = i % myPageSize;
+      int page = (int)(i / myPageSize);
+      int page_offset = (int)(i % myPageSize);
 
       int page_len = Math.min(l, myPageSize - page_offset);
       final ByteBuffer buffer = getBuffer(page);
@@ -419,15 +571,15 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
-  public void put(int index, byte[] src, int offset, int length) {
+  public void put(long index, byte[] src, int offset, int length) {
     isDirty = true;
-    int i = index;
+    long i = index;
     int o = offset;
     int l = length;
 
     while (l > 0) {
-      int page = i / myPageSize;
-      int page_offset = i % myPageSize;
+      int page = (int)(i / myPageSize);
+      int page_offset = (int)(i % myPageSize);
 
       int page_len = Math.min(l, myPageSize - page_offset);
       final ByteBuffer buffer = getBuffer(page);
@@ -465,8 +617,8 @@ public class PagedFileStorage implements Forceable {
     myLastBuffer2 = null;
   }
 
-  public void resize(int newSize) throws IOException {
-    int oldSize = (int)myFile.length();
+  public void resize(long newSize) throws IOException {
+    long oldSize = myFile.length();
     if (oldSize == newSize) return;
 
     final long started = IOStatistics.DEBUG ? System.currentTimeMillis():0;
@@ -477,7 +629,7 @@ public class PagedFileStorage implements Forceable {
 
     // it is not guaranteed that new partition will consist of null
     // after resize, so we should fill it manually
-    int delta = newSize - oldSize;
+    long delta = newSize - oldSize;
     if (delta > 0) fillWithZeros(oldSize, delta);
 
     if (IOStatistics.DEBUG) {
@@ -488,7 +640,7 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
-  private void resizeFile(int newSize) throws IOException {
+  private void resizeFile(long newSize) throws IOException {
     RandomAccessFile raf = new RandomAccessFile(myFile, RW);
     try {
       raf.setLength(newSize);
@@ -500,12 +652,12 @@ public class PagedFileStorage implements Forceable {
   }
 
   private final static int MAX_FILLER_SIZE = 8192;
-  private void fillWithZeros(int from, int length) {
+  private void fillWithZeros(long from, long length) {
     byte[] buff = new byte[MAX_FILLER_SIZE];
     Arrays.fill(buff, (byte)0);
 
     while (length > 0) {
-      final int filled = Math.min(length, MAX_FILLER_SIZE);
+      final int filled = (int)Math.min(length, MAX_FILLER_SIZE);
       put(from, buff, 0, filled);
       length -= filled;
       from += filled;
@@ -531,8 +683,11 @@ public class PagedFileStorage implements Forceable {
       if (buf != null && myLastChangeCount2 == myLock.myBuffersCache.changeCount) return buf;
     }
 
+    if (page > MAX_PAGES_COUNT) {
+      throw new MappingFailedException("Page " + page + " is out of addressable range of " + myFile + ", page size=" + myPageSize);
+    }
+
     try {
-      assert page <= MAX_PAGES_COUNT;
 
       if (myStorageIndex == -1) {
         myStorageIndex = myLock.registerPagedFileStorage(this);
@@ -69,14 +69,19 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
   private static final int KEY_SHIFT = 1;
 
   public PersistentBTreeEnumerator(File file, KeyDescriptor<Data> dataDescriptor, int initialSize) throws IOException {
-    super(file, new ResizeableMappedFile(file, initialSize, ourLock, VALUE_PAGE_SIZE, true), dataDescriptor, initialSize,
+    this(file, dataDescriptor, initialSize, ourLock);
+  }
+
+  public PersistentBTreeEnumerator(File file, KeyDescriptor<Data> dataDescriptor, int initialSize, PagedFileStorage.StorageLock lock)
+    throws IOException {
+    super(file, new ResizeableMappedFile(file, initialSize, lock, VALUE_PAGE_SIZE, true), dataDescriptor, initialSize,
           ourVersion, new RecordBufferHandler(), false);
 
     myInlineKeysNoMapping = myDataDescriptor instanceof InlineKeyDescriptor && !wantKeyMapping();
     myExternalKeysNoMapping = !(myDataDescriptor instanceof InlineKeyDescriptor) && !wantKeyMapping();
 
     if (btree == null) {
-      synchronized (ourLock) {
+      synchronized (myStorageLock) {
         storeVars(false);
         initBtree(false);
         storeBTreeVars(false);
@@ -93,7 +98,7 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
   }
 
   private void initBtree(boolean initial) throws IOException {
-    btree = new IntToIntBtree(PAGE_SIZE, indexFile(myFile), initial);
+    btree = new IntToIntBtree(PAGE_SIZE, indexFile(myFile), myStorageLock, initial);
   }
 
   private void storeVars(boolean toDisk) {
@@ -147,6 +152,12 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
     btree.doClose();
   }
 
+  @Override
+  protected void doSetPagesPinned(boolean pinned) {
+    super.doSetPagesPinned(pinned);
+    btree.setPagesPinned(pinned);
+  }
+
   private int allocPage() {
     int pageStart = myLogicalFileLength;
     myLogicalFileLength += PAGE_SIZE;
@@ -170,7 +181,7 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
 
   @Override
   public boolean traverseAllRecords(RecordsProcessor p) throws IOException {
-    synchronized (ourLock) {
+    synchronized (myStorageLock) {
 
       List<IntToIntBtree.BtreeIndexNodeView> leafPages = new ArrayList<IntToIntBtree.BtreeIndexNodeView> ();
       btree.doFlush();
@@ -260,7 +271,7 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
   }
 
   protected synchronized int enumerateImpl(final Data value, final boolean onlyCheckForExisting, boolean saveNewValue) throws IOException {
-    synchronized (ourLock) {
+    synchronized (myStorageLock) {
       if (IntToIntBtree.doDump) System.out.println(value);
       final int valueHC = myDataDescriptor.getHashCode(value);
 
@@ -49,7 +49,12 @@ public class PersistentEnumerator<Data> extends PersistentEnumeratorBase<Data> {
   private static final Version ourVersion = new Version(CORRECTLY_CLOSED_MAGIC, DIRTY_MAGIC);
 
   public PersistentEnumerator(File file, KeyDescriptor<Data> dataDescriptor, int initialSize) throws IOException {
-    super(file, new ResizeableMappedFile(file, initialSize, ourLock), dataDescriptor, initialSize, ourVersion,
+    this(file, dataDescriptor, initialSize, ourLock);
+  }
+
+  public PersistentEnumerator(File file, KeyDescriptor<Data> dataDescriptor, int initialSize, PagedFileStorage.StorageLock lock)
+    throws IOException {
+    super(file, new ResizeableMappedFile(file, initialSize, lock), dataDescriptor, initialSize, ourVersion,
           new RecordBufferHandler(), true);
   }
 
@@ -62,7 +67,7 @@ public class PersistentEnumerator<Data> extends PersistentEnumeratorBase<Data> {
   }
 
   private boolean traverseRecords(int vectorStart, int slotsCount, RecordsProcessor p) throws IOException {
-    synchronized (ourLock) {
+    synchronized (myStorageLock) {
       for (int slotIdx = 0; slotIdx < slotsCount; slotIdx++) {
         final int vector = myStorage.getInt(vectorStart + slotIdx * 4);
         if (vector < 0) {
@@ -79,7 +84,7 @@ public class PersistentEnumerator<Data> extends PersistentEnumeratorBase<Data> {
   }
 
   protected synchronized int enumerateImpl(final Data value, final boolean onlyCheckForExisting, boolean saveNewValue) throws IOException {
-    synchronized (ourLock) {
+    synchronized (myStorageLock) {
       int depth = 0;
       final int valueHC = myDataDescriptor.getHashCode(value);
       int hc = valueHC;
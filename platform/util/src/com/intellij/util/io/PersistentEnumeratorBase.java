@@ -24,6 +24,7 @@ import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.Processor;
 import com.intellij.util.containers.SLRUMap;
 import com.intellij.util.containers.ShareableKey;
+import gnu.trove.TIntArrayList;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
@@ -62,6 +63,12 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
   private Flushable myMarkCleanCallback;
   private final boolean myDoCaching;
 
+  private static final boolean USE_BLOOM_FILTER = Boolean.getBoolean("idea.enumerator.bloom.filter");
+  private static final int MIN_BLOOM_FILTER_CAPACITY = 1024;
+  private volatile boolean myBloomFilterEnabled = USE_BLOOM_FILTER;
+  // loaded or built on the first lookup of a missing key, guarded by this
+  @Nullable private BloomFilter myBloomFilter;
+
   public static class Version {
     private final int correctlyClosedMagic;
     private final int dirtyMagic;
@@ -116,6 +123,7 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
   }
 
   protected static final PagedFileStorage.StorageLock ourLock = new PagedFileStorage.StorageLock();
+  protected final PagedFileStorage.StorageLock myStorageLock;
 
   private static final int ENUMERATION_CACHE_SIZE;
   static {
@@ -154,8 +162,9 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
     }
 
     myStorage = storage;
+    myStorageLock = storage.getPagedFileStorage().getStorageLock();
 
-    synchronized (ourLock) {
+    synchronized (myStorageLock) {
       if (myStorage.length() == 0) {
         try {
           markDirty(true);
@@ -203,7 +212,7 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
       myKeyReadStream = null;
     }
     else {
-      myKeyStorage = new ResizeableMappedFile(keystreamFile(), initialSize, ourLock);
+      myKeyStorage = new ResizeableMappedFile(keystreamFile(), initialSize, myStorageLock);
       myKeyReadStream = new MyDataIS(myKeyStorage);
     }
   }
@@ -238,6 +247,10 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
       }
     }
 
+    if (onlyCheckForExisting && myBloomFilterEnabled && !mightContain(value)) {
+      return NULL_ID;
+    }
+
     final int id;
     try {
       id = enumerateImpl(value, onlyCheckForExisting, saveNewValue);
@@ -269,26 +282,69 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
     boolean accept(int id);
   }
 
+  /**
+   * Bloom filter over the keys lets lookups of missing keys return without reading the storage. It is saved next to
+   * the enumerator on close and rebuilt from the records if the enumerator has not been closed properly.
+   */
+  public synchronized void setBloomFilterEnabled(boolean enabled) {
+    myBloomFilterEnabled = enabled;
+    if (!enabled) {
+      myBloomFilter = null;
+      FileUtil.delete(bloomFilterFile());
+    }
+  }
+
+  private synchronized boolean mightContain(Data value) throws IOException {
+    if (myBloomFilter == null) {
+      synchronized (myStorageLock) {
+        myBloomFilter = myDirty ? null : BloomFilter.load(bloomFilterFile(), myStorage.length());
+        if (myBloomFilter == null) {
+          myBloomFilter = buildBloomFilter();
+        }
+      }
+    }
+    return myBloomFilter.mightContain(myDataDescriptor.getHashCode(value));
+  }
+
+  private BloomFilter buildBloomFilter() throws IOException {
+    final TIntArrayList hashCodes = new TIntArrayList();
+    traverseAllRecords(new RecordsProcessor() {
+      public boolean process(final int record) throws IOException {
+        hashCodes.add(myDataDescriptor.getHashCode(getValue(record, getCurrentKey())));
+        return true;
+      }
+    });
+    final BloomFilter filter = new BloomFilter(Math.max(2 * hashCodes.size(), MIN_BLOOM_FILTER_CAPACITY));
+    for (int i = 0; i < hashCodes.size(); i++) {
+      filter.add(hashCodes.get(i));
+    }
+    return filter;
+  }
+
+  private File bloomFilterFile() {
+    return new File(myFile.getPath() + ".bloom");
+  }
+
   protected void putMetaData(long data) throws IOException {
-    synchronized (ourLock) {
+    synchronized (myStorageLock) {
       myStorage.putLong(META_DATA_OFFSET, data);
     }
   }
 
   protected long getMetaData() throws IOException {
-    synchronized (ourLock) {
+    synchronized (myStorageLock) {
       return myStorage.getLong(META_DATA_OFFSET);
     }
   }
 
   protected void putMetaData2(long data) throws IOException {
-    synchronized (ourLock) {
+    synchronized (myStorageLock) {
       myStorage.putLong(META_DATA_OFFSET + 8, data);
     }
   }
 
   protected long getMetaData2() throws IOException {
-    synchronized (ourLock) {
+    synchronized (myStorageLock) {
       return myStorage.getLong(META_DATA_OFFSET + 8);
     }
   }
@@ -340,7 +396,14 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
         myKeyStorage.put(dataOff, bos.getInternalBuffer(), 0, bos.size());
       }
 
-      return setupValueId(hashCode, dataOff);
+      final int id = setupValueId(hashCode, dataOff);
+      if (myBloomFilter != null) {
+        myBloomFilter.add(hashCode);
+        if (myBloomFilter.isOverfilled()) {
+          myBloomFilter = null; // will be rebuilt bigger
+        }
+      }
+      return id;
     }
     catch (IOException e) {
       throw new RuntimeException(e);
@@ -357,7 +420,7 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
   }
 
   protected boolean iterateData(final Processor<Data> processor) throws IOException {
-    synchronized (ourLock) {
+    synchronized (myStorageLock) {
       if (myKeyStorage == null) {
         throw new UnsupportedOperationException("Iteration over InlineIntegerKeyDescriptors is not supported");
       }
@@ -389,7 +452,7 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
   }
 
   public synchronized Data valueOf(int idx) throws IOException {
-    synchronized (ourLock) {
+    synchronized (myStorageLock) {
       try {
         int addr = indexToAddr(idx);
 
@@ -443,7 +506,7 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
   }
 
   public synchronized void close() throws IOException {
-    synchronized (ourLock) {
+    synchronized (myStorageLock) {
       if (!myClosed) {
         myClosed = true;
         doClose();
@@ -457,6 +520,9 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
         myKeyStorage.close();
       }
       flush();
+      if (myBloomFilter != null && !myDirty) {
+        myBloomFilter.save(bloomFilterFile(), myStorage.length());
+      }
     }
     finally {
       myStorage.close();
@@ -471,8 +537,21 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
     return myDirty;
   }
 
+  /**
+   * @see PagedFileStorage#setPinned(boolean)
+   */
+  public void setPagesPinned(boolean pinned) {
+    synchronized (myStorageLock) {
+      doSetPagesPinned(pinned);
+    }
+  }
+
+  protected void doSetPagesPinned(boolean pinned) {
+    myStorage.getPagedFileStorage().setPinned(pinned);
+  }
+
   private synchronized void flush() throws IOException {
-    synchronized (ourLock) {
+    synchronized (myStorageLock) {
       if (myStorage.isDirty() || isDirty()) {
         doFlush();
       }
@@ -485,7 +564,7 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
   }
 
   public synchronized void force() {
-    synchronized (ourLock) {
+    synchronized (myStorageLock) {
       try {
         if (myKeyStorage != null) {
           myKeyStorage.force();
@@ -499,9 +578,9 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
   }
 
   protected final void markDirty(boolean dirty) throws IOException {
-    //assert Thread.holdsLock(this) || Thread.holdsLock(ourLock); // we hold one lock or another so can access myDirty
+    //assert Thread.holdsLock(this) || Thread.holdsLock(myStorageLock); // we hold one lock or another so can access myDirty
     if (dirty && myDirty && !myDirtyStatusUpdateInProgress) return;
-    synchronized (ourLock) {
+    synchronized (myStorageLock) {
       if (myDirty) {
         if (!dirty) {
           myDirtyStatusUpdateInProgress = true;
@@ -516,6 +595,8 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
       else {
         if (dirty) {
           myDirtyStatusUpdateInProgress = true;
+          // the saved filter misses keys added from now on
+          FileUtil.delete(bloomFilterFile());
           myStorage.putInt(0, myVersion.dirtyMagic);
           myDirtyStatusUpdateInProgress = false;
           myDirty = true;
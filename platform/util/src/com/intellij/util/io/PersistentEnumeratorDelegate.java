@@ -28,8 +28,13 @@ public class PersistentEnumeratorDelegate<Data> implements Closeable, Forceable
   protected final PersistentEnumeratorBase<Data> myEnumerator;
 
   public PersistentEnumeratorDelegate(final File file, KeyDescriptor<Data> dataDescriptor, final int initialSize) throws IOException {
-    myEnumerator = useBtree() ? new PersistentBTreeEnumerator<Data>(file, dataDescriptor, initialSize) :
-                   new PersistentEnumerator<Data>(file, dataDescriptor, initialSize);
+    this(file, dataDescriptor, initialSize, PersistentEnumeratorBase.ourLock);
+  }
+
+  public PersistentEnumeratorDelegate(final File file, KeyDescriptor<Data> dataDescriptor, final int initialSize,
+                                      PagedFileStorage.StorageLock lock) throws IOException {
+    myEnumerator = useBtree() ? new PersistentBTreeEnumerator<Data>(file, dataDescriptor, initialSize, lock) :
+                   new PersistentEnumerator<Data>(file, dataDescriptor, initialSize, lock);
   }
 
   private boolean useBtree() {
@@ -56,6 +61,14 @@ public class PersistentEnumeratorDelegate<Data> implements Closeable, Forceable
     myEnumerator.force();
   }
 
+  public void setPagesPinned(boolean pinned) {
+    myEnumerator.setPagesPinned(pinned);
+  }
+
+  public void setBloomFilterEnabled(boolean enabled) {
+    myEnumerator.setBloomFilterEnabled(enabled);
+  }
+
   public Data valueOf(int id) throws IOException {
     return myEnumerator.valueOf(id);
   }
@@ -18,10 +18,12 @@ package com.intellij.util.io;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.LowMemoryWatcher;
 import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.SystemInfo;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.ByteSequence;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.CommonProcessors;
+import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.Processor;
 import com.intellij.util.containers.LimitedPool;
 import com.intellij.util.containers.SLRUCache;
@@ -30,9 +32,11 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Eugene Zhuravlev
@@ -64,6 +68,22 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private boolean myIntAddressForNewRecord;
   private static final boolean doHardConsistencyChecks = false;
 
+  /**
+   * Values are appended to segment files of this size which are compacted in background one by one,
+   * instead of rewriting the whole value storage when the map is opened
+   */
+  private static final boolean ONLINE_COMPACTION = Boolean.getBoolean("idea.online.compaction");
+  // not final for tests
+  static long ourValuesSegmentSize = ONLINE_COMPACTION ? SystemInfo.getIntProperty("idea.values.segment.size", 64) * 1024L * 1024L
+                                                       : Long.MAX_VALUE;
+  private static final long COMPACTION_STEP_TIME = 50;
+  private static final ScheduledThreadPoolExecutor ourCompactionExecutor =
+    ConcurrencyUtil.newSingleScheduledThreadExecutor("PersistentHashMap compaction", Thread.MIN_PRIORITY);
+
+  @Nullable private IncrementalCompaction myCompaction;
+  @Nullable private ScheduledFuture<?> myCompactionFuture;
+  private long myCompactedBytes;
+
   private static class AppendStream extends DataOutputStream {
     private AppendStream() {
       super(new BufferExposingByteArrayOutputStream());
@@ -108,7 +128,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     }
 
     protected void onDropFromCache(final Key key, final AppendStream value) {
-      synchronized (PersistentEnumerator.ourLock) {
+      synchronized (myEnumerator.myStorageLock) {
         try {
           final ByteSequence bytes = value.getInternalBuffer();
           final int id = enumerate(key);
@@ -140,7 +160,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     public void force() {
       //System.out.println("Flushing caches: " + myFile.getPath());
       synchronized (myEnumerator) {
-        synchronized (PersistentEnumerator.ourLock) {
+        synchronized (myEnumerator.myStorageLock) {
           clearAppenderCaches();
         }
       }
@@ -152,7 +172,20 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   }
   
   public PersistentHashMap(final File file, KeyDescriptor<Key> keyDescriptor, DataExternalizer<Value> valueExternalizer, final int initialSize) throws IOException {
-    super(checkDataFiles(file), keyDescriptor, initialSize);
+    this(file, keyDescriptor, valueExternalizer, initialSize, PersistentEnumeratorBase.ourLock);
+  }
+
+  public PersistentHashMap(final File file, KeyDescriptor<Key> keyDescriptor, DataExternalizer<Value> valueExternalizer,
+                           PagedFileStorage.StorageLock lock) throws IOException {
+    this(file, keyDescriptor, valueExternalizer, INITIAL_INDEX_SIZE, lock);
+  }
+
+  /**
+   * @param lock guards the key storages of the map, maps sharing a lock are accessed one at a time
+   */
+  public PersistentHashMap(final File file, KeyDescriptor<Key> keyDescriptor, DataExternalizer<Value> valueExternalizer, final int initialSize,
+                           PagedFileStorage.StorageLock lock) throws IOException {
+    super(checkDataFiles(file), keyDescriptor, initialSize, lock);
 
     final PersistentEnumeratorBase.RecordBufferHandler<PersistentEnumeratorBase> recordHandler = myEnumerator.getRecordHandler();
     myParentValueRefOffset = recordHandler.getRecordBuffer(myEnumerator).length;
@@ -192,12 +225,16 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
     try {
       myValueExternalizer = valueExternalizer;
-      myValueStorage = PersistentHashMapValueStorage.create(getDataFile(file).getPath());
+      myValueStorage = createValueStorage(getDataFile(file).getPath());
       myLiveAndGarbageKeysCounter = myEnumerator.getMetaData();
       myWatermarkId = (int)myEnumerator.getMetaData2();
       myCanReEnumerate = myEnumerator.canReEnumerate();
 
-      if (makesSenseToCompact()) {
+      if (ONLINE_COMPACTION) {
+        final CompactionTask task = new CompactionTask(this);
+        myCompactionFuture = task.myFuture = ourCompactionExecutor.scheduleWithFixedDelay(task, 1, 1, TimeUnit.SECONDS);
+      }
+      else if (makesSenseToCompact()) {
         compact();
       }
     }
@@ -214,6 +251,37 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     return (int)myLiveAndGarbageKeysCounter;
   }
 
+  /**
+   * @return share of obsolete value versions among all versions stored, estimated from key counters
+   */
+  public double getGarbageRatio() {
+    final long counter = myLiveAndGarbageKeysCounter;
+    final long liveKeys = counter / LIVE_KEY_MASK;
+    final long garbageKeys = counter & 0xFFFFFFFFL;
+    return garbageKeys == 0 ? 0 : (double)garbageKeys / (liveKeys + garbageKeys);
+  }
+
+  /**
+   * @return progress of the running incremental compaction pass from 0 to 1, or -1 if there is none
+   */
+  public double getCompactionProgress() {
+    final IncrementalCompaction compaction = myCompaction;
+    return compaction == null ? -1 : compaction.getProgress();
+  }
+
+  /**
+   * @return bytes reclaimed by incremental compaction since the map was opened
+   */
+  public long getCompactedBytes() {
+    return myCompactedBytes;
+  }
+
+  public long getValueStorageSize() {
+    synchronized (myEnumerator) {
+      return myValueStorage.getDiskSize();
+    }
+  }
+
   public File getBaseFile() {
     return myEnumerator.myFile;
   }
@@ -253,6 +321,10 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     return new File(file.getParentFile(), file.getName() + DATA_FILE_EXTENSION);
   }
 
+  private static PersistentHashMapValueStorage createValueStorage(String path) throws IOException {
+    return PersistentHashMapValueStorage.create(path, ourValuesSegmentSize);
+  }
+
   public final void put(Key key, Value value) throws IOException {
     synchronized (myEnumerator) {
       doPut(key, value);
@@ -260,7 +332,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   }
 
   protected void doPut(Key key, Value value) throws IOException {
-    synchronized (PersistentEnumerator.ourLock) {
+    synchronized (myEnumerator.myStorageLock) {
       myEnumerator.markDirty(true);
       myAppendCache.remove(key);
 
@@ -343,7 +415,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   }
 
   protected Value doGet(Key key) throws IOException {
-    synchronized (PersistentEnumerator.ourLock) {
+    synchronized (myEnumerator.myStorageLock) {
       myAppendCache.remove(key);
       final int id = tryEnumerate(key);
       if (id == PersistentEnumerator.NULL_ID) {
@@ -381,7 +453,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   }
 
   protected boolean doContainsMapping(Key key) throws IOException {
-    synchronized (PersistentEnumerator.ourLock) {
+    synchronized (myEnumerator.myStorageLock) {
       myAppendCache.remove(key);
       final int id = tryEnumerate(key);
       if (id == PersistentEnumerator.NULL_ID) {
@@ -398,7 +470,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   }
 
   protected void doRemove(Key key) throws IOException {
-    synchronized (PersistentEnumerator.ourLock) {
+    synchronized (myEnumerator.myStorageLock) {
       myAppendCache.remove(key);
       final int id = tryEnumerate(key);
       if (id == PersistentEnumerator.NULL_ID) {
@@ -428,7 +500,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   }
 
   protected void doForce() {
-    synchronized (PersistentEnumerator.ourLock) {
+    synchronized (myEnumerator.myStorageLock) {
       try {
         clearAppenderCaches();
       }
@@ -450,8 +522,12 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   }
 
   protected void doClose() throws IOException {
-    synchronized (PersistentEnumerator.ourLock) {
+    synchronized (myEnumerator.myStorageLock) {
       try {
+        if (myCompactionFuture != null) {
+          myCompactionFuture.cancel(false);
+        }
+        myCompaction = null;
         myAppendCacheFlusher.stop();
         myAppendCache.clear();
         myValueStorage.dispose();
@@ -465,6 +541,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   // made public for tests
   public void compact() throws IOException {
     synchronized (myEnumerator) {
+      myCompaction = null;
       final long now = System.currentTimeMillis();
       final String newPath = getDataFile(myEnumerator.myFile).getPath() + ".new";
       final PersistentHashMapValueStorage newStorage = PersistentHashMapValueStorage.create(newPath);
@@ -487,15 +564,182 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       myValueStorage.dispose();
       newStorage.dispose();
 
+      myValueStorage.deleteNewerSegments();
       FileUtil.rename(new File(newPath), getDataFile(myEnumerator.myFile));
 
-      myValueStorage = PersistentHashMapValueStorage.create(getDataFile(myEnumerator.myFile).getPath());
+      myValueStorage = createValueStorage(getDataFile(myEnumerator.myFile).getPath());
       LOG.info("Compacted " + myEnumerator.myFile.getPath() + " in " + (System.currentTimeMillis() - now) + "ms.");
 
       myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
     }
   }
 
+  /**
+   * Runs a part of the online compaction pass for about the given time. A pass first measures live data in every segment
+   * of the value storage, then relocates live values out of the segments which are mostly garbage and deletes them.
+   * The map stays usable between the steps.
+   *
+   * @return true if the pass is not finished yet
+   */
+  public boolean compactIncrementally(long maxTimeMs) throws IOException {
+    synchronized (myEnumerator) {
+      synchronized (myEnumerator.myStorageLock) {
+        if (isClosed()) return false;
+        if (myCompaction == null) {
+          if (myValueStorage.getSegmentsCount() < 2 || getGarbageRatio() < 0.3) return false;
+          myCompaction = new IncrementalCompaction();
+        }
+
+        final long deadline = System.currentTimeMillis() + maxTimeMs;
+        int processed = 0;
+        while (myCompaction.step()) {
+          if (++processed % 64 == 0 && System.currentTimeMillis() >= deadline) return true;
+        }
+        myCompaction = null;
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Runs compaction steps in background; refers to the map weakly so that maps which are never closed can be collected
+   */
+  private static class CompactionTask implements Runnable {
+    private final WeakReference<PersistentHashMap<?, ?>> myMapRef;
+    private volatile ScheduledFuture<?> myFuture;
+
+    private CompactionTask(PersistentHashMap<?, ?> map) {
+      myMapRef = new WeakReference<PersistentHashMap<?, ?>>(map);
+    }
+
+    @Override
+    public void run() {
+      final PersistentHashMap<?, ?> map = myMapRef.get();
+      if (map == null) {
+        final ScheduledFuture<?> future = myFuture;
+        if (future != null) {
+          future.cancel(false);
+        }
+        return;
+      }
+      try {
+        map.compactIncrementally(COMPACTION_STEP_TIME);
+      }
+      catch (IOException e) {
+        LOG.info(e);
+      }
+      catch (RuntimeException e) {
+        LOG.info(e);
+      }
+    }
+  }
+
+  private class IncrementalCompaction {
+    private int[] myIds = new int[1024];
+    private int[] myProcessingKeys = new int[1024];
+    private int myCount;
+    private int myCursor;
+    private boolean myRelocating;
+    private final Map<Long, Long> myLiveSizes = new HashMap<Long, Long>();
+    // only segments which are complete before the live data is measured can be compacted by the pass
+    private final Map<Long, Long> mySegmentSizes = myValueStorage.getFullSegments();
+    private Set<Long> myVictims;
+    private final long myStarted = System.currentTimeMillis();
+
+    private IncrementalCompaction() throws IOException {
+      traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+        public boolean process(final int keyId) throws IOException {
+          addRecord(keyId, getCurrentKey());
+          return true;
+        }
+      });
+    }
+
+    /**
+     * Records which get new ids while the pass runs have to be processed as well
+     */
+    private void addRecord(int keyId, int processingKey) {
+      if (myCount == myIds.length) {
+        myIds = Arrays.copyOf(myIds, myCount * 2);
+        myProcessingKeys = Arrays.copyOf(myProcessingKeys, myCount * 2);
+      }
+      myIds[myCount] = keyId;
+      myProcessingKeys[myCount++] = processingKey;
+    }
+
+    private double getProgress() {
+      return myCount == 0 ? 0 : ((myRelocating ? myCount : 0) + myCursor) / (2.0 * myCount);
+    }
+
+    private boolean step() throws IOException {
+      if (myCursor == myCount) {
+        return myRelocating ? finish() : startRelocation();
+      }
+
+      final int keyId = myIds[myCursor];
+      final int processingKey = myProcessingKeys[myCursor++];
+      final HeaderRecord record = readValueId(keyId);
+      if (record.address == NULL_ADDR) return true;
+
+      if (!myRelocating) {
+        myValueStorage.collectChunkSizes(record.address, myLiveSizes);
+      }
+      else if (myValueStorage.hasChunksInSegments(record.address, myVictims)) {
+        myEnumerator.markDirty(true);
+        final Pair<Long, byte[]> readResult = myValueStorage.readBytes(record.address);
+        long address = readResult.first;
+        if (address == record.address) {
+          address = myValueStorage.appendBytes(new ByteSequence(readResult.second), 0);
+        }
+        updateValueId(keyId, new HeaderRecord(address), record, null, processingKey);
+      }
+      return true;
+    }
+
+    private boolean startRelocation() {
+      myVictims = new HashSet<Long>();
+      for (Map.Entry<Long, Long> entry : mySegmentSizes.entrySet()) {
+        final Long liveSize = myLiveSizes.get(entry.getKey());
+        if (liveSize == null || liveSize * 2 < entry.getValue()) {
+          myVictims.add(entry.getKey());
+        }
+      }
+      if (myVictims.isEmpty()) return false;
+
+      myRelocating = true;
+      myCursor = 0;
+      return true;
+    }
+
+    private boolean finish() {
+      long totalSize = 0;
+      long liveSize = 0;
+      long reclaimed = 0;
+      for (Map.Entry<Long, Long> entry : mySegmentSizes.entrySet()) {
+        final Long live = myLiveSizes.get(entry.getKey());
+        totalSize += entry.getValue();
+        liveSize += live == null ? 0 : live;
+        if (myVictims.contains(entry.getKey())) {
+          reclaimed += entry.getValue() - (live == null ? 0 : live);
+        }
+      }
+      myValueStorage.deleteSegments(myVictims);
+      myCompactedBytes += reclaimed;
+
+      // garbage keys are not tracked per segment, assume they are spread evenly over garbage bytes
+      final long garbageSize = totalSize - liveSize;
+      if (garbageSize > 0) {
+        final long garbageKeys = myLiveAndGarbageKeysCounter & 0xFFFFFFFFL;
+        final long remainingGarbageKeys = (long)(garbageKeys * (double)Math.max(0, garbageSize - reclaimed) / garbageSize);
+        myLiveAndGarbageKeysCounter = myLiveAndGarbageKeysCounter - garbageKeys + remainingGarbageKeys;
+      }
+
+      LOG.info("Compacted " + myVictims.size() + " segments, " + reclaimed + " bytes of " + myEnumerator.myFile.getPath() +
+               " in " + (System.currentTimeMillis() - myStarted) + "ms.");
+      return false;
+    }
+  }
+
   private HeaderRecord readValueId(final int keyId) {
     long address = myEnumerator.myStorage.getInt(keyId + myParentValueRefOffset);
     if (address == 0 || address == -POSITIVE_VALUE_SHIFT) {
@@ -532,8 +776,12 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         if (keyId < myWatermarkId && (oldValue == null || canUseIntAddressForNewRecord(oldValue.address))) {
           // keyId is result of enumerate, if we do reenumerate then it is no longer accessible unless somebody cached it
           myIntAddressForNewRecord = false;
-          keyId = myEnumerator.reenumerate(key == null ? myEnumerator.getValue(keyId, processingKey) : key);
+          final Key reenumerated = key == null ? myEnumerator.getValue(keyId, processingKey) : key;
+          keyId = myEnumerator.reenumerate(reenumerated);
           ++transformedKeys;
+          if (myCompaction != null) {
+            myCompaction.addRecord(keyId, myEnumerator.myDataDescriptor.getHashCode(reenumerated));
+          }
         }
       }
     }
@@ -21,21 +21,32 @@ package com.intellij.util.io;
 
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.containers.SLRUCache;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Append-only log of value chunks. The log may be split into segment files: once the last segment grows over the segment size
+ * appends go to a new file named after its start address, so segments without live chunks can be deleted one by one.
+ * Addresses are global for all segments and never reused. A marker file is created with the second segment, storages
+ * without it are a single file.
+ */
 public class PersistentHashMapValueStorage {
   @Nullable
-  private RAReader myCompactionModeReader = null;
+  private Map<String, RAReader> myCompactionModeReaders = null;
   private long mySize;
   private final File myFile;
   private final String myPath;
+  private final long mySegmentSize;
+  private final List<Segment> mySegments = new ArrayList<Segment>(); // ordered by start address, the last one is appended to
   private boolean myCompactionMode = false;
 
+  private static final String SEGMENTS_MARKER_EXTENSION = ".segmented";
   private static final int CACHE_PROTECTED_QUEUE_SIZE = 10;
   private static final int CACHE_PROBATIONAL_QUEUE_SIZE = 20;
 
@@ -59,15 +70,65 @@ public class PersistentHashMapValueStorage {
   };
 
   public PersistentHashMapValueStorage(String path) throws IOException {
+    this(path, Long.MAX_VALUE);
+  }
+
+  public PersistentHashMapValueStorage(String path, long segmentSize) throws IOException {
     myPath = path;
     myFile = new File(path);
-    mySize = myFile.length();
+    mySegmentSize = segmentSize;
+    loadSegments();
 
     if (mySize == 0) {
       appendBytes(new ByteSequence("Header Record For PersistentHashMapValuStorage".getBytes()), 0);
     }
   }
 
+  private void loadSegments() {
+    if (!getSegmentsMarker().exists()) {
+      mySegments.add(new Segment(0, myPath, myFile.length()));
+      mySize = myFile.length();
+      return;
+    }
+
+    if (myFile.exists()) {
+      mySegments.add(new Segment(0, myPath, myFile.length()));
+    }
+    final String prefix = myFile.getName() + ".";
+    final File[] files = myFile.getAbsoluteFile().getParentFile().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        final String name = file.getName();
+        if (name.startsWith(prefix) && name.length() > prefix.length() && isDigits(name, prefix.length())) {
+          final long start = Long.parseLong(name.substring(prefix.length()));
+          mySegments.add(new Segment(start, file.getPath(), start + file.length()));
+        }
+      }
+    }
+    Collections.sort(mySegments, new Comparator<Segment>() {
+      @Override
+      public int compare(Segment o1, Segment o2) {
+        return o1.myStart < o2.myStart ? -1 : o1.myStart == o2.myStart ? 0 : 1;
+      }
+    });
+
+    if (mySegments.isEmpty()) {
+      mySegments.add(new Segment(0, myPath, 0));
+    }
+    mySize = getHeadSegment().myEnd;
+  }
+
+  private File getSegmentsMarker() {
+    return new File(myPath + SEGMENTS_MARKER_EXTENSION);
+  }
+
+  private static boolean isDigits(String s, int from) {
+    for (int i = from; i < s.length(); i++) {
+      if (!Character.isDigit(s.charAt(i))) return false;
+    }
+    return true;
+  }
+
   private long smallWrites;
   private int smallWritesCount;
   private long largeWrites;
@@ -80,8 +141,11 @@ public class PersistentHashMapValueStorage {
 
   public long appendBytes(ByteSequence data, long prevChunkAddress) throws IOException {
     assert !myCompactionMode;
+    if (mySize - getHeadSegment().myStart >= mySegmentSize) {
+      startNewSegment();
+    }
     long result = mySize;
-    final CacheValue<DataOutputStream> appender = ourAppendersCache.get(myPath);
+    final CacheValue<DataOutputStream> appender = ourAppendersCache.get(getHeadSegment().myPath);
     int dataLength = data.getLength();
     int serviceFieldsSizeIncrease;
 
@@ -116,6 +180,45 @@ public class PersistentHashMapValueStorage {
     return result;
   }
 
+  private void startNewSegment() throws IOException {
+    final File marker = getSegmentsMarker();
+    if (!marker.exists() && !FileUtil.createIfDoesntExist(marker)) {
+      throw new IOException("Cannot create " + marker);
+    }
+    final Segment head = getHeadSegment();
+    ourAppendersCache.remove(head.myPath);
+    head.myEnd = mySize;
+    mySegments.add(new Segment(mySize, myPath + "." + mySize, mySize));
+  }
+
+  private Segment getHeadSegment() {
+    return mySegments.get(mySegments.size() - 1);
+  }
+
+  private int findSegment(long address) {
+    int low = 0;
+    int high = mySegments.size() - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final Segment segment = mySegments.get(mid);
+      if (address < segment.myStart) {
+        high = mid - 1;
+      }
+      else if (mid + 1 < mySegments.size() && address >= mySegments.get(mid + 1).myStart) {
+        low = mid + 1;
+      }
+      else {
+        // the address may point into a deleted segment following this one
+        return address < getSegmentEnd(mid) ? mid : -1;
+      }
+    }
+    return -1;
+  }
+
+  private long getSegmentEnd(int index) {
+    return index + 1 < mySegments.size() ? mySegments.get(index).myEnd : mySize;
+  }
+
   private final byte[] myBuffer = new byte[1024];
 
   /**
@@ -128,17 +231,13 @@ public class PersistentHashMapValueStorage {
     int chunkCount = 0;
 
     byte[] result = null;
-    RAReader reader = myCompactionModeReader;
-    CacheValue<RAReader> readerHandle = null;
-    if (reader == null) {
-      readerHandle = ourReadersCache.get(myPath);
-      reader = readerHandle.get();
-    }
+    final SegmentReader reader = new SegmentReader();
 
     try {
       while (chunk != 0) {
         if (chunk < 0 || chunk > mySize) throw new PersistentEnumeratorBase.CorruptedException(myFile);
-        int len = (int)Math.min(myBuffer.length, mySize - chunk);
+        final long end = reader.seek(chunk);
+        int len = (int)Math.min(myBuffer.length, end - chunk);
         reader.get(chunk, myBuffer, 0, len);
 
         final int sizePart = myBuffer[0];
@@ -173,9 +272,7 @@ public class PersistentHashMapValueStorage {
       }
     }
     finally {
-      if (readerHandle != null) {
-        readerHandle.release();
-      }
+      reader.release();
     }
 
     if (chunkCount > 1 && !myCompactionMode) {
@@ -190,6 +287,116 @@ public class PersistentHashMapValueStorage {
     return mySize;
   }
 
+  /**
+   * @return total length of segment files, unlike {@link #getSize()} it does not include deleted segments
+   */
+  public long getDiskSize() {
+    long size = 0;
+    for (int i = 0; i < mySegments.size(); i++) {
+      size += getSegmentEnd(i) - mySegments.get(i).myStart;
+    }
+    return size;
+  }
+
+  public int getSegmentsCount() {
+    return mySegments.size();
+  }
+
+  /**
+   * @return start addresses of segments mapped to their lengths, the segment being appended to is not included
+   */
+  public Map<Long, Long> getFullSegments() {
+    final Map<Long, Long> result = new LinkedHashMap<Long, Long>();
+    for (int i = 0; i < mySegments.size() - 1; i++) {
+      result.put(mySegments.get(i).myStart, getSegmentEnd(i) - mySegments.get(i).myStart);
+    }
+    return result;
+  }
+
+  /**
+   * Adds sizes of the chunks of the value to the sizes of segments they are stored in
+   */
+  public void collectChunkSizes(long tailChunkAddress, final Map<Long, Long> segmentSizes) throws IOException {
+    processChunks(tailChunkAddress, new ChunkProcessor() {
+      @Override
+      public boolean process(long segmentStart, int chunkLength) {
+        final Long size = segmentSizes.get(segmentStart);
+        segmentSizes.put(segmentStart, (size == null ? 0 : size.longValue()) + chunkLength);
+        return true;
+      }
+    });
+  }
+
+  public boolean hasChunksInSegments(long tailChunkAddress, final Set<Long> segmentStarts) throws IOException {
+    return !processChunks(tailChunkAddress, new ChunkProcessor() {
+      @Override
+      public boolean process(long segmentStart, int chunkLength) {
+        return !segmentStarts.contains(segmentStart);
+      }
+    });
+  }
+
+  private interface ChunkProcessor {
+    boolean process(long segmentStart, int chunkLength);
+  }
+
+  private boolean processChunks(long tailChunkAddress, ChunkProcessor processor) throws IOException {
+    force();
+
+    long chunk = tailChunkAddress;
+    final SegmentReader reader = new SegmentReader();
+    try {
+      while (chunk != 0) {
+        if (chunk < 0 || chunk > mySize) throw new PersistentEnumeratorBase.CorruptedException(myFile);
+        final long end = reader.seek(chunk);
+        reader.get(chunk, myBuffer, 0, (int)Math.min(INT_LENGTH_LONG_ADDRESS, end - chunk));
+
+        final int sizePart = myBuffer[0];
+        final int chunkLength;
+        if (sizePart < 0) {
+          chunkLength = -sizePart - POSITIVE_VALUE_SHIFT + BYTE_LENGTH_INT_ADDRESS;
+          chunk = Bits.getInt(myBuffer, 1);
+        }
+        else {
+          chunkLength = Bits.getInt(myBuffer, 0) + INT_LENGTH_LONG_ADDRESS;
+          chunk = Bits.getLong(myBuffer, 4);
+        }
+        if (!processor.process(reader.mySegment.myStart, chunkLength)) return false;
+      }
+    }
+    finally {
+      reader.release();
+    }
+    return true;
+  }
+
+  /**
+   * Deletes files of the given segments, no live value may have chunks in them
+   */
+  public void deleteSegments(Collection<Long> segmentStarts) {
+    for (Iterator<Segment> iterator = mySegments.iterator(); iterator.hasNext(); ) {
+      final Segment segment = iterator.next();
+      if (segmentStarts.contains(segment.myStart)) {
+        assert segment != getHeadSegment();
+        iterator.remove();
+        ourReadersCache.remove(segment.myPath);
+        FileUtil.delete(new File(segment.myPath));
+      }
+    }
+  }
+
+  /**
+   * Deletes all segment files except the first one, for use after {@link #dispose()}
+   */
+  public void deleteNewerSegments() {
+    for (Segment segment : mySegments) {
+      if (segment.myStart != 0) {
+        FileUtil.delete(new File(segment.myPath));
+      }
+    }
+    FileUtil.delete(getSegmentsMarker());
+  }
+
   private static void checkPreconditions(final byte[] result, final int chunkSize, final int off) throws IOException {
     if (chunkSize < 0) {
       throw new IOException("Value storage corrupted: negative chunk size");
@@ -203,7 +410,7 @@ public class PersistentHashMapValueStorage {
   }
 
   public void force() {
-    final CacheValue<DataOutputStream> cached = ourAppendersCache.getIfCached(myPath);
+    final CacheValue<DataOutputStream> cached = ourAppendersCache.getIfCached(getHeadSegment().myPath);
     if (cached != null) {
       try {
         cached.get().flush();
@@ -218,19 +425,25 @@ public class PersistentHashMapValueStorage {
   }
 
   public void dispose() {
-    ourReadersCache.remove(myPath);
-    ourAppendersCache.remove(myPath);
+    for (Segment segment : mySegments) {
+      ourReadersCache.remove(segment.myPath);
+      ourAppendersCache.remove(segment.myPath);
+    }
 
-    if (myCompactionModeReader != null) {
-      myCompactionModeReader.dispose();
-      myCompactionModeReader = null;
+    if (myCompactionModeReaders != null) {
+      for (RAReader reader : myCompactionModeReaders.values()) {
+        reader.dispose();
+      }
+      myCompactionModeReaders = null;
     }
   }
 
   public void switchToCompactionMode() {
-    ourReadersCache.remove(myPath);
+    for (Segment segment : mySegments) {
+      ourReadersCache.remove(segment.myPath);
+    }
     // in compaction mode use faster reader
-    myCompactionModeReader = new FileReader(myFile);
+    myCompactionModeReaders = new HashMap<String, RAReader>();
     myCompactionMode = true;
   }
 
@@ -238,6 +451,70 @@ public class PersistentHashMapValueStorage {
     return new PersistentHashMapValueStorage(path);
   }
 
+  public static PersistentHashMapValueStorage create(final String path, long segmentSize) throws IOException {
+    return new PersistentHashMapValueStorage(path, segmentSize);
+  }
+
+  private static class Segment {
+    private final long myStart;
+    private final String myPath;
+    // end address of a complete segment, the end of the segment being appended to is the storage size
+    private long myEnd;
+
+    private Segment(long start, String path, long end) {
+      myStart = start;
+      myPath = path;
+      myEnd = end;
+    }
+  }
+
+  /**
+   * Reads chunks by global addresses keeping the reader of the current segment
+   */
+  private class SegmentReader {
+    private Segment mySegment;
+    private RAReader myReader;
+    private CacheValue<RAReader> myHandle;
+
+    /**
+     * @return end address of the segment containing the address
+     */
+    private long seek(long address) throws IOException {
+      final int index = findSegment(address);
+      if (index == -1) throw new PersistentEnumeratorBase.CorruptedException(myFile);
+      final Segment segment = mySegments.get(index);
+      if (segment != mySegment) {
+        release();
+        mySegment = segment;
+        if (myCompactionModeReaders != null) {
+          myReader = myCompactionModeReaders.get(segment.myPath);
+          if (myReader == null) {
+            myReader = new FileReader(new File(segment.myPath));
+            myCompactionModeReaders.put(segment.myPath, myReader);
+          }
+        }
+        else {
+          myHandle = ourReadersCache.get(segment.myPath);
+          myReader = myHandle.get();
+        }
+      }
+      return getSegmentEnd(index);
+    }
+
+    private void get(long address, byte[] dst, int off, int len) throws IOException {
+      myReader.get(address - mySegment.myStart, dst, off, len);
+    }
+
+    private void release() {
+      if (myHandle != null) {
+        myHandle.release();
+        myHandle = null;
+      }
+      mySegment = null;
+      myReader = null;
+    }
+  }
+
   private interface RAReader {
     void get(long addr, byte[] dst, int off, int len) throws IOException;
     void dispose();
@@ -3,6 +3,7 @@ package com.intellij.util.io;
 import com.intellij.util.Processor;
 
 import java.io.IOException;
+import java.util.Collection;
 
 /**
  * @author Dmitry Avdeev
@@ -14,6 +15,14 @@ public interface PersistentMap<K, V> {
 
   void put(K key, V value) throws IOException;
 
+  void appendData(K key, PersistentHashMap.ValueDataAppender appender) throws IOException;
+
+  void remove(K key) throws IOException;
+
+  boolean containsMapping(K key) throws IOException;
+
+  Collection<K> getAllKeysWithExistingMapping() throws IOException;
+
   boolean processKeys(Processor<K> processor) throws IOException;
 
 
@@ -28,10 +28,25 @@ import java.io.*;
 public class ResizeableMappedFile implements Forceable {
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.io.ResizeableMappedFile");
 
+  /**
+   * Default size limit, kept for storages which use int file offsets as record ids (enumerators, b-trees).
+   */
+  public static final long INT_ADDRESS_SPACE = Integer.MAX_VALUE;
+
   private long myLogicalSize;
+  private final long myMaxSize;
   private final PagedFileStorage myStorage;
 
   public ResizeableMappedFile(final File file, int initialSize, PagedFileStorage.StorageLock lock, int pageSize, boolean valuesAreBufferAligned) throws IOException {
+    this(file, initialSize, lock, pageSize, valuesAreBufferAligned, INT_ADDRESS_SPACE);
+  }
+
+  /**
+   * @param maxSize upper bound for the file size, storages addressed with long offsets may pass {@link Long#MAX_VALUE} here
+   */
+  public ResizeableMappedFile(final File file, int initialSize, PagedFileStorage.StorageLock lock, int pageSize, boolean valuesAreBufferAligned,
+                              long maxSize) throws IOException {
+    myMaxSize = maxSize;
     myStorage = new PagedFileStorage(file, lock, pageSize, valuesAreBufferAligned);
     boolean exists = file.exists();
     if (!exists || file.length() == 0) {
@@ -59,7 +74,7 @@ public class ResizeableMappedFile implements Forceable {
     return myStorage.length();
   }
 
-  private void resize(final int size) {
+  private void resize(final long size) {
     try {
       myStorage.resize(size);
     }
@@ -69,7 +84,9 @@ public class ResizeableMappedFile implements Forceable {
   }
 
   void ensureSize(final long pos) {
-    if (pos + 16 > Integer.MAX_VALUE) throw new RuntimeException("FATAL ERROR: Can't get over 2^32 address space");
+    if (pos + 16 > myMaxSize) {
+      throw new RuntimeException("FATAL ERROR: Can't get over " + myMaxSize + " bytes of address space in " + myStorage.getFile());
+    }
     myLogicalSize = Math.max(pos, myLogicalSize);
     while (pos >= realSize()) {
       expand();
@@ -77,8 +94,8 @@ public class ResizeableMappedFile implements Forceable {
   }
 
   private void expand() {
-    final long newSize = Math.min(Integer.MAX_VALUE, ((realSize() + 1) * 13) >> 3);
-    resize((int)newSize);
+    final long newSize = Math.min(myMaxSize, ((realSize() + 1) * 13) >> 3);
+    resize(newSize);
   }
 
   private File getLengthFile() {
@@ -144,47 +161,47 @@ public class ResizeableMappedFile implements Forceable {
     }
   }
 
-  public int getInt(int index) {
+  public int getInt(long index) {
     return myStorage.getInt(index);
   }
 
-  public void putInt(int index, int value) {
+  public void putInt(long index, int value) {
     ensureSize(index + 4);
     myStorage.putInt(index, value);
   }
 
-  public short getShort(int index) {
+  public short getShort(long index) {
     return myStorage.getShort(index);
   }
 
-  public void putShort(int index, short value) {
+  public void putShort(long index, short value) {
     ensureSize(index + 2);
     myStorage.putShort(index, value);
   }
 
-  public long getLong(int index) {
+  public long getLong(long index) {
     return myStorage.getLong(index);
   }
 
-  public void putLong(int index, long value) {
+  public void putLong(long index, long value) {
     ensureSize(index + 8);
     myStorage.putLong(index, value);
   }
 
-  public byte get(int index) {
+  public byte get(long index) {
     return myStorage.get(index);
   }
 
-  public void put(int index, byte value) {
+  public void put(long index, byte value) {
     ensureSize(index + 1);
     myStorage.put(index, value);
   }
 
-  public void get(int index, byte[] dst, int offset, int length) {
+  public void get(long index, byte[] dst, int offset, int length) {
     myStorage.get(index, dst, offset, length);
   }
 
-  public void put(int index, byte[] src, int offset, int length) {
+  public void put(long index, byte[] src, int offset, int length) {
     ensureSize(index + length);
     myStorage.put(index, src, offset, length);
   }
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.Factory;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.CommonProcessors;
+import com.intellij.util.Processor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Persistent map sharded by key hash into independent {@link PersistentHashMap} segments, each one with its own
+ * enumerator, value storage and storage lock. {@link PersistentHashMap} serializes all operations on a single monitor
+ * (and all maps share one storage lock), here operations on keys from different segments run in parallel.
+ * <p/>
+ * Segment i of every segmented map is guarded by the same storage lock, so the number of mapped buffers stays bounded.
+ * The segments count is stored next to the map and cannot be changed later: opening the map with a different count,
+ * or over files of a plain {@link PersistentHashMap}, fails with {@link PersistentEnumeratorBase.CorruptedException}.
+ * <p/>
+ * Descriptors often keep buffers in fields, so segments running in parallel must not share them: pass factories to give
+ * every segment descriptors of its own. Descriptors passed as instances are shared by all segments, calls to them are
+ * serialized by a lock per descriptor unless they are known to have no state (see {@link #synchronizedKeyDescriptor}).
+ */
+public class SegmentedPersistentHashMap<Key, Value> implements PersistentMap<Key, Value> {
+  public static final int DEFAULT_SEGMENTS_COUNT = 8;
+  private static final String SEGMENTS_FILE_EXTENSION = ".segments";
+
+  private static final PagedFileStorage.StorageLock[] ourLocks = new PagedFileStorage.StorageLock[DEFAULT_SEGMENTS_COUNT];
+  static {
+    for (int i = 0; i < ourLocks.length; i++) {
+      ourLocks[i] = new PagedFileStorage.StorageLock(true, PagedFileStorage.StorageLock.getDefaultCacheSizeLimit() / ourLocks.length);
+    }
+  }
+
+  private final File myFile;
+  private final KeyDescriptor<Key> myKeyDescriptor;
+  private final PersistentHashMap<Key, Value>[] mySegments;
+  private final int mySegmentMask;
+
+  public SegmentedPersistentHashMap(File file, KeyDescriptor<Key> keyDescriptor, DataExternalizer<Value> valueExternalizer) throws IOException {
+    this(file, keyDescriptor, valueExternalizer, DEFAULT_SEGMENTS_COUNT);
+  }
+
+  /**
+   * @param segmentsCount power of two
+   */
+  public SegmentedPersistentHashMap(File file, KeyDescriptor<Key> keyDescriptor, final DataExternalizer<Value> valueExternalizer,
+                                    int segmentsCount) throws IOException {
+    this(file, sharedFactory(synchronizedKeyDescriptor(keyDescriptor)),
+         valueExternalizer == null ? null : sharedFactory(synchronizedExternalizer(valueExternalizer)), segmentsCount);
+  }
+
+  /**
+   * @param keyDescriptorFactory     creates a key descriptor per segment and one more to choose segments by key hash codes
+   * @param valueExternalizerFactory creates a value externalizer per segment
+   * @param segmentsCount            power of two
+   */
+  public SegmentedPersistentHashMap(File file,
+                                    Factory<? extends KeyDescriptor<Key>> keyDescriptorFactory,
+                                    @Nullable Factory<? extends DataExternalizer<Value>> valueExternalizerFactory,
+                                    int segmentsCount) throws IOException {
+    assert segmentsCount > 0 && (segmentsCount & (segmentsCount - 1)) == 0 : segmentsCount;
+    myFile = file;
+    myKeyDescriptor = synchronizedKeyDescriptor(keyDescriptorFactory.create());
+    mySegmentMask = segmentsCount - 1;
+
+    checkSegmentsCount(file, segmentsCount);
+
+    //noinspection unchecked
+    mySegments = (PersistentHashMap<Key, Value>[])new PersistentHashMap<?, ?>[segmentsCount];
+    try {
+      for (int i = 0; i < segmentsCount; i++) {
+        mySegments[i] = createSegment(getSegmentFile(file, i), keyDescriptorFactory.create(),
+                                      valueExternalizerFactory == null ? null : valueExternalizerFactory.create(),
+                                      ourLocks[i % ourLocks.length]);
+      }
+    }
+    catch (IOException e) {
+      closeSegments();
+      throw e;
+    }
+    catch (RuntimeException e) {
+      closeSegments();
+      throw e;
+    }
+  }
+
+  /**
+   * @param keyDescriptor     the key descriptor of the segment
+   * @param valueExternalizer the value externalizer of the segment
+   */
+  protected PersistentHashMap<Key, Value> createSegment(File file, KeyDescriptor<Key> keyDescriptor, DataExternalizer<Value> valueExternalizer,
+                                                        PagedFileStorage.StorageLock lock) throws IOException {
+    return new PersistentHashMap<Key, Value>(file, keyDescriptor, valueExternalizer, lock);
+  }
+
+  /**
+   * @return key descriptor which may be shared by segments running in parallel; descriptors without state
+   *         ({@link InlineKeyDescriptor}s and {@link EnumeratorStringDescriptor}) are returned as is
+   */
+  public static <T> KeyDescriptor<T> synchronizedKeyDescriptor(final KeyDescriptor<T> descriptor) {
+    if (isStateless(descriptor) || descriptor instanceof SynchronizedKeyDescriptor) return descriptor;
+    return new SynchronizedKeyDescriptor<T>(descriptor);
+  }
+
+  /**
+   * @return value externalizer which may be shared by segments running in parallel, see {@link #synchronizedKeyDescriptor}
+   */
+  public static <T> DataExternalizer<T> synchronizedExternalizer(final DataExternalizer<T> externalizer) {
+    if (isStateless(externalizer) || externalizer instanceof SynchronizedExternalizer) return externalizer;
+    return new SynchronizedExternalizer<T>(externalizer);
+  }
+
+  private static boolean isStateless(DataExternalizer<?> externalizer) {
+    // subclasses may add state
+    return externalizer instanceof InlineKeyDescriptor || externalizer.getClass() == EnumeratorStringDescriptor.class;
+  }
+
+  private static <T> Factory<T> sharedFactory(final T instance) {
+    return new Factory<T>() {
+      @Override
+      public T create() {
+        return instance;
+      }
+    };
+  }
+
+  private static void checkSegmentsCount(File file, int segmentsCount) throws IOException {
+    final File segmentsFile = getSegmentsFile(file);
+    if (segmentsFile.exists()) {
+      if (readSegmentsCount(segmentsFile) != segmentsCount) throw new PersistentEnumeratorBase.CorruptedException(file);
+    }
+    else {
+      if (file.exists()) {
+        // files of a non-segmented map
+        throw new PersistentEnumeratorBase.CorruptedException(file);
+      }
+      FileUtil.createParentDirs(segmentsFile);
+      final DataOutputStream out = new DataOutputStream(new FileOutputStream(segmentsFile));
+      try {
+        out.writeInt(segmentsCount);
+      }
+      finally {
+        out.close();
+      }
+    }
+  }
+
+  private static int readSegmentsCount(File segmentsFile) throws IOException {
+    final DataInputStream in = new DataInputStream(new FileInputStream(segmentsFile));
+    try {
+      return in.readInt();
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return true if segmented map files exist for the given base file
+   */
+  public static boolean exists(File file) {
+    return getSegmentsFile(file).exists();
+  }
+
+  public static void deleteFiles(File file) {
+    final File segmentsFile = getSegmentsFile(file);
+    int segmentsCount = DEFAULT_SEGMENTS_COUNT;
+    try {
+      if (segmentsFile.exists()) segmentsCount = readSegmentsCount(segmentsFile);
+    }
+    catch (IOException ignored) {
+    }
+    for (int i = 0; i < segmentsCount; i++) {
+      PersistentHashMap.deleteFilesStartingWith(getSegmentFile(file, i));
+    }
+    FileUtil.delete(segmentsFile);
+  }
+
+  private static File getSegmentsFile(File file) {
+    return new File(file.getParentFile(), file.getName() + SEGMENTS_FILE_EXTENSION);
+  }
+
+  private static File getSegmentFile(File file, int index) {
+    return new File(file.getParentFile(), file.getName() + ".segment" + index);
+  }
+
+  public File getBaseFile() {
+    return myFile;
+  }
+
+  @NotNull
+  public PersistentHashMap<Key, Value> getSegment(Key key) {
+    final int hash = myKeyDescriptor.getHashCode(key);
+    // mix the bits since many key hash codes differ in the higher bits only
+    return mySegments[(hash ^ (hash >>> 16) ^ (hash >>> 8)) & mySegmentMask];
+  }
+
+  @Override
+  public Value get(Key key) throws IOException {
+    return getSegment(key).get(key);
+  }
+
+  @Override
+  public void put(Key key, Value value) throws IOException {
+    getSegment(key).put(key, value);
+  }
+
+  @Override
+  public void appendData(Key key, PersistentHashMap.ValueDataAppender appender) throws IOException {
+    getSegment(key).appendData(key, appender);
+  }
+
+  @Override
+  public void remove(Key key) throws IOException {
+    getSegment(key).remove(key);
+  }
+
+  @Override
+  public boolean containsMapping(Key key) throws IOException {
+    return getSegment(key).containsMapping(key);
+  }
+
+  @Override
+  public boolean processKeys(Processor<Key> processor) throws IOException {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      if (!segment.processKeys(processor)) return false;
+    }
+    return true;
+  }
+
+  public boolean processKeysWithExistingMapping(Processor<Key> processor) throws IOException {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      if (!segment.processKeysWithExistingMapping(processor)) return false;
+    }
+    return true;
+  }
+
+  @Override
+  public Collection<Key> getAllKeysWithExistingMapping() throws IOException {
+    final List<Key> keys = new ArrayList<Key>();
+    processKeysWithExistingMapping(new CommonProcessors.CollectProcessor<Key>(keys));
+    return keys;
+  }
+
+  @Override
+  public boolean isClosed() {
+    return mySegments[0].isClosed();
+  }
+
+  @Override
+  public boolean isDirty() {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      if (segment.isDirty()) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void force() {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      segment.force();
+    }
+  }
+
+  @Override
+  public void markDirty() throws IOException {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      segment.markDirty();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOException exception = null;
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      try {
+        segment.close();
+      }
+      catch (IOException e) {
+        if (exception == null) exception = e;
+      }
+    }
+    if (exception != null) throw exception;
+  }
+
+  private static class SynchronizedExternalizer<T> implements DataExternalizer<T> {
+    private final DataExternalizer<T> myExternalizer;
+
+    private SynchronizedExternalizer(DataExternalizer<T> externalizer) {
+      myExternalizer = externalizer;
+    }
+
+    @Override
+    public void save(DataOutput out, T value) throws IOException {
+      synchronized (myExternalizer) {
+        myExternalizer.save(out, value);
+      }
+    }
+
+    @Override
+    public T read(DataInput in) throws IOException {
+      synchronized (myExternalizer) {
+        return myExternalizer.read(in);
+      }
+    }
+  }
+
+  private static class SynchronizedKeyDescriptor<T> extends SynchronizedExternalizer<T> implements KeyDescriptor<T> {
+    private final KeyDescriptor<T> myDescriptor;
+
+    private SynchronizedKeyDescriptor(KeyDescriptor<T> descriptor) {
+      super(descriptor);
+      myDescriptor = descriptor;
+    }
+
+    @Override
+    public int getHashCode(T value) {
+      synchronized (myDescriptor) {
+        return myDescriptor.getHashCode(value);
+      }
+    }
+
+    @Override
+    public boolean isEqual(T val1, T val2) {
+      synchronized (myDescriptor) {
+        return myDescriptor.isEqual(val1, val2);
+      }
+    }
+  }
+
+  private void closeSegments() {
+    for (PersistentHashMap<Key, Value> segment : mySegments) {
+      if (segment != null) {
+        try {
+          segment.close();
+        }
+        catch (IOException ignored) {
+        }
+      }
+    }
+  }
+}
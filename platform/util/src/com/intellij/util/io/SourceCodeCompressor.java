@@ -21,20 +21,35 @@ package com.intellij.util.io;
 
 import org.jetbrains.annotations.NonNls;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
+/**
+ * Deflate with a preset dictionary tuned for source code. Thread-safe: every call borrows its own
+ * {@link Deflater}/{@link Inflater} from a small pool instead of serializing on a shared one.
+ */
 public class SourceCodeCompressor {
-  private final static VaultOutputStream OUTPUT;
   private final static byte[] PRESET_BUF;
-  private final static Deflater DEFLATER;
-  private final static Inflater INFLATER;
-  private final static byte[] INFLATE_BUFFER;
+  private static final int MAX_POOLED_COUNT = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+  private static final Pool<DeflateContext> ourDeflaters = new Pool<DeflateContext>() {
+    @Override
+    protected DeflateContext create() {
+      return new DeflateContext();
+    }
+  };
+  private static final Pool<InflateContext> ourInflaters = new Pool<InflateContext>() {
+    @Override
+    protected InflateContext create() {
+      return new InflateContext();
+    }
+  };
 
   private SourceCodeCompressor() {
   }
@@ -54,72 +69,118 @@ public class SourceCodeCompressor {
       "titleframecaret<a href=\"http://</a><div </div><td </td><tr </tr><p </p><hscripttext/css<img src=" +
       "<!--><link rel=width=height=align=span=centerrightleftstyle=celljsp:rootxmlns:avascript";
     PRESET_BUF = preset_buf_string.getBytes();
-    OUTPUT = new VaultOutputStream();
-    DEFLATER = new Deflater(Deflater.BEST_COMPRESSION);
-    INFLATER = new Inflater();
-    INFLATE_BUFFER = new byte[4096];
   }
 
-  public static synchronized byte[] compress(byte[] source, int off, int len) {
+  public static byte[] compress(byte[] source, int off, int len) {
+    final DeflateContext context = ourDeflaters.borrow();
     try {
-      DEFLATER.reset();
-      DEFLATER.setDictionary(PRESET_BUF);
-      try {
-        DeflaterOutputStream output = null;
-        try {
-          output = new DeflaterOutputStream(OUTPUT, DEFLATER);
-          output.write(source, off, len);
-        }
-        finally {
-          if (output != null) {
-            output.close();
-          }
-        }
-      }
-      catch (IOException e) {
-        return source;
+      final Deflater deflater = context.myDeflater;
+      deflater.reset();
+      deflater.setDictionary(PRESET_BUF);
+      deflater.setInput(source, off, len);
+      deflater.finish();
+      while (!deflater.finished()) {
+        final int count = deflater.deflate(context.myBuffer);
+        context.myOutput.write(context.myBuffer, 0, count);
       }
-      return OUTPUT.toByteArray();
+      return context.myOutput.toByteArray();
     }
     finally {
-      OUTPUT.reset();
+      context.myOutput.reset();
+      ourDeflaters.release(context);
     }
-
   }
 
-  public static synchronized byte[] compress(byte[] source) {
+  public static byte[] compress(byte[] source) {
     return compress(source, 0, source.length);
   }
 
-  public static synchronized byte[] decompress(byte[] compressed) throws IOException {
+  public static byte[] decompress(byte[] compressed) throws IOException {
     final int len = compressed.length;
     final int off = 0;
     return decompress(compressed, len, off);
   }
 
   public static byte[] decompress(final byte[] compressed, final int len, final int off) throws IOException {
-    INFLATER.reset();
-    InflaterInputStream input = null;
+    final InflateContext context = ourInflaters.borrow();
     try {
-      input = new InflaterInputStream(new ByteArrayInputStream(compressed, off, len), INFLATER);
-      final int b = input.read();
-      if (b == -1) {
-        INFLATER.setDictionary(PRESET_BUF);
-      }
-      else {
-        OUTPUT.write(b);
-      }
-      int readBytes;
-      while ((readBytes = input.read(INFLATE_BUFFER)) > 0) {
-        OUTPUT.write(INFLATE_BUFFER, 0, readBytes);
+      final Inflater inflater = context.myInflater;
+      inflater.reset();
+      inflater.setInput(compressed, off, len);
+      while (!inflater.finished()) {
+        final int count = inflater.inflate(context.myBuffer);
+        if (count == 0) {
+          if (inflater.needsDictionary()) {
+            inflater.setDictionary(PRESET_BUF);
+          }
+          else if (inflater.needsInput() && !inflater.finished()) {
+            throw new EOFException("Unexpected end of compressed data");
+          }
+        }
+        else {
+          context.myOutput.write(context.myBuffer, 0, count);
+        }
       }
-      return OUTPUT.toByteArray();
+      return context.myOutput.toByteArray();
+    }
+    catch (DataFormatException e) {
+      throw new IOException(e.getMessage());
     }
     finally {
-      if (input != null) {
-        input.close();
+      context.myOutput.reset();
+      ourInflaters.release(context);
+    }
+  }
+
+  /**
+   * Keeps up to {@link #MAX_POOLED_COUNT} contexts, extra ones are disposed on release so that native zlib memory is freed eagerly.
+   */
+  private abstract static class Pool<T extends Context> {
+    private final ConcurrentLinkedQueue<T> myQueue = new ConcurrentLinkedQueue<T>();
+    private final AtomicInteger mySize = new AtomicInteger();
+
+    protected abstract T create();
+
+    T borrow() {
+      final T context = myQueue.poll();
+      if (context == null) return create();
+      mySize.decrementAndGet();
+      return context;
+    }
+
+    void release(T context) {
+      if (mySize.incrementAndGet() <= MAX_POOLED_COUNT) {
+        myQueue.offer(context);
       }
-      OUTPUT.reset();
+      else {
+        mySize.decrementAndGet();
+        context.dispose();
+      }
+    }
+  }
+
+  private abstract static class Context {
+    final VaultOutputStream myOutput = new VaultOutputStream();
+    final byte[] myBuffer = new byte[4096];
+
+    abstract void dispose();
+  }
+
+  private static class DeflateContext extends Context {
+    final Deflater myDeflater = new Deflater(Deflater.BEST_COMPRESSION);
+
+    @Override
+    void dispose() {
+      myDeflater.end();
+    }
+  }
+
+  private static class InflateContext extends Context {
+    final Inflater myInflater = new Inflater();
+
+    @Override
+    void dispose() {
+      myInflater.end();
     }
   }
 
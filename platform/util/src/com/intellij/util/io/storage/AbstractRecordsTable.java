@@ -99,12 +99,12 @@ public abstract class AbstractRecordsTable implements Disposable, Forceable {
   }
 
   public int getRecordsCount() throws IOException {
-    int recordsLength = (int)myStorage.length() - getHeaderSize();
+    long recordsLength = myStorage.length() - getHeaderSize();
     if ((recordsLength % getRecordSize()) != 0) {
       throw new IOException(MessageFormat.format("Corrupted records: storageLength={0} recordsLength={1} recordSize={2}",
                                                  myStorage.length(), recordsLength, getRecordSize()));
     }
-    return recordsLength / getRecordSize();
+    return (int)(recordsLength / getRecordSize());
   }
 
   private void ensureFreeRecordsScanned() throws IOException {
@@ -154,9 +154,9 @@ public abstract class AbstractRecordsTable implements Disposable, Forceable {
     myStorage.putInt(getOffset(record, CAPACITY_OFFSET), capacity);
   }
 
-  protected int getOffset(int record, int section) {
+  protected long getOffset(int record, int section) {
     assert record > 0;
-    return getHeaderSize() + (record - 1) * getRecordSize() + section;
+    return getHeaderSize() + (long)(record - 1) * getRecordSize() + section;
   }
 
   public void deleteRecord(final int record) throws IOException {
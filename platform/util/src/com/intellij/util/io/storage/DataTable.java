@@ -35,12 +35,14 @@ class DataTable implements Disposable, Forceable {
   private static final int HEADER_SIZE = 32;
   private static final int DIRTY_MAGIC = 0x12ad34e4;
   private static final int SAFELY_CLOSED_MAGIC = 0x1f2f3f4f;
+  private static final int SAFELY_CLOSED_LONG_WASTE_MAGIC = 0x1f2f3f50;
 
   private final RandomAccessDataFile myFile;
-  private volatile int myWasteSize;
+  private volatile long myWasteSize;
 
   private static final int HEADER_MAGIC_OFFSET = 0;
   private static final int HEADER_WASTE_SIZE_OFFSET = 4;
+  private static final int HEADER_LONG_WASTE_SIZE_OFFSET = 8;
   private boolean myIsDirty = false;
 
   public DataTable(final File filePath, final PagePool pool) throws IOException {
@@ -59,11 +61,17 @@ class DataTable implements Disposable, Forceable {
 
   private void readInHeader(File filePath) throws IOException {
     int magic = myFile.getInt(HEADER_MAGIC_OFFSET);
-    if (magic != SAFELY_CLOSED_MAGIC) {
+    if (magic == SAFELY_CLOSED_LONG_WASTE_MAGIC) {
+      myWasteSize = myFile.getLong(HEADER_LONG_WASTE_SIZE_OFFSET);
+    }
+    else if (magic == SAFELY_CLOSED_MAGIC) {
+      // storages written before data files could grow past 2G keep the waste counter as int
+      myWasteSize = myFile.getInt(HEADER_WASTE_SIZE_OFFSET);
+    }
+    else {
       myFile.dispose();
       throw new IOException("Records table for '" + filePath + "' haven't been closed correctly. Rebuild required.");
     }
-    myWasteSize = myFile.getInt(HEADER_WASTE_SIZE_OFFSET);
   }
 
   public void readBytes(long address, byte[] bytes) {
@@ -126,7 +134,7 @@ class DataTable implements Disposable, Forceable {
   private void markClean() {
     if (myIsDirty) {
       myIsDirty = false;
-      fillInHeader(SAFELY_CLOSED_MAGIC, myWasteSize);
+      fillInHeader(SAFELY_CLOSED_LONG_WASTE_MAGIC, myWasteSize);
     }
   }
 
@@ -137,12 +145,12 @@ class DataTable implements Disposable, Forceable {
     }
   }
 
-  private void fillInHeader(int magic, int wasteSize) {
+  private void fillInHeader(int magic, long wasteSize) {
     myFile.putInt(HEADER_MAGIC_OFFSET, magic);
-    myFile.putInt(HEADER_WASTE_SIZE_OFFSET, wasteSize);
+    myFile.putLong(HEADER_LONG_WASTE_SIZE_OFFSET, wasteSize);
   }
 
-  public int getWaste() {
+  public long getWaste() {
     return myWasteSize;
   }
 
@@ -50,14 +50,14 @@ class RefCountingRecordsTable extends AbstractRecordsTable {
   public void incRefCount(int record) {
     markDirty();
 
-    int offset = getOffset(record, REF_COUNT_OFFSET);
+    long offset = getOffset(record, REF_COUNT_OFFSET);
     myStorage.putInt(offset, myStorage.getInt(offset) + 1);
   }
 
   public boolean decRefCount(int record) {
     markDirty();
 
-    int offset = getOffset(record, REF_COUNT_OFFSET);
+    long offset = getOffset(record, REF_COUNT_OFFSET);
     int count = myStorage.getInt(offset);
     assert count > 0;
     count--;
@@ -24,6 +24,7 @@ import com.intellij.openapi.util.io.ByteSequence;
 import com.intellij.openapi.util.io.StreamUtil;
 import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.containers.ConcurrentHashMap;
+import com.intellij.util.io.LzBlockCodec;
 import com.intellij.util.io.PagePool;
 
 import java.io.ByteArrayInputStream;
@@ -44,6 +45,10 @@ public class RefCountingStorage extends AbstractStorage {
   });
 
   private final boolean myDoNotZipCaches = Boolean.valueOf(System.getProperty("idea.doNotZipCaches")).booleanValue();
+  private final boolean myUseFastCodec = Boolean.valueOf(System.getProperty("idea.fast.content.codec")).booleanValue();
+
+  // zlib streams always start with 0x78 for the default 32K window, so a different first byte tells the codecs apart
+  private static final byte LZ_BLOCK_MARKER = 0x01;
 
   public RefCountingStorage(String path) throws IOException {
     super(path);
@@ -55,16 +60,18 @@ public class RefCountingStorage extends AbstractStorage {
     if (myDoNotZipCaches) return super.readBytes(record);
     waitForPendingWriteForRecord(record);
 
-    synchronized (myLock) {
+    // only the raw read needs the storage lock, decompression of different records may run in parallel
+    byte[] result = super.readBytes(record);
+    if (result.length > 0 && result[0] == LZ_BLOCK_MARKER) {
+      return LzBlockCodec.decompress(result, 1, result.length - 1);
+    }
 
-      byte[] result = super.readBytes(record);
-      InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(result));
-      try {
-        return StreamUtil.loadFromStream(in);
-      }
-      finally {
-        in.close();
-      }
+    InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(result));
+    try {
+      return StreamUtil.loadFromStream(in);
+    }
+    finally {
+      in.close();
     }
   }
 
@@ -100,12 +107,18 @@ public class RefCountingStorage extends AbstractStorage {
         @Override
         public Object call() throws IOException {
           BufferExposingByteArrayOutputStream s = new BufferExposingByteArrayOutputStream();
-          DeflaterOutputStream out = new DeflaterOutputStream(s);
-          try {
-            out.write(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
+          if (myUseFastCodec) {
+            s.write(LZ_BLOCK_MARKER);
+            s.write(LzBlockCodec.compress(bytes.getBytes(), bytes.getOffset(), bytes.getLength()));
           }
-          finally {
-            out.close();
+          else {
+            DeflaterOutputStream out = new DeflaterOutputStream(s);
+            try {
+              out.write(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
+            }
+            finally {
+              out.close();
+            }
           }
 
           synchronized (myLock) {
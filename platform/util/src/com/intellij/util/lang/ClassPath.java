@@ -33,10 +33,17 @@ import java.io.PrintStream;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 class ClassPath {
   private final Stack<URL> myUrls = new Stack<URL>();
-  private final ArrayList<Loader> myLoaders = new ArrayList<Loader>();
+  // loaders are only appended, so the ones already created are read without locking
+  private final List<Loader> myLoaders = new CopyOnWriteArrayList<Loader>();
+  // all URLs have loaders, a lookup missing the created loaders needs no lock
+  private volatile boolean myAllUrlsProcessed;
   private final HashMap<URL,Loader> myLoadersMap = new HashMap<URL, Loader>();
   private final ClasspathCache myCache = new ClasspathCache();
 
@@ -56,6 +63,20 @@ class ClassPath {
 
   private final boolean myAcceptUnescapedUrls;
 
+  // a persistent index replaces the cache built from the loaders when the initial class path consists of jars only
+  private static final boolean ourUseIndex = !"false".equals(System.getProperty("idea.classpath.index"));
+  static final boolean ourLogStatistics = "true".equals(System.getProperty("idea.classpath.statistics"));
+  private static final AtomicInteger ourLoadersCreated = new AtomicInteger();
+  private static final AtomicLong ourLoadersCreationNs = new AtomicLong();
+  private static final AtomicLong ourCacheBuildingNs = new AtomicLong();
+  private static final AtomicLong ourIndexLoadingNs = new AtomicLong();
+  private static boolean ourStatisticsReported;
+
+  @Nullable private ClasspathIndex myIndex;
+  // loaders of the jars covered by the index, created when a resource is first looked up in them
+  private URL[] myIndexedUrls;
+  private AtomicReferenceArray<Loader> myIndexedLoaders;
+
   private static synchronized void printOrder(Loader loader, String url, Resource resource) {
     if (!ourOrderedUrls.add(url)) return;
     try {
@@ -100,7 +121,79 @@ class ClassPath {
     myCanLockJars = canLockJars;
     myCanUseCache = canUseCache;
     myAcceptUnescapedUrls = acceptUnescapedUrls;
-    push(urls);
+    if (canUseCache && ourUseIndex && loadIndex(urls)) {
+      myIndexedUrls = urls;
+      myIndexedLoaders = new AtomicReferenceArray<Loader>(urls.length);
+    }
+    else {
+      push(urls);
+    }
+    if (ourLogStatistics) {
+      reportStatisticsOnShutdown();
+    }
+  }
+
+  private boolean loadIndex(URL[] urls) {
+    final List<File> jars = new ArrayList<File>(urls.length);
+    for (URL url : urls) {
+      final File file = getFile(url);
+      if (file == null || !FILE_PROTOCOL.equals(url.getProtocol()) || !file.isFile()) return false;
+      jars.add(file);
+    }
+    final File indexFile = getIndexFile(jars);
+
+    final long started = System.nanoTime();
+    try {
+      myIndex = ClasspathIndex.load(indexFile, jars);
+    }
+    catch (IOException e) {
+      myIndex = null;
+    }
+    ourIndexLoadingNs.addAndGet(System.nanoTime() - started);
+
+    if (myIndex == null) {
+      // this time the cache is built from the loaders, the index is for the next start
+      final Thread thread = new Thread("Classpath index builder") {
+        public void run() {
+          final long started = System.nanoTime();
+          try {
+            ClasspathIndex.build(indexFile, jars);
+            if (ourLogStatistics) {
+              System.out.println("Classpath index of " + jars.size() + " jars built in " + (System.nanoTime() - started) / 1000000 + " ms");
+            }
+          }
+          catch (IOException e) {
+            if (ourLogStatistics) {
+              System.out.println("Cannot build classpath index " + indexFile + ": " + e);
+            }
+          }
+        }
+      };
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      thread.start();
+    }
+    return myIndex != null;
+  }
+
+  private static File getIndexFile(List<File> jars) {
+    int hash = 0;
+    for (File jar : jars) {
+      hash = 31 * hash + jar.getPath().hashCode();
+    }
+    return new File(PathManager.getSystemPath(), "classpath" + File.separator + Integer.toHexString(hash) + ".index");
+  }
+
+  private static synchronized void reportStatisticsOnShutdown() {
+    if (ourStatisticsReported) return;
+    ourStatisticsReported = true;
+    ShutDownTracker.getInstance().registerShutdownTask(new Runnable() {
+      public void run() {
+        System.out.println("Classpath statistics: " + ourLoadersCreated.get() + " loaders created in " +
+                           ourLoadersCreationNs.get() / 1000000 + " ms, caches built in " + ourCacheBuildingNs.get() / 1000000 +
+                           " ms, indices loaded in " + ourIndexLoadingNs.get() / 1000000 + " ms");
+      }
+    });
   }
 
   void addURL(URL url) {
@@ -114,6 +207,22 @@ class ClassPath {
     try {
       int i;
       if (myCanUseCache) {
+        if (myIndex != null) {
+          for (int id : myIndex.getJarIndices(s)) {
+            final Loader loader = getIndexedLoader(id);
+            if (loader == null) continue;
+            final Resource resource = loader.getResource(s, flag);
+            if (resource != null) {
+              if (ourDumpOrder) {
+                printOrder(loader, s, resource);
+              }
+              return resource;
+            }
+          }
+        }
+
+        // a loader is added to the list after its cache is built, so the cache covers all loaders counted before it's asked
+        final int cachedLoadersCount = myLoaders.size();
         final List<Loader> loaders = myCache.getLoaders(s);
         for (Loader loader : loaders) {
           final Resource resource = loader.getResource(s, flag);
@@ -125,11 +234,7 @@ class ClassPath {
           }
         }
 
-        synchronized (myUrls) {
-          if (myUrls.isEmpty()) return null;
-        }
-
-        i = myLoaders.size();
+        i = cachedLoadersCount;
       }
       else {
         i = 0;
@@ -157,11 +262,22 @@ class ClassPath {
   }
 
   @Nullable
-  private synchronized Loader getLoader(int i) {
+  private Loader getLoader(int i) {
+    if (i < myLoaders.size()) {
+      return myLoaders.get(i);
+    }
+    return myAllUrlsProcessed ? null : createLoaders(i);
+  }
+
+  @Nullable
+  private synchronized Loader createLoaders(int i) {
     while (myLoaders.size() < i + 1) {
       URL url;
       synchronized (myUrls) {
-        if (myUrls.empty()) return null;
+        if (myUrls.empty()) {
+          myAllUrlsProcessed = true;
+          return null;
+        }
         url = myUrls.pop();
       }
 
@@ -183,8 +299,27 @@ class ClassPath {
     return myLoaders.get(i);
   }
 
+  /**
+   * Threads needing the same jar at once may create a loader each, only one of them is kept.
+   */
   @Nullable
-  private Loader getLoader(final URL url) throws IOException {
+  private Loader getIndexedLoader(int id) {
+    final Loader loader = myIndexedLoaders.get(id);
+    if (loader != null) return loader;
+    try {
+      final Loader newLoader = getLoader(myIndexedUrls[id], false);
+      if (newLoader == null || myIndexedLoaders.compareAndSet(id, null, newLoader)) {
+        return newLoader;
+      }
+      return myIndexedLoaders.get(id);
+    }
+    catch (IOException e) {
+      return null;
+    }
+  }
+
+  @Nullable
+  private File getFile(final URL url) {
     String s;
     if (myAcceptUnescapedUrls) {
       s = url.getFile();
@@ -196,9 +331,21 @@ class ClassPath {
         s = url.getFile();
       }
     }
+    return s != null ? new File(s) : null;
+  }
+
+  @Nullable
+  private Loader getLoader(final URL url) throws IOException {
+    return getLoader(url, myCanUseCache);
+  }
+
+  @Nullable
+  private Loader getLoader(final URL url, boolean buildCache) throws IOException {
+    final long started = System.nanoTime();
+    final File file = getFile(url);
 
     Loader loader = null;
-    if (s != null  && new File(s).isDirectory()) {
+    if (file != null && file.isDirectory()) {
       if (FILE_PROTOCOL.equals(url.getProtocol())) {
         loader = new FileLoader(url);
       }
@@ -209,13 +356,18 @@ class ClassPath {
       loader = jarLoader;
     }
 
-    if (loader != null && myCanUseCache) {
+    final long created = System.nanoTime();
+    ourLoadersCreated.incrementAndGet();
+    ourLoadersCreationNs.addAndGet(created - started);
+
+    if (loader != null && buildCache) {
       try {
         loader.buildCache(myCache);
       }
       catch (Throwable e) {
         // TODO: log can't create loader
       }
+      ourCacheBuildingNs.addAndGet(System.nanoTime() - created);
     }
 
     return loader;
@@ -224,6 +376,7 @@ class ClassPath {
   private void push(URL[] urls) {
     synchronized (myUrls) {
       for (int i = urls.length - 1; i >= 0; i--) myUrls.push(urls[i]);
+      myAllUrlsProcessed = false;
 
     }
   }
@@ -233,15 +386,25 @@ class ClassPath {
     private Resource myRes = null;
     private final String myName;
     private final boolean myCheck;
+    private final int[] myJarIndices;
+    private int myJarIndex = 0;
 
     public MyEnumeration(String name, boolean check) {
       myName = name;
       myCheck = check;
+      myJarIndices = myCanUseCache && ClassPath.this.myIndex != null ? ClassPath.this.myIndex.getJarIndices(name) : new int[0];
     }
 
     private boolean next() {
       if (myRes != null) return true;
 
+      while (myJarIndex < myJarIndices.length) {
+        final Loader loader = getIndexedLoader(myJarIndices[myJarIndex++]);
+        if (loader == null) continue;
+        myRes = loader.getResource(myName, myCheck);
+        if (myRes != null) return true;
+      }
+
       Loader loader;
       while ((loader = getLoader(myIndex++)) != null) {
         myRes = loader.getResource(myName, myCheck);
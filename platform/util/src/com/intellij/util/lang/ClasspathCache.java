@@ -21,33 +21,61 @@ package com.intellij.util.lang;
 
 import com.intellij.util.SmartList;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Thread-safe: lists of loaders are never changed once returned, a new list replaces the old one when a loader is added.
+ */
 public class ClasspathCache {
   private final Map<String, List<Loader>> myClassPackagesCache = new HashMap<String, List<Loader>>();
   private final Map<String, List<Loader>> myResourcePackagesCache = new HashMap<String, List<Loader>>();
+  private final ReadWriteLock myLock = new ReentrantReadWriteLock();
 
   public void addResourceEntry(String resourcePath, Loader loader) {
-    final List<Loader> loaders = getLoaders(resourcePath);
-    if (!loaders.contains(loader)) { // TODO Make linked hash set instead?
-      loaders.add(loader);
+    final Map<String, List<Loader>> map = getMap(resourcePath);
+    final String packageName = getPackageName(resourcePath);
+    myLock.writeLock().lock();
+    try {
+      final List<Loader> loaders = map.get(packageName);
+      if (loaders == null) {
+        map.put(packageName, new SmartList<Loader>(loader));
+      }
+      else if (!loaders.contains(loader)) { // TODO Make linked hash set instead?
+        final List<Loader> newLoaders = new SmartList<Loader>(loaders);
+        newLoaders.add(loader);
+        map.put(packageName, newLoaders);
+      }
+    }
+    finally {
+      myLock.writeLock().unlock();
     }
   }
 
   public List<Loader> getLoaders(String resourcePath) {
-    boolean isClassFile = resourcePath.endsWith(UrlClassLoader.CLASS_EXTENSION);
-    final int idx = resourcePath.lastIndexOf('/');
-    String packageName = idx > 0 ? resourcePath.substring(0, idx) : "";
-
-    Map<String, List<Loader>> map = isClassFile ? myClassPackagesCache : myResourcePackagesCache;
-    List<Loader> list = map.get(packageName);
-    if (list == null) {
-      list = new SmartList<Loader>();
-      map.put(packageName, list);
+    final Map<String, List<Loader>> map = getMap(resourcePath);
+    final String packageName = getPackageName(resourcePath);
+    myLock.readLock().lock();
+    try {
+      final List<Loader> loaders = map.get(packageName);
+      return loaders != null ? loaders : Collections.<Loader>emptyList();
+    }
+    finally {
+      myLock.readLock().unlock();
     }
+  }
 
-    return list;
+  private Map<String, List<Loader>> getMap(String resourcePath) {
+    boolean isClassFile = resourcePath.endsWith(UrlClassLoader.CLASS_EXTENSION);
+    return isClassFile ? myClassPackagesCache : myResourcePackagesCache;
+  }
+
+  private static String getPackageName(String resourcePath) {
+    final int idx = resourcePath.lastIndexOf('/');
+    return idx > 0 ? resourcePath.substring(0, idx) : "";
   }
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.lang;
+
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Persistent counterpart of {@link ClasspathCache} for a class path of jars: maps packages to the indices of jars
+ * containing classes or resources there, so that a resource is looked up only in the jars that may have it.
+ * <p/>
+ * The index keeps paths, timestamps and sizes of the jars it was built for and is valid only while they are unchanged.
+ * Lookups are done right in the bytes of the file: a header with the jars is followed by a hash table of buckets pointing
+ * to chains of entries {@code (next entry offset, key length, key chars, jar count, jar indices)}, where the key is
+ * the package name prefixed with {@code 'C'} for classes or {@code 'R'} for other resources.
+ */
+class ClasspathIndex {
+  private static final int MAGIC = 0x43504958;
+  private static final int VERSION = 3;
+  // magic, version, file length, header length
+  private static final int PREFIX_LENGTH = 16;
+  private static final char CLASS_KIND = 'C';
+  private static final char RESOURCE_KIND = 'R';
+  private static final int[] NO_JARS = new int[0];
+
+  private final ByteBuffer myBuffer;
+  private final int myTableStart;
+  private final int myBucketCount;
+
+  private ClasspathIndex(ByteBuffer buffer, int tableStart) {
+    myBuffer = buffer;
+    myTableStart = tableStart;
+    myBucketCount = buffer.getInt(tableStart);
+  }
+
+  /**
+   * @return indices of the jars that may contain the resource in ascending order
+   */
+  int[] getJarIndices(String resourcePath) {
+    final char kind = resourcePath.endsWith(UrlClassLoader.CLASS_EXTENSION) ? CLASS_KIND : RESOURCE_KIND;
+    final int end = Math.max(resourcePath.lastIndexOf('/'), 0);
+    final int hash = hash(kind, resourcePath, 0, end);
+
+    int entry = myBuffer.getInt(myTableStart + 4 + 4 * (int)((hash & 0xffffffffL) % myBucketCount));
+    while (entry != 0) {
+      final int keyLength = myBuffer.getShort(entry + 4) & 0xffff;
+      if (keyLength == end + 1 && keyMatches(entry + 6, kind, resourcePath, end)) {
+        final int idsStart = entry + 6 + 2 * keyLength;
+        final int[] result = new int[myBuffer.getInt(idsStart)];
+        for (int i = 0; i < result.length; i++) {
+          result[i] = myBuffer.getInt(idsStart + 4 + 4 * i);
+        }
+        return result;
+      }
+      entry = myBuffer.getInt(entry);
+    }
+    return NO_JARS;
+  }
+
+  private boolean keyMatches(int offset, char kind, String resourcePath, int end) {
+    if (myBuffer.getChar(offset) != kind) return false;
+    for (int i = 0; i < end; i++) {
+      if (myBuffer.getChar(offset + 2 + 2 * i) != resourcePath.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  private static int hash(char kind, String path, int start, int end) {
+    int h = kind;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + path.charAt(i);
+    }
+    return h;
+  }
+
+  /**
+   * @return the index if the file exists and was built for exactly these jars in their current state, null otherwise
+   */
+  @Nullable
+  static ClasspathIndex load(File file, List<File> jars) throws IOException {
+    if (!file.isFile()) return null;
+    final int fileLength;
+    final int headerLength;
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+      fileLength = in.readInt();
+      headerLength = in.readInt();
+      if (in.readInt() != jars.size()) return null;
+      for (File jar : jars) {
+        if (!in.readUTF().equals(jar.getPath()) || in.readLong() != jar.lastModified() || in.readLong() != jar.length()) {
+          return null;
+        }
+      }
+    }
+    catch (EOFException e) {
+      return null;
+    }
+    finally {
+      in.close();
+    }
+
+    // the index is small and kept for the life of the class loader, a mapped buffer could not be released
+    final byte[] bytes = FileUtil.loadFileBytes(file);
+    // a truncated or overwritten file would make lookups read past the entries
+    if (bytes.length != fileLength || PREFIX_LENGTH + headerLength + 4 > fileLength) return null;
+    final ClasspathIndex index = new ClasspathIndex(ByteBuffer.wrap(bytes), PREFIX_LENGTH + headerLength);
+    if (index.myBucketCount <= 0 || index.myTableStart + 4 + 4L * index.myBucketCount > fileLength) return null;
+    return index;
+  }
+
+  /**
+   * Reads entries of the jars and writes the index for them. The file is written aside and renamed, so that readers never see
+   * a partially written index.
+   */
+  static void build(File file, List<File> jars) throws IOException {
+    final Map<String, int[]> packages = new HashMap<String, int[]>();
+    for (int i = 0; i < jars.size(); i++) {
+      final ZipFile zipFile = new ZipFile(jars.get(i));
+      try {
+        final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+          final String name = entries.nextElement().getName();
+          final char kind = name.endsWith(UrlClassLoader.CLASS_EXTENSION) ? CLASS_KIND : RESOURCE_KIND;
+          final String key = kind + name.substring(0, Math.max(name.lastIndexOf('/'), 0));
+          final int[] ids = packages.get(key);
+          if (ids == null) {
+            packages.put(key, new int[]{i});
+          }
+          else if (ids[ids.length - 1] != i) {
+            final int[] newIds = new int[ids.length + 1];
+            System.arraycopy(ids, 0, newIds, 0, ids.length);
+            newIds[ids.length] = i;
+            packages.put(key, newIds);
+          }
+        }
+      }
+      finally {
+        zipFile.close();
+      }
+    }
+
+    final ByteArrayOutputStream header = new ByteArrayOutputStream();
+    final DataOutputStream headerOut = new DataOutputStream(header);
+    headerOut.writeInt(jars.size());
+    for (File jar : jars) {
+      headerOut.writeUTF(jar.getPath());
+      headerOut.writeLong(jar.lastModified());
+      headerOut.writeLong(jar.length());
+    }
+    headerOut.close();
+
+    final int tableStart = PREFIX_LENGTH + header.size();
+    final int bucketCount = Math.max(packages.size() * 2, 1);
+    final int[] buckets = new int[bucketCount];
+    final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+    final DataOutputStream entriesOut = new DataOutputStream(entries);
+    final int entriesStart = tableStart + 4 + 4 * bucketCount;
+    for (Map.Entry<String, int[]> entry : packages.entrySet()) {
+      final String key = entry.getKey();
+      final int[] ids = entry.getValue();
+      final int bucket = (int)((hash(key.charAt(0), key, 1, key.length()) & 0xffffffffL) % bucketCount);
+      final int offset = entriesStart + entriesOut.size();
+      entriesOut.writeInt(buckets[bucket]);
+      buckets[bucket] = offset;
+      entriesOut.writeShort(key.length());
+      entriesOut.writeChars(key);
+      entriesOut.writeInt(ids.length);
+      for (int id : ids) {
+        entriesOut.writeInt(id);
+      }
+    }
+    entriesOut.close();
+
+    FileUtil.createParentDirs(file);
+    // a file of its own, several processes may be building the same index
+    final File tempFile = FileUtil.createTempFile(file.getParentFile(), file.getName(), ".tmp", true, false);
+    try {
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(entriesStart + entries.size());
+        out.writeInt(header.size());
+        header.writeTo(out);
+        out.writeInt(bucketCount);
+        for (int bucket : buckets) {
+          out.writeInt(bucket);
+        }
+        entries.writeTo(out);
+      }
+      finally {
+        out.close();
+      }
+    }
+    catch (IOException e) {
+      FileUtil.delete(tempFile);
+      throw e;
+    }
+    FileUtil.delete(file);
+    if (!tempFile.renameTo(file)) {
+      FileUtil.delete(tempFile);
+      // fine if another process has just put its index in place
+      if (!file.isFile()) throw new IOException("Cannot rename " + tempFile + " to " + file);
+    }
+  }
+}
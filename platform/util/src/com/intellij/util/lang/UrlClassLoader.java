@@ -16,6 +16,7 @@
 
 package com.intellij.util.lang;
 
+import com.intellij.openapi.util.ShutDownTracker;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -23,9 +24,14 @@ import sun.misc.Resource;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UrlClassLoader extends ClassLoader {
   private final ClassPath myClassPath;
@@ -34,6 +40,32 @@ public class UrlClassLoader extends ClassLoader {
   protected static final boolean myDebugTime = false;
   protected static final long NS_THRESHOLD = 10000000;
 
+  private static final Set<Class> ourParallelCapableLoaders = Collections.synchronizedSet(new HashSet<Class>());
+
+  static {
+    try {
+      final Method method = getRegisterAsParallelCapableMethod();
+      if (method != null && Boolean.TRUE.equals(method.invoke(null))) {
+        markParallelCapable(UrlClassLoader.class);
+      }
+    }
+    catch (Exception ignored) {
+      // classes are loaded one at a time
+    }
+  }
+
+  // time spent by this thread in class loading nested into the current one, to count time of each loader without its parents
+  private static final ThreadLocal<long[]> ourNestedLoadingTime = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[1];
+    }
+  };
+
+  @Nullable private final ConcurrentMap<String, Object> myClassLoadingLocks;
+  private final AtomicInteger myLoadedClassCount = new AtomicInteger();
+  private final AtomicLong myClassLoadingTime = new AtomicLong();
+
   public UrlClassLoader(@NotNull ClassLoader parent) {
     this(Arrays.asList(((URLClassLoader)parent).getURLs()), parent.getParent(), true, true);
   }
@@ -55,6 +87,67 @@ public class UrlClassLoader extends ClassLoader {
 
     myClassPath = new ClassPath(urls.toArray(new URL[urls.size()]), canLockJars, canUseCache, acceptUnescapedUrls);
     myURLs = new ArrayList<URL>(urls);
+    myClassLoadingLocks = ourParallelCapableLoaders.contains(getClass()) ? new ConcurrentHashMap<String, Object>() : null;
+    if (ClassPath.ourLogStatistics) {
+      ShutDownTracker.getInstance().registerShutdownTask(new Runnable() {
+        public void run() {
+          if (myLoadedClassCount.get() > 0) {
+            System.out.println(UrlClassLoader.this + ": " + myLoadedClassCount.get() + " classes loaded in " +
+                               myClassLoadingTime.get() / 1000000 + " ms");
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Class loaders can load different classes at once on Java 7 and newer if their classes are registered as parallel capable.
+   * {@code ClassLoader.registerAsParallelCapable()} registers the class calling it, so a subclass wishing to be parallel capable
+   * has to invoke the returned method in its own static initializer, pass itself to {@link #markParallelCapable(Class)}
+   * if the method returns true, and lock on {@link #getClassLoadingLock(String)} instead of the loader.
+   *
+   * @return method to be invoked reflectively by the class to register, null on Java 6
+   */
+  @Nullable
+  protected static Method getRegisterAsParallelCapableMethod() {
+    try {
+      final Method method = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+      method.setAccessible(true);
+      return method;
+    }
+    catch (Exception e) {
+      return null;
+    }
+  }
+
+  protected static void markParallelCapable(Class<? extends UrlClassLoader> loaderClass) {
+    ourParallelCapableLoaders.add(loaderClass);
+  }
+
+  /**
+   * Same as {@code ClassLoader.getClassLoadingLock(String)} of Java 7 which it overrides there: a lock per class name
+   * if the loader is parallel capable, the loader itself otherwise.
+   */
+  protected Object getClassLoadingLock(String className) {
+    if (myClassLoadingLocks == null) return this;
+    final Object lock = new Object();
+    final Object existing = myClassLoadingLocks.putIfAbsent(className, lock);
+    return existing != null ? existing : lock;
+  }
+
+  /**
+   * @return number of classes defined by this loader
+   */
+  public int getLoadedClassCount() {
+    return myLoadedClassCount.get();
+  }
+
+  /**
+   * @return time in nanoseconds this loader spent finding and defining its classes, loading of other classes
+   * meanwhile (super classes from parent loaders, for example) is not counted
+   */
+  public long getClassLoadingTime() {
+    return myClassLoadingTime.get();
   }
 
   public void addURL(URL url) {
@@ -67,16 +160,23 @@ public class UrlClassLoader extends ClassLoader {
   }
 
   protected Class findClass(final String name) throws ClassNotFoundException {
-    Resource res = myClassPath.getResource(name.replace('.', '/').concat(CLASS_EXTENSION), false);
-    if (res == null) {
-      throw new ClassNotFoundException(name);
-    }
-
+    final long started = System.nanoTime();
+    final long nestedBefore = ourNestedLoadingTime.get()[0];
     try {
-      return defineClass(name, res);
+      Resource res = myClassPath.getResource(name.replace('.', '/').concat(CLASS_EXTENSION), false);
+      if (res == null) {
+        throw new ClassNotFoundException(name);
+      }
+
+      try {
+        return defineClass(name, res);
+      }
+      catch (IOException e) {
+        throw new ClassNotFoundException(name, e);
+      }
     }
-    catch (IOException e) {
-      throw new ClassNotFoundException(name, e);
+    finally {
+      countLoadingTime(started, nestedBefore);
     }
   }
 
@@ -87,19 +187,33 @@ public class UrlClassLoader extends ClassLoader {
 
   @Nullable
   protected Class _findClass(final String name) {
-    Resource res = myClassPath.getResource(name.replace('.', '/').concat(CLASS_EXTENSION), false);
-    if (res == null) {
-      return null;
-    }
-
+    final long started = System.nanoTime();
+    final long nestedBefore = ourNestedLoadingTime.get()[0];
     try {
-      return defineClass(name, res);
+      Resource res = myClassPath.getResource(name.replace('.', '/').concat(CLASS_EXTENSION), false);
+      if (res == null) {
+        return null;
+      }
+
+      try {
+        return defineClass(name, res);
+      }
+      catch (IOException e) {
+        return null;
+      }
     }
-    catch (IOException e) {
-      return null;
+    finally {
+      countLoadingTime(started, nestedBefore);
     }
   }
 
+  private void countLoadingTime(long started, long nestedBefore) {
+    final long time = System.nanoTime() - started;
+    final long[] nested = ourNestedLoadingTime.get();
+    myClassLoadingTime.addAndGet(time - (nested[0] - nestedBefore));
+    nested[0] = nestedBefore + time;
+  }
+
   private Class defineClass(String name, Resource res) throws IOException {
     int i = name.lastIndexOf('.');
     if (i != -1) {
@@ -117,7 +231,9 @@ public class UrlClassLoader extends ClassLoader {
     }
 
     byte[] b = res.getBytes();
-    return _defineClass(name, b);
+    final Class aClass = _defineClass(name, b);
+    myLoadedClassCount.incrementAndGet();
+    return aClass;
   }
 
   protected Class _defineClass(final String name, final byte[] b) {
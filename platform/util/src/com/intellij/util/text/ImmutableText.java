@@ -0,0 +1,322 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.ref.SoftReference;
+
+/**
+ * Immutable text stored as a balanced (AVL) rope of small char blocks. Insertion, removal and
+ * {@link #subSequence(int, int) sub-sequences} take O(log n) time and share blocks with the original text,
+ * so every version of an edited text is a cheap snapshot which may be read from any thread.
+ * <p/>
+ * Sequential {@link #charAt(int)} calls are served from the last accessed block. {@link #getChars()} flattens the text
+ * into an array which is cached while there's enough memory; the returned array must not be modified.
+ */
+public final class ImmutableText implements CharSequenceBackedByArray {
+  static final int BLOCK_SIZE = 512;
+
+  public static final ImmutableText EMPTY = new ImmutableText(new Leaf(new char[0], 0, 0));
+
+  private final Node myRoot;
+  private volatile LeafRef myLastLeaf;
+  private volatile SoftReference<char[]> myFlattened;
+  private volatile SoftReference<String> myString;
+
+  private ImmutableText(@NotNull Node root) {
+    myRoot = root;
+  }
+
+  @NotNull
+  public static ImmutableText valueOf(@NotNull CharSequence text) {
+    if (text instanceof ImmutableText) return (ImmutableText)text;
+    if (text.length() == 0) return EMPTY;
+    return new ImmutableText(build(text, 0, text.length()));
+  }
+
+  private static Node build(CharSequence text, int start, int end) {
+    final int length = end - start;
+    if (length <= BLOCK_SIZE) {
+      final char[] data = new char[length];
+      CharArrayUtil.getChars(text, data, start, 0, length);
+      return new Leaf(data, 0, length);
+    }
+    // keep blocks full, the rightmost one takes the rest
+    final int blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    final int middle = start + blocks / 2 * BLOCK_SIZE;
+    return new Composite(build(text, start, middle), build(text, middle, end));
+  }
+
+  @Override
+  public int length() {
+    return myRoot.length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (index < 0 || index >= length()) {
+      throw new IndexOutOfBoundsException("Wrong offset: " + index + "; length: " + length());
+    }
+    LeafRef ref = myLastLeaf;
+    if (ref == null || index < ref.offset || index >= ref.offset + ref.leaf.length) {
+      ref = findLeaf(index);
+      myLastLeaf = ref;
+    }
+    return ref.leaf.data[ref.leaf.start + index - ref.offset];
+  }
+
+  private LeafRef findLeaf(int index) {
+    Node node = myRoot;
+    int offset = 0;
+    while (node instanceof Composite) {
+      final Composite composite = (Composite)node;
+      if (index - offset < composite.head.length) {
+        node = composite.head;
+      }
+      else {
+        offset += composite.head.length;
+        node = composite.tail;
+      }
+    }
+    return new LeafRef((Leaf)node, offset);
+  }
+
+  @NotNull
+  @Override
+  public ImmutableText subSequence(int start, int end) {
+    checkRange(start, end);
+    if (start == 0 && end == length()) return this;
+    if (start == end) return EMPTY;
+    return new ImmutableText(myRoot.subNode(start, end));
+  }
+
+  @NotNull
+  public ImmutableText insert(int index, @NotNull CharSequence text) {
+    return replace(index, index, text);
+  }
+
+  @NotNull
+  public ImmutableText delete(int start, int end) {
+    return replace(start, end, "");
+  }
+
+  @NotNull
+  public ImmutableText replace(int start, int end, @NotNull CharSequence text) {
+    checkRange(start, end);
+    if (start == end && text.length() == 0) return this;
+    Node result = start == 0 ? null : myRoot.subNode(0, start);
+    if (text.length() > 0) {
+      final Node inserted = valueOf(text).myRoot;
+      result = result == null ? inserted : join(result, inserted);
+    }
+    if (end < length()) {
+      final Node tail = myRoot.subNode(end, length());
+      result = result == null ? tail : join(result, tail);
+    }
+    return result == null ? EMPTY : new ImmutableText(result);
+  }
+
+  @NotNull
+  public ImmutableText concat(@NotNull CharSequence text) {
+    return replace(length(), length(), text);
+  }
+
+  private void checkRange(int start, int end) {
+    if (start < 0 || end > length() || start > end) {
+      throw new IndexOutOfBoundsException("Wrong range: [" + start + ", " + end + "); length: " + length());
+    }
+  }
+
+  /**
+   * @return the text as a single array, must not be modified
+   */
+  @Override
+  public char[] getChars() {
+    char[] chars = myFlattened == null ? null : myFlattened.get();
+    if (chars == null) {
+      chars = new char[length()];
+      myRoot.getChars(0, length(), chars, 0);
+      myFlattened = new SoftReference<char[]>(chars);
+    }
+    return chars;
+  }
+
+  @Override
+  public void getChars(char[] dst, int dstOffset) {
+    getChars(0, length(), dst, dstOffset);
+  }
+
+  public void getChars(int start, int end, char[] dst, int dstOffset) {
+    checkRange(start, end);
+    final char[] flattened = myFlattened == null ? null : myFlattened.get();
+    if (flattened != null) {
+      System.arraycopy(flattened, start, dst, dstOffset, end - start);
+    }
+    else {
+      myRoot.getChars(start, end, dst, dstOffset);
+    }
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    String result = myString == null ? null : myString.get();
+    if (result == null) {
+      final char[] flattened = myFlattened == null ? null : myFlattened.get();
+      if (flattened != null) {
+        result = new String(flattened);
+      }
+      else {
+        final char[] chars = new char[length()];
+        myRoot.getChars(0, length(), chars, 0);
+        result = new String(chars);
+      }
+      myString = new SoftReference<String>(result);
+    }
+    return result;
+  }
+
+  /**
+   * @return depth of the underlying tree, for tests
+   */
+  int getDepth() {
+    return myRoot.depth;
+  }
+
+  /**
+   * Joins two trees which are balanced themselves keeping the result balanced, takes O(|a.depth - b.depth|) time.
+   */
+  private static Node join(Node a, Node b) {
+    // merging leaves only, so the result is never lower than its parts and the tree invariant holds
+    if (a.depth == 0 && b.depth == 0 && a.length + b.length <= BLOCK_SIZE) {
+      final char[] data = new char[a.length + b.length];
+      a.getChars(0, a.length, data, 0);
+      b.getChars(0, b.length, data, a.length);
+      return new Leaf(data, 0, data.length);
+    }
+    if (a.depth > b.depth + 1) {
+      final Composite left = (Composite)a;
+      return balance(left.head, join(left.tail, b));
+    }
+    if (b.depth > a.depth + 1) {
+      final Composite right = (Composite)b;
+      return balance(join(a, right.head), right.tail);
+    }
+    return new Composite(a, b);
+  }
+
+  /**
+   * Creates a node from subtrees which depths differ by two at most, rotating them if needed.
+   */
+  private static Node balance(Node head, Node tail) {
+    if (head.depth > tail.depth + 1) {
+      final Composite left = (Composite)head;
+      if (left.head.depth >= left.tail.depth) {
+        return new Composite(left.head, new Composite(left.tail, tail));
+      }
+      final Composite middle = (Composite)left.tail;
+      return new Composite(new Composite(left.head, middle.head), new Composite(middle.tail, tail));
+    }
+    if (tail.depth > head.depth + 1) {
+      final Composite right = (Composite)tail;
+      if (right.tail.depth >= right.head.depth) {
+        return new Composite(new Composite(head, right.head), right.tail);
+      }
+      final Composite middle = (Composite)right.head;
+      return new Composite(new Composite(head, middle.head), new Composite(middle.tail, right.tail));
+    }
+    return new Composite(head, tail);
+  }
+
+  private abstract static class Node {
+    final int length;
+    final int depth;
+
+    Node(int length, int depth) {
+      this.length = length;
+      this.depth = depth;
+    }
+
+    abstract void getChars(int start, int end, char[] dst, int dstOffset);
+
+    abstract Node subNode(int start, int end);
+  }
+
+  private static class Leaf extends Node {
+    final char[] data;
+    final int start;
+
+    Leaf(char[] data, int start, int length) {
+      super(length, 0);
+      this.data = data;
+      this.start = start;
+    }
+
+    @Override
+    void getChars(int start, int end, char[] dst, int dstOffset) {
+      System.arraycopy(data, this.start + start, dst, dstOffset, end - start);
+    }
+
+    @Override
+    Node subNode(int start, int end) {
+      if (start == 0 && end == length) return this;
+      return new Leaf(data, this.start + start, end - start);
+    }
+  }
+
+  private static class Composite extends Node {
+    final Node head;
+    final Node tail;
+
+    Composite(Node head, Node tail) {
+      super(head.length + tail.length, Math.max(head.depth, tail.depth) + 1);
+      this.head = head;
+      this.tail = tail;
+    }
+
+    @Override
+    void getChars(int start, int end, char[] dst, int dstOffset) {
+      final int split = head.length;
+      if (start < split) {
+        head.getChars(start, Math.min(end, split), dst, dstOffset);
+      }
+      if (end > split) {
+        final int from = Math.max(start, split);
+        tail.getChars(from - split, end - split, dst, dstOffset + from - start);
+      }
+    }
+
+    @Override
+    Node subNode(int start, int end) {
+      if (start == 0 && end == length) return this;
+      final int split = head.length;
+      if (end <= split) return head.subNode(start, end);
+      if (start >= split) return tail.subNode(start - split, end - split);
+      return join(head.subNode(start, split), tail.subNode(0, end - split));
+    }
+  }
+
+  private static class LeafRef {
+    final Leaf leaf;
+    final int offset;
+
+    LeafRef(Leaf leaf, int offset) {
+      this.leaf = leaf;
+      this.offset = offset;
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.concurrency;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ReadMostlyReadWriteLockTest extends TestCase {
+  private final ExecutorService myExecutor = Executors.newCachedThreadPool();
+
+  @Override
+  protected void tearDown() throws Exception {
+    myExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testWriterPreference() throws Exception {
+    final ReadMostlyReadWriteLock lock = new ReadMostlyReadWriteLock();
+    lock.readLock().acquire();
+
+    final CountDownLatch writeAcquired = new CountDownLatch(1);
+    final Future<?> writer = myExecutor.submit(new Callable<Object>() {
+      public Object call() throws Exception {
+        lock.writeLock().acquire();
+        writeAcquired.countDown();
+        Thread.sleep(50);
+        lock.writeLock().release();
+        return null;
+      }
+    });
+    while (!lock.isWriteLockAcquired(findWriter(lock, writer))) {
+      Thread.sleep(1);
+    }
+
+    // a new reader waits for the pending writer, the thread already reading may read again
+    assertFalse(attemptRead(lock, 0));
+    assertTrue(lock.readLock().attempt(0));
+    lock.readLock().release();
+    assertFalse(writeAcquired.await(50, TimeUnit.MILLISECONDS));
+
+    lock.readLock().release();
+    assertTrue(writeAcquired.await(5, TimeUnit.SECONDS));
+    assertTrue(attemptRead(lock, 5000));
+    writer.get();
+    assertEquals(1, lock.getWriteHoldTimes().getTotalCount());
+    assertEquals(1, lock.getReadWaits().getTotalCount());
+  }
+
+  public void testReentrancy() throws Exception {
+    final ReadMostlyReadWriteLock lock = new ReadMostlyReadWriteLock();
+    lock.readLock().acquire();
+    lock.writeLock().acquire(); // the only reader may write
+    lock.writeLock().acquire();
+    lock.readLock().acquire();
+    assertTrue(lock.isWriteLockAcquired());
+    assertTrue(lock.isReadLockAcquired());
+    lock.readLock().release();
+    lock.writeLock().release();
+    assertTrue(lock.isWriteLockAcquired());
+    lock.writeLock().release();
+    assertFalse(lock.isWriteLockAcquired());
+    assertTrue(lock.isReadLockAcquired());
+    lock.readLock().release();
+    assertFalse(lock.isReadLockAcquired());
+  }
+
+  public void testReadersDoNotSeeWriteInProgress() throws Exception {
+    final ReadMostlyReadWriteLock lock = new ReadMostlyReadWriteLock();
+    final int[] pair = new int[2];
+    final AtomicBoolean stop = new AtomicBoolean();
+    final List<Future<Integer>> readers = new ArrayList<Future<Integer>>();
+    for (int i = 0; i < 4; i++) {
+      readers.add(myExecutor.submit(new Callable<Integer>() {
+        public Integer call() throws Exception {
+          int inconsistent = 0;
+          while (!stop.get()) {
+            lock.readLock().acquire();
+            try {
+              if (pair[0] != pair[1]) inconsistent++;
+            }
+            finally {
+              lock.readLock().release();
+            }
+          }
+          return inconsistent;
+        }
+      }));
+    }
+
+    for (int i = 0; i < 500; i++) {
+      lock.writeLock().acquire();
+      try {
+        pair[0]++;
+        Thread.yield();
+        pair[1]++;
+      }
+      finally {
+        lock.writeLock().release();
+      }
+    }
+    stop.set(true);
+    for (Future<Integer> reader : readers) {
+      assertEquals(0, reader.get().intValue());
+    }
+    assertEquals(500, lock.getWriteWaits().getTotalCount());
+  }
+
+  public void testHistogramBuckets() {
+    final LockHistogram histogram = new LockHistogram("test");
+    histogram.record(TimeUnit.MICROSECONDS.toNanos(10));
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+    histogram.record(TimeUnit.SECONDS.toNanos(5));
+    assertEquals(1, histogram.getCount(0));
+    assertEquals(1, histogram.getCount(2));
+    assertEquals(1, histogram.getCount(11));
+    assertEquals("test: 3 times, <1 ms: 1, <4 ms: 1, >=1024 ms: 1, max 5000 ms", histogram.toString());
+  }
+
+  private boolean attemptRead(final ReadMostlyReadWriteLock lock, final long msecs) throws Exception {
+    return myExecutor.submit(new Callable<Boolean>() {
+      public Boolean call() throws Exception {
+        if (!lock.readLock().attempt(msecs)) return false;
+        lock.readLock().release();
+        return true;
+      }
+    }).get();
+  }
+
+  private static Thread findWriter(ReadMostlyReadWriteLock lock, Future<?> writer) throws Exception {
+    while (!writer.isDone()) {
+      for (Thread thread : Thread.getAllStackTraces().keySet()) {
+        if (lock.isWriteLockAcquired(thread)) return thread;
+      }
+      Thread.sleep(1);
+    }
+    throw new AssertionError("writer has finished");
+  }
+
+  /**
+   * Compares the cost of uncontended read locks taken by several threads at once with {@link ReentrantWriterPreferenceReadWriteLock}.
+   */
+  public static void main(String[] args) throws Exception {
+    final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    final int count = 10000000;
+    for (int round = 0; round < 3; round++) {
+      for (final ReadWriteLock lock : new ReadWriteLock[]{new ReentrantWriterPreferenceReadWriteLock(), new ReadMostlyReadWriteLock()}) {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        final long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+          futures.add(executor.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+              for (int i = 0; i < count; i++) {
+                lock.readLock().acquire();
+                lock.readLock().release();
+              }
+              return null;
+            }
+          }));
+        }
+        for (Future<?> future : futures) {
+          future.get();
+        }
+        final long ns = System.nanoTime() - start;
+        executor.shutdown();
+        System.out.println(lock.getClass().getSimpleName() + ": " + ns / ((long)count * threads) + " ns per read lock with " + threads + " threads");
+      }
+    }
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class BlockingOutputReaderTest extends TestCase {
+  private final ExecutorService myExecutor = Executors.newCachedThreadPool();
+
+  @Override
+  protected void tearDown() throws Exception {
+    myExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testLineBreaksSplitBetweenReads() throws Exception {
+    final Reader reader = new ChunkedReader("a\r", "\nb\r", "c\r\r\nd\r\n\r");
+    final List<String> texts = read(reader, false);
+    assertEquals("a\nb\rc\r\nd\n\r", join(texts));
+  }
+
+  public void testSplitToLines() throws Exception {
+    final List<String> texts = read(new ChunkedReader("one\ntwo\nthr", "ee\n"), true);
+    assertEquals(Arrays.asList("one\n", "two\n", "thr", "ee\n"), texts);
+  }
+
+  public void testOneEventPerRead() throws Exception {
+    final List<String> texts = read(new ChunkedReader("one\ntwo\n", "three\n"), false);
+    assertEquals(Arrays.asList("one\ntwo\n", "three\n"), texts);
+  }
+
+  public void testOutputHeldOpenAfterStop() throws Exception {
+    final PipedWriter writer = new PipedWriter();
+    final PipedReader pipe = new PipedReader(writer);
+    final List<String> texts = Collections.synchronizedList(new ArrayList<String>());
+    final BlockingOutputReader reader = createReader(pipe, false, texts);
+    writer.write("started\n");
+    writer.flush();
+    while (texts.isEmpty()) {
+      Thread.sleep(10);
+    }
+
+    // the writer is neither closed nor writes anything, as a child process inheriting the output would do
+    reader.stop();
+    final long start = System.currentTimeMillis();
+    reader.waitFor();
+    assertTrue(System.currentTimeMillis() - start < 5000);
+
+    writer.write("too late\n");
+    writer.close();
+    Thread.sleep(100);
+    assertEquals(Collections.singletonList("started\n"), texts);
+  }
+
+  private List<String> read(Reader reader, boolean splitToLines) throws InterruptedException {
+    final List<String> texts = Collections.synchronizedList(new ArrayList<String>());
+    final BlockingOutputReader outputReader = createReader(reader, splitToLines, texts);
+    outputReader.waitFor();
+    return texts;
+  }
+
+  private BlockingOutputReader createReader(Reader reader, boolean splitToLines, final List<String> texts) {
+    return new BlockingOutputReader(reader, splitToLines) {
+      @Override
+      protected Future<?> executeOnPooledThread(Runnable runnable) {
+        return myExecutor.submit(runnable);
+      }
+
+      @Override
+      protected void onTextAvailable(@NotNull String text) {
+        texts.add(text);
+      }
+    };
+  }
+
+  private static String join(List<String> texts) {
+    final StringBuilder builder = new StringBuilder();
+    for (String text : texts) {
+      builder.append(text);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Returns one chunk per read
+   */
+  private static class ChunkedReader extends Reader {
+    private final String[] myChunks;
+    private int myIndex;
+
+    private ChunkedReader(String... chunks) {
+      myChunks = chunks;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) {
+      if (myIndex == myChunks.length) {
+        return -1;
+      }
+      final String chunk = myChunks[myIndex++];
+      chunk.getChars(0, chunk.length(), buffer, offset);
+      return chunk.length();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Measures how fast the polling {@link OutputReader} and {@link BlockingOutputReader} read 1 GB written by another process.
+   * Pass the size in megabytes to read less.
+   */
+  public static void main(String[] args) throws Exception {
+    final long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+    final ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      for (int i = 0; i < 2; i++) {
+        for (final boolean blocking : new boolean[]{false, true}) {
+          final Process process = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                                                     "-cp", System.getProperty("java.class.path"),
+                                                     Emitter.class.getName(), String.valueOf(megabytes)).start();
+          final Reader reader = new InputStreamReader(process.getInputStream());
+          final long[] chars = new long[1];
+          final long start = System.nanoTime();
+          if (blocking) {
+            final BlockingOutputReader outputReader = new BlockingOutputReader(reader) {
+              protected Future<?> executeOnPooledThread(Runnable runnable) {
+                return executor.submit(runnable);
+              }
+
+              protected void onTextAvailable(@NotNull String text) {
+                chars[0] += text.length();
+              }
+            };
+            process.waitFor();
+            outputReader.stop();
+            outputReader.waitFor();
+          }
+          else {
+            final OutputReader outputReader = new OutputReader(reader) {
+              protected Future<?> executeOnPooledThread(Runnable runnable) {
+                return executor.submit(runnable);
+              }
+
+              protected void onTextAvailable(@NotNull String text) {
+                chars[0] += text.length();
+              }
+            };
+            process.waitFor();
+            outputReader.stop();
+            outputReader.waitFor();
+          }
+          final long ms = (System.nanoTime() - start) / 1000000;
+          System.out.println((blocking ? "blocking: " : "polling:  ") + chars[0] / (1024 * 1024) + " MB in " + ms + " ms, " +
+                             (ms == 0 ? "-" : String.valueOf(chars[0] * 1000 / ms / (1024 * 1024))) + " MB/s");
+        }
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public static class Emitter {
+    public static void main(String[] args) throws IOException {
+      final long total = Long.parseLong(args[0]) * 1024 * 1024;
+      final byte[] line = new byte[100];
+      Arrays.fill(line, (byte)'x');
+      line[line.length - 1] = '\n';
+      final OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024);
+      for (long written = 0; written < total; written += line.length) {
+        out.write(line);
+      }
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class LzBlockCodecTest extends TestCase {
+  public void testEmpty() throws IOException {
+    assertRoundTrip(new byte[0]);
+  }
+
+  public void testShortInputs() throws IOException {
+    for (int len = 1; len < 40; len++) {
+      byte[] bytes = new byte[len];
+      Arrays.fill(bytes, (byte)'a');
+      assertRoundTrip(bytes);
+    }
+  }
+
+  public void testSourceText() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      text.append("  public static int method").append(i).append("(int arg) {\n    return arg * ").append(i % 17).append(";\n  }\n");
+    }
+    byte[] bytes = text.toString().getBytes();
+    byte[] compressed = assertRoundTrip(bytes);
+    assertTrue(compressed.length < bytes.length / 3);
+  }
+
+  public void testLongRunsAndOverlappingMatches() throws IOException {
+    byte[] bytes = new byte[100000];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte)(i % 3);
+    }
+    assertRoundTrip(bytes);
+  }
+
+  public void testRandomData() throws IOException {
+    Random random = new Random(42);
+    for (int len : new int[]{13, 255, 4096, 70000}) {
+      byte[] bytes = new byte[len];
+      random.nextBytes(bytes);
+      byte[] compressed = assertRoundTrip(bytes);
+      assertTrue(compressed.length <= LzBlockCodec.maxCompressedLength(len));
+    }
+  }
+
+  public void testOffsetAndLength() throws IOException {
+    byte[] bytes = "xxxxhello hello hello hello hello worldyyyy".getBytes();
+    byte[] compressed = LzBlockCodec.compress(bytes, 4, bytes.length - 8);
+    assertEquals(new String(bytes, 4, bytes.length - 8), new String(LzBlockCodec.decompress(compressed)));
+  }
+
+  public void testCorruptedInput() {
+    byte[] compressed = LzBlockCodec.compress("hello hello hello hello hello".getBytes());
+    try {
+      LzBlockCodec.decompress(compressed, 0, compressed.length - 3);
+      fail();
+    }
+    catch (IOException ignored) {
+    }
+  }
+
+  private static byte[] assertRoundTrip(byte[] bytes) throws IOException {
+    byte[] compressed = LzBlockCodec.compress(bytes);
+    assertTrue(Arrays.equals(bytes, LzBlockCodec.decompress(compressed)));
+    return compressed;
+  }
+}
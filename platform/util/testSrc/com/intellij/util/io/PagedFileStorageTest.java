@@ -102,6 +102,90 @@ public class PagedFileStorageTest extends TestCase {
     }
   }
 
+  // writes over 3G of zeros to grow the file, so it runs with performance tests only
+  public void testResizeableMappedFileWithLongAddressesPerformance() throws Exception {
+    synchronized (lock) {
+      ResizeableMappedFile file = new ResizeableMappedFile(f, 2000000, lock, -1, false, Long.MAX_VALUE);
+
+      final long address = 3L * Integer.MAX_VALUE / 2;
+      file.putLong(address, address);
+      assertTrue(file.length() > address);
+      assertEquals(address, file.getLong(address));
+
+      file.putInt(Integer.MAX_VALUE - 2, 1234);
+      assertEquals(1234, file.getInt(Integer.MAX_VALUE - 2));
+      assertEquals(address, file.getLong(address));
+
+      file.close();
+    }
+  }
+
+  public void testIntAddressSpaceIsDefaultLimit() throws Exception {
+    synchronized (lock) {
+      ResizeableMappedFile file = new ResizeableMappedFile(f, 2000000, lock);
+      try {
+        file.putInt(Integer.MAX_VALUE + 10L, 1);
+        fail("Int-addressed file should not grow over 2G");
+      }
+      catch (RuntimeException ignored) {
+      }
+      finally {
+        file.close();
+      }
+    }
+  }
+
+  public void testPinnedPagesSurviveEviction() throws Exception {
+    final int pageSize = 64 * 1024;
+    final PagedFileStorage.StorageLock cacheLock = new PagedFileStorage.StorageLock(true, 0, true);
+    final File hotFile = FileUtil.createTempFile("hot", ".tmp");
+    final File coldFile = FileUtil.createTempFile("cold", ".tmp");
+    synchronized (cacheLock) {
+      final PagedFileStorage hot = new PagedFileStorage(hotFile, cacheLock, pageSize, true);
+      final PagedFileStorage cold = new PagedFileStorage(coldFile, cacheLock, pageSize, true);
+      try {
+        hot.setPinned(true);
+        hot.resize(4 * pageSize);
+        final long coldSize = 2 * cacheLock.getCacheSizeLimit();
+        cold.resize(coldSize);
+        for (int i = 0; i < 4; i++) hot.putInt(i * pageSize, i);
+        for (long address = 0; address < coldSize; address += pageSize) cold.putInt(address, 1);
+
+        assertTrue(cacheLock.getCacheEvictions() > 0);
+        // pinned pages are charged to the same budget
+        assertTrue(cacheLock.getCacheSize() <= cacheLock.getCacheSizeLimit());
+        assertEquals(4 * pageSize, cacheLock.getPinnedCacheSize());
+
+        final long misses = cacheLock.getCacheMisses();
+        for (int i = 0; i < 4; i++) assertEquals(i, hot.getInt(i * pageSize));
+        assertEquals(misses, cacheLock.getCacheMisses());
+
+        hot.setPinned(false);
+        assertEquals(0, cacheLock.getPinnedCacheSize());
+        assertTrue(IOStatistics.getPageCacheStatistics().contains("direct"));
+      }
+      finally {
+        hot.close();
+        cold.close();
+        FileUtil.delete(hotFile);
+        FileUtil.delete(coldFile);
+      }
+    }
+  }
+
+  public void testDirectBuffersAreWrittenBack() throws Exception {
+    final PagedFileStorage.StorageLock directLock = new PagedFileStorage.StorageLock(true, 0, true);
+    synchronized (directLock) {
+      final PagedFileStorage direct = new PagedFileStorage(f, directLock);
+      direct.resize(100);
+      direct.putInt(40, 1234);
+      direct.close();
+    }
+    synchronized (lock) {
+      assertEquals(1234, s.getInt(40));
+    }
+  }
+
   private static final SimpleDateFormat FORMATTER = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
 
   private static void printPct(int pct) {
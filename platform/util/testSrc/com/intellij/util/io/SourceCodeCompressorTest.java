@@ -0,0 +1,68 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public class SourceCodeCompressorTest extends TestCase {
+  private static final byte[] TEXT = ("package com.intellij.util;\n\nimport java.util.List;\n\n" +
+                                      "public class Foo {\n  private final List<String> myNames;\n}\n").getBytes();
+
+  public void testRoundTrip() throws Exception {
+    assertTrue(Arrays.equals(TEXT, SourceCodeCompressor.decompress(SourceCodeCompressor.compress(TEXT))));
+    assertEquals(0, SourceCodeCompressor.decompress(SourceCodeCompressor.compress(new byte[0])).length);
+  }
+
+  public void testDataCompressedWithoutDictionaryIsReadable() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DeflaterOutputStream out = new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_COMPRESSION));
+    out.write(TEXT);
+    out.close();
+    assertTrue(Arrays.equals(TEXT, SourceCodeCompressor.decompress(bytes.toByteArray())));
+  }
+
+  public void testConcurrentUse() throws Exception {
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 2000; i++) {
+              byte[] source = (new String(TEXT) + i).getBytes();
+              assertTrue(Arrays.equals(source, SourceCodeCompressor.decompress(SourceCodeCompressor.compress(source))));
+            }
+          }
+          catch (Throwable e) {
+            error.compareAndSet(null, e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (error.get() != null) throw new RuntimeException(error.get());
+  }
+}
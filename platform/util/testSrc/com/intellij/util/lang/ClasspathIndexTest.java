@@ -0,0 +1,104 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.lang;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ClasspathIndexTest extends TestCase {
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("classpathIndex", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testLookup() throws Exception {
+    final List<File> jars = Arrays.asList(createJar("a.jar", "a/A.class", "a/messages.properties", "META-INF/plugin.xml", "root.txt"),
+                                          createJar("b.jar", "a/B.class", "b/B.class", "META-INF/plugin.xml"));
+    final File indexFile = new File(myDir, "classpath.index");
+    ClasspathIndex.build(indexFile, jars);
+
+    final ClasspathIndex index = ClasspathIndex.load(indexFile, jars);
+    assertNotNull(index);
+    assertIndices(index.getJarIndices("a/A.class"), 0, 1);
+    assertIndices(index.getJarIndices("b/Unknown.class"), 1);
+    assertIndices(index.getJarIndices("a/messages.properties"), 0);
+    assertIndices(index.getJarIndices("b/messages.properties"));
+    assertIndices(index.getJarIndices("META-INF/plugin.xml"), 0, 1);
+    assertIndices(index.getJarIndices("root.txt"), 0);
+    assertIndices(index.getJarIndices("c/C.class"));
+  }
+
+  public void testChangedJarInvalidatesIndex() throws Exception {
+    final File jar = createJar("a.jar", "a/A.class");
+    final List<File> jars = Arrays.asList(jar);
+    final File indexFile = new File(myDir, "classpath.index");
+    ClasspathIndex.build(indexFile, jars);
+    assertNotNull(ClasspathIndex.load(indexFile, jars));
+
+    createJar("a.jar", "a/A.class", "b/B.class");
+    assertTrue(jar.setLastModified(jar.lastModified() + 2000));
+    assertNull(ClasspathIndex.load(indexFile, jars));
+    assertNull(ClasspathIndex.load(indexFile, Arrays.asList(jar, jar)));
+  }
+
+  public void testTruncatedIndexIsIgnored() throws Exception {
+    final List<File> jars = Arrays.asList(createJar("a.jar", "a/A.class", "b/B.class"));
+    final File indexFile = new File(myDir, "classpath.index");
+    ClasspathIndex.build(indexFile, jars);
+    assertEquals(1, myDir.listFiles().length - jars.size());
+
+    final byte[] bytes = FileUtil.loadFileBytes(indexFile);
+    FileUtil.writeToFile(indexFile, Arrays.copyOf(bytes, bytes.length - 4));
+    assertNull(ClasspathIndex.load(indexFile, jars));
+  }
+
+  private static void assertIndices(int[] actual, int... expected) {
+    assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+  }
+
+  private File createJar(String name, String... entries) throws IOException {
+    final File jar = new File(myDir, name);
+    final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+    try {
+      for (String entry : entries) {
+        out.putNextEntry(new ZipEntry(entry));
+        out.write(entry.getBytes());
+        out.closeEntry();
+      }
+    }
+    finally {
+      out.close();
+    }
+    return jar;
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.lang;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+public class UrlClassLoaderTest extends TestCase {
+  private static final int THREADS = 8;
+
+  public void testConcurrentLoading() throws Exception {
+    final URL jarUrl = TestCase.class.getProtectionDomain().getCodeSource().getLocation();
+    final List<String> classNames = getClassNames(new File(jarUrl.toURI()));
+    final UrlClassLoader loader = new UrlClassLoader(Collections.singletonList(jarUrl), null, true, true);
+
+    final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+    final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      final List<Future<Map<String, Class>>> futures = new ArrayList<Future<Map<String, Class>>>();
+      for (int i = 0; i < THREADS; i++) {
+        final long seed = i;
+        futures.add(executor.submit(new Callable<Map<String, Class>>() {
+          public Map<String, Class> call() throws Exception {
+            final List<String> names = new ArrayList<String>(classNames);
+            Collections.shuffle(names, new Random(seed));
+            barrier.await();
+            final Map<String, Class> classes = new HashMap<String, Class>();
+            for (String name : names) {
+              try {
+                classes.put(name, loader.loadClass(name));
+              }
+              catch (ClassNotFoundException ignored) {
+              }
+              catch (LinkageError ignored) {
+                // refers to classes missing from the jar
+              }
+            }
+            return classes;
+          }
+        }));
+      }
+
+      final Map<String, Class> expected = futures.get(0).get();
+      assertFalse(expected.isEmpty());
+      for (Future<Map<String, Class>> future : futures) {
+        final Map<String, Class> classes = future.get();
+        for (Map.Entry<String, Class> entry : classes.entrySet()) {
+          assertSame(entry.getKey(), expected.get(entry.getKey()), entry.getValue());
+          assertSame(loader, entry.getValue().getClassLoader());
+        }
+      }
+      assertEquals(expected.size(), loader.getLoadedClassCount());
+      assertTrue(loader.getClassLoadingTime() > 0);
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static List<String> getClassNames(File jar) throws Exception {
+    final List<String> names = new ArrayList<String>();
+    final ZipFile zipFile = new ZipFile(jar);
+    try {
+      final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        final String name = entries.nextElement().getName();
+        if (name.endsWith(UrlClassLoader.CLASS_EXTENSION)) {
+          names.add(name.substring(0, name.length() - UrlClassLoader.CLASS_EXTENSION.length()).replace('/', '.'));
+        }
+      }
+    }
+    finally {
+      zipFile.close();
+    }
+    return names;
+  }
+}
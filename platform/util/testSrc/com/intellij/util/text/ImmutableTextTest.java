@@ -0,0 +1,109 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.text;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class ImmutableTextTest extends TestCase {
+  public void testBasicOperations() {
+    ImmutableText text = ImmutableText.valueOf("0123456789");
+    assertEquals("01abc23456789", text.insert(2, "abc").toString());
+    assertEquals("0156789", text.delete(2, 5).toString());
+    assertEquals("0X9", text.replace(1, 9, "X").toString());
+    assertEquals("345", text.subSequence(3, 6).toString());
+    assertEquals("0123456789", text.toString());
+    assertSame(ImmutableText.EMPTY, text.delete(0, 10));
+    assertSame(text, ImmutableText.valueOf(text));
+
+    try {
+      text.charAt(10);
+      fail();
+    }
+    catch (IndexOutOfBoundsException ignored) {
+    }
+  }
+
+  public void testRandomEditsMatchStringBuilder() {
+    final Random random = new Random(42);
+    final StringBuilder expected = new StringBuilder(randomString(random, 5000));
+    ImmutableText text = ImmutableText.valueOf(expected);
+    for (int i = 0; i < 5000; i++) {
+      final int start = random.nextInt(expected.length() + 1);
+      final int end = Math.min(expected.length(), start + random.nextInt(i % 100 == 0 ? 3000 : 20));
+      final String inserted = randomString(random, random.nextInt(i % 50 == 0 ? 2000 : 10));
+      expected.replace(start, end, inserted);
+      text = text.replace(start, end, inserted);
+      assertEquals(expected.length(), text.length());
+
+      if (expected.length() > 0) {
+        final int index = random.nextInt(expected.length());
+        assertEquals(expected.charAt(index), text.charAt(index));
+      }
+      if (i % 500 == 0) {
+        assertEquals(expected.toString(), text.toString());
+        assertTrue(Arrays.equals(expected.toString().toCharArray(), text.getChars()));
+        final int from = random.nextInt(expected.length() + 1);
+        final int to = from + random.nextInt(expected.length() - from + 1);
+        assertEquals(expected.substring(from, to), text.subSequence(from, to).toString());
+      }
+    }
+    assertEquals(expected.toString(), text.toString());
+  }
+
+  public void testSnapshotsAreNotAffectedByEdits() {
+    final ImmutableText original = ImmutableText.valueOf(randomString(new Random(1), 100000));
+    final String originalString = original.toString();
+    ImmutableText text = original;
+    for (int i = 0; i < 1000; i++) {
+      text = text.insert(i * 50, "x");
+    }
+    assertEquals(originalString, original.toString());
+    assertEquals(100000 + 1000, text.length());
+  }
+
+  public void testTreeStaysBalanced() {
+    ImmutableText text = ImmutableText.EMPTY;
+    for (int i = 0; i < 20000; i++) {
+      // appending to the end and typing at the start are the worst cases for a naive rope
+      text = text.concat("line " + i + "\n").insert(0, "x");
+    }
+    final int blocks = text.length() / ImmutableText.BLOCK_SIZE + 1;
+    final double log2 = Math.log(blocks) / Math.log(2);
+    assertTrue(String.valueOf(text.getDepth()), text.getDepth() <= 1.45 * log2 + 2);
+  }
+
+  public void testSequentialCharAt() {
+    final String string = randomString(new Random(7), 100000);
+    ImmutableText text = ImmutableText.EMPTY;
+    for (int i = 0; i < string.length(); i += 1000) {
+      text = text.concat(string.substring(i, Math.min(string.length(), i + 1000)));
+    }
+    for (int i = 0; i < string.length(); i++) {
+      assertEquals(string.charAt(i), text.charAt(i));
+    }
+  }
+
+  private static String randomString(Random random, int length) {
+    final char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = (char)('a' + random.nextInt(26));
+    }
+    return new String(chars);
+  }
+}
@@ -31,6 +31,7 @@ import com.intellij.openapi.ui.MessageType;
 import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.util.*;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vcs.*;
 import com.intellij.openapi.vcs.changes.conflicts.ChangelistConflictTracker;
@@ -59,7 +60,9 @@ import org.jetbrains.annotations.TestOnly;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -499,29 +502,118 @@ public class ChangeListManagerImpl extends ChangeListManagerEx implements Projec
     final UpdatingChangeListBuilder builder = new UpdatingChangeListBuilder(dataHolder.getChangeListWorker(),
       dataHolder.getComposite(), myUpdater.getIsStoppedGetter(), myIgnoredIdeaLevel, gate);
 
-    for (final VcsDirtyScope scope : scopes) {
-      if (DEBUG) {
-        System.out.println("ChangeListManagerImpl.iterateScopes: scope = " + scope);
-      }
-      myUpdateChangesProgressIndicator.checkCanceled();
+    // with everything dirty, data is cleaned once for all scopes, so scopes don't depend on each other and may be processed concurrently
+    if (wasEverythingDirty && scopes.size() > 1 && Registry.is("vcs.changes.parallel.update")) {
+      iterateScopesConcurrently(builder, dataHolder, scopes, gate);
+    }
+    else {
+      for (final VcsDirtyScope scope : scopes) {
+        if (DEBUG) {
+          System.out.println("ChangeListManagerImpl.iterateScopes: scope = " + scope);
+        }
+        myUpdateChangesProgressIndicator.checkCanceled();
 
-      final AbstractVcs vcs = scope.getVcs();
-      if (vcs == null) continue;
-      scope.setWasEverythingDirty(wasEverythingDirty);
-      final VcsModifiableDirtyScope adjustedScope = vcs.adjustDirtyScope((VcsModifiableDirtyScope) scope);
+        final AbstractVcs vcs = scope.getVcs();
+        if (vcs == null) continue;
+        scope.setWasEverythingDirty(wasEverythingDirty);
+        final VcsModifiableDirtyScope adjustedScope = vcs.adjustDirtyScope((VcsModifiableDirtyScope) scope);
 
-      myChangesViewManager.updateProgressText(VcsBundle.message("changes.update.progress.message", vcs.getDisplayName()), false);
-      dataHolder.notifyStartProcessingChanges(adjustedScope);
+        myChangesViewManager.updateProgressText(VcsBundle.message("changes.update.progress.message", vcs.getDisplayName()), false);
+        dataHolder.notifyStartProcessingChanges(adjustedScope);
 
-      actualUpdate(builder, adjustedScope, vcs, dataHolder, gate);
+        final long start = System.currentTimeMillis();
+        actualUpdate(builder, adjustedScope, vcs, dataHolder, gate);
+        debugLogging(vcs.getDisplayName() + " changes collected in " + (System.currentTimeMillis() - start) + " ms");
 
-      if (myUpdateException != null) break;
+        if (myUpdateException != null) break;
+      }
     }
     synchronized (myDataLock) {
       myAdditionalInfo.addAll(builder.getAdditionalInfo());
     }
   }
 
+  /**
+   * Runs change providers of all scopes at once in pooled threads, each reporting to its own {@link RecordingChangelistBuilder}.
+   * Reported changes are passed to the real builder in the order of scopes as soon as the corresponding provider finishes.
+   */
+  private void iterateScopesConcurrently(final UpdatingChangeListBuilder builder, final DataHolder dataHolder,
+                                         final List<VcsDirtyScope> scopes, final ChangeListManagerGate gate) {
+    final List<VcsModifiableDirtyScope> adjustedScopes = new ArrayList<VcsModifiableDirtyScope>();
+    final List<Future<?>> futures = new ArrayList<Future<?>>();
+    final List<RecordingChangelistBuilder> recorders = new ArrayList<RecordingChangelistBuilder>();
+    final List<VcsException> exceptions = Collections.synchronizedList(new ArrayList<VcsException>());
+    try {
+      for (final VcsDirtyScope scope : scopes) {
+        myUpdateChangesProgressIndicator.checkCanceled();
+        final AbstractVcs vcs = scope.getVcs();
+        if (vcs == null) continue;
+        scope.setWasEverythingDirty(true);
+        final VcsModifiableDirtyScope adjustedScope = vcs.adjustDirtyScope((VcsModifiableDirtyScope) scope);
+        dataHolder.notifyStartProcessingChanges(adjustedScope);
+        final ChangeProvider changeProvider = vcs.getChangeProvider();
+        final RecordingChangelistBuilder recorder = new RecordingChangelistBuilder(myUpdater.getIsStoppedGetter());
+        adjustedScopes.add(adjustedScope);
+        recorders.add(recorder);
+        futures.add(ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+          public void run() {
+            if (changeProvider == null) return;
+            final long start = System.currentTimeMillis();
+            try {
+              changeProvider.getChanges(adjustedScope, recorder, myUpdateChangesProgressIndicator, gate);
+            }
+            catch (VcsException e) {
+              LOG.info(e);
+              exceptions.add(e);
+            }
+            debugLogging(vcs.getDisplayName() + " changes collected in " + (System.currentTimeMillis() - start) + " ms");
+          }
+        }));
+      }
+
+      myChangesViewManager.updateProgressText(VcsBundle.message("changes.update.progress.message", StringUtil.join(
+        adjustedScopes, new Function<VcsModifiableDirtyScope, String>() {
+        @Override
+        public String fun(VcsModifiableDirtyScope scope) {
+          return scope.getVcs().getDisplayName();
+        }
+      }, ", ")), false);
+      for (int i = 0; i < futures.size(); i++) {
+        waitFor(futures.get(i));
+        myUpdateChangesProgressIndicator.checkCanceled();
+        // the gate is the lock guarding the worker from providers still running
+        synchronized (gate) {
+          builder.setCurrent(adjustedScopes.get(i), new FoldersCutDownWorker());
+          recorders.get(i).replay(builder);
+        }
+        if (! myUpdater.isStopped()) {
+          dataHolder.notifyDoneProcessingChanges();
+        }
+      }
+      if (myUpdateException == null && ! exceptions.isEmpty()) {
+        myUpdateException = exceptions.get(0);
+      }
+    }
+    finally {
+      for (Future<?> future : futures) {
+        future.cancel(false);
+      }
+    }
+  }
+
+  private static void waitFor(final Future<?> future) {
+    try {
+      future.get();
+    }
+    catch (InterruptedException e) {
+      throw new ProcessCanceledException(e);
+    }
+    catch (ExecutionException e) {
+      LOG.debug(e.getCause());
+      Rethrow.reThrowRuntime(e.getCause());
+    }
+  }
+
   private void clearCurrentRevisionsCache(final VcsInvalidated invalidated) {
     final ContentRevisionCache cache = ProjectLevelVcsManager.getInstance(myProject).getContentRevisionCache();
     if (invalidated.isEverythingDirty()) {
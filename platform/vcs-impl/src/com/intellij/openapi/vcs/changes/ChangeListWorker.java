@@ -734,6 +734,7 @@ public class ChangeListWorker implements ChangeListsWriteOperations {
     return new MyGate(this);
   }
 
+  // synchronized: change providers of different vcses may use the gate concurrently
   private static class MyGate implements ChangeListManagerGate {
     private final ChangeListWorker myWorker;
 
@@ -741,20 +742,20 @@ public class ChangeListWorker implements ChangeListsWriteOperations {
       myWorker = worker;
     }
 
-    public List<LocalChangeList> getListsCopy() {
+    public synchronized List<LocalChangeList> getListsCopy() {
       return myWorker.getListsCopy();
     }
 
     @Nullable
-    public LocalChangeList findChangeList(final String name) {
+    public synchronized LocalChangeList findChangeList(final String name) {
       return myWorker.getCopyByName(name);
     }
 
-    public LocalChangeList addChangeList(final String name, final String comment) {
+    public synchronized LocalChangeList addChangeList(final String name, final String comment) {
       return myWorker.addChangeList(null, name, comment, true);
     }
 
-    public LocalChangeList findOrCreateList(final String name, final String comment) {
+    public synchronized LocalChangeList findOrCreateList(final String name, final String comment) {
       LocalChangeList list = myWorker.getCopyByName(name);
       if (list == null) {
         list = addChangeList(name, comment);
@@ -762,30 +763,30 @@ public class ChangeListWorker implements ChangeListsWriteOperations {
       return list;
     }
 
-    public void editComment(final String name, final String comment) {
+    public synchronized void editComment(final String name, final String comment) {
       myWorker.editComment(name, comment);
     }
 
-    public void editName(String oldName, String newName) {
+    public synchronized void editName(String oldName, String newName) {
       myWorker.editName(oldName, newName);
     }
 
     // todo usage allowed only when..
-    public void moveChanges(String toList, Collection<Change> changes) {
+    public synchronized void moveChanges(String toList, Collection<Change> changes) {
       myWorker.moveChangesTo(toList, changes.toArray(new Change[changes.size()]));
     }
 
-    public void setListsToDisappear(final Collection<String> names) {
+    public synchronized void setListsToDisappear(final Collection<String> names) {
       myWorker.setListsToDisappear(names);
     }
 
     @Override
-    public FileStatus getStatus(VirtualFile file) {
+    public synchronized FileStatus getStatus(VirtualFile file) {
       return myWorker.getStatus(file);
     }
 
     @Override
-    public FileStatus getStatus(File file) {
+    public synchronized FileStatus getStatus(File file) {
       return myWorker.getStatus(file);
     }
   }
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vcs.changes;
+
+import com.intellij.openapi.util.Getter;
+import com.intellij.openapi.vcs.FilePath;
+import com.intellij.openapi.vcs.VcsKey;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.Consumer;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Remembers what a {@link ChangeProvider} reports so that providers may run concurrently and their results
+ * be passed to the real builder one after another, in the order of dirty scopes.
+ */
+class RecordingChangelistBuilder implements ChangelistBuilder {
+  private final Getter<Boolean> myDisposedGetter;
+  private final List<Consumer<ChangelistBuilder>> myCalls = new ArrayList<Consumer<ChangelistBuilder>>();
+
+  RecordingChangelistBuilder(final Getter<Boolean> disposedGetter) {
+    myDisposedGetter = disposedGetter;
+  }
+
+  private void record(final Consumer<ChangelistBuilder> call) {
+    if (myDisposedGetter.get()) throw new ChangeListManagerImpl.DisposedException();
+    myCalls.add(call);
+  }
+
+  public void replay(final ChangelistBuilder builder) {
+    for (Consumer<ChangelistBuilder> call : myCalls) {
+      call.consume(builder);
+    }
+    myCalls.clear();
+  }
+
+  public void processChange(final Change change, final VcsKey vcsKey) {
+    record(new Consumer<ChangelistBuilder>() {
+      public void consume(ChangelistBuilder builder) {
+        builder.processChange(change, vcsKey);
+      }
+    });
+  }
+
+  public void processChangeInList(final Change change, @Nullable final ChangeList changeList, final VcsKey vcsKey) {
+    record(new Consumer<ChangelistBuilder>() {
+      public void consume(ChangelistBuilder builder) {
+        builder.processChangeInList(change, changeList, vcsKey);
+      }
+    });
+  }
+
+  public void processChangeInList(final Change change, final String changeListName, final VcsKey vcsKey) {
+    record(new Consumer<ChangelistBuilder>() {
+      public void consume(ChangelistBuilder builder) {
+        builder.processChangeInList(change, changeListName, vcsKey);
+      }
+    });
+  }
+
+  public void processUnversionedFile(final VirtualFile file) {
+    record(new Consumer<ChangelistBuilder>() {
+      public void consume(ChangelistBuilder builder) {
+        builder.processUnversionedFile(file);
+      }
+    });
+  }
+
+  public void processLocallyDeletedFile(final FilePath file) {
+    record(new Consumer<ChangelistBuilder>() {
+      public void consume(ChangelistBuilder builder) {
+        builder.processLocallyDeletedFile(file);
+      }
+    });
+  }
+
+  public void processLocallyDeletedFile(final LocallyDeletedChange locallyDeletedChange) {
+    record(new Consumer<ChangelistBuilder>() {
+      public void consume(ChangelistBuilder builder) {
+        builder.processLocallyDeletedFile(locallyDeletedChange);
+      }
+    });
+  }
+
+  public void processModifiedWithoutCheckout(final VirtualFile file) {
+    record(new Consumer<ChangelistBuilder>() {
+      public void consume(ChangelistBuilder builder) {
+        builder.processModifiedWithoutCheckout(file);
+      }
+    });
+  }
+
+  public void processIgnoredFile(final VirtualFile file) {
+    record(new Consumer<ChangelistBuilder>() {
+      public void consume(ChangelistBuilder builder) {
+        builder.processIgnoredFile(file);
+      }
+    });
+  }
+
+  public void processLockedFolder(final VirtualFile file) {
+    record(new Consumer<ChangelistBuilder>() {
+      public void consume(ChangelistBuilder builder) {
+        builder.processLockedFolder(file);
+      }
+    });
+  }
+
+  public void processLogicallyLockedFolder(final VirtualFile file, final LogicalLock logicalLock) {
+    record(new Consumer<ChangelistBuilder>() {
+      public void consume(ChangelistBuilder builder) {
+        builder.processLogicallyLockedFolder(file, logicalLock);
+      }
+    });
+  }
+
+  public void processSwitchedFile(final VirtualFile file, final String branch, final boolean recursive) {
+    record(new Consumer<ChangelistBuilder>() {
+      public void consume(ChangelistBuilder builder) {
+        builder.processSwitchedFile(file, branch, recursive);
+      }
+    });
+  }
+
+  public void processRootSwitch(final VirtualFile file, final String branch) {
+    record(new Consumer<ChangelistBuilder>() {
+      public void consume(ChangelistBuilder builder) {
+        builder.processRootSwitch(file, branch);
+      }
+    });
+  }
+
+  public boolean reportChangesOutsideProject() {
+    return false;
+  }
+
+  @Override
+  public void reportAdditionalInfo(final String text) {
+    record(new Consumer<ChangelistBuilder>() {
+      public void consume(ChangelistBuilder builder) {
+        builder.reportAdditionalInfo(text);
+      }
+    });
+  }
+}
@@ -67,6 +67,7 @@ import git4idea.history.NewGitUsersComponent;
 import git4idea.history.browser.GitProjectLogManager;
 import git4idea.history.wholeTree.GitCommitsSequentialIndex;
 import git4idea.history.wholeTree.GitCommitsSequentially;
+import git4idea.history.wholeTree.GitLogIndex;
 import git4idea.i18n.GitBundle;
 import git4idea.merge.GitMergeProvider;
 import git4idea.rollback.GitRollbackEnvironment;
@@ -330,6 +331,7 @@ public class GitVcs extends AbstractVcs<CommittedChangeList> {
       }
     }
     ((GitCommitsSequentialIndex) ServiceManager.getService(GitCommitsSequentially.class)).activate();
+    GitLogIndex.getInstance().activate();
   }
 
   @Override
@@ -351,6 +353,7 @@ public class GitVcs extends AbstractVcs<CommittedChangeList> {
       myBranchWidget = null;
     }
     ((GitCommitsSequentialIndex) ServiceManager.getService(GitCommitsSequentially.class)).deactivate();
+    GitLogIndex.getInstance().deactivate();
   }
 
   @NotNull
@@ -21,6 +21,7 @@ import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.*;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.FilePathImpl;
 import com.intellij.openapi.vcs.FileStatus;
@@ -32,9 +33,12 @@ import com.intellij.openapi.vcs.history.VcsFileRevision;
 import com.intellij.openapi.vcs.history.VcsRevisionDescription;
 import com.intellij.openapi.vcs.history.VcsRevisionDescriptionImpl;
 import com.intellij.openapi.vcs.history.VcsRevisionNumber;
+import com.intellij.openapi.vfs.CharsetToolkit;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.AsynchConsumer;
 import com.intellij.util.Consumer;
+import com.intellij.util.Processor;
+import com.intellij.util.ThrowableConsumer;
 import com.intellij.util.concurrency.Semaphore;
 import git4idea.GitBranch;
 import git4idea.GitFileRevision;
@@ -49,6 +53,7 @@ import git4idea.history.browser.SymbolicRefsI;
 import git4idea.history.wholeTree.AbstractHash;
 import git4idea.history.wholeTree.CommitHashPlusParents;
 import git4idea.history.wholeTree.GitCommitsSequentialIndex;
+import git4idea.history.wholeTree.GitLogIndex;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -368,44 +373,17 @@ public class GitHistoryUtils {
 
     while (currentPath.get() != null && firstCommitParent.get() != null) {
       logHandler.set(getLogHandler(project, finalRoot, logParser, currentPath.get(), firstCommitParent.get(), parameters));
-      final MyTokenAccumulator accumulator = new MyTokenAccumulator(logParser);
-      final Semaphore semaphore = new Semaphore();
-
-      logHandler.get().addLineListener(new GitLineHandlerAdapter() {
-        @Override
-        public void onLineAvailable(String line, Key outputType) {
-          final GitLogRecord record = accumulator.acceptLine(line);
-          if (record != null) {
+      try {
+        new GitLogRecordListener(logHandler.get(), logParser, new ThrowableConsumer<GitLogRecord, VcsException>() {
+          @Override
+          public void consume(GitLogRecord record) {
             resultAdapter.consume(record);
           }
-        }
-
-        @Override
-        public void startFailed(Throwable exception) {
-          //noinspection ThrowableInstanceNeverThrown
-          try {
-            exceptionConsumer.consume(new VcsException(exception));
-          } finally {
-            semaphore.up();
-          }
-        }
-
-        @Override
-        public void processTerminated(int exitCode) {
-          try {
-            super.processTerminated(exitCode);
-            final GitLogRecord record = accumulator.processLast();
-            if (record != null) {
-              resultAdapter.consume(record);
-            }
-          } finally {
-            semaphore.up();
-          }
-        }
-      });
-      semaphore.down();
-      logHandler.get().start();
-      semaphore.waitFor();
+        }, null).run();
+      }
+      catch (VcsException e) {
+        exceptionConsumer.consume(e);
+      }
 
       currentPath.set(getFirstCommitRenamePath(project, finalRoot, firstCommit.get(), currentPath.get()));
     }
@@ -454,45 +432,6 @@ public class GitHistoryUtils {
     return null;
   }
 
-  private static class MyTokenAccumulator {
-    private final StringBuilder myBuffer = new StringBuilder();
-
-    private boolean myNotStarted = true;
-    private GitLogParser myParser;
-
-    public MyTokenAccumulator(GitLogParser parser) {
-      myParser = parser;
-    }
-
-    @Nullable
-    public GitLogRecord acceptLine(String s) {
-      final boolean lineEnd = s.startsWith(GitLogParser.RECORD_START);
-      if (lineEnd && (!myNotStarted)) {
-        final String line = myBuffer.toString();
-        myBuffer.setLength(0);
-        myBuffer.append(s.substring(GitLogParser.RECORD_START.length()));
-
-        return processResult(line);
-      }
-      else {
-        myBuffer.append(lineEnd ? s.substring(GitLogParser.RECORD_START.length()) : s);
-        myBuffer.append("\n");
-      }
-      myNotStarted = false;
-
-      return null;
-    }
-
-    public GitLogRecord processLast() {
-      return processResult(myBuffer.toString());
-    }
-
-    private GitLogRecord processResult(final String line) {
-      return myParser.parseOneRecord(line);
-    }
-
-  }
-
   /**
    * Get history for the file
    *
@@ -543,7 +482,7 @@ public class GitHistoryUtils {
     throws VcsException {
     // adjust path using change manager
     path = getLastCommitName(project, path);
-    GitSimpleHandler h = new GitSimpleHandler(project, root, GitCommand.LOG);
+    GitLineHandler h = new GitLineHandler(project, root, GitCommand.LOG);
     GitLogParser parser = new GitLogParser(project, HASH, COMMIT_TIME);
     h.setNoSSH(true);
     h.setStdoutSuppressed(true);
@@ -551,13 +490,14 @@ public class GitHistoryUtils {
     h.addParameters(parser.getPretty(), "--encoding=UTF-8");
     h.endOptions();
     h.addRelativePaths(path);
-    String output = h.run();
 
     final List<Pair<SHAHash, Date>> rc = new ArrayList<Pair<SHAHash, Date>>();
-    for (GitLogRecord record : parser.parse(output)) {
-      record.setUsedHandler(h);
-      rc.add(new Pair<SHAHash, Date>(new SHAHash(record.getHash()), record.getDate()));
-    }
+    new GitLogRecordListener(h, parser, new ThrowableConsumer<GitLogRecord, VcsException>() {
+      @Override
+      public void consume(GitLogRecord record) {
+        rc.add(new Pair<SHAHash, Date>(new SHAHash(record.getHash()), record.getDate()));
+      }
+    }, null).run();
     return rc;
   }
 
@@ -605,76 +545,17 @@ public class GitHistoryUtils {
       h.addRelativePaths(path);
     }
 
-    final VcsException[] exc = new VcsException[1];
-    final Semaphore semaphore = new Semaphore();
-    final StringBuilder sb = new StringBuilder();
-    final Ref<Boolean> skipFirst = new Ref<Boolean>(true);
-    h.addLineListener(new GitLineHandlerAdapter() {
-      @Override
-      public void onLineAvailable(final String line, final Key outputType) {
-        try {
-          if (ProcessOutputTypes.STDOUT.equals(outputType)) {
-            if (isCanceled != null && isCanceled.get()) {
-              h.cancel();
-              return;
-            }
-            //if (line.charAt(line.length() - 1) != '\u0003') {
-            if ((! line.startsWith("\u0001")) || skipFirst.get()) {
-              if (sb.length() > 0) {
-                sb.append("\n");
-              }
-              sb.append(line);
-              skipFirst.set(false);
-              return;
-            }
-            takeLine(project, line, sb, parser, refs, root, exc, h, gitCommitConsumer);
-          }
-        } catch (ProcessCanceledException e) {
-          h.cancel();
-          semaphore.up();
-        }
-      }
-      @Override
-      public void processTerminated(int exitCode) {
-        semaphore.up();
-      }
-      @Override
-      public void startFailed(Throwable exception) {
-        semaphore.up();
-      }
-    });
-    semaphore.down();
-    h.start();
-    semaphore.waitFor();
-    takeLine(project, "", sb, parser, refs, root, exc, h, gitCommitConsumer);
-    gitCommitConsumer.finished();
-    if (exc[0] != null) {
-      throw exc[0];
-    }
-  }
-
-  private static void takeLine(final Project project, String line,
-                               StringBuilder sb,
-                               GitLogParser parser,
-                               SymbolicRefsI refs,
-                               VirtualFile root,
-                               VcsException[] exc, GitLineHandler h, AsynchConsumer<GitCommit> gitCommitConsumer) {
-    final String text = sb.toString();
-    sb.setLength(0);
-    sb.append(line);
-    if (text.length() == 0) return;
-    GitLogRecord record = parser.parseOneRecord(text);
-
-    final GitCommit gitCommit;
     try {
-      gitCommit = createCommit(project, refs, root, record);
+      new GitLogRecordListener(h, parser, new ThrowableConsumer<GitLogRecord, VcsException>() {
+        @Override
+        public void consume(GitLogRecord record) throws VcsException {
+          gitCommitConsumer.consume(createCommit(project, refs, root, record));
+        }
+      }, isCanceled).run();
     }
-    catch (VcsException e) {
-      exc[0] = e;
-      h.cancel();
-      return;
+    finally {
+      gitCommitConsumer.finished();
     }
-    gitCommitConsumer.consume(gitCommit);
   }
 
   private static GitCommit createCommit(Project project, SymbolicRefsI refs, VirtualFile root, GitLogRecord record) throws VcsException {
@@ -874,41 +755,90 @@ public class GitHistoryUtils {
       h.addRelativePaths(path);
     }
 
-    final Semaphore semaphore = new Semaphore();
-    h.addLineListener(new GitLineHandlerListener() {
+    new GitLogRecordListener(h, parser, new ThrowableConsumer<GitLogRecord, VcsException>() {
       @Override
-      public void onLineAvailable(final String line, final Key outputType) {
+      public void consume(GitLogRecord record) {
+        consumer.consume(new CommitHashPlusParents(record.getShortHash(),
+                                                   record.getParentsShortHashes(), record.getLongTimeStamp() * 1000,
+                                                   record.getAuthorName()));
+      }
+    }, isCanceled).run();
+    consumer.finished();
+  }
+
+  /**
+   * @return hashes of the commits all refs of the repository point to
+   */
+  public static List<String> loadRefTips(final Project project, final VirtualFile root) throws VcsException {
+    final GitSimpleHandler h = new GitSimpleHandler(project, root, GitCommand.LOG);
+    h.setNoSSH(true);
+    h.setSilent(true);
+    h.addParameters("--all", "--no-walk", "--pretty=format:%H");
+    h.endOptions();
+    final String output = h.run();
+    final Set<String> tips = new LinkedHashSet<String>();
+    for (String line : StringUtil.splitByLines(output)) {
+      if (line.trim().length() > 0) {
+        tips.add(line.trim());
+      }
+    }
+    return new ArrayList<String>(tips);
+  }
+
+  /**
+   * Reads commits for the {@link git4idea.history.wholeTree.GitLogIndex}: the ones reachable from the tips but not from the excluded
+   * commits, with the paths they touch. Revisions are passed through stdin since there may be thousands of refs.
+   */
+  public static void loadIndexRecords(final Project project, final VirtualFile root, final Collection<String> tips,
+                                      final Collection<String> excluded,
+                                      final ThrowableConsumer<GitLogIndex.Record, IOException> consumer) throws VcsException {
+    if (tips.isEmpty()) return;
+    final GitLineHandler h = new GitLineHandler(project, root, GitCommand.LOG);
+    final GitLogParser parser = new GitLogParser(project, GitLogParser.NameStatus.NAME, HASH, SHORT_HASH, PARENTS, SHORT_PARENTS, COMMIT_TIME,
+                                                 AUTHOR_NAME, AUTHOR_EMAIL, COMMITTER_NAME, COMMITTER_EMAIL);
+    h.setNoSSH(true);
+    h.setSilent(true);
+    h.addParameters(parser.getPretty(), "--encoding=UTF-8", "--name-only", "--stdin");
+    h.endOptions();
+    h.setInputProcessor(new Processor<OutputStream>() {
+      @Override
+      public boolean process(OutputStream stream) {
         try {
-          if (ProcessOutputTypes.STDOUT.equals(outputType)) {
-            if (isCanceled != null && isCanceled.get()) {
-              h.cancel();
-              return;
+          final Writer writer = new BufferedWriter(new OutputStreamWriter(stream, CharsetToolkit.UTF8_CHARSET));
+          try {
+            for (String tip : tips) {
+              writer.write(tip + "\n");
+            }
+            for (String hash : excluded) {
+              writer.write("^" + hash + "\n");
             }
-            GitLogRecord record = parser.parseOneRecord(line);
-            consumer.consume(new CommitHashPlusParents(record.getShortHash(),
-                                                       record.getParentsShortHashes(), record.getLongTimeStamp() * 1000,
-                                                       record.getAuthorName()));
           }
-        } catch (ProcessCanceledException e) {
-          h.cancel();
-          semaphore.up();
+          finally {
+            writer.close();
+          }
         }
+        catch (IOException e) {
+          h.addError(new VcsException(e));
+        }
+        return true;
       }
+    });
 
+    new GitLogRecordListener(h, parser, new ThrowableConsumer<GitLogRecord, VcsException>() {
       @Override
-      public void processTerminated(int exitCode) {
-        semaphore.up();
-      }
-
-      @Override
-      public void startFailed(Throwable exception) {
-        semaphore.up();
+      public void consume(GitLogRecord record) throws VcsException {
+        try {
+          consumer.consume(new GitLogIndex.Record(record.getHash(), record.getShortHash(), record.getParentsHashes(),
+                                                  record.getParentsShortHashes(),
+                                                  record.getAuthorName() + " <" + record.getAuthorEmail() + ">",
+                                                  record.getCommitterName() + " <" + record.getCommitterEmail() + ">",
+                                                  record.getLongTimeStamp() * 1000, record.getPaths()));
+        }
+        catch (IOException e) {
+          throw new VcsException(e);
+        }
       }
-    });
-    semaphore.down();
-    h.start();
-    semaphore.waitFor();
-    consumer.finished();
+    }, null).run();
   }
 
   /**
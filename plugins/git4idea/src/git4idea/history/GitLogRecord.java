@@ -58,7 +58,7 @@ class GitLogRecord {
     mySupportsRawBody = supportsRawBody;
   }
 
-  private List<String> getPaths() {
+  List<String> getPaths() {
     return myPaths;
   }
 
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package git4idea.history;
+
+import com.intellij.execution.process.ProcessOutputTypes;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.util.Getter;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.vcs.VcsException;
+import com.intellij.util.ThrowableConsumer;
+import com.intellij.util.concurrency.Semaphore;
+import git4idea.commands.GitLineHandler;
+import git4idea.commands.GitLineHandlerAdapter;
+import git4idea.i18n.GitBundle;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Parses 'git log' output record by record as the lines arrive and passes each {@link GitLogRecord} to the consumer at once,
+ * so only the record being read is kept in memory instead of the whole output.
+ * <p/>
+ * Records are delivered in the thread reading the process output. While the consumer is busy the output is not read,
+ * and git blocks on the full pipe: a slow consumer holds git back instead of letting the output pile up.
+ */
+class GitLogRecordListener extends GitLineHandlerAdapter {
+  private final GitLineHandler myHandler;
+  private final GitLogParser myParser;
+  private final ThrowableConsumer<GitLogRecord, VcsException> myConsumer;
+  @Nullable private final Getter<Boolean> myIsCanceled;
+  private final Semaphore mySemaphore;
+  // the record being read, without RECORD_START
+  private final StringBuilder myRecord;
+  private final StringBuilder myErrorOutput;
+  private boolean myStarted;
+  private boolean myStopped;
+  private VcsException myException;
+
+  GitLogRecordListener(@NotNull GitLineHandler handler, @NotNull GitLogParser parser,
+                       @NotNull ThrowableConsumer<GitLogRecord, VcsException> consumer, @Nullable Getter<Boolean> isCanceled) {
+    myHandler = handler;
+    myParser = parser;
+    myConsumer = consumer;
+    myIsCanceled = isCanceled;
+    mySemaphore = new Semaphore();
+    myRecord = new StringBuilder();
+    myErrorOutput = new StringBuilder();
+  }
+
+  /**
+   * Starts the handler and waits until all records are consumed.
+   *
+   * @throws VcsException if git couldn't be started or failed, or the consumer failed
+   */
+  void run() throws VcsException {
+    myHandler.addLineListener(this);
+    mySemaphore.down();
+    myHandler.start();
+    if (myHandler.isStarted()) {
+      // passes the input to the process if there is any
+      myHandler.waitFor();
+    }
+    mySemaphore.waitFor();
+    if (myException != null) {
+      throw myException;
+    }
+    if (myStopped) return;
+    if (! myHandler.errors().isEmpty()) {
+      throw myHandler.errors().get(0);
+    }
+    final int exitCode = myHandler.getExitCode();
+    if (exitCode != 0 && ! myHandler.isIgnoredErrorCode(exitCode)) {
+      final String error = myErrorOutput.toString().trim();
+      throw new VcsException(error.length() == 0 ? GitBundle.message("git.error.exit", exitCode) : error);
+    }
+  }
+
+  @Override
+  public void onLineAvailable(String line, Key outputType) {
+    if (ProcessOutputTypes.STDERR.equals(outputType)) {
+      myErrorOutput.append(line).append('\n');
+      return;
+    }
+    if (! ProcessOutputTypes.STDOUT.equals(outputType) || myStopped) return;
+    if (myIsCanceled != null && myIsCanceled.get()) {
+      stop();
+      return;
+    }
+    if (line.startsWith(GitLogParser.RECORD_START)) {
+      if (myStarted) {
+        flush();
+      }
+      myStarted = true;
+      myRecord.append(line, GitLogParser.RECORD_START.length(), line.length());
+    }
+    else if (myStarted) {
+      myRecord.append('\n').append(line);
+    }
+  }
+
+  private void flush() {
+    final String text = myRecord.toString();
+    myRecord.setLength(0);
+    final GitLogRecord record = myParser.parseOneRecord(text);
+    if (record == null) return;
+    record.setUsedHandler(myHandler);
+    try {
+      myConsumer.consume(record);
+    }
+    catch (VcsException e) {
+      myException = e;
+      stop();
+    }
+    catch (ProcessCanceledException e) {
+      stop();
+    }
+  }
+
+  private void stop() {
+    myStopped = true;
+    myHandler.cancel();
+  }
+
+  @Override
+  public void processTerminated(int exitCode) {
+    try {
+      if (myStarted && ! myStopped) {
+        flush();
+      }
+    }
+    finally {
+      mySemaphore.up();
+    }
+  }
+
+  @Override
+  public void startFailed(Throwable exception) {
+    try {
+      myException = new VcsException("Git start failed: " + exception.getMessage(), exception);
+    }
+    finally {
+      mySemaphore.up();
+    }
+  }
+}
@@ -175,6 +175,10 @@ public class ChangesFilter {
       return myMemoryFilter;
     }
 
+    public Pattern getPattern() {
+      return myPattern;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (this == o) return true;
@@ -227,6 +231,10 @@ public class ChangesFilter {
       return myMemoryFilter;
     }
 
+    public Pattern getPattern() {
+      return myPattern;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (this == o) return true;
@@ -277,6 +285,10 @@ public class ChangesFilter {
       return myMemoryFilter;
     }
 
+    public Date getDate() {
+      return myDate;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (this == o) return true;
@@ -327,6 +339,10 @@ public class ChangesFilter {
       return myMemoryFilter;
     }
 
+    public Date getDate() {
+      return myDate;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (this == o) return true;
@@ -0,0 +1,646 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package git4idea.history.wholeTree;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vcs.VcsException;
+import com.intellij.openapi.vcs.changes.FilePathsHelper;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.Processor;
+import com.intellij.util.ThrowableConsumer;
+import com.intellij.util.io.*;
+import git4idea.history.GitHistoryUtils;
+import git4idea.history.browser.ChangesFilter;
+import gnu.trove.TIntHashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * Persistent commit graph of git roots: hashes enumerated to ints, parents, author, committer, commit time and touched paths.
+ * Lets the whole-tree log list and filter commits by user, path and date without running git.
+ * <p/>
+ * The index is updated incrementally: only commits reachable from the current refs but not from the refs seen by the previous
+ * update are read from git.
+ * <p/>
+ * !! application-level
+ */
+public class GitLogIndex {
+  private static final Logger LOG = Logger.getInstance("#git4idea.history.wholeTree.GitLogIndex");
+  public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("git.log.index", "true"));
+  private static final int VERSION = 1;
+  // don't ask git for new refs more often, several loaders of one log view prepare the index at once
+  private static final long ourUpdateInterval = 2000;
+
+  private final Object myLock;
+  private final File myDir;
+  private final Map<String, RootIndex> myIndices;
+  private int myActivations;
+
+  public GitLogIndex() {
+    this(new File(new File(PathManager.getSystemPath(), "vcs"), "git_log_index"));
+  }
+
+  GitLogIndex(final File dir) {
+    myLock = new Object();
+    myDir = dir;
+    myIndices = new HashMap<String, RootIndex>();
+  }
+
+  public static GitLogIndex getInstance() {
+    return ServiceManager.getService(GitLogIndex.class);
+  }
+
+  public void activate() {
+    synchronized (myLock) {
+      ++ myActivations;
+    }
+  }
+
+  public void deactivate() {
+    final List<RootIndex> indices;
+    synchronized (myLock) {
+      if (myActivations == 0) {
+        LOG.info("Deactivate without activate");
+        return;
+      }
+      if (-- myActivations > 0) return;
+      indices = new ArrayList<RootIndex>(myIndices.values());
+      for (RootIndex index : indices) {
+        index.myDisposed = true;
+      }
+      myIndices.clear();
+    }
+    // a running update stops at the next record, wait for it outside of myLock since it may want to drop the index
+    for (RootIndex index : indices) {
+      synchronized (index) {
+        index.close();
+      }
+    }
+  }
+
+  /**
+   * Brings the index of the root up to date with its refs. The first indexing of a root is started in background
+   * and the method returns without waiting for it.
+   *
+   * @return true if the index of the root can be queried
+   */
+  public boolean prepare(final Project project, final VirtualFile root) {
+    final RootIndex index = getIndex(root);
+    if (index == null) return false;
+    if (! index.isBuilt()) {
+      if (index.myBuilding.compareAndSet(false, true)) {
+        ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              synchronized (index) {
+                update(project, root, index);
+              }
+            }
+            catch (VcsException e) {
+              LOG.info(e);
+            }
+            catch (ProcessCanceledException e) {
+              //
+            }
+            finally {
+              index.myBuilding.set(false);
+            }
+          }
+        });
+      }
+      return false;
+    }
+    synchronized (index) {
+      if (index.myDisposed) return false;
+      if (System.currentTimeMillis() - index.myLastUpdate < ourUpdateInterval) return true;
+      try {
+        update(project, root, index);
+        return true;
+      }
+      catch (VcsException e) {
+        LOG.info(e);
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Feeds commits reachable from the indexed refs and accepted by the query to the processor, in descending commit time order.
+   *
+   * @return false if the root is not indexed and git should be asked instead
+   */
+  public boolean iterate(final VirtualFile root, final Query query, final Processor<CommitHashPlusParents> processor)
+    throws VcsException {
+    final RootIndex index = getIndex(root);
+    if (index == null || ! index.isBuilt()) return false;
+    synchronized (index) {
+      if (index.myDisposed) return false;
+      try {
+        index.iterate(query, processor);
+        return true;
+      }
+      catch (IOException e) {
+        drop(root, index);
+        throw new VcsException(e);
+      }
+    }
+  }
+
+  private void update(final Project project, final VirtualFile root, final RootIndex index) throws VcsException {
+    if (index.myDisposed) return;
+    final long start = System.currentTimeMillis();
+    final List<String> tips = GitHistoryUtils.loadRefTips(project, root);
+    final ThrowableConsumer<Record, IOException> consumer = new ThrowableConsumer<Record, IOException>() {
+      @Override
+      public void consume(Record record) throws IOException {
+        // deactivation waits for the update to close the index
+        if (index.myDisposed) throw new ProcessCanceledException();
+        index.add(record);
+      }
+    };
+    try {
+      final List<String> known = index.getHeads();
+      try {
+        GitHistoryUtils.loadIndexRecords(project, root, tips, known, consumer);
+      }
+      catch (VcsException e) {
+        if (known.isEmpty()) throw e;
+        // some of the indexed heads might be gone with rewritten history, read everything again
+        LOG.info(e);
+        GitHistoryUtils.loadIndexRecords(project, root, tips, Collections.<String>emptyList(), consumer);
+      }
+      if (index.myDisposed) return;
+      index.setHeads(tips);
+    }
+    catch (IOException e) {
+      drop(root, index);
+      throw new VcsException(e);
+    }
+    index.myLastUpdate = System.currentTimeMillis();
+    LOG.debug("Git log index of " + root.getPath() + " updated in " + (index.myLastUpdate - start) + " ms");
+  }
+
+  @Nullable
+  private RootIndex getIndex(final VirtualFile root) {
+    synchronized (myLock) {
+      if (myActivations == 0) return null;
+      final String key = FilePathsHelper.convertPath(root);
+      RootIndex index = myIndices.get(key);
+      if (index == null) {
+        final File dir = new File(myDir, root.getName() + "_" + Integer.toHexString(key.hashCode()));
+        try {
+          index = RootIndex.open(dir);
+        }
+        catch (IOException e) {
+          LOG.info(e);
+          return null;
+        }
+        myIndices.put(key, index);
+      }
+      return index;
+    }
+  }
+
+  private void drop(final VirtualFile root, final RootIndex index) {
+    synchronized (myLock) {
+      // the index was closed by deactivation rather than found corrupted
+      if (index.myDisposed) return;
+      myIndices.remove(FilePathsHelper.convertPath(root));
+      index.close();
+      FileUtil.delete(index.myDir);
+    }
+  }
+
+  /**
+   * A commit as read from git.
+   */
+  public static class Record {
+    private final String myHash;
+    private final String myShortHash;
+    private final String[] myParents;
+    private final String[] myShortParents;
+    private final String myAuthor;
+    private final String myCommitter;
+    private final long myTime;
+    private final List<String> myPaths;
+
+    /**
+     * @param author    author as "name &lt;email&gt;"
+     * @param committer committer as "name &lt;email&gt;"
+     * @param time      commit time in milliseconds
+     * @param paths     paths relative to the root, may be filled later
+     */
+    public Record(String hash, String shortHash, String[] parents, String[] shortParents, String author, String committer, long time,
+                  List<String> paths) {
+      myHash = hash;
+      myShortHash = shortHash;
+      myParents = parents;
+      myShortParents = shortParents;
+      myAuthor = author;
+      myCommitter = committer;
+      myTime = time;
+      myPaths = paths;
+    }
+  }
+
+  /**
+   * Filters the index can answer: users, paths and dates.
+   */
+  public static class Query {
+    private final List<Pattern> myAuthors;
+    private final List<Pattern> myCommitters;
+    // relative to the root, empty string is the root itself
+    private final List<String> myPaths;
+    private final long myAfter;
+    private final long myBefore;
+
+    Query(List<Pattern> authors, List<Pattern> committers, List<String> paths, long after, long before) {
+      myAuthors = authors;
+      myCommitters = committers;
+      myPaths = paths;
+      myAfter = after;
+      myBefore = before;
+    }
+
+    /**
+     * @return null if some of the filters can't be answered by the index
+     */
+    @Nullable
+    public static Query create(final VirtualFile root, final Collection<ChangesFilter.Filter> filters) {
+      final List<Pattern> authors = new ArrayList<Pattern>();
+      final List<Pattern> committers = new ArrayList<Pattern>();
+      final List<String> paths = new ArrayList<String>();
+      long after = -1;
+      long before = Long.MAX_VALUE;
+      for (ChangesFilter.Filter filter : filters) {
+        if (filter instanceof ChangesFilter.Author) {
+          authors.add(((ChangesFilter.Author)filter).getPattern());
+        }
+        else if (filter instanceof ChangesFilter.Committer) {
+          committers.add(((ChangesFilter.Committer)filter).getPattern());
+        }
+        else if (filter instanceof ChangesFilter.AfterDate) {
+          after = Math.max(after, ((ChangesFilter.AfterDate)filter).getDate().getTime());
+        }
+        else if (filter instanceof ChangesFilter.BeforeDate) {
+          before = Math.min(before, ((ChangesFilter.BeforeDate)filter).getDate().getTime());
+        }
+        else if (filter instanceof ChangesFilter.StructureFilter) {
+          final Collection<VirtualFile> files = new ArrayList<VirtualFile>();
+          filter.getCommandParametersFilter().applyToPaths(files);
+          for (VirtualFile file : files) {
+            final String path = VfsUtilCore.getRelativePath(file, root, '/');
+            if (path == null) return null;
+            paths.add(path);
+          }
+        }
+        else {
+          return null;
+        }
+      }
+      return new Query(authors, committers, paths, after, before);
+    }
+  }
+
+  private static class CommitData {
+    private final int[] myParents;
+    private final long myTime;
+    private final int myAuthor;
+    private final int myCommitter;
+    private final int[] myPaths;
+    // lengths of the abbreviated hashes of the commit and its parents, as git printed them
+    private final byte[] myAbbreviations;
+
+    private CommitData(int[] parents, long time, int author, int committer, int[] paths, byte[] abbreviations) {
+      myParents = parents;
+      myTime = time;
+      myAuthor = author;
+      myCommitter = committer;
+      myPaths = paths;
+      myAbbreviations = abbreviations;
+    }
+  }
+
+  private static class CommitDataExternalizer implements DataExternalizer<CommitData> {
+    @Override
+    public void save(DataOutput out, CommitData value) throws IOException {
+      writeIntArray(out, value.myParents);
+      out.writeLong(value.myTime);
+      DataInputOutputUtil.writeINT(out, value.myAuthor);
+      DataInputOutputUtil.writeINT(out, value.myCommitter);
+      writeIntArray(out, value.myPaths);
+      out.write(value.myAbbreviations);
+    }
+
+    @Override
+    public CommitData read(DataInput in) throws IOException {
+      final int[] parents = readIntArray(in);
+      final long time = in.readLong();
+      final int author = DataInputOutputUtil.readINT(in);
+      final int committer = DataInputOutputUtil.readINT(in);
+      final int[] paths = readIntArray(in);
+      final byte[] abbreviations = new byte[parents.length + 1];
+      in.readFully(abbreviations);
+      return new CommitData(parents, time, author, committer, paths, abbreviations);
+    }
+
+    private static void writeIntArray(DataOutput out, int[] array) throws IOException {
+      DataInputOutputUtil.writeINT(out, array.length);
+      for (int i : array) {
+        DataInputOutputUtil.writeINT(out, i);
+      }
+    }
+
+    private static int[] readIntArray(DataInput in) throws IOException {
+      final int[] array = new int[DataInputOutputUtil.readINT(in)];
+      for (int i = 0; i < array.length; i++) {
+        array[i] = DataInputOutputUtil.readINT(in);
+      }
+      return array;
+    }
+  }
+
+  static class RootIndex {
+    private final File myDir;
+    private final PersistentStringEnumerator myHashes;
+    private final PersistentStringEnumerator myUsers;
+    private final PersistentStringEnumerator myPaths;
+    private final PersistentHashMap<Integer, CommitData> myCommits;
+    private final File myHeadsFile;
+    // null until the first update completes
+    private volatile int[] myHeads;
+    private final AtomicBoolean myBuilding;
+    private long myLastUpdate;
+    // set under GitLogIndex.myLock when the index is deactivated, it is closed once the running operation is over
+    private volatile boolean myDisposed;
+    private boolean myClosed;
+
+    private RootIndex(final File dir) throws IOException {
+      myDir = dir;
+      myHashes = new PersistentStringEnumerator(new File(dir, "hashes"));
+      myUsers = new PersistentStringEnumerator(new File(dir, "users"));
+      myPaths = new PersistentStringEnumerator(new File(dir, "paths"));
+      myCommits = new PersistentHashMap<Integer, CommitData>(new File(dir, "commits"), EnumeratorIntegerDescriptor.INSTANCE,
+                                                             new CommitDataExternalizer());
+      myHeadsFile = new File(dir, "heads");
+      myHeads = readHeads(myHeadsFile);
+      myBuilding = new AtomicBoolean();
+    }
+
+    static RootIndex open(final File dir) throws IOException {
+      final File versionFile = new File(dir, "version");
+      if (! String.valueOf(VERSION).equals(versionFile.exists() ? FileUtil.loadFile(versionFile).trim() : null)) {
+        FileUtil.delete(dir);
+        FileUtil.writeToFile(versionFile, String.valueOf(VERSION));
+      }
+      try {
+        return new RootIndex(dir);
+      }
+      catch (IOException e) {
+        LOG.info("Git log index is corrupted, rebuilding: " + dir.getPath(), e);
+        FileUtil.delete(dir);
+        FileUtil.writeToFile(versionFile, String.valueOf(VERSION));
+        return new RootIndex(dir);
+      }
+    }
+
+    boolean isBuilt() {
+      return myHeads != null;
+    }
+
+    void add(final Record record) throws IOException {
+      final int[] parents = new int[record.myParents.length];
+      final byte[] abbreviations = new byte[parents.length + 1];
+      abbreviations[0] = (byte)record.myShortHash.length();
+      for (int i = 0; i < parents.length; i++) {
+        parents[i] = myHashes.enumerate(record.myParents[i]);
+        abbreviations[i + 1] = (byte)(i < record.myShortParents.length ? record.myShortParents[i].length() : record.myParents[i].length());
+      }
+      final int[] paths = new int[record.myPaths.size()];
+      for (int i = 0; i < paths.length; i++) {
+        paths[i] = myPaths.enumerate(record.myPaths.get(i));
+      }
+      final CommitData data = new CommitData(parents, record.myTime, myUsers.enumerate(record.myAuthor),
+                                             myUsers.enumerate(record.myCommitter), paths, abbreviations);
+      myCommits.put(myHashes.enumerate(record.myHash), data);
+    }
+
+    List<String> getHeads() throws IOException {
+      final int[] heads = myHeads;
+      if (heads == null) return Collections.emptyList();
+      final List<String> result = new ArrayList<String>(heads.length);
+      for (int head : heads) {
+        result.add(myHashes.valueOf(head));
+      }
+      return result;
+    }
+
+    void setHeads(final Collection<String> tips) throws IOException {
+      final int[] heads = new int[tips.size()];
+      int i = 0;
+      for (String tip : tips) {
+        heads[i++] = myHashes.enumerate(tip);
+      }
+      // heads are written last, so an interrupted update is simply repeated next time
+      myHashes.force();
+      myUsers.force();
+      myPaths.force();
+      myCommits.force();
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(myHeadsFile)));
+      try {
+        out.writeInt(heads.length);
+        for (int head : heads) {
+          out.writeInt(head);
+        }
+      }
+      finally {
+        out.close();
+      }
+      myHeads = heads;
+    }
+
+    @Nullable
+    private static int[] readHeads(final File file) throws IOException {
+      if (! file.exists()) return null;
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        final int[] heads = new int[in.readInt()];
+        for (int i = 0; i < heads.length; i++) {
+          heads[i] = in.readInt();
+        }
+        return heads;
+      }
+      finally {
+        in.close();
+      }
+    }
+
+    /**
+     * Walks the graph from the heads in descending commit time order, like 'git log --date-order'.
+     */
+    void iterate(final Query query, final Processor<CommitHashPlusParents> processor) throws IOException {
+      final int[] heads = myHeads;
+      if (heads == null) return;
+      final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+      final TIntHashSet seen = new TIntHashSet();
+      final Matcher authors = new Matcher(query.myAuthors, myUsers);
+      final Matcher committers = new Matcher(query.myCommitters, myUsers);
+      final PathMatcher paths = new PathMatcher(query.myPaths);
+      for (int head : heads) {
+        enqueue(head, queue, seen);
+      }
+      while (! queue.isEmpty()) {
+        final Entry entry = queue.poll();
+        final CommitData data = entry.myData;
+        // parents are older than their children unless clocks were skewed, git cuts the walk the same way
+        if (data.myTime <= query.myAfter) break;
+        for (int parent : data.myParents) {
+          enqueue(parent, queue, seen);
+        }
+        if (data.myTime >= query.myBefore || ! authors.accepts(data.myAuthor) || ! committers.accepts(data.myCommitter) ||
+            ! paths.accepts(data.myPaths)) {
+          continue;
+        }
+        final String[] parents = new String[data.myParents.length];
+        for (int i = 0; i < parents.length; i++) {
+          parents[i] = abbreviate(myHashes.valueOf(data.myParents[i]), data.myAbbreviations[i + 1]);
+        }
+        final String author = myUsers.valueOf(data.myAuthor);
+        final int emailStart = author.lastIndexOf(" <");
+        final CommitHashPlusParents commit = new CommitHashPlusParents(abbreviate(myHashes.valueOf(entry.myId), data.myAbbreviations[0]),
+                                                                       parents, data.myTime,
+                                                                       emailStart < 0 ? author : author.substring(0, emailStart));
+        if (! processor.process(commit)) return;
+      }
+    }
+
+    private void enqueue(final int id, final PriorityQueue<Entry> queue, final TIntHashSet seen) throws IOException {
+      if (! seen.add(id)) return;
+      final CommitData data = myCommits.get(id);
+      // not indexed: a head which update was interrupted, or a shallow clone
+      if (data != null) {
+        queue.add(new Entry(id, data));
+      }
+    }
+
+    private static String abbreviate(final String hash, final int length) {
+      return length > 0 && length < hash.length() ? hash.substring(0, length) : hash;
+    }
+
+    void close() {
+      if (myClosed) return;
+      myClosed = true;
+      try {
+        myHashes.close();
+        myUsers.close();
+        myPaths.close();
+        myCommits.close();
+      }
+      catch (IOException e) {
+        LOG.info(e);
+      }
+    }
+
+    private class PathMatcher {
+      private final List<String> myPrefixes;
+      private final TIntHashSet myAccepted;
+      private final TIntHashSet myRejected;
+
+      private PathMatcher(final List<String> prefixes) {
+        myPrefixes = prefixes;
+        myAccepted = new TIntHashSet();
+        myRejected = new TIntHashSet();
+      }
+
+      boolean accepts(final int[] paths) throws IOException {
+        if (myPrefixes.isEmpty()) return true;
+        for (int id : paths) {
+          if (myAccepted.contains(id)) return true;
+          if (myRejected.contains(id)) continue;
+          final String path = myPaths.valueOf(id);
+          boolean accepted = false;
+          for (String prefix : myPrefixes) {
+            if (prefix.length() == 0 || path.equals(prefix) || path.startsWith(prefix) && path.charAt(prefix.length()) == '/') {
+              accepted = true;
+              break;
+            }
+          }
+          (accepted ? myAccepted : myRejected).add(id);
+          if (accepted) return true;
+        }
+        return false;
+      }
+    }
+  }
+
+  private static class Matcher {
+    private final List<Pattern> myPatterns;
+    private final PersistentStringEnumerator myEnumerator;
+    private final TIntHashSet myAccepted;
+    private final TIntHashSet myRejected;
+
+    private Matcher(final List<Pattern> patterns, final PersistentStringEnumerator enumerator) {
+      myPatterns = patterns;
+      myEnumerator = enumerator;
+      myAccepted = new TIntHashSet();
+      myRejected = new TIntHashSet();
+    }
+
+    // like 'git log --author', any of the patterns is to be found in "name <email>"
+    boolean accepts(final int id) throws IOException {
+      if (myPatterns.isEmpty() || myAccepted.contains(id)) return true;
+      if (myRejected.contains(id)) return false;
+      final String user = myEnumerator.valueOf(id);
+      for (Pattern pattern : myPatterns) {
+        if (pattern.matcher(user).find()) {
+          myAccepted.add(id);
+          return true;
+        }
+      }
+      myRejected.add(id);
+      return false;
+    }
+  }
+
+  private static class Entry implements Comparable<Entry> {
+    private final int myId;
+    private final CommitData myData;
+
+    private Entry(int id, @NotNull CommitData data) {
+      myId = id;
+      myData = data;
+    }
+
+    @Override
+    public int compareTo(Entry o) {
+      if (myData.myTime != o.myData.myTime) return myData.myTime > o.myData.myTime ? -1 : 1;
+      return myId < o.myId ? -1 : (myId == o.myId ? 0 : 1);
+    }
+  }
+}
@@ -21,6 +21,7 @@ import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.AsynchConsumer;
 import com.intellij.util.BufferedListConsumer;
 import com.intellij.util.Consumer;
+import com.intellij.util.Processor;
 import com.intellij.util.Ticket;
 import com.intellij.util.containers.Convertor;
 import git4idea.history.browser.*;
@@ -57,6 +58,8 @@ public class LoaderAndRefresherImpl implements LoaderAndRefresher<CommitHashPlus
   @NotNull
   private volatile StepType myStepType;
   private final boolean myTopoOrder;
+  // null until the log index is asked whether it can serve this loader
+  private Boolean myIndexPrepared;
 
   private static boolean parameterCheck(final Integer i) {
     return i != null && i > 0;
@@ -282,13 +285,35 @@ public class LoaderAndRefresherImpl implements LoaderAndRefresher<CommitHashPlus
   private void loadShort(final long continuation, int maxCount) {
     final Collection<ChangesFilter.Filter> filters = addContinuation(continuation);
     try {
-      myLowLevelAccess.loadHashesWithParents(myStartingPoints, filters, myRepeatingLoadConsumer, myProgressAnalog, maxCount, myTopoOrder);
+      if (! loadShortFromIndex(filters, maxCount)) {
+        myLowLevelAccess.loadHashesWithParents(myStartingPoints, filters, myRepeatingLoadConsumer, myProgressAnalog, maxCount, myTopoOrder);
+      }
     }
     catch (VcsException e) {
       myMediator.acceptException(e);
     }
   }
 
+  // the index knows all refs only, and orders commits by date
+  private boolean loadShortFromIndex(final Collection<ChangesFilter.Filter> filters, final int maxCount) throws VcsException {
+    if (! GitLogIndex.ENABLED || myTopoOrder || ! myStartingPoints.isEmpty()) return false;
+    final GitLogIndex.Query query = GitLogIndex.Query.create(getRoot(), filters);
+    if (query == null) return false;
+    if (myIndexPrepared == null) {
+      myIndexPrepared = GitLogIndex.getInstance().prepare(myProject, getRoot());
+    }
+    if (! myIndexPrepared) return false;
+    final int[] count = new int[1];
+    return GitLogIndex.getInstance().iterate(getRoot(), query, new Processor<CommitHashPlusParents>() {
+      @Override
+      public boolean process(CommitHashPlusParents commit) {
+        if (isInterrupted()) return false;
+        myRepeatingLoadConsumer.consume(commit);
+        return maxCount <= 0 || ++ count[0] < maxCount;
+      }
+    });
+  }
+
   interface MyRootHolder {
     VirtualFile getRoot();
     CommitI decorateByRoot(final CommitI commitI);
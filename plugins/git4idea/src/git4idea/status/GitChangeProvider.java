@@ -15,9 +15,12 @@
  */
 package git4idea.status;
 
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.FilePathImpl;
@@ -43,10 +46,11 @@ import git4idea.config.GitVersion;
 import git4idea.config.GitVersionSpecialty;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Git repository change provider
@@ -84,10 +88,7 @@ public class GitChangeProvider implements ChangeProvider {
     try {
       final MyNonChangedHolder holder = new MyNonChangedHolder(myProject, dirtyScope.getDirtyFilesNoExpand(), addGate,
                                                                myFileDocumentManager, myVcsManager);
-      for (VirtualFile root : roots) {
-        GitChangesCollector collector = isNewGitChangeProviderAvailable()
-                                        ? GitNewChangesCollector.collect(myProject, myChangeListManager, dirtyScope, root)
-                                        : GitOldChangesCollector.collect(myProject, myChangeListManager, dirtyScope, root);
+      for (GitChangesCollector collector : collect(dirtyScope, roots, progress)) {
         holder.changed(collector.getChanges());
         for (Change file : collector.getChanges()) {
           builder.processChange(file, GitVcs.getKey());
@@ -106,6 +107,78 @@ public class GitChangeProvider implements ChangeProvider {
     }
   }
 
+  /**
+   * Runs 'git status' for the roots in parallel, in at most as many pooled threads as there are processors.
+   * The threads run under the given progress indicator, no more roots are started once it is canceled.
+   *
+   * @return collectors in the order of roots
+   */
+  private List<GitChangesCollector> collect(final VcsDirtyScope dirtyScope, Collection<VirtualFile> roots, final ProgressIndicator progress)
+    throws VcsException {
+    final boolean newCollector = isNewGitChangeProviderAvailable();
+    final VirtualFile[] rootsArray = roots.toArray(new VirtualFile[roots.size()]);
+    final GitChangesCollector[] collectors = new GitChangesCollector[rootsArray.length];
+    final AtomicInteger nextRoot = new AtomicInteger();
+    final int threadsCount = Math.min(rootsArray.length, Runtime.getRuntime().availableProcessors());
+    final List<Future<?>> futures = new ArrayList<Future<?>>(threadsCount);
+    for (int i = 0; i < threadsCount; i++) {
+      futures.add(ApplicationManager.getApplication().executeOnPooledThread(new Callable<Object>() {
+        @Override
+        public Object call() throws VcsException {
+          final VcsException[] exception = new VcsException[1];
+          ProgressManager.getInstance().runProcess(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                int index;
+                while ((index = nextRoot.getAndIncrement()) < rootsArray.length) {
+                  if (progress != null) progress.checkCanceled();
+                  collectors[index] = collect(dirtyScope, rootsArray[index], newCollector);
+                }
+              }
+              catch (VcsException e) {
+                exception[0] = e;
+              }
+            }
+          }, progress);
+          if (exception[0] != null) throw exception[0];
+          return null;
+        }
+      }));
+    }
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    }
+    catch (InterruptedException e) {
+      throw new ProcessCanceledException(e);
+    }
+    catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof VcsException) throw (VcsException)cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      if (cause instanceof Error) throw (Error)cause;
+      throw new VcsException(cause);
+    }
+    finally {
+      // stop the threads still running if one of them failed
+      nextRoot.set(rootsArray.length);
+    }
+    return Arrays.asList(collectors);
+  }
+
+  private GitChangesCollector collect(VcsDirtyScope dirtyScope, VirtualFile root, boolean newCollector) throws VcsException {
+    final long start = System.currentTimeMillis();
+    final GitChangesCollector collector = newCollector
+                                          ? GitNewChangesCollector.collect(myProject, myChangeListManager, dirtyScope, root)
+                                          : GitOldChangesCollector.collect(myProject, myChangeListManager, dirtyScope, root);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Changes collected in " + (System.currentTimeMillis() - start) + " ms for " + root.getPresentableUrl());
+    }
+    return collector;
+  }
+
   private boolean isNewGitChangeProviderAvailable() {
     GitVcs vcs = GitVcs.getInstance(myProject);
     if (vcs == null) {
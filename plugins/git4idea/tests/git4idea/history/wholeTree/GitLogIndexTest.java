@@ -0,0 +1,114 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package git4idea.history.wholeTree;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.CommonProcessors;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Pattern;
+
+public class GitLogIndexTest extends TestCase {
+  private static final String[] NO_PATHS = ArrayUtil.EMPTY_STRING_ARRAY;
+
+  private File myDir;
+  private GitLogIndex.RootIndex myIndex;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("gitLogIndex", null);
+    myIndex = GitLogIndex.RootIndex.open(myDir);
+    // a - b - d - e (master)
+    //   \ c /        (topic, merged)
+    add("a000000", "Alice <alice@example.com>", 1000, new String[]{"README"});
+    add("b000000", "Bob <bob@example.com>", 2000, new String[]{"src/Main.java"}, "a000000");
+    add("c000000", "Alice <alice@example.com>", 3000, new String[]{"src/util/Util.java", "docs/a.txt"}, "a000000");
+    add("d000000", "Bob <bob@example.com>", 4000, NO_PATHS, "b000000", "c000000");
+    add("e000000", "Carol <carol@example.com>", 5000, new String[]{"src"}, "d000000");
+    myIndex.setHeads(Arrays.asList("e000000", "c000000"));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myIndex.close();
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testDateOrder() throws Exception {
+    final List<CommitHashPlusParents> commits = iterate(query(null, null, -1, Long.MAX_VALUE));
+    assertEquals("e000, d000, c000, b000, a000", hashes(commits));
+    assertEquals("Carol", commits.get(0).getAuthorName());
+    assertEquals(2, commits.get(1).getParents().size());
+    assertEquals(5000, commits.get(0).getTime());
+  }
+
+  public void testFilters() throws Exception {
+    assertEquals("c000, a000", hashes(iterate(query(Pattern.compile("alice@"), null, -1, Long.MAX_VALUE))));
+    assertEquals("e000, c000, b000", hashes(iterate(query(null, "src", -1, Long.MAX_VALUE))));
+    assertEquals("c000", hashes(iterate(query(null, "docs/a.txt", -1, Long.MAX_VALUE))));
+    assertEquals("", hashes(iterate(query(null, "sr", -1, Long.MAX_VALUE))));
+    assertEquals("d000, c000", hashes(iterate(query(null, null, 2000, 4001))));
+    assertEquals("b000", hashes(iterate(query(Pattern.compile("Bob"), "src", -1, 4000))));
+  }
+
+  public void testIncrementalUpdateAndReopen() throws Exception {
+    assertEquals(Arrays.asList("e000000", "c000000"), myIndex.getHeads());
+    add("f000000", "Alice <alice@example.com>", 6000, new String[]{"README"}, "e000000");
+    myIndex.setHeads(Arrays.asList("f000000"));
+    myIndex.close();
+
+    myIndex = GitLogIndex.RootIndex.open(myDir);
+    assertTrue(myIndex.isBuilt());
+    assertEquals(Arrays.asList("f000000"), myIndex.getHeads());
+    assertEquals("f000, a000", hashes(iterate(query(null, "README", -1, Long.MAX_VALUE))));
+  }
+
+  private void add(String hash, String author, long time, String[] paths, String... parents) throws IOException {
+    final String[] shortParents = new String[parents.length];
+    for (int i = 0; i < parents.length; i++) {
+      shortParents[i] = parents[i].substring(0, 4);
+    }
+    myIndex.add(new GitLogIndex.Record(hash, hash.substring(0, 4), parents, shortParents, author, author, time,
+                                       new ArrayList<String>(Arrays.asList(paths))));
+  }
+
+  private static GitLogIndex.Query query(Pattern author, String path, long after, long before) {
+    return new GitLogIndex.Query(author == null ? Collections.<Pattern>emptyList() : Collections.singletonList(author),
+                                 Collections.<Pattern>emptyList(),
+                                 path == null ? Collections.<String>emptyList() : Collections.singletonList(path), after, before);
+  }
+
+  private List<CommitHashPlusParents> iterate(GitLogIndex.Query query) throws IOException {
+    final CommonProcessors.CollectProcessor<CommitHashPlusParents> processor = new CommonProcessors.CollectProcessor<CommitHashPlusParents>();
+    myIndex.iterate(query, processor);
+    return new ArrayList<CommitHashPlusParents>(processor.getResults());
+  }
+
+  private static String hashes(List<CommitHashPlusParents> commits) {
+    final StringBuilder sb = new StringBuilder();
+    for (CommitHashPlusParents commit : commits) {
+      if (sb.length() > 0) sb.append(", ");
+      sb.append(commit.getHash());
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.idea.maven.indices;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.Processor;
+import com.intellij.util.io.*;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntIntHashMap;
+import gnu.trove.TIntObjectHashMap;
+import org.jdom.Element;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.idea.maven.model.MavenId;
+import org.jetbrains.idea.maven.utils.MavenJDOMUtil;
+import org.jetbrains.idea.maven.utils.MavenProcessCanceledException;
+import org.jetbrains.idea.maven.utils.MavenProgressIndicator;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * In-process index of artifact coordinates and the classes they contain.
+ * <p/>
+ * Coordinates are kept in a {@link PersistentStringEnumerator}, packagings and class names (in 'org/foo/Bar' form) are
+ * mapped to the ids of the artifacts. Searches run without locking over sorted arrays which are built from the storage
+ * on the first search after a modification.
+ */
+public class MavenArtifactIndex implements Closeable {
+  private static final String COORDINATES_FILE = "coordinates.dat";
+  private static final String PACKAGINGS_FILE = "packagings.dat";
+  private static final String CLASSES_FILE = "classes.dat";
+
+  private final PersistentStringEnumerator myCoordinates;
+  private final PersistentHashMap<Integer, String> myPackagings;
+  private final PersistentHashMap<String, int[]> myClasses;
+  private volatile Snapshot mySnapshot;
+
+  public MavenArtifactIndex(File dir) throws IOException {
+    dir.mkdirs();
+    myCoordinates = new PersistentStringEnumerator(new File(dir, COORDINATES_FILE));
+    PersistentHashMap<Integer, String> packagings = null;
+    try {
+      packagings = new PersistentHashMap<Integer, String>(new File(dir, PACKAGINGS_FILE), EnumeratorIntegerDescriptor.INSTANCE,
+                                                          new EnumeratorStringDescriptor());
+      myClasses = new PersistentHashMap<String, int[]>(new File(dir, CLASSES_FILE), new EnumeratorStringDescriptor(),
+                                                       new IdsExternalizer());
+    }
+    catch (IOException e) {
+      try {
+        if (packagings != null) packagings.close();
+      }
+      finally {
+        myCoordinates.close();
+      }
+      throw e;
+    }
+    myPackagings = packagings;
+  }
+
+  /**
+   * @param packaging null if not known, a packaging added before is kept then
+   */
+  public synchronized void add(MavenId id, @Nullable String packaging, Collection<String> classNames) throws IOException {
+    final int idx = myCoordinates.enumerate(id.getGroupId() + ":" + id.getArtifactId() + ":" + id.getVersion());
+    if (packaging != null) myPackagings.put(idx, packaging);
+    for (String each : classNames) {
+      final int[] ids = myClasses.get(each);
+      if (ids == null) {
+        myClasses.put(each, new int[]{idx});
+      }
+      else if (ArrayUtil.indexOf(ids, idx) == -1) {
+        myClasses.put(each, ArrayUtil.append(ids, idx));
+      }
+    }
+    mySnapshot = null;
+  }
+
+  /**
+   * Adds all artifacts with poms found in the local repository, together with the classes of their jars.
+   */
+  public void addFromRepository(File repository, @Nullable MavenProgressIndicator progress)
+    throws IOException, MavenProcessCanceledException {
+    addFromRepository(repository, repository, progress);
+  }
+
+  private void addFromRepository(File repository, File dir, @Nullable MavenProgressIndicator progress)
+    throws IOException, MavenProcessCanceledException {
+    if (progress != null) progress.checkCanceled();
+    final File[] children = dir.listFiles();
+    if (children == null) return;
+    for (File each : children) {
+      if (each.isDirectory()) {
+        addFromRepository(repository, each, progress);
+        continue;
+      }
+      // <group path>/<artifactId>/<version>/<artifactId>-<version>.pom
+      final File artifactDir = dir.getParentFile();
+      if (artifactDir == null || !each.getName().equals(artifactDir.getName() + "-" + dir.getName() + ".pom")) continue;
+      final String groupPath = FileUtil.getRelativePath(repository, artifactDir.getParentFile());
+      if (groupPath == null || groupPath.equals(".")) continue;
+
+      final MavenId id = new MavenId(FileUtil.toSystemIndependentName(groupPath).replace('/', '.'), artifactDir.getName(), dir.getName());
+      if (progress != null) progress.setText2(id.getDisplayString());
+      final File jar = new File(dir, FileUtil.getNameWithoutExtension(each) + ".jar");
+      add(id, readPackaging(each), jar.isFile() ? readClassNames(jar) : Collections.<String>emptyList());
+    }
+  }
+
+  /**
+   * Adds artifacts from an exported dump: a text file with a line per artifact, 'groupId:artifactId:version[:packaging]'
+   * optionally followed by a tab and space-separated fully qualified names of its classes.
+   */
+  public void addFromDump(File dump) throws IOException {
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(dump), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final int tab = line.indexOf('\t');
+        final List<String> coordinates = StringUtil.split(tab == -1 ? line : line.substring(0, tab), ":");
+        if (coordinates.size() != 3 && coordinates.size() != 4) continue;
+        final List<String> classNames = new ArrayList<String>();
+        if (tab != -1) {
+          for (String each : StringUtil.tokenize(line.substring(tab + 1), " ")) {
+            classNames.add(each.replace('.', '/'));
+          }
+        }
+        add(new MavenId(coordinates.get(0), coordinates.get(1), coordinates.get(2)), coordinates.size() == 4 ? coordinates.get(3) : null,
+            classNames);
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * @return the packaging declared in the pom, 'jar' if none is declared, or null if the pom can't be read
+   */
+  @Nullable
+  static String readPackaging(File pom) {
+    final Element project;
+    try {
+      project = MavenJDOMUtil.read(FileUtil.loadFileBytes(pom), null);
+    }
+    catch (IOException e) {
+      return null;
+    }
+    return project == null ? null : MavenJDOMUtil.findChildValueByPath(project, "packaging", "jar");
+  }
+
+  static List<String> readClassNames(File jar) {
+    final List<String> result = new ArrayList<String>();
+    try {
+      final ZipFile zip = new ZipFile(jar);
+      try {
+        final Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+          final String name = entries.nextElement().getName();
+          if (name.endsWith(".class") && name.indexOf('$') == -1) {
+            result.add(name.substring(0, name.length() - ".class".length()));
+          }
+        }
+      }
+      finally {
+        zip.close();
+      }
+    }
+    catch (IOException ignore) {
+      // broken jar, the artifact is indexed without classes
+    }
+    return result;
+  }
+
+  public boolean isEmpty() throws IOException {
+    return getSnapshot().artifacts.length == 0;
+  }
+
+  /**
+   * Matches the same artifacts as the query of {@link MavenArtifactSearcher}.
+   *
+   * @param pattern 'group', 'group:artifact', 'group:version', 'artifact:version' or 'group:artifact:versionPrefix'
+   *                (space separated parts are accepted as well), where group and artifact are substrings of the ids;
+   *                a single part matches either the group or the artifact id. Case insensitive.
+   */
+  @NotNull
+  public List<Artifact> searchArtifacts(String pattern, int maxResult) throws IOException {
+    final Snapshot snapshot = getSnapshot();
+    final List<String> parts = new ArrayList<String>();
+    for (String each : StringUtil.tokenize(pattern.toLowerCase(), " :")) {
+      parts.add(each);
+    }
+
+    final List<Artifact> result = new ArrayList<Artifact>();
+    for (int i = 0; i < snapshot.artifacts.length && result.size() < maxResult; i++) {
+      if (matches(snapshot.keys[i], parts)) result.add(snapshot.artifacts[i]);
+    }
+    return result;
+  }
+
+  private static boolean matches(String[] key, List<String> parts) {
+    final String group = key[0];
+    final String artifact = key[1];
+    final String version = key[2];
+    switch (parts.size()) {
+      case 0:
+        return true;
+      case 1:
+        return group.contains(parts.get(0)) || artifact.contains(parts.get(0));
+      case 2:
+        return group.contains(parts.get(0)) && (artifact.contains(parts.get(1)) || version.startsWith(parts.get(1)))
+               || artifact.contains(parts.get(0)) && version.startsWith(parts.get(1));
+      default:
+        return group.contains(parts.get(0)) && artifact.contains(parts.get(1)) && version.startsWith(parts.get(2));
+    }
+  }
+
+  /**
+   * @param prefix case insensitive prefix of a short class name
+   * @return class names in 'org/foo/Bar' form mapped to the artifacts containing them
+   */
+  @NotNull
+  public Map<String, List<Artifact>> searchClasses(String prefix, int maxResult) throws IOException {
+    final Snapshot snapshot = getSnapshot();
+    final String lowerPrefix = prefix.toLowerCase();
+    final Map<String, List<Artifact>> result = new LinkedHashMap<String, List<Artifact>>();
+    for (int i = lowerBound(snapshot.classKeys, lowerPrefix); i < snapshot.classKeys.length && result.size() < maxResult; i++) {
+      if (!snapshot.classKeys[i].startsWith(lowerPrefix)) break;
+      final int[] artifacts = snapshot.classArtifacts[i];
+      final List<Artifact> found = new ArrayList<Artifact>(artifacts.length);
+      for (int each : artifacts) {
+        found.add(snapshot.artifacts[each]);
+      }
+      result.put(snapshot.classNames[i], found);
+    }
+    return result;
+  }
+
+  private static int lowerBound(String[] keys, String key) {
+    final int idx = Arrays.binarySearch(keys, key);
+    return idx < 0 ? -idx - 1 : idx;
+  }
+
+  private Snapshot getSnapshot() throws IOException {
+    Snapshot result = mySnapshot;
+    if (result == null) {
+      synchronized (this) {
+        result = mySnapshot;
+        if (result == null) {
+          result = buildSnapshot();
+          mySnapshot = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  private Snapshot buildSnapshot() throws IOException {
+    final TIntObjectHashMap<Artifact> byRecord = new TIntObjectHashMap<Artifact>();
+    final List<Artifact> all = new ArrayList<Artifact>();
+    myCoordinates.traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+      public boolean process(int record) throws IOException {
+        final List<String> parts = StringUtil.split(myCoordinates.valueOf(record), ":");
+        final Artifact artifact = new Artifact(new MavenId(parts.get(0), parts.get(1), parts.get(2)), myPackagings.get(record));
+        byRecord.put(record, artifact);
+        all.add(artifact);
+        return true;
+      }
+    });
+
+    final Artifact[] sorted = all.toArray(new Artifact[all.size()]);
+    Arrays.sort(sorted, new Comparator<Artifact>() {
+      public int compare(Artifact o1, Artifact o2) {
+        return key(o1.getId()).compareTo(key(o2.getId()));
+      }
+    });
+    final String[][] keys = new String[sorted.length][];
+    final Map<Artifact, Integer> indices = new HashMap<Artifact, Integer>();
+    for (int i = 0; i < sorted.length; i++) {
+      final MavenId id = sorted[i].getId();
+      keys[i] = new String[]{id.getGroupId().toLowerCase(), id.getArtifactId().toLowerCase(), id.getVersion().toLowerCase()};
+      indices.put(sorted[i], i);
+    }
+    final TIntIntHashMap recordToIndex = new TIntIntHashMap();
+    for (int each : byRecord.keys()) {
+      recordToIndex.put(each, indices.get(byRecord.get(each)));
+    }
+
+    final List<String> classNames = new ArrayList<String>();
+    myClasses.processKeysWithExistingMapping(new Processor<String>() {
+      public boolean process(String name) {
+        classNames.add(name);
+        return true;
+      }
+    });
+    final String[] sortedClassNames = ArrayUtil.toStringArray(classNames);
+    Arrays.sort(sortedClassNames, new Comparator<String>() {
+      public int compare(String o1, String o2) {
+        return classKey(o1).compareTo(classKey(o2));
+      }
+    });
+    final String[] classKeys = new String[sortedClassNames.length];
+    final int[][] classArtifacts = new int[sortedClassNames.length][];
+    for (int i = 0; i < sortedClassNames.length; i++) {
+      classKeys[i] = classKey(sortedClassNames[i]);
+      final TIntArrayList artifacts = new TIntArrayList();
+      final int[] records = myClasses.get(sortedClassNames[i]);
+      if (records != null) {
+        for (int each : records) {
+          if (recordToIndex.containsKey(each)) artifacts.add(recordToIndex.get(each));
+        }
+      }
+      classArtifacts[i] = artifacts.toNativeArray();
+    }
+
+    return new Snapshot(sorted, keys, classKeys, sortedClassNames, classArtifacts);
+  }
+
+  private static String classKey(String className) {
+    // the short name goes first, the full name keeps the keys unique
+    return className.substring(className.lastIndexOf('/') + 1).toLowerCase() + " " + className;
+  }
+
+  private static String key(MavenId id) {
+    return (id.getGroupId() + ":" + id.getArtifactId() + ":" + id.getVersion()).toLowerCase();
+  }
+
+  public synchronized void flush() {
+    myCoordinates.force();
+    myPackagings.force();
+    myClasses.force();
+  }
+
+  public synchronized void close() throws IOException {
+    try {
+      myCoordinates.close();
+    }
+    finally {
+      try {
+        myPackagings.close();
+      }
+      finally {
+        myClasses.close();
+      }
+    }
+  }
+
+  public static class Artifact {
+    private final MavenId myId;
+    @Nullable private final String myPackaging;
+
+    Artifact(MavenId id, @Nullable String packaging) {
+      myId = id;
+      myPackaging = packaging;
+    }
+
+    public MavenId getId() {
+      return myId;
+    }
+
+    /**
+     * @return null if the packaging is not known, e.g. for artifacts of remote indices
+     */
+    @Nullable
+    public String getPackaging() {
+      return myPackaging;
+    }
+  }
+
+  private static class Snapshot {
+    // sorted by coordinates
+    final Artifact[] artifacts;
+    // lowercase group, artifact and version ids of the artifacts
+    final String[][] keys;
+    // keys are 'lowercase short name' + ' ' + 'class name'
+    final String[] classKeys;
+    final String[] classNames;
+    // indices in artifacts
+    final int[][] classArtifacts;
+
+    Snapshot(Artifact[] artifacts, String[][] keys, String[] classKeys, String[] classNames, int[][] classArtifacts) {
+      this.artifacts = artifacts;
+      this.keys = keys;
+      this.classKeys = classKeys;
+      this.classNames = classNames;
+      this.classArtifacts = classArtifacts;
+    }
+  }
+
+  private static class IdsExternalizer implements DataExternalizer<int[]> {
+    public void save(DataOutput out, int[] value) throws IOException {
+      DataInputOutputUtil.writeINT(out, value.length);
+      for (int each : value) {
+        DataInputOutputUtil.writeINT(out, each);
+      }
+    }
+
+    public int[] read(DataInput in) throws IOException {
+      final int[] result = new int[DataInputOutputUtil.readINT(in)];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = DataInputOutputUtil.readINT(in);
+      }
+      return result;
+    }
+  }
+}
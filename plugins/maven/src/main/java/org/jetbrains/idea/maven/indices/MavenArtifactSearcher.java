@@ -56,6 +56,11 @@ public class MavenArtifactSearcher extends MavenSearcher<MavenArtifactSearchResu
     return Pair.create(pattern, (Query)query);
   }
 
+  @Override
+  protected Set<MavenArtifactInfo> searchInProcess(MavenIndex index, String pattern, int maxResult) {
+    return index.searchArtifacts(pattern, maxResult);
+  }
+
   protected Collection<MavenArtifactSearchResult> processResults(Set<MavenArtifactInfo> infos, String pattern, int maxResult) {
     Map<String, MavenArtifactSearchResult> result = new THashMap<String, MavenArtifactSearchResult>();
 
@@ -59,6 +59,14 @@ public class MavenClassSearcher extends MavenSearcher<MavenClassSearchResult> {
     return new Pair<String, Query>(pattern, new WildcardQuery(new Term(TERM, queryPattern)));
   }
 
+  @Override
+  protected Set<MavenArtifactInfo> searchInProcess(MavenIndex index, String pattern, int maxResult) {
+    // only short name prefixes are supported
+    String prefix = pattern.trim();
+    if (prefix.length() == 0 || prefix.indexOf('.') != -1 || prefix.indexOf('*') != -1) return null;
+    return index.searchClasses(prefix, maxResult);
+  }
+
   protected Collection<MavenClassSearchResult> processResults(Set<MavenArtifactInfo> infos, String pattern, int maxResult) {
     if (pattern.length() == 0 || pattern.equals("*")) {
       pattern = "^/(.*)$";
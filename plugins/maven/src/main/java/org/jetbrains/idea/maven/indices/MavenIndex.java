@@ -17,11 +17,13 @@ package org.jetbrains.idea.maven.indices;
 
 import com.intellij.openapi.util.Condition;
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.io.*;
 import gnu.trove.THashMap;
 import gnu.trove.THashSet;
 import org.apache.lucene.search.Query;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 import org.jetbrains.idea.maven.model.MavenArtifactInfo;
 import org.jetbrains.idea.maven.model.MavenId;
@@ -37,7 +39,7 @@ import java.io.*;
 import java.util.*;
 
 public class MavenIndex {
-  private static final String CURRENT_VERSION = "4";
+  private static final String CURRENT_VERSION = "5";
 
   protected static final String INDEX_INFO_FILE = "index.properties";
 
@@ -58,6 +60,7 @@ public class MavenIndex {
   private static final String VERSIONS_FILE = "versions.dat";
   private static final String ARTIFACT_IDS_MAP_FILE = "artifactIds-map.dat";
   private static final String VERSIONS_MAP_FILE = "versions-map.dat";
+  private static final String ARTIFACTS_DIR = "artifacts";
 
   public enum Kind {
     LOCAL, REMOTE
@@ -312,7 +315,7 @@ public class MavenIndex {
     myIndexer.updateIndex(indexId, settings, progress);
   }
 
-  private void updateData(MavenProgressIndicator progress) throws MavenIndexException {
+  private void updateData(MavenProgressIndicator progress) throws MavenIndexException, MavenProcessCanceledException {
     String newDataDirName;
     IndexData newData;
 
@@ -333,6 +336,7 @@ public class MavenIndex {
       newData.close(true);
       FileUtil.delete(getDataDir(newDataDirName));
 
+      if (e instanceof MavenProcessCanceledException) throw (MavenProcessCanceledException)e;
       if (e instanceof MavenServerIndexerException) throw new MavenIndexException(e);
       if (e instanceof IOException) throw new MavenIndexException(e);
       throw new RuntimeException(e);
@@ -355,7 +359,8 @@ public class MavenIndex {
   }
 
   private void doUpdateIndexData(IndexData data,
-                                 MavenProgressIndicator progress) throws IOException, MavenServerIndexerException {
+                                 MavenProgressIndicator progress)
+    throws IOException, MavenServerIndexerException, MavenProcessCanceledException {
     final Set<String> groups = new THashSet<String>();
     final Set<String> groupsWithArtifacts = new THashSet<String>();
     final Set<String> groupsWithArtifactsWithVersions = new THashSet<String>();
@@ -401,6 +406,16 @@ public class MavenIndex {
 
       persist(groupToArtifactMap, data.groupToArtifactMap);
       persist(groupWithArtifactToVersionMap, data.groupWithArtifactToVersionMap);
+
+      for (String each : groupsWithArtifactsWithVersions) {
+        List<String> parts = StringUtil.split(each, ":");
+        if (parts.size() != 3) continue;
+        data.artifacts.add(new MavenId(parts.get(0), parts.get(1), parts.get(2)), null, Collections.<String>emptyList());
+      }
+      // class names of remote artifacts are known to the remote indexer only
+      if (myKind == Kind.LOCAL) {
+        data.artifacts.addFromRepository(getRepositoryFile(), progress);
+      }
     }
     finally {
       progress.popState();
@@ -489,6 +504,9 @@ public class MavenIndex {
         myData.groupsWithArtifactsWithVersions.enumerate(groupWithArtifactWithVersion);
         myData.hasVersionCache.put(groupWithArtifactWithVersion, true);
         addToCache(myData.groupWithArtifactToVersionMap, groupWithArtifact, version);
+        File pom = new File(artifactFile.getParentFile(), FileUtil.getNameWithoutExtension(artifactFile) + ".pom");
+        String packaging = pom.isFile() ? MavenArtifactIndex.readPackaging(pom) : null;
+        myData.artifacts.add(id, packaging, MavenArtifactIndex.readClassNames(artifactFile));
         myData.flush();
 
         return null;
@@ -558,12 +576,7 @@ public class MavenIndex {
 
     boolean result = doIndexTask(new IndexTask<Boolean>() {
       public Boolean doTask() throws Exception {
-        return !set.traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
-          public boolean process(int record) throws IOException {
-            if (value.equals(set.valueOf(record))) return false;
-            return true;
-          }
-        });
+        return set.tryEnumerate(value) != 0;
       }
     }, false).booleanValue();
 
@@ -579,6 +592,72 @@ public class MavenIndex {
     }, Collections.<MavenArtifactInfo>emptySet());
   }
 
+  /**
+   * Searches artifacts by coordinates in the in-process index, see {@link MavenArtifactIndex#searchArtifacts(String, int)}.
+   * Doesn't make remote calls.
+   *
+   * @return null if the in-process index can't be used, e.g. when packagings of the found artifacts are not known
+   */
+  @Nullable
+  public synchronized Set<MavenArtifactInfo> searchArtifacts(String pattern, int maxResult) {
+    if (myData == null || isBroken) return null;
+    try {
+      if (myData.artifacts.isEmpty()) return null;
+      Set<MavenArtifactInfo> result = new THashSet<MavenArtifactInfo>();
+      for (MavenArtifactIndex.Artifact each : myData.artifacts.searchArtifacts(pattern, maxResult)) {
+        if (each.getPackaging() == null) return null;
+        result.add(createInfo(each, null));
+      }
+      return result;
+    }
+    catch (IOException e) {
+      MavenLog.LOG.warn(e);
+      return null;
+    }
+  }
+
+  /**
+   * Searches classes by a short name prefix in the in-process index. Class names of the found artifacts
+   * are given in the same form as the remote indexer gives them: '/org/foo/Bar' lines.
+   *
+   * @return null if the in-process index can't be used, e.g. when packagings of the found artifacts are not known
+   */
+  @Nullable
+  public synchronized Set<MavenArtifactInfo> searchClasses(String classNamePrefix, int maxResult) {
+    if (myData == null || isBroken || myKind != Kind.LOCAL) return null;
+    try {
+      if (myData.artifacts.isEmpty()) return null;
+      Map<MavenArtifactIndex.Artifact, StringBuilder> classNames = new LinkedHashMap<MavenArtifactIndex.Artifact, StringBuilder>();
+      Map<String, List<MavenArtifactIndex.Artifact>> found = myData.artifacts.searchClasses(classNamePrefix, maxResult);
+      for (Map.Entry<String, List<MavenArtifactIndex.Artifact>> each : found.entrySet()) {
+        for (MavenArtifactIndex.Artifact artifact : each.getValue()) {
+          if (artifact.getPackaging() == null) return null;
+          StringBuilder builder = classNames.get(artifact);
+          if (builder == null) {
+            builder = new StringBuilder();
+            classNames.put(artifact, builder);
+          }
+          builder.append('/').append(each.getKey()).append('\n');
+        }
+      }
+      Set<MavenArtifactInfo> result = new THashSet<MavenArtifactInfo>();
+      for (Map.Entry<MavenArtifactIndex.Artifact, StringBuilder> each : classNames.entrySet()) {
+        result.add(createInfo(each.getKey(), each.getValue().toString()));
+      }
+      return result;
+    }
+    catch (IOException e) {
+      MavenLog.LOG.warn(e);
+      return null;
+    }
+  }
+
+  private MavenArtifactInfo createInfo(MavenArtifactIndex.Artifact artifact, @Nullable String classNames) {
+    MavenId id = artifact.getId();
+    return new MavenArtifactInfo(id.getGroupId(), id.getArtifactId(), id.getVersion(), artifact.getPackaging(), null, classNames,
+                                 myRepositoryId);
+  }
+
   private <T> T doIndexTask(IndexTask<T> task, T defaultValue) {
     assert Thread.holdsLock(this);
 
@@ -625,6 +704,8 @@ public class MavenIndex {
     final Map<String, Boolean> hasArtifactCache = new THashMap<String, Boolean>();
     final Map<String, Boolean> hasVersionCache = new THashMap<String, Boolean>();
 
+    final MavenArtifactIndex artifacts;
+
     private final int indexId;
 
     public IndexData(File dir) throws MavenIndexException {
@@ -636,6 +717,8 @@ public class MavenIndex {
         groupToArtifactMap = createPersistentMap(new File(dir, ARTIFACT_IDS_MAP_FILE));
         groupWithArtifactToVersionMap = createPersistentMap(new File(dir, VERSIONS_MAP_FILE));
 
+        artifacts = new MavenArtifactIndex(new File(dir, ARTIFACTS_DIR));
+
         indexId = createContext(getDataContextDir(dir), dir.getName());
       }
       catch (IOException e) {
@@ -670,6 +753,8 @@ public class MavenIndex {
       safeClose(groupToArtifactMap, exceptions);
       safeClose(groupWithArtifactToVersionMap, exceptions);
 
+      safeClose(artifacts, exceptions);
+
       if (exceptions[0] != null) throw exceptions[0];
     }
 
@@ -690,6 +775,8 @@ public class MavenIndex {
 
       groupToArtifactMap.force();
       groupWithArtifactToVersionMap.force();
+
+      artifacts.flush();
     }
 
     public void processArtifacts(MavenIndicesProcessor processor) throws MavenServerIndexerException {
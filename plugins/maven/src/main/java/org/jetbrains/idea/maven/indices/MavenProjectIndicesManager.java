@@ -19,10 +19,12 @@ import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.PairFunction;
 import com.intellij.util.ui.update.MergingUpdateQueue;
 import com.intellij.util.ui.update.Update;
 import gnu.trove.THashSet;
 import org.apache.lucene.search.Query;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.idea.maven.model.MavenArtifactInfo;
 import org.jetbrains.idea.maven.model.MavenId;
 import org.jetbrains.idea.maven.model.MavenRemoteRepository;
@@ -200,12 +202,23 @@ public class MavenProjectIndicesManager extends MavenSimpleProjectComponent {
   }
 
   public Set<MavenArtifactInfo> search(Query query, int maxResult) {
+    return search(query, null, maxResult);
+  }
+
+  /**
+   * @param inProcessSearch searches an index without calling the remote indexer; returns null when it can't,
+   *                        then the index is searched with the query
+   */
+  public Set<MavenArtifactInfo> search(Query query,
+                                       @Nullable PairFunction<MavenIndex, Integer, Set<MavenArtifactInfo>> inProcessSearch,
+                                       int maxResult) {
     Set<MavenArtifactInfo> result = new THashSet<MavenArtifactInfo>();
 
     for (MavenIndex each : myProjectIndices) {
       int remained = maxResult - result.size();
       if (remained <= 0) break;
-      result.addAll(each.search(query, remained));
+      Set<MavenArtifactInfo> found = inProcessSearch == null ? null : inProcessSearch.fun(each, remained);
+      result.addAll(found != null ? found : each.search(query, remained));
     }
 
     return result;
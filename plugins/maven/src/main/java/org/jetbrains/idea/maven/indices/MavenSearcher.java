@@ -18,7 +18,9 @@ package org.jetbrains.idea.maven.indices;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Comparing;
 import com.intellij.openapi.util.Pair;
+import com.intellij.util.PairFunction;
 import org.apache.lucene.search.Query;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.idea.maven.model.MavenArtifactInfo;
 
 import java.util.*;
@@ -26,11 +28,15 @@ import java.util.*;
 public abstract class MavenSearcher<RESULT_TYPE extends MavenArtifactSearchResult> {
   public static final VersionComparator COMPARATOR = new VersionComparator();
 
-  public List<RESULT_TYPE> search(Project project, String pattern, int maxResult) {
+  public List<RESULT_TYPE> search(Project project, final String pattern, int maxResult) {
     Pair<String, Query> patternAndQuery = preparePatternAndQuery(pattern);
 
     MavenProjectIndicesManager m = MavenProjectIndicesManager.getInstance(project);
-    Set<MavenArtifactInfo> infos = m.search(patternAndQuery.second, maxResult);
+    Set<MavenArtifactInfo> infos = m.search(patternAndQuery.second, new PairFunction<MavenIndex, Integer, Set<MavenArtifactInfo>>() {
+      public Set<MavenArtifactInfo> fun(MavenIndex index, Integer maxResult) {
+        return searchInProcess(index, pattern, maxResult);
+      }
+    }, maxResult);
 
     List<RESULT_TYPE> result = new ArrayList<RESULT_TYPE>(processResults(infos, patternAndQuery.first, maxResult));
     sort(result);
@@ -39,6 +45,16 @@ public abstract class MavenSearcher<RESULT_TYPE extends MavenArtifactSearchResul
 
   protected abstract Pair<String, Query> preparePatternAndQuery(String pattern);
 
+  /**
+   * Searches the in-process index of the given index, which answers prefix queries without remote calls.
+   *
+   * @return null if the pattern or the index are not supported, then the query is used
+   */
+  @Nullable
+  protected Set<MavenArtifactInfo> searchInProcess(MavenIndex index, String pattern, int maxResult) {
+    return null;
+  }
+
   protected abstract Collection<RESULT_TYPE> processResults(Set<MavenArtifactInfo> infos, String pattern, int maxResult);
 
   private void sort(List<RESULT_TYPE> result) {
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.idea.maven.indices;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.idea.maven.model.MavenId;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class MavenArtifactIndexTest extends TestCase {
+  private File myDir;
+  private MavenArtifactIndex myIndex;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("mavenArtifactIndex", null);
+    myIndex = new MavenArtifactIndex(new File(myDir, "index"));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myIndex.close();
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testSearchArtifacts() throws Exception {
+    myIndex.add(new MavenId("junit", "junit", "4.8"), "jar", Collections.<String>emptyList());
+    myIndex.add(new MavenId("junit", "junit", "3.8.1"), "jar", Collections.<String>emptyList());
+    myIndex.add(new MavenId("org.jmock", "jmock-junit4", "2.5"), "jar", Collections.<String>emptyList());
+    myIndex.add(new MavenId("org.apache.commons", "commons-io", "1.3"), "jar", Collections.<String>emptyList());
+    assertFalse(myIndex.isEmpty());
+
+    assertEquals("junit:junit:3.8.1, junit:junit:4.8, org.jmock:jmock-junit4:2.5", ids(myIndex.searchArtifacts("JUn", 10)));
+    assertEquals("org.apache.commons:commons-io:1.3", ids(myIndex.searchArtifacts("apache", 10)));
+    assertEquals("org.jmock:jmock-junit4:2.5", ids(myIndex.searchArtifacts("jmock-", 10)));
+    assertEquals("org.jmock:jmock-junit4:2.5", ids(myIndex.searchArtifacts("org:jmock", 10)));
+    assertEquals("org.jmock:jmock-junit4:2.5", ids(myIndex.searchArtifacts("jmock:junit", 10)));
+    assertEquals("junit:junit:4.8", ids(myIndex.searchArtifacts("junit junit 4", 10)));
+    assertEquals("junit:junit:4.8", ids(myIndex.searchArtifacts("nit:4", 10)));
+    assertEquals("", ids(myIndex.searchArtifacts("junit junit 8", 10)));
+    assertEquals("", ids(myIndex.searchArtifacts("commons-lang", 10)));
+    assertEquals(1, myIndex.searchArtifacts("", 1).size());
+  }
+
+  public void testPackagings() throws Exception {
+    myIndex.add(new MavenId("org.example", "parent", "1.0"), "pom", Collections.<String>emptyList());
+    myIndex.add(new MavenId("org.example", "parent", "1.0"), null, Collections.<String>emptyList());
+    myIndex.add(new MavenId("org.example", "remote", "1.0"), null, Collections.<String>emptyList());
+
+    assertEquals("pom", myIndex.searchArtifacts("parent", 10).get(0).getPackaging());
+    assertNull(myIndex.searchArtifacts("remote", 10).get(0).getPackaging());
+  }
+
+  public void testSearchClassesFromRepository() throws Exception {
+    File repository = new File(myDir, "repository");
+    createArtifact(repository, "org.example", "lib", "1.0", "org/example/StringUtils.class", "org/example/StringUtils$Inner.class");
+    createArtifact(repository, "org.example", "lib", "2.0", "org/example/StringUtils.class", "org/example/Strings.class");
+    createArtifact(repository, "com.other", "util", "1.0", "com/other/StringBuilders.class");
+    File pluginDir = new File(repository, "org/example/plugin/1.0");
+    pluginDir.mkdirs();
+    FileUtil.writeToFile(new File(pluginDir, "plugin-1.0.pom"), "<project><packaging>maven-plugin</packaging></project>");
+
+    myIndex.addFromRepository(repository, null);
+
+    assertEquals("com.other:util:1.0, org.example:lib:1.0, org.example:lib:2.0, org.example:plugin:1.0",
+                 ids(myIndex.searchArtifacts("", 10)));
+    assertEquals("jar", myIndex.searchArtifacts("lib", 10).get(0).getPackaging());
+    assertEquals("maven-plugin", myIndex.searchArtifacts("plugin", 10).get(0).getPackaging());
+    Map<String, List<MavenArtifactIndex.Artifact>> classes = myIndex.searchClasses("stringu", 10);
+    assertEquals(Collections.singleton("org/example/StringUtils"), classes.keySet());
+    assertEquals("org.example:lib:1.0, org.example:lib:2.0", ids(classes.get("org/example/StringUtils")));
+    assertEquals(Arrays.asList("com/other/StringBuilders", "org/example/Strings", "org/example/StringUtils"),
+                 new ArrayList<String>(myIndex.searchClasses("String", 10).keySet()));
+    assertTrue(myIndex.searchClasses("Inner", 10).isEmpty());
+  }
+
+  public void testDumpAndReopen() throws Exception {
+    File dump = new File(myDir, "dump.txt");
+    FileUtil.writeToFile(dump, "junit:junit:4.8:jar\torg.junit.Assert org.junit.Test\n" +
+                               "broken line\n" +
+                               "org.testng:testng:5.8\n");
+    myIndex.addFromDump(dump);
+    myIndex.close();
+
+    myIndex = new MavenArtifactIndex(new File(myDir, "index"));
+    assertEquals("org.testng:testng:5.8", ids(myIndex.searchArtifacts("testng", 10)));
+    assertEquals("junit:junit:4.8", ids(myIndex.searchClasses("assert", 10).get("org/junit/Assert")));
+    assertEquals("jar", myIndex.searchArtifacts("junit", 10).get(0).getPackaging());
+  }
+
+  private static void createArtifact(File repository, String groupId, String artifactId, String version, String... classes)
+    throws Exception {
+    File dir = new File(repository, groupId.replace('.', '/') + "/" + artifactId + "/" + version);
+    dir.mkdirs();
+    FileUtil.writeToFile(new File(dir, artifactId + "-" + version + ".pom"), "<project/>");
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(new File(dir, artifactId + "-" + version + ".jar")));
+    try {
+      for (String each : classes) {
+        zip.putNextEntry(new ZipEntry(each));
+        zip.closeEntry();
+      }
+    }
+    finally {
+      zip.close();
+    }
+  }
+
+  private static String ids(List<MavenArtifactIndex.Artifact> artifacts) {
+    List<String> result = new ArrayList<String>();
+    for (MavenArtifactIndex.Artifact artifact : artifacts) {
+      MavenId each = artifact.getId();
+      result.add(each.getGroupId() + ":" + each.getArtifactId() + ":" + each.getVersion());
+    }
+    Collections.sort(result);
+    StringBuilder builder = new StringBuilder();
+    for (String each : result) {
+      if (builder.length() > 0) builder.append(", ");
+      builder.append(each);
+    }
+    return builder.toString();
+  }
+}